@@ -0,0 +1,276 @@
+package com.ohw.parser.admission;
+
+import com.google.gson.Gson;
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.parsers.RecordView;
+import com.ohw.parser.pipeline.IngestPipeline;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the device listeners responsive when the fleet reconnects at once or one
+// tracker floods. Acceptors are paced to acceptsPerSecond across all ports, and a
+// new connection is refused (closed straight away) over maxConnections, over its
+// address's connect rate, or while the ingest shards are backed up. Each device
+// also gets a frame budget.
+//
+// Shedding a frame means not confirming it. The tracker keeps it in its archive
+// and resends it later, as after a checksum mismatch, so shedding delays data
+// rather than losing it. Under load it goes by priority: new connections are
+// refused first, then archive frames are shed, then live ones. Command replies
+// are never shed.
+//
+// Loopback connections are exempt: they come from capture replays and other
+// tools on the phone itself, whose measurements shedding would distort.
+public class AdmissionControl {
+
+    public enum Priority {
+        REPLY,      // answers to our commands
+        LIVE,       // the device's current position
+        ARCHIVE     // history flushed after an outage
+    }
+
+    public static class Config {
+        public boolean enabled = true;
+        public boolean exemptLoopback = true;
+        public int maxConnections = 5000;
+        public double acceptsPerSecond = 100;           // new connections, all ports together
+        public int acceptBurst = 200;
+        public double connectsPerAddressPerSecond = 20; // carrier NAT puts many trackers behind one address
+        public int connectBurstPerAddress = 200;
+        public double framesPerDevicePerSecond = 5;
+        public int frameBurstPerDevice = 50;
+        public long archiveAgeMillis = 300000;          // 5 minutes; older single records count as archive
+        // Shard queue fill (0..1) at which each priority starts to be shed
+        public double refuseConnectionsAtFill = 0.5;
+        public double shedArchiveAtFill = 0.6;
+        public double shedLiveAtFill = 0.9;
+    }
+
+    private static final Gson GSON = new Gson();
+
+    private volatile Config config;
+    private final IngestPipeline pipeline;
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+    private final TokenBucket accepts;
+    private final Map<String, TokenBucket> addressBuckets = new ConcurrentHashMap<>();
+    private final Object growLock = new Object();
+    private volatile TokenBucket[] deviceBuckets = new TokenBucket[1024];
+
+    public AdmissionControl(Config config, IngestPipeline pipeline) {
+        validate(config);
+        this.config = config;
+        this.pipeline = pipeline;
+        this.accepts = new TokenBucket(config.acceptBurst, System.nanoTime());
+    }
+
+    // Throws IllegalArgumentException for a rate or burst that would stall the
+    // listeners (a zero accept rate makes paceAccept sleep forever) or a fill
+    // threshold outside 0..1
+    public void setConfig(Config config) {
+        validate(config);
+        this.config = config;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public void loadConfig(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            Config loaded = GSON.fromJson(reader, Config.class);
+            if (loaded != null) {
+                setConfig(loaded);
+            }
+        }
+    }
+
+    public void saveConfig(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            GSON.toJson(config, writer);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    // Called by an acceptor before accept(); a storm waits in the listen backlog
+    // and the kernel's SYN retries instead of all arriving at once
+    public void paceAccept() throws InterruptedException {
+        Config current = config;
+        if (!current.enabled) {
+            return;
+        }
+        long waitNanos = accepts.reserve(current.acceptsPerSecond, current.acceptBurst, System.nanoTime());
+        if (waitNanos > 0) {
+            metrics.acceptsPaced.increment();
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    // True for a connection none of the limits apply to
+    public boolean isExempt(InetAddress address) {
+        Config current = config;
+        return !current.enabled || (current.exemptLoopback && address.isLoopbackAddress());
+    }
+
+    // False when the new connection should be closed without being served
+    public boolean admitConnection(InetAddress address, int openConnections) {
+        Config current = config;
+        if (isExempt(address)) {
+            return true;
+        }
+        if (openConnections >= current.maxConnections) {
+            metrics.connectionsRefusedLimit.increment();
+            return false;
+        }
+        if (getMaxFill() >= current.refuseConnectionsAtFill) {
+            metrics.connectionsRefusedOverload.increment();
+            return false;
+        }
+        long now = System.nanoTime();
+        TokenBucket bucket = addressBuckets.computeIfAbsent(address.getHostAddress(),
+                key -> new TokenBucket(current.connectBurstPerAddress, now));
+        if (!bucket.tryTake(current.connectsPerAddressPerSecond, current.connectBurstPerAddress, now)) {
+            metrics.connectionsRefusedRate.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public Priority priorityOf(RecordView record, long nowMillis) {
+        if (record.isCommandReply()) {
+            return Priority.REPLY;
+        }
+        if (record.getRecordCount() > 1) {
+            return Priority.ARCHIVE;
+        }
+        if (record.hasTimestamp()
+                && nowMillis - record.getTimestampSeconds() * 1000L > config.archiveAgeMillis) {
+            return Priority.ARCHIVE;
+        }
+        return Priority.LIVE;
+    }
+
+    // False when the frame should be left unconfirmed; slot is -1 for a device
+    // that has not identified itself
+    public boolean admitFrame(int slot, long imei, Priority priority) {
+        Config current = config;
+        if (!current.enabled || priority == Priority.REPLY) {
+            return true;
+        }
+        if (slot >= 0 && !bucketFor(slot, current).tryTake(current.framesPerDevicePerSecond,
+                current.frameBurstPerDevice, System.nanoTime())) {
+            metrics.framesShedRate.increment();
+            return false;
+        }
+        double fill = getFill(pipeline.shardFor(imei));
+        if (priority == Priority.ARCHIVE && fill >= current.shedArchiveAtFill) {
+            metrics.framesShedArchive.increment();
+            return false;
+        }
+        if (priority == Priority.LIVE && fill >= current.shedLiveAtFill) {
+            metrics.framesShedLive.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // Drops address buckets that have refilled, so the map only holds recent callers
+    public void prune() {
+        Config current = config;
+        long now = System.nanoTime();
+        Iterator<TokenBucket> buckets = addressBuckets.values().iterator();
+        while (buckets.hasNext()) {
+            if (buckets.next().isFull(current.connectsPerAddressPerSecond, current.connectBurstPerAddress, now)) {
+                buckets.remove();
+            }
+        }
+    }
+
+    public int getTrackedAddresses() {
+        return addressBuckets.size();
+    }
+
+    // Fill of the fullest shard queue, 0..1
+    public double getMaxFill() {
+        double max = 0;
+        for (int i = 0; i < pipeline.getShardCount(); i++) {
+            max = Math.max(max, getFill(i));
+        }
+        return max;
+    }
+
+    private static void validate(Config config) {
+        if (config.maxConnections < 1) {
+            throw new IllegalArgumentException("Invalid maxConnections " + config.maxConnections);
+        }
+        checkRate("acceptsPerSecond", config.acceptsPerSecond);
+        checkRate("connectsPerAddressPerSecond", config.connectsPerAddressPerSecond);
+        checkRate("framesPerDevicePerSecond", config.framesPerDevicePerSecond);
+        checkBurst("acceptBurst", config.acceptBurst);
+        checkBurst("connectBurstPerAddress", config.connectBurstPerAddress);
+        checkBurst("frameBurstPerDevice", config.frameBurstPerDevice);
+        if (config.archiveAgeMillis < 0) {
+            throw new IllegalArgumentException("Invalid archiveAgeMillis " + config.archiveAgeMillis);
+        }
+        checkFill("refuseConnectionsAtFill", config.refuseConnectionsAtFill);
+        checkFill("shedArchiveAtFill", config.shedArchiveAtFill);
+        checkFill("shedLiveAtFill", config.shedLiveAtFill);
+    }
+
+    private static void checkRate(String name, double perSecond) {
+        // Also rejects NaN
+        if (!(perSecond > 0) || Double.isInfinite(perSecond)) {
+            throw new IllegalArgumentException("Invalid " + name + " " + perSecond);
+        }
+    }
+
+    private static void checkBurst(String name, int burst) {
+        if (burst < 1) {
+            throw new IllegalArgumentException("Invalid " + name + " " + burst);
+        }
+    }
+
+    private static void checkFill(String name, double fill) {
+        if (!(fill >= 0 && fill <= 1)) {
+            throw new IllegalArgumentException("Invalid " + name + " " + fill + ", expected 0..1");
+        }
+    }
+
+    private double getFill(int shard) {
+        return pipeline.getQueueDepth(shard) / (double) pipeline.getQueueCapacity(shard);
+    }
+
+    private TokenBucket bucketFor(int slot, Config config) {
+        TokenBucket[] current = deviceBuckets;
+        if (slot < current.length && current[slot] != null) {
+            return current[slot];
+        }
+        synchronized (growLock) {
+            current = deviceBuckets;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, Math.max(slot + 1, current.length * 2));
+            }
+            if (current[slot] == null) {
+                current[slot] = new TokenBucket(config.frameBurstPerDevice, System.nanoTime());
+            }
+            deviceBuckets = current;
+            return current[slot];
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.ohw.parser.admission;
+
+// Classic token bucket: refills at ratePerSecond up to burst tokens. Rate and
+// burst are passed on every call so a config change applies to existing buckets.
+final class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private double tokens;
+    private long refilledNanos;
+
+    TokenBucket(int burst, long nowNanos) {
+        this.tokens = burst;
+        this.refilledNanos = nowNanos;
+    }
+
+    // Takes a token if one is available
+    synchronized boolean tryTake(double ratePerSecond, int burst, long nowNanos) {
+        refill(ratePerSecond, burst, nowNanos);
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    // Takes a token even if that runs the bucket into debt; returns the nanos the
+    // caller should wait for the token to have been earned
+    synchronized long reserve(double ratePerSecond, int burst, long nowNanos) {
+        refill(ratePerSecond, burst, nowNanos);
+        tokens--;
+        return tokens >= 0 ? 0 : (long) (-tokens / ratePerSecond * NANOS_PER_SECOND);
+    }
+
+    // True once the bucket has refilled, so dropping it loses nothing
+    synchronized boolean isFull(double ratePerSecond, int burst, long nowNanos) {
+        refill(ratePerSecond, burst, nowNanos);
+        return tokens >= burst;
+    }
+
+    private void refill(double ratePerSecond, int burst, long nowNanos) {
+        long elapsed = nowNanos - refilledNanos;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * ratePerSecond / NANOS_PER_SECOND);
+            refilledNanos = nowNanos;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.ohw.parser.alerts;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.models.ParsedPacket;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Evaluates the compiled rule set against every decoded record, inline on the
+// device's ingest shard. Per-device state gives hysteresis and debounce, and
+// listeners only hear about transitions, so a value hovering past a threshold
+// raises one alert rather than one per record.
+public class AlertEngine {
+
+    private static final Gson GSON = new Gson();
+
+    private final AlertListener listener;
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+    private final Object growLock = new Object();
+    private volatile AlertRules rules = AlertRules.EMPTY;
+    private volatile AlertState[] states = new AlertState[1024];
+
+    public AlertEngine(AlertListener listener) {
+        this.listener = listener;
+    }
+
+    public AlertRules getRules() {
+        return rules;
+    }
+
+    // Swaps the rule set; device state restarts from clear for the new rules
+    public void setRules(AlertRules rules) {
+        this.rules = rules;
+    }
+
+    public void evaluate(int slot, long imei, ParsedPacket packet, long nowMillis) {
+        AlertRules current = rules;
+        if (current.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        AlertState state = stateFor(slot);
+        state.bind(current);
+
+        // Voltages of 0 mean the record did not carry the tag
+        if (current.batteryVoltage != null && packet.getBatteryVoltage() > 0) {
+            evaluateThresholds(current, current.batteryVoltage, state, packet.getBatteryVoltage(),
+                    imei, slot, nowMillis);
+        }
+        if (current.supplyVoltage != null && packet.getSupplyVoltage() > 0) {
+            evaluateThresholds(current, current.supplyVoltage, state, packet.getSupplyVoltage(),
+                    imei, slot, nowMillis);
+        }
+        if (current.speed != null) {
+            evaluateThresholds(current, current.speed, state, packet.getSpeed(), imei, slot, nowMillis);
+        }
+        if (current.status != null && packet.hasStatus()) {
+            int status = packet.getStatus();
+            evaluateBits(current, current.status, state, status, state.hasStatus, state.lastStatus,
+                    imei, slot, nowMillis);
+            state.hasStatus = true;
+            state.lastStatus = status;
+        }
+        if (current.inputs != null) {
+            Object value = packet.getAdditionalData("inputs");
+            if (value instanceof Integer) {
+                int inputs = (Integer) value;
+                evaluateBits(current, current.inputs, state, inputs, state.hasInputs, state.lastInputs,
+                        imei, slot, nowMillis);
+                state.hasInputs = true;
+                state.lastInputs = inputs;
+            }
+        }
+        metrics.alertEvaluation.recordSince(start);
+    }
+
+    private void evaluateThresholds(AlertRules current, AlertRules.ThresholdGroup group, AlertState state,
+                                    double value, long imei, int slot, long nowMillis) {
+        for (int i = 0; i < group.size; i++) {
+            long scope = group.scope[i];
+            if (scope >= 0 && scope != imei) {
+                continue;
+            }
+            int rule = group.rule[i];
+            double signed = group.sign[i] * value;
+            if (state.isActive(rule)) {
+                if (signed >= group.exit[i]) {
+                    state.setActive(rule, false);
+                    emit(current, AlertEvent.Type.RESOLVED, rule, imei, slot, value, nowMillis);
+                }
+            } else if (signed < group.enter[i]) {
+                if (debounced(state, rule, group.debounceMillis[i], nowMillis)) {
+                    state.setActive(rule, true);
+                    emit(current, AlertEvent.Type.RAISED, rule, imei, slot, value, nowMillis);
+                }
+            } else if (group.debounceMillis[i] > 0 && state.hasPending()) {
+                state.clearPending(rule);
+            }
+        }
+    }
+
+    private void evaluateBits(AlertRules current, AlertRules.BitGroup group, AlertState state, int value,
+                              boolean hasPrevious, int previous, long imei, int slot, long nowMillis) {
+        for (int i = 0; i < group.size; i++) {
+            long scope = group.scope[i];
+            if (scope >= 0 && scope != imei) {
+                continue;
+            }
+            int rule = group.rule[i];
+            int mask = group.mask[i];
+            byte mode = group.mode[i];
+            if (mode == AlertRules.MODE_CHANGED) {
+                if (hasPrevious && ((value ^ previous) & mask) != 0) {
+                    emit(current, AlertEvent.Type.CHANGED, rule, imei, slot, value, nowMillis);
+                }
+                continue;
+            }
+
+            boolean condition = mode == AlertRules.MODE_SET ? (value & mask) != 0 : (value & mask) == 0;
+            if (state.isActive(rule)) {
+                if (!condition) {
+                    state.setActive(rule, false);
+                    emit(current, AlertEvent.Type.RESOLVED, rule, imei, slot, value, nowMillis);
+                }
+            } else if (condition) {
+                if (debounced(state, rule, group.debounceMillis[i], nowMillis)) {
+                    state.setActive(rule, true);
+                    emit(current, AlertEvent.Type.RAISED, rule, imei, slot, value, nowMillis);
+                }
+            } else if (group.debounceMillis[i] > 0 && state.hasPending()) {
+                state.clearPending(rule);
+            }
+        }
+    }
+
+    // True once the condition has held for the debounce period
+    private static boolean debounced(AlertState state, int rule, long debounceMillis, long nowMillis) {
+        if (debounceMillis == 0) {
+            return true;
+        }
+        long since = state.pendingSince(rule);
+        if (since < 0) {
+            state.startPending(rule, nowMillis);
+            return false;
+        }
+        if (nowMillis - since >= debounceMillis) {
+            state.clearPending(rule);
+            return true;
+        }
+        return false;
+    }
+
+    private void emit(AlertRules current, AlertEvent.Type type, int rule, long imei, int slot,
+                      double value, long nowMillis) {
+        switch (type) {
+            case RAISED:
+                metrics.alertsRaised.increment();
+                break;
+            case RESOLVED:
+                metrics.alertsResolved.increment();
+                break;
+            default:
+                metrics.alertsChanged.increment();
+                break;
+        }
+        listener.onAlert(new AlertEvent(type, current.ids[rule], current.names[rule],
+                current.severities[rule], current.metrics[rule], imei, slot, value, nowMillis));
+    }
+
+    // Number of alerts currently raised for the device
+    public int getActiveCount(int slot) {
+        AlertState[] current = states;
+        if (slot < 0 || slot >= current.length || current[slot] == null) {
+            return 0;
+        }
+        return current[slot].countActive();
+    }
+
+    private AlertState stateFor(int slot) {
+        AlertState[] current = states;
+        if (slot < current.length && current[slot] != null) {
+            return current[slot];
+        }
+        synchronized (growLock) {
+            current = states;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, Math.max(slot + 1, current.length * 2));
+            }
+            if (current[slot] == null) {
+                current[slot] = new AlertState();
+            }
+            states = current;
+            return current[slot];
+        }
+    }
+
+    public static List<AlertRuleDefinition> readDefinitions(Reader reader) {
+        JsonElement root = JsonParser.parseReader(reader);
+        JsonArray array = root.isJsonObject() ? root.getAsJsonObject().getAsJsonArray("rules")
+                : root.getAsJsonArray();
+        List<AlertRuleDefinition> definitions = new ArrayList<>();
+        if (array != null) {
+            for (JsonElement element : array) {
+                AlertRuleDefinition definition = GSON.fromJson(element, AlertRuleDefinition.class);
+                if (definition.metric == null && element.getAsJsonObject().has("condition")) {
+                    // Backend AlertRule rows carry a condition string instead
+                    definition = AlertRuleDefinition.fromCondition(definition.id, definition.name,
+                            definition.severity, element.getAsJsonObject().get("condition").getAsString());
+                }
+                definitions.add(definition);
+            }
+        }
+        return definitions;
+    }
+
+    public void loadRules(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            setRules(AlertRules.compile(readDefinitions(reader)));
+        }
+    }
+
+    public void saveRules(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            GSON.toJson(rules.getDefinitions(), writer);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.ohw.parser.alerts;
+
+public class AlertEvent {
+
+    public enum Type {
+        RAISED("raised"),
+        RESOLVED("resolved"),
+        // Edge of a "changed" bit rule; never stays active
+        CHANGED("changed");
+
+        private final String jsonName;
+
+        Type(String jsonName) {
+            this.jsonName = jsonName;
+        }
+
+        public String getJsonName() {
+            return jsonName;
+        }
+    }
+
+    private final Type type;
+    private final String ruleId;
+    private final String ruleName;
+    private final String severity;
+    private final AlertMetric metric;
+    private final long imei;
+    private final int slot;
+    private final double value;
+    private final long timestampMillis;
+
+    AlertEvent(Type type, String ruleId, String ruleName, String severity, AlertMetric metric,
+               long imei, int slot, double value, long timestampMillis) {
+        this.type = type;
+        this.ruleId = ruleId;
+        this.ruleName = ruleName;
+        this.severity = severity;
+        this.metric = metric;
+        this.imei = imei;
+        this.slot = slot;
+        this.value = value;
+        this.timestampMillis = timestampMillis;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getRuleId() {
+        return ruleId;
+    }
+
+    public String getRuleName() {
+        return ruleName;
+    }
+
+    public String getSeverity() {
+        return severity;
+    }
+
+    public AlertMetric getMetric() {
+        return metric;
+    }
+
+    public long getImei() {
+        return imei;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    // Field value that triggered the event (the whole bit set for bit rules)
+    public double getValue() {
+        return value;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+}
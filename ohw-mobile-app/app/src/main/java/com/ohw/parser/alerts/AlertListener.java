@@ -0,0 +1,7 @@
+package com.ohw.parser.alerts;
+
+// Receives alert transitions on the device's ingest shard thread
+public interface AlertListener {
+
+    void onAlert(AlertEvent event);
+}
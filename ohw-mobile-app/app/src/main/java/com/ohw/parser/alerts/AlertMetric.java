@@ -0,0 +1,36 @@
+package com.ohw.parser.alerts;
+
+// Record fields alert rules can watch, by their JSON name in ParsedPacket
+public enum AlertMetric {
+    BATTERY_VOLTAGE("batteryVoltage", false),
+    SUPPLY_VOLTAGE("supplyVoltage", false),
+    SPEED("speed", false),
+    STATUS("status", true),
+    INPUTS("inputs", true);
+
+    private final String jsonName;
+    private final boolean bitField;
+
+    AlertMetric(String jsonName, boolean bitField) {
+        this.jsonName = jsonName;
+        this.bitField = bitField;
+    }
+
+    public String getJsonName() {
+        return jsonName;
+    }
+
+    // Status and inputs are bit sets; the others are numeric
+    public boolean isBitField() {
+        return bitField;
+    }
+
+    public static AlertMetric fromJsonName(String name) {
+        for (AlertMetric metric : values()) {
+            if (metric.jsonName.equals(name)) {
+                return metric;
+            }
+        }
+        throw new IllegalArgumentException("Unknown alert metric: " + name);
+    }
+}
@@ -0,0 +1,48 @@
+package com.ohw.parser.alerts;
+
+// Alert rule as stored and exchanged as JSON. Numeric metrics use "<" or ">"
+// against threshold, clearing only once the value is back past threshold by
+// hysteresis. Bit metrics use "set", "cleared" or "changed" on one bit (bit >= 0)
+// or on any bit (bit < 0). A condition must hold for debounceMillis before the
+// alert is raised. Rules apply to every device unless imei is given.
+public class AlertRuleDefinition {
+
+    public String id;
+    public String name;
+    public String severity = "medium";
+    public String metric;
+    public String operator;
+    public double threshold;
+    public double hysteresis;
+    public int bit = -1;
+    public long debounceMillis;
+    public String imei;
+    public boolean enabled = true;
+
+    // Builds a rule from a backend-style condition, e.g. "batteryVoltage < 3.5",
+    // "speed > 90", "status.3 set" or "inputs changed"
+    public static AlertRuleDefinition fromCondition(String id, String name, String severity,
+                                                    String condition) {
+        String[] parts = condition.trim().split("\\s+");
+        if (parts.length < 2 || parts.length > 3) {
+            throw new IllegalArgumentException("Unsupported alert condition: " + condition);
+        }
+        AlertRuleDefinition rule = new AlertRuleDefinition();
+        rule.id = id;
+        rule.name = name;
+        rule.severity = severity;
+
+        String field = parts[0];
+        int dot = field.indexOf('.');
+        if (dot >= 0) {
+            rule.bit = Integer.parseInt(field.substring(dot + 1));
+            field = field.substring(0, dot);
+        }
+        rule.metric = field;
+        rule.operator = parts[1];
+        if (parts.length == 3) {
+            rule.threshold = Double.parseDouble(parts[2]);
+        }
+        return rule;
+    }
+}
@@ -0,0 +1,207 @@
+package com.ohw.parser.alerts;
+
+import com.ohw.parser.parsers.ImeiCodec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Immutable, compiled form of a rule list. Rules are grouped by the field they
+// watch and flattened into primitive arrays, so evaluating a record is a tight
+// loop per field with no lookups or rule interpretation. Numeric "> threshold"
+// rules are stored negated so both directions share one "value < enter" test.
+public final class AlertRules {
+
+    static final byte MODE_SET = 0;
+    static final byte MODE_CLEARED = 1;
+    static final byte MODE_CHANGED = 2;
+
+    private static final AtomicInteger GENERATIONS = new AtomicInteger();
+
+    // Numeric rules on one field. A rule enters when sign * value < enter and
+    // leaves when sign * value >= exit.
+    static final class ThresholdGroup {
+        final int size;
+        final int[] rule;
+        final double[] sign;
+        final double[] enter;
+        final double[] exit;
+        final long[] debounceMillis;
+        final long[] scope;
+
+        ThresholdGroup(int size) {
+            this.size = size;
+            rule = new int[size];
+            sign = new double[size];
+            enter = new double[size];
+            exit = new double[size];
+            debounceMillis = new long[size];
+            scope = new long[size];
+        }
+    }
+
+    // Bit rules on one field; mask selects one bit or all of them
+    static final class BitGroup {
+        final int size;
+        final int[] rule;
+        final int[] mask;
+        final byte[] mode;
+        final long[] debounceMillis;
+        final long[] scope;
+
+        BitGroup(int size) {
+            this.size = size;
+            rule = new int[size];
+            mask = new int[size];
+            mode = new byte[size];
+            debounceMillis = new long[size];
+            scope = new long[size];
+        }
+    }
+
+    final int generation = GENERATIONS.incrementAndGet();
+    final int ruleCount;
+    final String[] ids;
+    final String[] names;
+    final String[] severities;
+    final AlertMetric[] metrics;
+    final ThresholdGroup batteryVoltage;
+    final ThresholdGroup supplyVoltage;
+    final ThresholdGroup speed;
+    final BitGroup status;
+    final BitGroup inputs;
+    private final List<AlertRuleDefinition> definitions;
+
+    public static final AlertRules EMPTY = compile(Collections.<AlertRuleDefinition>emptyList());
+
+    private AlertRules(List<AlertRuleDefinition> enabled, List<AlertRuleDefinition> definitions) {
+        this.definitions = Collections.unmodifiableList(new ArrayList<>(definitions));
+        ruleCount = enabled.size();
+        ids = new String[ruleCount];
+        names = new String[ruleCount];
+        severities = new String[ruleCount];
+        metrics = new AlertMetric[ruleCount];
+        for (int i = 0; i < ruleCount; i++) {
+            AlertRuleDefinition definition = enabled.get(i);
+            ids[i] = definition.id;
+            names[i] = definition.name != null ? definition.name : definition.id;
+            severities[i] = definition.severity;
+            metrics[i] = AlertMetric.fromJsonName(definition.metric);
+        }
+        batteryVoltage = thresholds(enabled, AlertMetric.BATTERY_VOLTAGE);
+        supplyVoltage = thresholds(enabled, AlertMetric.SUPPLY_VOLTAGE);
+        speed = thresholds(enabled, AlertMetric.SPEED);
+        status = bits(enabled, AlertMetric.STATUS);
+        inputs = bits(enabled, AlertMetric.INPUTS);
+    }
+
+    // Validates and compiles the definitions; throws IllegalArgumentException on the first bad rule
+    public static AlertRules compile(List<AlertRuleDefinition> definitions) {
+        List<AlertRuleDefinition> enabled = new ArrayList<>();
+        for (AlertRuleDefinition definition : definitions) {
+            validate(definition);
+            if (definition.enabled) {
+                enabled.add(definition);
+            }
+        }
+        return new AlertRules(enabled, definitions);
+    }
+
+    private static void validate(AlertRuleDefinition definition) {
+        if (definition.id == null || definition.id.isEmpty()) {
+            throw new IllegalArgumentException("Alert rule without id");
+        }
+        if (definition.metric == null || definition.operator == null) {
+            throw new IllegalArgumentException("Alert rule " + definition.id + " needs metric and operator");
+        }
+        AlertMetric metric = AlertMetric.fromJsonName(definition.metric);
+        if (metric.isBitField()) {
+            if (!definition.operator.equals("set") && !definition.operator.equals("cleared")
+                    && !definition.operator.equals("changed")) {
+                throw new IllegalArgumentException("Alert rule " + definition.id
+                        + ": bit fields take set, cleared or changed");
+            }
+            if (definition.bit > 31) {
+                throw new IllegalArgumentException("Alert rule " + definition.id + ": bit out of range");
+            }
+        } else if (!definition.operator.equals("<") && !definition.operator.equals(">")) {
+            throw new IllegalArgumentException("Alert rule " + definition.id
+                    + ": numeric fields take < or >");
+        }
+        if (definition.hysteresis < 0 || definition.debounceMillis < 0) {
+            throw new IllegalArgumentException("Alert rule " + definition.id
+                    + ": hysteresis and debounce must not be negative");
+        }
+        if (definition.imei != null && ImeiCodec.parse(definition.imei) == ImeiCodec.INVALID) {
+            throw new IllegalArgumentException("Alert rule " + definition.id + ": invalid IMEI");
+        }
+    }
+
+    private static ThresholdGroup thresholds(List<AlertRuleDefinition> rules, AlertMetric metric) {
+        List<Integer> indexes = indexesFor(rules, metric);
+        if (indexes.isEmpty()) {
+            return null;
+        }
+        ThresholdGroup group = new ThresholdGroup(indexes.size());
+        for (int i = 0; i < group.size; i++) {
+            int index = indexes.get(i);
+            AlertRuleDefinition definition = rules.get(index);
+            boolean below = definition.operator.equals("<");
+            group.rule[i] = index;
+            group.sign[i] = below ? 1 : -1;
+            group.enter[i] = below ? definition.threshold : -definition.threshold;
+            group.exit[i] = below ? definition.threshold + definition.hysteresis
+                    : -(definition.threshold - definition.hysteresis);
+            group.debounceMillis[i] = definition.debounceMillis;
+            group.scope[i] = scopeOf(definition);
+        }
+        return group;
+    }
+
+    private static BitGroup bits(List<AlertRuleDefinition> rules, AlertMetric metric) {
+        List<Integer> indexes = indexesFor(rules, metric);
+        if (indexes.isEmpty()) {
+            return null;
+        }
+        BitGroup group = new BitGroup(indexes.size());
+        for (int i = 0; i < group.size; i++) {
+            int index = indexes.get(i);
+            AlertRuleDefinition definition = rules.get(index);
+            group.rule[i] = index;
+            group.mask[i] = definition.bit >= 0 ? 1 << definition.bit : 0xFFFFFFFF;
+            group.mode[i] = definition.operator.equals("set") ? MODE_SET
+                    : definition.operator.equals("cleared") ? MODE_CLEARED : MODE_CHANGED;
+            group.debounceMillis[i] = definition.debounceMillis;
+            group.scope[i] = scopeOf(definition);
+        }
+        return group;
+    }
+
+    private static List<Integer> indexesFor(List<AlertRuleDefinition> rules, AlertMetric metric) {
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            if (AlertMetric.fromJsonName(rules.get(i).metric) == metric) {
+                indexes.add(i);
+            }
+        }
+        return indexes;
+    }
+
+    private static long scopeOf(AlertRuleDefinition definition) {
+        return definition.imei != null ? ImeiCodec.parse(definition.imei) : -1L;
+    }
+
+    public int size() {
+        return ruleCount;
+    }
+
+    public boolean isEmpty() {
+        return ruleCount == 0;
+    }
+
+    // Definitions as submitted, including disabled rules
+    public List<AlertRuleDefinition> getDefinitions() {
+        return definitions;
+    }
+}
@@ -0,0 +1,86 @@
+package com.ohw.parser.alerts;
+
+import java.util.Arrays;
+
+// Alert state of one device for one compiled rule set: which rules are active,
+// which are waiting out their debounce, and the last bit fields seen for
+// "changed" rules. Only touched by the device's ingest shard thread.
+final class AlertState {
+
+    private int generation;
+    private long[] active = new long[0];
+    private int[] pendingRule = new int[0];
+    private long[] pendingSince = new long[0];
+    private int pendingCount;
+
+    boolean hasStatus;
+    int lastStatus;
+    boolean hasInputs;
+    int lastInputs;
+
+    // Clears everything when the rule set was recompiled since the last record
+    void bind(AlertRules rules) {
+        if (generation == rules.generation) {
+            return;
+        }
+        generation = rules.generation;
+        active = new long[(rules.ruleCount + 63) >>> 6];
+        pendingCount = 0;
+    }
+
+    boolean isActive(int rule) {
+        return (active[rule >>> 6] & (1L << rule)) != 0;
+    }
+
+    void setActive(int rule, boolean value) {
+        if (value) {
+            active[rule >>> 6] |= 1L << rule;
+        } else {
+            active[rule >>> 6] &= ~(1L << rule);
+        }
+    }
+
+    int countActive() {
+        int count = 0;
+        for (long word : active) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    // Start of the rule's pending period, or -1 when it is not pending
+    long pendingSince(int rule) {
+        for (int i = 0; i < pendingCount; i++) {
+            if (pendingRule[i] == rule) {
+                return pendingSince[i];
+            }
+        }
+        return -1;
+    }
+
+    void startPending(int rule, long nowMillis) {
+        if (pendingCount == pendingRule.length) {
+            int capacity = Math.max(4, pendingCount * 2);
+            pendingRule = Arrays.copyOf(pendingRule, capacity);
+            pendingSince = Arrays.copyOf(pendingSince, capacity);
+        }
+        pendingRule[pendingCount] = rule;
+        pendingSince[pendingCount] = nowMillis;
+        pendingCount++;
+    }
+
+    void clearPending(int rule) {
+        for (int i = 0; i < pendingCount; i++) {
+            if (pendingRule[i] == rule) {
+                pendingCount--;
+                pendingRule[i] = pendingRule[pendingCount];
+                pendingSince[i] = pendingSince[pendingCount];
+                return;
+            }
+        }
+    }
+
+    boolean hasPending() {
+        return pendingCount > 0;
+    }
+}
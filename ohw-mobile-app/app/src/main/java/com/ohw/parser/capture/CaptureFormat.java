@@ -0,0 +1,26 @@
+package com.ohw.parser.capture;
+
+import java.nio.charset.StandardCharsets;
+
+// Layout of an .ohwcap capture file (all values big-endian):
+//
+//   header  "OHWCAP01" (8 bytes) | capture start, epoch millis (8 bytes)
+//   record  type (1) | connection id (4) | nanos since start (8) | length (4) | payload
+//
+// OPEN records carry the remote address as UTF-8, DATA records the bytes exactly
+// as returned by one socket read, CLOSE records have no payload.
+final class CaptureFormat {
+
+    static final byte[] MAGIC = "OHWCAP01".getBytes(StandardCharsets.US_ASCII);
+    static final int HEADER_BYTES = MAGIC.length + 8;
+    static final int RECORD_HEADER_BYTES = 1 + 4 + 8 + 4;
+
+    static final byte TYPE_OPEN = 1;
+    static final byte TYPE_DATA = 2;
+    static final byte TYPE_CLOSE = 3;
+
+    static final String FILE_SUFFIX = ".ohwcap";
+
+    private CaptureFormat() {
+    }
+}
@@ -0,0 +1,117 @@
+package com.ohw.parser.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// Sequential cursor over a memory-mapped capture file. Payloads are exposed as
+// slices of the mapping, so replaying at full speed copies nothing on our side.
+public class CaptureReader implements AutoCloseable {
+
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private final long startEpochMillis;
+
+    private byte type;
+    private int connectionId;
+    private long offsetNanos;
+    private int payloadPosition;
+    private int payloadLength;
+
+    public CaptureReader(File file) throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Capture file too large to map: " + size + " bytes");
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < CaptureFormat.HEADER_BYTES) {
+                throw new IOException("Not a capture file: " + file);
+            }
+            byte[] magic = new byte[CaptureFormat.MAGIC.length];
+            map.get(magic);
+            for (int i = 0; i < magic.length; i++) {
+                if (magic[i] != CaptureFormat.MAGIC[i]) {
+                    throw new IOException("Not a capture file: " + file);
+                }
+            }
+            startEpochMillis = map.getLong();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public long getStartEpochMillis() {
+        return startEpochMillis;
+    }
+
+    // Advances to the next record; false at the end of the file or at a record
+    // truncated by a crash while capturing
+    public boolean next() {
+        if (map.remaining() < CaptureFormat.RECORD_HEADER_BYTES) {
+            return false;
+        }
+        int recordStart = map.position();
+        type = map.get();
+        connectionId = map.getInt();
+        offsetNanos = map.getLong();
+        payloadLength = map.getInt();
+        if (payloadLength < 0 || payloadLength > map.remaining()) {
+            map.position(recordStart);
+            return false;
+        }
+        payloadPosition = map.position();
+        map.position(payloadPosition + payloadLength);
+        return true;
+    }
+
+    public boolean isOpen() {
+        return type == CaptureFormat.TYPE_OPEN;
+    }
+
+    public boolean isData() {
+        return type == CaptureFormat.TYPE_DATA;
+    }
+
+    public boolean isClose() {
+        return type == CaptureFormat.TYPE_CLOSE;
+    }
+
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    public long getOffsetNanos() {
+        return offsetNanos;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    // Read-only view of the current record's payload
+    public ByteBuffer payload() {
+        ByteBuffer view = map.duplicate();
+        view.limit(payloadPosition + payloadLength);
+        view.position(payloadPosition);
+        return view.slice();
+    }
+
+    public String payloadAsString() {
+        byte[] bytes = new byte[payloadLength];
+        payload().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,301 @@
+package com.ohw.parser.capture;
+
+import com.ohw.parser.parsers.FrameAssembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+// Streams a capture back into a gateway over TCP, one socket per captured
+// connection, so replayed traffic takes the same read/parse/ack/ingest path as
+// live devices. A reader thread per socket checks every ack against the
+// checksums of the frames sent, so the wrong-ack rate is measured end to end.
+//
+// Also runnable on a desktop JVM against a phone (e.g. through adb forward):
+//   java com.ohw.parser.capture.CaptureReplayer capture.ohwcap [host] [port] [--max-speed]
+public class CaptureReplayer {
+
+    public enum Mode {
+        // Preserve the inter-read gaps recorded in the capture
+        TIMED,
+        // Write every record as soon as the previous one was written
+        MAX_SPEED
+    }
+
+    public static final class Result {
+        public final long records;
+        public final long bytes;
+        public final int connections;
+        public final long framesSent;
+        public final long acks;
+        public final long wrongAcks;
+        public final long unackedFrames;
+        public final long elapsedNanos;
+
+        Result(long records, long bytes, int connections, long framesSent, long acks,
+               long wrongAcks, long unackedFrames, long elapsedNanos) {
+            this.records = records;
+            this.bytes = bytes;
+            this.connections = connections;
+            this.framesSent = framesSent;
+            this.acks = acks;
+            this.wrongAcks = wrongAcks;
+            this.unackedFrames = unackedFrames;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double recordsPerSecond() {
+            return elapsedNanos > 0 ? records * 1e9 / elapsedNanos : 0;
+        }
+
+        public double megabytesPerSecond() {
+            return elapsedNanos > 0 ? bytes * 1e9 / elapsedNanos / (1024 * 1024) : 0;
+        }
+
+        public double wrongAckRate() {
+            return acks > 0 ? (double) wrongAcks / acks : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d records, %d bytes over %d connections in %.1f ms "
+                            + "(%.0f records/s, %.2f MB/s); %d frames sent, %d acks "
+                            + "(%d wrong, %.4f%%), %d frames unacked",
+                    records, bytes, connections, elapsedNanos / 1e6,
+                    recordsPerSecond(), megabytesPerSecond(), framesSent, acks,
+                    wrongAcks, wrongAckRate() * 100, unackedFrames);
+        }
+    }
+
+    private static final long DRAIN_TIMEOUT_MILLIS = 2000;
+    private static final byte ACK_HEADER = 0x02;
+    private static final int ACK_BYTES = 3;
+
+    // One replayed device socket. The replay thread cuts what it sends into frames
+    // and queues their checksums; the drainer matches incoming acks against them.
+    private static final class ReplayConnection {
+        final SocketChannel channel;
+        final FrameAssembler sent = new FrameAssembler();
+        final ArrayDeque<Integer> expectedAcks = new ArrayDeque<>();
+        final Thread drainer;
+        long framesSent;
+        long acks;
+        long wrongAcks;
+        long unackedFrames;
+
+        ReplayConnection(SocketChannel channel, int id) {
+            this.channel = channel;
+            this.drainer = new Thread(this::drain, "replay-drain-" + id);
+            drainer.setDaemon(true);
+        }
+
+        void send(ByteBuffer payload) throws IOException {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.duplicate().get(bytes);
+            sent.append(bytes, 0, bytes.length);
+            while (sent.next()) {
+                if (sent.isFrameValid()) {
+                    synchronized (this) {
+                        expectedAcks.addLast(sent.getFrameCheck());
+                        framesSent++;
+                    }
+                }
+            }
+            while (payload.hasRemaining()) {
+                channel.write(payload);
+            }
+        }
+
+        private void drain() {
+            ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    consume(buffer);
+                    buffer.compact();
+                }
+            } catch (IOException e) {
+                // Socket closed by the replay loop
+            }
+            closeQuietly(channel);
+        }
+
+        // Acks are 0x02 + CRC; anything else from the gateway (downlink frames) is skipped
+        private void consume(ByteBuffer buffer) {
+            while (buffer.remaining() >= ACK_BYTES) {
+                int position = buffer.position();
+                byte header = buffer.get(position);
+                if (header == ACK_HEADER) {
+                    onAck(buffer.getShort(position + 1) & 0xFFFF);
+                    buffer.position(position + ACK_BYTES);
+                } else if (header == 0x01) {
+                    int total = FrameAssembler.HEADER_BYTES + (buffer.getShort(position + 1) & 0x7FFF)
+                            + FrameAssembler.CRC_BYTES;
+                    if (buffer.remaining() < total) {
+                        if (total > buffer.capacity()) {
+                            buffer.position(position + 1);
+                        }
+                        return;
+                    }
+                    buffer.position(position + total);
+                } else {
+                    buffer.position(position + 1);
+                }
+            }
+        }
+
+        private synchronized void onAck(int crc) {
+            acks++;
+            if (!expectedAcks.contains(crc)) {
+                wrongAcks++;
+                return;
+            }
+            // Frames before the acknowledged one were never confirmed
+            while (expectedAcks.removeFirst() != crc) {
+                unackedFrames++;
+            }
+        }
+
+        synchronized long pendingAcks() {
+            return expectedAcks.size();
+        }
+    }
+
+    private final File file;
+    private final InetSocketAddress target;
+    private final Mode mode;
+
+    public CaptureReplayer(File file, String host, int port, Mode mode) {
+        this.file = file;
+        this.target = new InetSocketAddress(host, port);
+        this.mode = mode;
+    }
+
+    public Result run() throws IOException {
+        Map<Integer, ReplayConnection> active = new HashMap<>();
+        List<ReplayConnection> opened = new ArrayList<>();
+        long records = 0;
+        long bytes = 0;
+
+        long started = System.nanoTime();
+        try (CaptureReader reader = new CaptureReader(file)) {
+            while (reader.next()) {
+                if (mode == Mode.TIMED) {
+                    long due = started + reader.getOffsetNanos();
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+
+                int id = reader.getConnectionId();
+                if (reader.isOpen()) {
+                    finish(active.remove(id));
+                    active.put(id, connect(id, opened));
+                } else if (reader.isData()) {
+                    ReplayConnection connection = active.get(id);
+                    if (connection == null) {
+                        // Capture started mid-connection
+                        connection = connect(id, opened);
+                        active.put(id, connection);
+                    }
+                    connection.send(reader.payload());
+                    records++;
+                    bytes += reader.getPayloadLength();
+                } else if (reader.isClose()) {
+                    finish(active.remove(id));
+                }
+            }
+        } finally {
+            for (ReplayConnection connection : active.values()) {
+                finish(connection);
+            }
+        }
+        long elapsed = System.nanoTime() - started;
+
+        // Let the gateway answer the tail of each stream before closing the sockets
+        long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        for (ReplayConnection connection : opened) {
+            try {
+                connection.drainer.join(Math.max(1, drainDeadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        long framesSent = 0;
+        long acks = 0;
+        long wrongAcks = 0;
+        long unacked = 0;
+        for (ReplayConnection connection : opened) {
+            closeQuietly(connection.channel);
+            synchronized (connection) {
+                framesSent += connection.framesSent;
+                acks += connection.acks;
+                wrongAcks += connection.wrongAcks;
+                unacked += connection.unackedFrames + connection.pendingAcks();
+            }
+        }
+        return new Result(records, bytes, opened.size(), framesSent, acks, wrongAcks, unacked, elapsed);
+    }
+
+    private ReplayConnection connect(int id, List<ReplayConnection> opened) throws IOException {
+        SocketChannel channel = SocketChannel.open(target);
+        channel.socket().setTcpNoDelay(true);
+        ReplayConnection connection = new ReplayConnection(channel, id);
+        opened.add(connection);
+        connection.drainer.start();
+        return connection;
+    }
+
+    // Half-closes the stream; the drainer closes the socket once the gateway hangs up
+    private static void finish(ReplayConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.channel.shutdownOutput();
+        } catch (IOException e) {
+            closeQuietly(connection.channel);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: CaptureReplayer <capture> [host] [port] [--max-speed]");
+            System.exit(2);
+        }
+        Mode mode = Mode.TIMED;
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--max-speed")) {
+                mode = Mode.MAX_SPEED;
+            } else {
+                positional.add(arg);
+            }
+        }
+        String host = positional.size() > 1 ? positional.get(1) : "127.0.0.1";
+        int port = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : 3000;
+
+        Result result = new CaptureReplayer(new File(positional.get(0)), host, port, mode).run();
+        System.out.println(result);
+    }
+}
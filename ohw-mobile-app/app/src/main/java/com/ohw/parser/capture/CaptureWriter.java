@@ -0,0 +1,133 @@
+package com.ohw.parser.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// Appends raw inbound traffic to a capture file. Connection threads share one
+// writer; records are staged in a buffer under the writer's lock and reach the
+// file in large writes. Capturing stops once the file reaches its size limit.
+public class CaptureWriter implements AutoCloseable {
+
+    public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+    private static final int BUFFER_BYTES = 256 * 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    private final long startNanos = System.nanoTime();
+    private final long maxBytes;
+    private long bytesWritten;
+    private long records;
+    private boolean full;
+    private boolean closed;
+
+    public CaptureWriter(File file) throws IOException {
+        this(file, DEFAULT_MAX_BYTES);
+    }
+
+    public CaptureWriter(File file, long maxBytes) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        buffer.put(CaptureFormat.MAGIC);
+        buffer.putLong(System.currentTimeMillis());
+        bytesWritten = CaptureFormat.HEADER_BYTES;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    // True once the size limit was hit; later records are discarded
+    public synchronized boolean isFull() {
+        return full;
+    }
+
+    public void onOpen(int connectionId, String remoteAddress) throws IOException {
+        byte[] address = remoteAddress.getBytes(StandardCharsets.UTF_8);
+        append(CaptureFormat.TYPE_OPEN, connectionId, System.nanoTime(), address, 0, address.length);
+    }
+
+    public void onData(int connectionId, long readAtNanos, byte[] data, int offset, int length)
+            throws IOException {
+        append(CaptureFormat.TYPE_DATA, connectionId, readAtNanos, data, offset, length);
+    }
+
+    public void onClose(int connectionId) throws IOException {
+        append(CaptureFormat.TYPE_CLOSE, connectionId, System.nanoTime(), null, 0, 0);
+    }
+
+    private synchronized void append(byte type, int connectionId, long atNanos,
+                                     byte[] data, int offset, int length) throws IOException {
+        if (closed || full) {
+            return;
+        }
+        int recordBytes = CaptureFormat.RECORD_HEADER_BYTES + length;
+        if (bytesWritten + recordBytes > maxBytes) {
+            full = true;
+            flushBuffer();
+            return;
+        }
+        if (buffer.remaining() < recordBytes) {
+            flushBuffer();
+        }
+
+        buffer.put(type);
+        buffer.putInt(connectionId);
+        buffer.putLong(Math.max(0, atNanos - startNanos));
+        buffer.putInt(length);
+        if (length > buffer.remaining()) {
+            // Oversized payload goes straight to the file behind its header
+            flushBuffer();
+            ByteBuffer payload = ByteBuffer.wrap(data, offset, length);
+            while (payload.hasRemaining()) {
+                channel.write(payload);
+            }
+        } else if (length > 0) {
+            buffer.put(data, offset, length);
+        }
+        bytesWritten += recordBytes;
+        records++;
+    }
+
+    public synchronized void flush() throws IOException {
+        if (!closed) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flushBuffer();
+            channel.force(false);
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+}
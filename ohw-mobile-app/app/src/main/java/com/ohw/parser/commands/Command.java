@@ -0,0 +1,47 @@
+package com.ohw.parser.commands;
+
+// One command sent to one device, pending until the device answers with the
+// same command number or the dispatcher expires it.
+public class Command {
+
+    private final long number;
+    private final long imei;
+    private final String text;
+    private final String requestId;
+    private final long createdAtNanos;
+    private final long createdAtMillis;
+
+    Command(long number, long imei, String text, String requestId) {
+        this.number = number;
+        this.imei = imei;
+        this.text = text;
+        this.requestId = requestId;
+        this.createdAtNanos = System.nanoTime();
+        this.createdAtMillis = System.currentTimeMillis();
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public long getImei() {
+        return imei;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    // Id of the client request that issued the command, may be null
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public long getCreatedAtNanos() {
+        return createdAtNanos;
+    }
+
+    public long getCreatedAtMillis() {
+        return createdAtMillis;
+    }
+}
@@ -0,0 +1,18 @@
+package com.ohw.parser.commands;
+
+// Outbound side of a device connection. Packets are queued without blocking and
+// written either by the dispatcher or, coalesced with acks, by the connection's
+// own reader thread, whichever holds the connection's write lock first.
+public interface CommandChannel {
+
+    long getImei();
+
+    // Device number reported by the device (tag 0x04), 0 when unknown
+    int getDeviceNumber();
+
+    void enqueueOutbound(byte[] packet);
+
+    // Writes queued packets unless another thread is already writing; that
+    // thread then picks them up before releasing the lock
+    void flushOutbound();
+}
@@ -0,0 +1,142 @@
+package com.ohw.parser.commands;
+
+import com.ohw.parser.metrics.GatewayMetrics;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sends commands to connected devices and correlates their replies by command
+// number. Submitting only builds the packet and queues it on the device's
+// channel; socket writes run on a small writer pool (or on the connection's
+// reader thread together with its acks), so neither callers nor ingestion
+// threads wait on slow devices.
+public class CommandDispatcher {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+    public interface ChannelResolver {
+        // Open connection of the device, or null when it is not connected
+        CommandChannel findChannel(long imei);
+    }
+
+    public static final class FanOut {
+        public final List<Command> queued = new ArrayList<>();
+        public final List<Long> notConnected = new ArrayList<>();
+    }
+
+    private final ChannelResolver resolver;
+    private final CommandListener listener;
+    private final long timeoutNanos;
+    private final ConcurrentHashMap<Long, Command> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextNumber = new AtomicLong(1);
+    private final ExecutorService writers;
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+
+    public CommandDispatcher(ChannelResolver resolver, CommandListener listener) {
+        this(resolver, listener, DEFAULT_TIMEOUT_MILLIS,
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public CommandDispatcher(ChannelResolver resolver, CommandListener listener,
+                             long timeoutMillis, int writerThreads) {
+        this.resolver = resolver;
+        this.listener = listener;
+        this.timeoutNanos = timeoutMillis * 1000000L;
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(writerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "command-writer-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Returns the queued command, or null when the device is not connected.
+    // Throws IllegalArgumentException for text that cannot be sent.
+    public Command submit(long imei, String text, String requestId) {
+        CommandPacketBuilder.encodeText(text);
+        CommandChannel channel = resolver.findChannel(imei);
+        if (channel == null) {
+            return null;
+        }
+        Command command = enqueue(channel, imei, text, requestId);
+        writers.execute(channel::flushOutbound);
+        return command;
+    }
+
+    public FanOut submitAll(long[] imeis, String text, String requestId) {
+        CommandPacketBuilder.encodeText(text);
+        FanOut result = new FanOut();
+        List<CommandChannel> channels = new ArrayList<>(imeis.length);
+        for (long imei : imeis) {
+            CommandChannel channel = resolver.findChannel(imei);
+            if (channel == null) {
+                result.notConnected.add(imei);
+                continue;
+            }
+            result.queued.add(enqueue(channel, imei, text, requestId));
+            channels.add(channel);
+        }
+        // Queue everything first so flushes for busy connections pick up their whole share
+        for (CommandChannel channel : channels) {
+            writers.execute(channel::flushOutbound);
+        }
+        return result;
+    }
+
+    private Command enqueue(CommandChannel channel, long imei, String text, String requestId) {
+        long number;
+        do {
+            number = nextNumber.getAndIncrement() & 0xFFFFFFFFL; // Tag 0xE0 is 32 bits
+        } while (number == 0 || pending.containsKey(number));
+
+        Command command = new Command(number, imei, text, requestId);
+        pending.put(number, command);
+        channel.enqueueOutbound(CommandPacketBuilder.build(imei, channel.getDeviceNumber(), number, text));
+        metrics.commandsQueued.increment();
+        return command;
+    }
+
+    // Called for frames carrying tag 0xE0; false when the number is not ours
+    public boolean onReply(long imei, long number, String reply) {
+        Command command = pending.get(number);
+        if (command == null || command.getImei() != imei || !pending.remove(number, command)) {
+            return false;
+        }
+        long roundTrip = System.nanoTime() - command.getCreatedAtNanos();
+        metrics.commandReplies.increment();
+        metrics.commandRoundTrip.record(roundTrip);
+        listener.onCommandReply(command, reply, roundTrip);
+        return true;
+    }
+
+    // Drops commands that went unanswered past the timeout
+    public int expire() {
+        long now = System.nanoTime();
+        int expired = 0;
+        Iterator<Command> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Command command = iterator.next();
+            if (now - command.getCreatedAtNanos() >= timeoutNanos) {
+                iterator.remove();
+                expired++;
+                metrics.commandsExpired.increment();
+                listener.onCommandExpired(command);
+            }
+        }
+        return expired;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public void shutdown() {
+        writers.shutdown();
+    }
+}
@@ -0,0 +1,10 @@
+package com.ohw.parser.commands;
+
+// Outcome of dispatched commands. Replies arrive on the device's connection
+// thread and expiries on the service ticker, so implementations must not block.
+public interface CommandListener {
+
+    void onCommandReply(Command command, String reply, long roundTripNanos);
+
+    void onCommandExpired(Command command);
+}
@@ -0,0 +1,75 @@
+package com.ohw.parser.commands;
+
+import com.ohw.parser.parsers.Crc16;
+import com.ohw.parser.parsers.ImeiCodec;
+
+import java.nio.charset.StandardCharsets;
+
+// Builds Galileosky server command packets:
+//   0x01 | length | 0x03 IMEI (15) | 0x04 device number (2) | 0xE0 command number (4)
+//        | 0xE1 text length (1) + text | CRC16
+public final class CommandPacketBuilder {
+
+    public static final int MAX_TEXT_BYTES = 255;
+
+    private static final byte HEADER = 0x01;
+    private static final byte TAG_IMEI = 0x03;
+    private static final byte TAG_DEVICE_NUMBER = 0x04;
+    private static final byte TAG_COMMAND_NUMBER = (byte) 0xE0;
+    private static final byte TAG_COMMAND_TEXT = (byte) 0xE1;
+
+    private CommandPacketBuilder() {
+    }
+
+    public static byte[] build(long imei, int deviceNumber, long commandNumber, String text) {
+        byte[] textBytes = encodeText(text);
+        int bodyLength = 1 + ImeiCodec.IMEI_LENGTH + 1 + 2 + 1 + 4 + 1 + 1 + textBytes.length;
+        byte[] packet = new byte[3 + bodyLength + 2];
+
+        int position = 0;
+        packet[position++] = HEADER;
+        packet[position++] = (byte) bodyLength;
+        packet[position++] = (byte) (bodyLength >>> 8);
+
+        packet[position++] = TAG_IMEI;
+        byte[] imeiBytes = ImeiCodec.format(imei).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(imeiBytes, 0, packet, position, ImeiCodec.IMEI_LENGTH);
+        position += ImeiCodec.IMEI_LENGTH;
+
+        packet[position++] = TAG_DEVICE_NUMBER;
+        packet[position++] = (byte) deviceNumber;
+        packet[position++] = (byte) (deviceNumber >>> 8);
+
+        packet[position++] = TAG_COMMAND_NUMBER;
+        packet[position++] = (byte) commandNumber;
+        packet[position++] = (byte) (commandNumber >>> 8);
+        packet[position++] = (byte) (commandNumber >>> 16);
+        packet[position++] = (byte) (commandNumber >>> 24);
+
+        packet[position++] = TAG_COMMAND_TEXT;
+        packet[position++] = (byte) textBytes.length;
+        System.arraycopy(textBytes, 0, packet, position, textBytes.length);
+        position += textBytes.length;
+
+        int crc = Crc16.compute(packet, 0, position);
+        packet[position++] = (byte) crc;
+        packet[position] = (byte) (crc >>> 8);
+        return packet;
+    }
+
+    // Command text is single-byte; anything outside Latin-1 or over 255 bytes is rejected
+    static byte[] encodeText(String text) {
+        if (text == null || text.isEmpty()) {
+            throw new IllegalArgumentException("Command text is empty");
+        }
+        if (text.length() > MAX_TEXT_BYTES) {
+            throw new IllegalArgumentException("Command text longer than " + MAX_TEXT_BYTES + " bytes");
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 0xFF) {
+                throw new IllegalArgumentException("Command text must be single-byte characters");
+            }
+        }
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
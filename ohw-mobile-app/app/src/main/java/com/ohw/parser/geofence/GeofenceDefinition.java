@@ -0,0 +1,13 @@
+package com.ohw.parser.geofence;
+
+// Geofence as stored and exchanged as JSON: a simple polygon given as
+// [latitude, longitude] pairs, implicitly closed. Polygons must not cross the
+// antimeridian. Fences apply to every device unless imei is given.
+public class GeofenceDefinition {
+
+    public String id;
+    public String name;
+    public double[][] points;
+    public String imei;
+    public boolean enabled = true;
+}
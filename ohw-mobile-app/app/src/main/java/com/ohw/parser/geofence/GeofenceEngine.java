@@ -0,0 +1,173 @@
+package com.ohw.parser.geofence;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.models.ParsedPacket;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Tests every positioned record against the geofences near it, inline on the
+// device's ingest shard. Each device keeps the set of fences it is inside, and
+// listeners only hear about enters and exits, so the cost of a record depends
+// on the fences around it rather than on how many fences exist.
+public class GeofenceEngine {
+
+    private static final Gson GSON = new Gson();
+
+    private final GeofenceListener listener;
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+    private final Object growLock = new Object();
+    private volatile GeofenceIndex index = GeofenceIndex.EMPTY;
+    private volatile GeofenceState[] states = new GeofenceState[1024];
+
+    public GeofenceEngine(GeofenceListener listener) {
+        this.listener = listener;
+    }
+
+    public GeofenceIndex getIndex() {
+        return index;
+    }
+
+    public void setIndex(GeofenceIndex index) {
+        this.index = index;
+    }
+
+    public void evaluate(int slot, long imei, ParsedPacket packet, long nowMillis) {
+        GeofenceIndex current = index;
+        if (current.isEmpty() || !packet.hasValidCoordinates()) {
+            return;
+        }
+        long start = System.nanoTime();
+        GeofenceState state = stateFor(slot);
+        state.bind(current);
+        double latitude = packet.getLatitude();
+        double longitude = packet.getLongitude();
+
+        int cell = current.cellOf(latitude, longitude);
+        int from = cell >= 0 ? current.cellStart[cell] : 0;
+        int to = cell >= 0 ? current.cellStart[cell + 1] : 0;
+        int[] found = state.found(to - from + current.wideFences.length);
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int fence = current.cellFences[i];
+            if (inScope(current, fence, imei) && current.contains(fence, latitude, longitude)) {
+                found[count++] = fence;
+            }
+        }
+        int gridded = count;
+        for (int fence : current.wideFences) {
+            if (inScope(current, fence, imei) && current.contains(fence, latitude, longitude)) {
+                found[count++] = fence;
+            }
+        }
+        if (gridded > 0 && count > gridded) {
+            Arrays.sort(found, 0, count);
+        }
+        metrics.geofenceTests.add(to - from + current.wideFences.length);
+
+        // Both lists are ascending: walk them together for exits and enters
+        int[] inside = state.inside;
+        int insideCount = state.insideCount;
+        int i = 0;
+        int j = 0;
+        while (i < insideCount || j < count) {
+            if (j == count || (i < insideCount && inside[i] < found[j])) {
+                emit(current, GeofenceEvent.Type.EXIT, inside[i++], imei, slot, latitude, longitude, nowMillis);
+            } else if (i == insideCount || found[j] < inside[i]) {
+                emit(current, GeofenceEvent.Type.ENTER, found[j++], imei, slot, latitude, longitude, nowMillis);
+            } else {
+                i++;
+                j++;
+            }
+        }
+        state.swap(count);
+        metrics.geofenceEvaluation.recordSince(start);
+    }
+
+    private static boolean inScope(GeofenceIndex current, int fence, long imei) {
+        long scope = current.scope[fence];
+        return scope < 0 || scope == imei;
+    }
+
+    private void emit(GeofenceIndex current, GeofenceEvent.Type type, int fence, long imei, int slot,
+                      double latitude, double longitude, long nowMillis) {
+        if (type == GeofenceEvent.Type.ENTER) {
+            metrics.geofenceEnters.increment();
+        } else {
+            metrics.geofenceExits.increment();
+        }
+        listener.onGeofence(new GeofenceEvent(type, current.ids[fence], current.names[fence],
+                imei, slot, latitude, longitude, nowMillis));
+    }
+
+    // Number of fences the device was inside at its last position
+    public int getInsideCount(int slot) {
+        GeofenceState[] current = states;
+        if (slot < 0 || slot >= current.length || current[slot] == null) {
+            return 0;
+        }
+        return current[slot].insideCount;
+    }
+
+    private GeofenceState stateFor(int slot) {
+        GeofenceState[] current = states;
+        if (slot < current.length && current[slot] != null) {
+            return current[slot];
+        }
+        synchronized (growLock) {
+            current = states;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, Math.max(slot + 1, current.length * 2));
+            }
+            if (current[slot] == null) {
+                current[slot] = new GeofenceState();
+            }
+            states = current;
+            return current[slot];
+        }
+    }
+
+    // Accepts a bare array or {"geofences": [...]}
+    public static List<GeofenceDefinition> readDefinitions(Reader reader) {
+        JsonElement root = JsonParser.parseReader(reader);
+        JsonArray array = root.isJsonObject() ? root.getAsJsonObject().getAsJsonArray("geofences")
+                : root.getAsJsonArray();
+        List<GeofenceDefinition> definitions = new ArrayList<>();
+        if (array != null) {
+            for (JsonElement element : array) {
+                definitions.add(GSON.fromJson(element, GeofenceDefinition.class));
+            }
+        }
+        return definitions;
+    }
+
+    public void loadGeofences(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            setIndex(GeofenceIndex.compile(readDefinitions(reader)));
+        }
+    }
+
+    public void saveGeofences(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            GSON.toJson(index.getDefinitions(), writer);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.ohw.parser.geofence;
+
+public class GeofenceEvent {
+
+    public enum Type {
+        ENTER("enter"),
+        EXIT("exit");
+
+        private final String jsonName;
+
+        Type(String jsonName) {
+            this.jsonName = jsonName;
+        }
+
+        public String getJsonName() {
+            return jsonName;
+        }
+    }
+
+    private final Type type;
+    private final String fenceId;
+    private final String fenceName;
+    private final long imei;
+    private final int slot;
+    private final double latitude;
+    private final double longitude;
+    private final long timestampMillis;
+
+    GeofenceEvent(Type type, String fenceId, String fenceName, long imei, int slot,
+                  double latitude, double longitude, long timestampMillis) {
+        this.type = type;
+        this.fenceId = fenceId;
+        this.fenceName = fenceName;
+        this.imei = imei;
+        this.slot = slot;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.timestampMillis = timestampMillis;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getFenceId() {
+        return fenceId;
+    }
+
+    public String getFenceName() {
+        return fenceName;
+    }
+
+    public long getImei() {
+        return imei;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    // Position that crossed the boundary
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+}
@@ -0,0 +1,245 @@
+package com.ohw.parser.geofence;
+
+import com.ohw.parser.parsers.ImeiCodec;
+import com.ohw.parser.state.LongIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Immutable, compiled form of a geofence list. Vertices are flattened into
+// primitive arrays and fence bounding boxes are bucketed into a uniform grid,
+// so a position is only tested against the fences registered in its cell.
+// Fences too large for the grid are kept on a short list checked by bounding box.
+public final class GeofenceIndex {
+
+    // Fences covering more cells than this skip the grid
+    static final int MAX_CELLS_PER_FENCE = 4096;
+    private static final double MIN_CELL_DEGREES = 0.001;
+    private static final double MAX_CELL_DEGREES = 1.0;
+    private static final int CELL_OFFSET = 1 << 30;
+
+    final int fenceCount;
+    final String[] ids;
+    final String[] names;
+    final long[] scope;
+    final double[] minLat;
+    final double[] maxLat;
+    final double[] minLon;
+    final double[] maxLon;
+    // Vertices of fence f are lat/lon[vertexStart[f] .. vertexStart[f + 1])
+    final int[] vertexStart;
+    final double[] lat;
+    final double[] lon;
+
+    final double cellDegrees;
+    private final LongIntHashMap cells;
+    // Fences of cell c are cellFences[cellStart[c] .. cellStart[c + 1]), ascending
+    final int[] cellStart;
+    final int[] cellFences;
+    final int[] wideFences;
+
+    private final Map<String, Integer> byId = new HashMap<>();
+    private final List<GeofenceDefinition> definitions;
+
+    public static final GeofenceIndex EMPTY = compile(Collections.<GeofenceDefinition>emptyList());
+
+    private GeofenceIndex(List<GeofenceDefinition> enabled, List<GeofenceDefinition> definitions) {
+        this.definitions = Collections.unmodifiableList(new ArrayList<>(definitions));
+        fenceCount = enabled.size();
+        ids = new String[fenceCount];
+        names = new String[fenceCount];
+        scope = new long[fenceCount];
+        minLat = new double[fenceCount];
+        maxLat = new double[fenceCount];
+        minLon = new double[fenceCount];
+        maxLon = new double[fenceCount];
+        vertexStart = new int[fenceCount + 1];
+
+        int vertices = 0;
+        for (GeofenceDefinition definition : enabled) {
+            vertices += definition.points.length;
+        }
+        lat = new double[vertices];
+        lon = new double[vertices];
+
+        int v = 0;
+        for (int f = 0; f < fenceCount; f++) {
+            GeofenceDefinition definition = enabled.get(f);
+            ids[f] = definition.id;
+            names[f] = definition.name != null ? definition.name : definition.id;
+            scope[f] = definition.imei != null ? ImeiCodec.parse(definition.imei) : -1L;
+            byId.put(definition.id, f);
+            vertexStart[f] = v;
+            minLat[f] = minLon[f] = Double.MAX_VALUE;
+            maxLat[f] = maxLon[f] = -Double.MAX_VALUE;
+            for (double[] point : definition.points) {
+                lat[v] = point[0];
+                lon[v] = point[1];
+                minLat[f] = Math.min(minLat[f], point[0]);
+                maxLat[f] = Math.max(maxLat[f], point[0]);
+                minLon[f] = Math.min(minLon[f], point[1]);
+                maxLon[f] = Math.max(maxLon[f], point[1]);
+                v++;
+            }
+        }
+        vertexStart[fenceCount] = v;
+
+        cellDegrees = chooseCellDegrees();
+        cells = new LongIntHashMap(Math.max(16, fenceCount * 4));
+
+        // First pass numbers the cells and counts their fences, second pass fills them
+        int cellCount = 0;
+        int[] counts = new int[64];
+        List<Integer> wide = new ArrayList<>();
+        for (int f = 0; f < fenceCount; f++) {
+            int x0 = cellX(minLon[f]);
+            int x1 = cellX(maxLon[f]);
+            int y0 = cellY(minLat[f]);
+            int y1 = cellY(maxLat[f]);
+            if ((long) (x1 - x0 + 1) * (y1 - y0 + 1) > MAX_CELLS_PER_FENCE) {
+                wide.add(f);
+                continue;
+            }
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    long key = key(x, y);
+                    int cell = cells.get(key);
+                    if (cell == LongIntHashMap.MISSING) {
+                        cell = cellCount++;
+                        cells.put(key, cell);
+                        if (cell == counts.length) {
+                            counts = Arrays.copyOf(counts, counts.length * 2);
+                        }
+                    }
+                    counts[cell]++;
+                }
+            }
+        }
+
+        cellStart = new int[cellCount + 1];
+        for (int c = 0; c < cellCount; c++) {
+            cellStart[c + 1] = cellStart[c] + counts[c];
+        }
+        cellFences = new int[cellStart[cellCount]];
+        int[] fill = Arrays.copyOf(cellStart, cellCount);
+        wideFences = new int[wide.size()];
+        for (int i = 0; i < wideFences.length; i++) {
+            wideFences[i] = wide.get(i);
+        }
+        for (int f = 0; f < fenceCount; f++) {
+            if (Arrays.binarySearch(wideFences, f) >= 0) {
+                continue;
+            }
+            for (int y = cellY(minLat[f]), y1 = cellY(maxLat[f]); y <= y1; y++) {
+                for (int x = cellX(minLon[f]), x1 = cellX(maxLon[f]); x <= x1; x++) {
+                    cellFences[fill[cells.get(key(x, y))]++] = f;
+                }
+            }
+        }
+    }
+
+    // Validates and compiles the definitions; throws IllegalArgumentException on the first bad fence
+    public static GeofenceIndex compile(List<GeofenceDefinition> definitions) {
+        List<GeofenceDefinition> enabled = new ArrayList<>();
+        Map<String, Boolean> seen = new HashMap<>();
+        for (GeofenceDefinition definition : definitions) {
+            validate(definition);
+            if (seen.put(definition.id, Boolean.TRUE) != null) {
+                throw new IllegalArgumentException("Duplicate geofence id " + definition.id);
+            }
+            if (definition.enabled) {
+                enabled.add(definition);
+            }
+        }
+        return new GeofenceIndex(enabled, definitions);
+    }
+
+    private static void validate(GeofenceDefinition definition) {
+        if (definition.id == null || definition.id.isEmpty()) {
+            throw new IllegalArgumentException("Geofence without id");
+        }
+        if (definition.points == null || definition.points.length < 3) {
+            throw new IllegalArgumentException("Geofence " + definition.id + " needs at least 3 points");
+        }
+        for (double[] point : definition.points) {
+            if (point == null || point.length != 2 || !(Math.abs(point[0]) <= 90)
+                    || !(Math.abs(point[1]) <= 180)) {
+                throw new IllegalArgumentException("Geofence " + definition.id
+                        + ": points are [latitude, longitude] pairs");
+            }
+        }
+        if (definition.imei != null && ImeiCodec.parse(definition.imei) == ImeiCodec.INVALID) {
+            throw new IllegalArgumentException("Geofence " + definition.id + ": invalid IMEI");
+        }
+    }
+
+    // Sized from the median fence so a typical fence lands in a handful of cells
+    private double chooseCellDegrees() {
+        if (fenceCount == 0) {
+            return MAX_CELL_DEGREES;
+        }
+        double[] extents = new double[fenceCount];
+        for (int f = 0; f < fenceCount; f++) {
+            extents[f] = Math.max(maxLat[f] - minLat[f], maxLon[f] - minLon[f]);
+        }
+        Arrays.sort(extents);
+        return Math.min(MAX_CELL_DEGREES, Math.max(MIN_CELL_DEGREES, extents[fenceCount / 2]));
+    }
+
+    private int cellX(double longitude) {
+        return (int) Math.floor(longitude / cellDegrees);
+    }
+
+    private int cellY(double latitude) {
+        return (int) Math.floor(latitude / cellDegrees);
+    }
+
+    private static long key(int x, int y) {
+        return ((long) (y + CELL_OFFSET) << 32) | (x + CELL_OFFSET);
+    }
+
+    // Grid cell holding the position, or -1 when no gridded fence reaches it
+    int cellOf(double latitude, double longitude) {
+        return cells.get(key(cellX(longitude), cellY(latitude)));
+    }
+
+    // Even-odd ray cast, after a bounding box check
+    boolean contains(int fence, double latitude, double longitude) {
+        if (latitude < minLat[fence] || latitude > maxLat[fence]
+                || longitude < minLon[fence] || longitude > maxLon[fence]) {
+            return false;
+        }
+        boolean inside = false;
+        int end = vertexStart[fence + 1];
+        for (int i = vertexStart[fence], j = end - 1; i < end; j = i++) {
+            if ((lat[i] > latitude) != (lat[j] > latitude)
+                    && longitude < (lon[j] - lon[i]) * (latitude - lat[i]) / (lat[j] - lat[i]) + lon[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    // Index of the fence with this id, or -1
+    int indexOf(String id) {
+        Integer index = byId.get(id);
+        return index != null ? index : -1;
+    }
+
+    public int size() {
+        return fenceCount;
+    }
+
+    public boolean isEmpty() {
+        return fenceCount == 0;
+    }
+
+    // Definitions as submitted, including disabled fences
+    public List<GeofenceDefinition> getDefinitions() {
+        return definitions;
+    }
+}
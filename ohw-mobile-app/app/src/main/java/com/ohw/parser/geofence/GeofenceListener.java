@@ -0,0 +1,7 @@
+package com.ohw.parser.geofence;
+
+// Receives enter/exit transitions on the device's ingest shard thread
+public interface GeofenceListener {
+
+    void onGeofence(GeofenceEvent event);
+}
@@ -0,0 +1,49 @@
+package com.ohw.parser.geofence;
+
+import java.util.Arrays;
+
+// Fences one device is currently inside, as ascending fence indexes of the
+// index it was last evaluated against. Only touched by the device's ingest
+// shard thread.
+final class GeofenceState {
+
+    private GeofenceIndex index;
+    int[] inside = new int[4];
+    int insideCount;
+    // Candidate buffer swapped with inside after each evaluation
+    int[] found = new int[4];
+
+    // Carries memberships over by fence id when the fences were replaced, so
+    // unchanged fences do not report a fresh enter
+    void bind(GeofenceIndex current) {
+        if (index == current) {
+            return;
+        }
+        int kept = 0;
+        if (index != null) {
+            for (int i = 0; i < insideCount; i++) {
+                int mapped = current.indexOf(index.ids[inside[i]]);
+                if (mapped >= 0) {
+                    inside[kept++] = mapped;
+                }
+            }
+            Arrays.sort(inside, 0, kept);
+        }
+        insideCount = kept;
+        index = current;
+    }
+
+    int[] found(int capacity) {
+        if (found.length < capacity) {
+            found = new int[Math.max(capacity, found.length * 2)];
+        }
+        return found;
+    }
+
+    void swap(int foundCount) {
+        int[] previous = inside;
+        inside = found;
+        insideCount = foundCount;
+        found = previous;
+    }
+}
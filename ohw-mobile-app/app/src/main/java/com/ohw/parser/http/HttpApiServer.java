@@ -0,0 +1,310 @@
+package com.ohw.parser.http;
+
+import android.util.Log;
+
+import com.ohw.parser.metrics.ConnectionStatsSource;
+import com.ohw.parser.metrics.DeviceCounters;
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.metrics.StatsReport;
+import com.ohw.parser.models.DeviceData;
+import com.ohw.parser.parsers.ImeiCodec;
+import com.ohw.parser.query.DeviceField;
+import com.ohw.parser.rollups.RollupEngine;
+import com.ohw.parser.rollups.RollupReport;
+import com.ohw.parser.state.DeviceStateTable;
+import com.ohw.parser.state.TrackStore;
+import com.ohw.parser.trips.TripDetector;
+import com.ohw.parser.trips.TripSegment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+// Minimal HTTP/1.1 server for device state polling. Connections are kept alive and
+// pipelined requests are answered in order; responses are flushed once the client
+// has no further buffered requests, so a pipelined burst goes out in one write.
+public class HttpApiServer {
+
+    private static final String TAG = "HttpApiServer";
+    private static final int KEEP_ALIVE_TIMEOUT = 15000; // 15 seconds
+    private static final int MAX_REQUESTS_PER_CONNECTION = 1000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final int DEFAULT_STATS_DEVICES = 100;
+    private static final int DEFAULT_ROLLUP_BUCKETS = 60;
+
+    private final DeviceStateTable deviceTable;
+    private final TrackStore trackStore;
+    private final TripDetector tripDetector;
+    private final RollupEngine rollupEngine;
+    private final DeviceCounters deviceCounters;
+    private final ConnectionStatsSource connectionStats;
+
+    public HttpApiServer(DeviceStateTable deviceTable, TrackStore trackStore, TripDetector tripDetector,
+                         RollupEngine rollupEngine, DeviceCounters deviceCounters,
+                         ConnectionStatsSource connectionStats) {
+        this.deviceTable = deviceTable;
+        this.trackStore = trackStore;
+        this.tripDetector = tripDetector;
+        this.rollupEngine = rollupEngine;
+        this.deviceCounters = deviceCounters;
+        this.connectionStats = connectionStats;
+    }
+
+    public void handleConnection(Socket socket) {
+        try {
+            socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            BufferedInputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+
+            for (int served = 0; served < MAX_REQUESTS_PER_CONNECTION; served++) {
+                HttpRequest request;
+                try {
+                    request = HttpRequest.read(in);
+                } catch (SocketTimeoutException e) {
+                    break; // Idle keep-alive connection
+                } catch (HttpException e) {
+                    writeRawError(out, e.getStatus(), e.getMessage());
+                    break;
+                }
+                if (request == null) {
+                    break;
+                }
+
+                boolean keepAlive = request.isKeepAlive() && served + 1 < MAX_REQUESTS_PER_CONNECTION;
+                HttpResponse response;
+                try {
+                    response = dispatch(request);
+                } catch (HttpException e) {
+                    response = HttpResponse.error(e.getStatus(), e.getMessage());
+                }
+                response.write(out, request, keepAlive);
+
+                if (in.available() == 0) {
+                    out.flush();
+                }
+                if (!keepAlive) {
+                    break;
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.d(TAG, "HTTP connection ended: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing HTTP client socket", e);
+            }
+        }
+    }
+
+    HttpResponse dispatch(HttpRequest request) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return HttpResponse.error(405, "Only GET and HEAD are supported");
+        }
+
+        String path = request.getPath();
+        if (path.equals("/") || path.equals("/health")) {
+            return HttpResponse.text(200, "OHW Parser OK");
+        }
+        if (path.equals("/metrics")) {
+            return HttpResponse.text(200, "text/plain; version=0.0.4; charset=utf-8",
+                    GatewayMetrics.get().registry.renderPrometheus());
+        }
+        if (path.equals("/api/stats")) {
+            return getStats(request);
+        }
+        if (path.equals("/api/devices")) {
+            return listDevices(request);
+        }
+        if (path.equals("/api/positions")) {
+            return listPositions();
+        }
+        if (path.equals("/api/rollups")) {
+            return getRollups(request);
+        }
+        if (path.startsWith("/api/devices/")) {
+            String rest = path.substring("/api/devices/".length());
+            int separator = rest.indexOf('/');
+            String imei = separator >= 0 ? rest.substring(0, separator) : rest;
+            String action = separator >= 0 ? rest.substring(separator + 1) : "";
+            int slot = resolveSlot(imei);
+            if (action.isEmpty()) {
+                return getDevice(slot);
+            }
+            if (action.equals("track")) {
+                return getTrack(request, slot);
+            }
+            if (action.equals("trips")) {
+                return getTrips(request, slot);
+            }
+        }
+        return HttpResponse.error(404, "Not found");
+    }
+
+    private HttpResponse listDevices(HttpRequest request) {
+        String fieldsParameter = request.getQueryParameter("fields");
+        List<String> names = fieldsParameter != null ? Arrays.asList(fieldsParameter.split(",")) : null;
+        final EnumSet<DeviceField> fields = DeviceField.parseProjection(names);
+        int projection = 0;
+        for (DeviceField field : fields) {
+            projection |= 1 << field.ordinal();
+        }
+        String etag = "\"d" + deviceTable.getModificationCount() + "-" + Integer.toHexString(projection) + "\"";
+
+        return HttpResponse.json(etag, writer -> {
+            writer.beginArray();
+            for (DeviceData device : deviceTable.snapshotAll()) {
+                DeviceField.writeDevice(writer, device, fields);
+            }
+            writer.endArray();
+        });
+    }
+
+    private HttpResponse listPositions() {
+        String etag = "\"p" + deviceTable.getModificationCount() + "\"";
+        return HttpResponse.json(etag, writer -> {
+            writer.beginArray();
+            for (DeviceData device : deviceTable.snapshotAll()) {
+                if (device.getLatitude() == 0.0 && device.getLongitude() == 0.0) {
+                    continue;
+                }
+                writer.beginObject();
+                writer.name("imei").value(device.getImei());
+                writer.name("latitude").value(device.getLatitude());
+                writer.name("longitude").value(device.getLongitude());
+                writer.name("speed").value(device.getSpeed());
+                writer.name("lastSeen").value(device.getLastSeenText());
+                writer.endObject();
+            }
+            writer.endArray();
+        });
+    }
+
+    private HttpResponse getDevice(final int slot) {
+        String etag = "\"s" + slot + "-" + deviceTable.getVersion(slot) + "\"";
+        final EnumSet<DeviceField> fields = EnumSet.allOf(DeviceField.class);
+        return HttpResponse.json(etag,
+                writer -> DeviceField.writeDevice(writer, deviceTable.snapshot(slot), fields));
+    }
+
+    private HttpResponse getTrack(HttpRequest request, final int slot) {
+        final long from = request.getLongParameter("from", 0L);
+        final long to = request.getLongParameter("to", Long.MAX_VALUE);
+        String etag = "\"t" + slot + "-" + trackStore.getVersion(slot) + "-" + from + "-" + to + "\"";
+
+        return HttpResponse.json(etag, writer -> {
+            writer.beginArray();
+            for (TrackStore.Point point : trackStore.range(slot, from, to)) {
+                writer.beginObject();
+                writer.name("time").value(point.timeMillis);
+                writer.name("latitude").value(point.latitude);
+                writer.name("longitude").value(point.longitude);
+                writer.name("speed").value(point.speed);
+                writer.name("direction").value(point.direction);
+                writer.endObject();
+            }
+            writer.endArray();
+        });
+    }
+
+    // Stored trip and stop summaries plus the live odometer; no point scan involved
+    private HttpResponse getTrips(HttpRequest request, final int slot) {
+        final long from = request.getLongParameter("from", 0L);
+        final long to = request.getLongParameter("to", Long.MAX_VALUE);
+        final long imei = deviceTable.getImei(slot);
+
+        // The odometer moves with every position, so the response is never conditional
+        return HttpResponse.json(null, writer -> {
+            writer.beginObject();
+            writer.name("imei").value(ImeiCodec.format(imei));
+            writer.name("odometerMeters").value(Math.round(tripDetector.getOdometerMeters(slot)));
+            writer.name("inTrip").value(tripDetector.isInTrip(slot));
+            writer.name("segments").beginArray();
+            for (TripSegment segment : tripDetector.getStore().range(imei, from, to)) {
+                writer.beginObject();
+                writer.name("kind").value(segment.getKind().getJsonName());
+                writer.name("start").value(segment.getStartMillis());
+                writer.name("end").value(segment.getEndMillis());
+                writer.name("startLatitude").value(segment.getStartLatitude());
+                writer.name("startLongitude").value(segment.getStartLongitude());
+                writer.name("endLatitude").value(segment.getEndLatitude());
+                writer.name("endLongitude").value(segment.getEndLongitude());
+                writer.name("distanceMeters").value(Math.round(segment.getDistanceMeters()));
+                writer.name("maxSpeed").value(segment.getMaxSpeed());
+                writer.name("averageSpeed").value(segment.getAverageSpeed());
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        });
+    }
+
+    // Fleet buckets, or one device's with ?imei=; buckets are oldest first
+    private HttpResponse getRollups(HttpRequest request) {
+        String resolutionName = request.getQueryParameter("resolution");
+        final RollupEngine.Resolution resolution;
+        try {
+            resolution = resolutionName != null ? RollupEngine.Resolution.fromJsonName(resolutionName)
+                    : RollupEngine.Resolution.MINUTE;
+        } catch (IllegalArgumentException e) {
+            throw new HttpException(400, e.getMessage());
+        }
+        final int count = (int) request.getLongParameter("buckets", DEFAULT_ROLLUP_BUCKETS);
+        String imei = request.getQueryParameter("imei");
+        final int slot = imei != null ? resolveSlot(imei) : -1;
+        final long now = System.currentTimeMillis();
+
+        // The current bucket keeps filling, so rollups are never served conditionally
+        return HttpResponse.json(null, writer -> {
+            writer.beginObject();
+            writer.name("resolution").value(resolution.getJsonName());
+            RollupReport.writeBuckets(writer, slot >= 0 ? rollupEngine.device(slot, resolution, count, now)
+                    : rollupEngine.fleet(resolution, count, now));
+            writer.endObject();
+        });
+    }
+
+    private HttpResponse getStats(HttpRequest request) {
+        String imei = request.getQueryParameter("imei");
+        final int slot = imei != null ? resolveSlot(imei) : -1;
+        final int limit = (int) request.getLongParameter("devices", DEFAULT_STATS_DEVICES);
+
+        // Counters move constantly, so stats are never served conditionally
+        return HttpResponse.json(null, writer -> {
+            writer.beginObject();
+            StatsReport.writeSummary(writer, GatewayMetrics.get());
+            StatsReport.writeConnections(writer, connectionStats.getConnectionStats());
+            StatsReport.writeDevices(writer, deviceTable, deviceCounters, slot, limit);
+            writer.endObject();
+        });
+    }
+
+    private int resolveSlot(String imei) {
+        long value = ImeiCodec.parse(imei);
+        int slot = value != ImeiCodec.INVALID ? deviceTable.findSlot(value) : -1;
+        if (slot < 0) {
+            throw new HttpException(404, "Unknown device: " + imei);
+        }
+        return slot;
+    }
+
+    private static void writeRawError(BufferedOutputStream out, int status, String message) throws IOException {
+        byte[] body = message.getBytes("UTF-8");
+        String head = "HTTP/1.1 " + status + " " + HttpResponse.reasonPhrase(status) + "\r\n"
+                + "Content-Type: text/plain; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(head.getBytes("ISO-8859-1"));
+        out.write(body);
+        out.flush();
+    }
+}
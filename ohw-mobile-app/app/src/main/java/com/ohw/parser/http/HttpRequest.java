@@ -0,0 +1,180 @@
+package com.ohw.parser.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+public class HttpRequest {
+
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADERS = 100;
+
+    private String method;
+    private String path;
+    private String version;
+    private final Map<String, String> queryParameters = new HashMap<>();
+    private final Map<String, String> headers = new HashMap<>();
+
+    // Returns null on a clean end of stream before a new request starts
+    public static HttpRequest read(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        while (requestLine != null && requestLine.isEmpty()) {
+            // Tolerate stray CRLF between pipelined requests
+            requestLine = readLine(in);
+        }
+        if (requestLine == null) {
+            return null;
+        }
+
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3) {
+            throw new HttpException(400, "Malformed request line");
+        }
+
+        HttpRequest request = new HttpRequest();
+        request.method = parts[0];
+        request.version = parts[2];
+        request.parseTarget(parts[1]);
+
+        for (int i = 0; ; i++) {
+            String line = readLine(in);
+            if (line == null) {
+                throw new HttpException(400, "Unexpected end of headers");
+            }
+            if (line.isEmpty()) {
+                break;
+            }
+            if (i >= MAX_HEADERS) {
+                throw new HttpException(431, "Too many headers");
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new HttpException(400, "Malformed header");
+            }
+            request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                    line.substring(colon + 1).trim());
+        }
+
+        request.skipBody(in);
+        return request;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.US));
+    }
+
+    public String getQueryParameter(String name) {
+        return queryParameters.get(name);
+    }
+
+    public long getLongParameter(String name, long defaultValue) {
+        String value = queryParameters.get(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new HttpException(400, "Invalid number for " + name);
+        }
+    }
+
+    public boolean isKeepAlive() {
+        String connection = getHeader("connection");
+        if ("HTTP/1.0".equals(version)) {
+            return connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+        return connection == null || !connection.equalsIgnoreCase("close");
+    }
+
+    public boolean acceptsGzip() {
+        String encoding = getHeader("accept-encoding");
+        return encoding != null && encoding.toLowerCase(Locale.US).contains("gzip");
+    }
+
+    private void parseTarget(String target) throws UnsupportedEncodingException {
+        int question = target.indexOf('?');
+        path = question >= 0 ? target.substring(0, question) : target;
+        if (question < 0) {
+            return;
+        }
+        for (String pair : target.substring(question + 1).split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String key = equals >= 0 ? pair.substring(0, equals) : pair;
+            String value = equals >= 0 ? pair.substring(equals + 1) : "";
+            try {
+                queryParameters.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            } catch (IllegalArgumentException e) {
+                // A malformed escape such as %zz
+                throw new HttpException(400, "Malformed query parameter");
+            }
+        }
+    }
+
+    private void skipBody(InputStream in) throws IOException {
+        if (getHeader("transfer-encoding") != null) {
+            throw new HttpException(501, "Chunked request bodies are not supported");
+        }
+        String contentLength = getHeader("content-length");
+        if (contentLength == null) {
+            return;
+        }
+        long remaining;
+        try {
+            remaining = Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+            throw new HttpException(400, "Invalid Content-Length");
+        }
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new HttpException(400, "Truncated request body");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new HttpException(414, "Request line too long");
+            }
+            line.append((char) c);
+        }
+        if (line.length() > 0) {
+            throw new HttpException(400, "Unexpected end of stream");
+        }
+        return null;
+    }
+}
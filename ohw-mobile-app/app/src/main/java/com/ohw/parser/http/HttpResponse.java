@@ -0,0 +1,145 @@
+package com.ohw.parser.http;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+// Response whose body is rendered only when the client's cached copy is stale
+public class HttpResponse {
+
+    private static final int GZIP_MIN_BYTES = 1024;
+
+    public interface JsonBody {
+        void write(JsonWriter writer) throws IOException;
+    }
+
+    private final int status;
+    private final String contentType;
+    private final String etag;
+    private final JsonBody jsonBody;
+    private final byte[] rawBody;
+
+    private HttpResponse(int status, String contentType, String etag, JsonBody jsonBody, byte[] rawBody) {
+        this.status = status;
+        this.contentType = contentType;
+        this.etag = etag;
+        this.jsonBody = jsonBody;
+        this.rawBody = rawBody;
+    }
+
+    public static HttpResponse json(String etag, JsonBody body) {
+        return new HttpResponse(200, "application/json; charset=utf-8", etag, body, null);
+    }
+
+    public static HttpResponse text(int status, String text) {
+        return text(status, "text/plain; charset=utf-8", text);
+    }
+
+    public static HttpResponse text(int status, String contentType, String text) {
+        return new HttpResponse(status, contentType, null, null, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static HttpResponse error(int status, String message) {
+        return text(status, message);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void write(OutputStream out, HttpRequest request, boolean keepAlive) throws IOException {
+        StringBuilder head = new StringBuilder(256);
+
+        if (etag != null && status == 200 && matches(request.getHeader("if-none-match"), etag)) {
+            head.append("HTTP/1.1 304 Not Modified\r\n");
+            head.append("ETag: ").append(etag).append("\r\n");
+            appendConnection(head, keepAlive);
+            head.append("\r\n");
+            out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            return;
+        }
+
+        byte[] body = rawBody != null ? rawBody : render();
+        boolean gzip = request.acceptsGzip() && body.length >= GZIP_MIN_BYTES;
+        if (gzip) {
+            body = gzip(body);
+        }
+
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reasonPhrase(status)).append("\r\n");
+        head.append("Content-Type: ").append(contentType).append("\r\n");
+        head.append("Content-Length: ").append(body.length).append("\r\n");
+        if (etag != null) {
+            head.append("ETag: ").append(etag).append("\r\n");
+            head.append("Cache-Control: no-cache\r\n");
+        }
+        if (gzip) {
+            head.append("Content-Encoding: gzip\r\n");
+        }
+        if (etag != null || gzip) {
+            head.append("Vary: Accept-Encoding\r\n");
+        }
+        appendConnection(head, keepAlive);
+        head.append("\r\n");
+
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (!"HEAD".equals(request.getMethod())) {
+            out.write(body);
+        }
+    }
+
+    private byte[] render() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8));
+        jsonBody.write(writer);
+        writer.close();
+        return buffer.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(buffer, 8192);
+        gzip.write(body);
+        gzip.close();
+        return buffer.toByteArray();
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void appendConnection(StringBuilder head, boolean keepAlive) {
+        head.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+    }
+
+    static String reasonPhrase(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 414: return "URI Too Long";
+            case 431: return "Request Header Fields Too Large";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            default: return "Error";
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.ohw.parser.journal;
+
+import android.util.Log;
+
+import com.ohw.parser.parsers.ImeiCodec;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous journal for hot-path events. Producers copy a few primitive fields
+// into a preallocated ring slot and return; a background thread formats and logs.
+// Events below the configured level cost one volatile read. When the ring is full
+// events are dropped and counted rather than blocking ingestion.
+public class EventJournal implements Runnable {
+
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 20;
+
+    private static final String TAG = "EventJournal";
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int MAX_PAYLOAD = 256;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final EventJournal INSTANCE = new EventJournal(DEFAULT_CAPACITY);
+
+    private static final class Event {
+        volatile long sequence = -1;
+        long timeMillis;
+        EventType type;
+        long a;
+        long b;
+        long c;
+        int payloadLength;
+        int payloadTotal;
+        final byte[] payload = new byte[MAX_PAYLOAD];
+        Throwable error;
+    }
+
+    private final Event[] ring;
+    private final int mask;
+    private final AtomicLong producerSequence = new AtomicLong();
+    private volatile long consumerSequence;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    private volatile int minLevel = JournalLevel.INFO.ordinal();
+    private final int[] sampleEvery = new int[EventType.values().length];
+    private final AtomicIntegerArray sampleCounters = new AtomicIntegerArray(EventType.values().length);
+
+    private final StringBuilder line = new StringBuilder(512);
+    private volatile Thread formatter;
+    private volatile boolean sleeping;
+    // Producers wake the formatter once this many events wait; it also wakes on its own every idlePark
+    private volatile int wakeThreshold = 1;
+    private volatile long idleParkNanos = DEFAULT_MAX_DELAY_MILLIS * 1000000L;
+
+    public static EventJournal get() {
+        return INSTANCE;
+    }
+
+    EventJournal(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        ring = new Event[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Event();
+        }
+        mask = size - 1;
+        for (int i = 0; i < sampleEvery.length; i++) {
+            sampleEvery[i] = 1;
+        }
+    }
+
+    public void setMinLevel(JournalLevel level) {
+        minLevel = level.ordinal();
+    }
+
+    public JournalLevel getMinLevel() {
+        return JournalLevel.values()[minLevel];
+    }
+
+    // Lets events gather before the formatter runs, so logging does not wake a CPU per
+    // record; (1, DEFAULT_MAX_DELAY_MILLIS) wakes it for every event
+    public void setBatching(int wakeThreshold, long maxDelayMillis) {
+        this.wakeThreshold = Math.max(1, Math.min(wakeThreshold, (mask + 1) / 4));
+        this.idleParkNanos = maxDelayMillis * 1000000L;
+    }
+
+    // Keep only every n-th occurrence of the event type
+    public void setSampling(EventType type, int everyN) {
+        sampleEvery[type.ordinal()] = Math.max(1, everyN);
+    }
+
+    public boolean isEnabled(EventType type) {
+        return type.getLevel().ordinal() >= minLevel;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public int getBacklog() {
+        return (int) (producerSequence.get() - consumerSequence);
+    }
+
+    public void emit(EventType type) {
+        emit(type, 0, 0, 0, null, 0, 0, null);
+    }
+
+    public void emit(EventType type, long a) {
+        emit(type, a, 0, 0, null, 0, 0, null);
+    }
+
+    public void emit(EventType type, long a, long b) {
+        emit(type, a, b, 0, null, 0, 0, null);
+    }
+
+    public void emit(EventType type, long a, long b, long c) {
+        emit(type, a, b, c, null, 0, 0, null);
+    }
+
+    public void emitPayload(EventType type, long a, long b, byte[] data, int offset, int length) {
+        emit(type, a, b, 0, data, offset, length, null);
+    }
+
+    public void emitError(EventType type, long a, Throwable error) {
+        emit(type, a, 0, 0, null, 0, 0, error);
+    }
+
+    private void emit(EventType type, long a, long b, long c, byte[] data, int offset, int length,
+                      Throwable error) {
+        if (type.getLevel().ordinal() < minLevel) {
+            return;
+        }
+        int sampling = sampleEvery[type.ordinal()];
+        if (sampling > 1 && sampleCounters.incrementAndGet(type.ordinal()) % sampling != 0) {
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = producerSequence.get();
+            if (sequence - consumerSequence > mask) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!producerSequence.compareAndSet(sequence, sequence + 1));
+
+        Event event = ring[(int) sequence & mask];
+        event.timeMillis = System.currentTimeMillis();
+        event.type = type;
+        event.a = a;
+        event.b = b;
+        event.c = c;
+        event.error = error;
+        if (data != null) {
+            int copied = Math.min(length, MAX_PAYLOAD);
+            System.arraycopy(data, offset, event.payload, 0, copied);
+            event.payloadLength = copied;
+            event.payloadTotal = length;
+        } else {
+            event.payloadLength = -1;
+        }
+        event.sequence = sequence;
+
+        if (sleeping && sequence + 1 - consumerSequence >= wakeThreshold) {
+            LockSupport.unpark(formatter);
+        }
+        ensureStarted();
+    }
+
+    private void ensureStarted() {
+        if (formatter == null) {
+            synchronized (this) {
+                if (formatter == null) {
+                    Thread thread = new Thread(this, "event-journal");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    formatter = thread;
+                    thread.start();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long sequence = consumerSequence;
+            Event event = ring[(int) sequence & mask];
+            if (event.sequence != sequence) {
+                sleeping = true;
+                if (producerSequence.get() == consumerSequence) {
+                    LockSupport.parkNanos(this, idleParkNanos);
+                } else {
+                    Thread.yield(); // Claimed but not yet published
+                }
+                sleeping = false;
+                continue;
+            }
+
+            try {
+                write(event);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error formatting journal event", e);
+            }
+            event.error = null;
+            consumerSequence = sequence + 1;
+        }
+    }
+
+    private void write(Event event) {
+        EventType type = event.type;
+        line.setLength(0);
+        line.append(type.getMessage());
+
+        String[] fields = type.getFields();
+        long[] values = {event.a, event.b, event.c};
+        for (int i = 0; i < fields.length && i < values.length; i++) {
+            String field = fields[i];
+            line.append(' ').append(field).append('=');
+            if (field.equals("imei")) {
+                line.append(values[i] >= 0 ? ImeiCodec.format(values[i]) : "unknown");
+            } else if (field.endsWith("Hex")) {
+                line.append("0x").append(Long.toHexString(values[i]).toUpperCase());
+            } else {
+                line.append(values[i]);
+            }
+        }
+        if (event.payloadLength >= 0) {
+            line.append(" data=");
+            for (int i = 0; i < event.payloadLength; i++) {
+                int b = event.payload[i] & 0xFF;
+                line.append(HEX[b >>> 4]).append(HEX[b & 0x0F]);
+            }
+            if (event.payloadTotal > event.payloadLength) {
+                line.append("...(").append(event.payloadTotal).append(" bytes)");
+            }
+        }
+
+        String message = line.toString();
+        switch (type.getLevel()) {
+            case TRACE:
+                Log.v(type.getTag(), message);
+                break;
+            case DEBUG:
+                Log.d(type.getTag(), message);
+                break;
+            case INFO:
+                Log.i(type.getTag(), message);
+                break;
+            case WARN:
+                if (event.error != null) {
+                    Log.w(type.getTag(), message, event.error);
+                } else {
+                    Log.w(type.getTag(), message);
+                }
+                break;
+            default:
+                if (event.error != null) {
+                    Log.e(type.getTag(), message, event.error);
+                } else {
+                    Log.e(type.getTag(), message);
+                }
+                break;
+        }
+        written.incrementAndGet();
+    }
+}
@@ -0,0 +1,76 @@
+package com.ohw.parser.journal;
+
+// Structured events emitted on the ingestion path. Each event carries up to three
+// numeric fields (named here) plus an optional byte payload, and is rendered as
+// "message key=value ..." by the journal's background formatter. Field names
+// ending in "Hex" are rendered in hexadecimal and "imei" as a 15-digit IMEI.
+public enum EventType {
+    PACKET_TOO_SHORT(JournalLevel.WARN, "GalileoskyParser", "Packet too short", "length"),
+    PACKET_IGNORABLE(JournalLevel.DEBUG, "GalileoskyParser", "Ignorable packet (0x15), confirmation only"),
+    UNKNOWN_PACKET_TYPE(JournalLevel.WARN, "GalileoskyParser", "Unknown packet type", "headerHex"),
+    TAG_DECODED(JournalLevel.TRACE, "GalileoskyParser", "Tag decoded", "tagHex", "offset"),
+    UNKNOWN_TAG(JournalLevel.WARN, "GalileoskyParser", "Unknown tag", "tagHex", "offset"),
+    TAG_ERROR(JournalLevel.ERROR, "GalileoskyParser", "Error parsing tag", "tagHex"),
+    TAG_TRUNCATED(JournalLevel.WARN, "GalileoskyParser", "Packet data truncated", "offset", "length"),
+    INVALID_IMEI(JournalLevel.WARN, "GalileoskyParser", "Non-numeric IMEI"),
+    PACKET_PARSED(JournalLevel.DEBUG, "GalileoskyParser", "Packet parsed", "imei", "length"),
+
+    FRAME_RECEIVED(JournalLevel.TRACE, "TcpServerService", "Raw data received", "connection", "length"),
+    FRAME_CRC_MISMATCH(JournalLevel.WARN, "TcpServerService", "Frame checksum mismatch", "connection", "length", "crcHex"),
+    PACKET_PROCESSED(JournalLevel.DEBUG, "TcpServerService", "Packet processed", "connection", "imei"),
+    COMMAND_WRITE_ERROR(JournalLevel.WARN, "TcpServerService", "Error writing command", "connection"),
+    PACKET_PROCESS_ERROR(JournalLevel.ERROR, "TcpServerService", "Error processing packet", "connection"),
+
+    COMMAND_REPLIED(JournalLevel.DEBUG, "TcpServerService", "Command answered", "imei", "command", "roundTripMicros"),
+    COMMAND_EXPIRED(JournalLevel.WARN, "TcpServerService", "Command expired without a reply", "imei", "command"),
+
+    ALERT_RAISED(JournalLevel.INFO, "TcpServerService", "Alert raised", "imei"),
+    ALERT_RESOLVED(JournalLevel.INFO, "TcpServerService", "Alert resolved", "imei"),
+    ALERT_CHANGED(JournalLevel.DEBUG, "TcpServerService", "Alert bit changed", "imei"),
+    GEOFENCE_ENTER(JournalLevel.INFO, "TcpServerService", "Geofence entered", "imei"),
+    GEOFENCE_EXIT(JournalLevel.INFO, "TcpServerService", "Geofence left", "imei"),
+    TRIP_ENDED(JournalLevel.DEBUG, "TcpServerService", "Trip ended", "imei", "meters", "seconds"),
+    STOP_ENDED(JournalLevel.DEBUG, "TcpServerService", "Stop ended", "imei", "seconds"),
+    TRIP_STORE_ERROR(JournalLevel.ERROR, "TripDetector", "Error storing trip segment", "imei"),
+    PEER_SYNC_FINISHED(JournalLevel.INFO, "PeerSyncClient", "Peer sync finished",
+            "received", "sent", "bytes"),
+    PEER_SYNC_SERVED(JournalLevel.INFO, "PeerSyncServer", "Peer sync served",
+            "received", "sent", "bytes"),
+    RELAY_BATCH_FAILED(JournalLevel.WARN, "UplinkRelay", "Uplink batch failed", "firstSeq", "status"),
+    RELAY_BATCH_REFUSED(JournalLevel.ERROR, "UplinkRelay", "Uplink refused the batch, check its URL and credentials", "firstSeq", "status"),
+    RELAY_BATCH_REJECTED(JournalLevel.ERROR, "UplinkRelay", "Uplink batch rejected", "firstSeq", "status"),
+    RELAY_RECORDS_DROPPED(JournalLevel.WARN, "UplinkRelay", "Relay queue over its size limit", "records"),
+    RELAY_QUEUE_ERROR(JournalLevel.ERROR, "UplinkRelay", "Relay queue I/O failed", "sequence"),
+    POWER_PROFILE_CHANGED(JournalLevel.INFO, "PowerScheduler", "Power profile changed",
+            "profile", "battery", "charging"),
+
+    BROADCAST(JournalLevel.DEBUG, "WebSocketService", "Broadcasting device data", "clients", "records");
+
+    private final JournalLevel level;
+    private final String tag;
+    private final String message;
+    private final String[] fields;
+
+    EventType(JournalLevel level, String tag, String message, String... fields) {
+        this.level = level;
+        this.tag = tag;
+        this.message = message;
+        this.fields = fields;
+    }
+
+    public JournalLevel getLevel() {
+        return level;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    String[] getFields() {
+        return fields;
+    }
+}
@@ -0,0 +1,21 @@
+package com.ohw.parser.journal;
+
+import android.util.Log;
+
+public enum JournalLevel {
+    TRACE(Log.VERBOSE),
+    DEBUG(Log.DEBUG),
+    INFO(Log.INFO),
+    WARN(Log.WARN),
+    ERROR(Log.ERROR);
+
+    private final int priority;
+
+    JournalLevel(int priority) {
+        this.priority = priority;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+}
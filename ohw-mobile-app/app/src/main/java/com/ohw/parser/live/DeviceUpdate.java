@@ -0,0 +1,52 @@
+package com.ohw.parser.live;
+
+import com.ohw.parser.models.DeviceData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// One throttled step of the live feed: detached copies of the devices that
+// changed since the previous update, or of every device when full is set.
+public final class DeviceUpdate {
+
+    private final boolean full;
+    private final List<DeviceData> devices;
+    private final long createdAtMillis;
+
+    DeviceUpdate(boolean full, List<DeviceData> devices) {
+        this.full = full;
+        this.devices = Collections.unmodifiableList(devices);
+        this.createdAtMillis = System.currentTimeMillis();
+    }
+
+    // True when devices holds the whole fleet and the screen should replace its list
+    public boolean isFull() {
+        return full;
+    }
+
+    public List<DeviceData> getDevices() {
+        return devices;
+    }
+
+    public long getCreatedAtMillis() {
+        return createdAtMillis;
+    }
+
+    // This update followed by a later one, newest copy of each device winning
+    DeviceUpdate mergedWith(DeviceUpdate later) {
+        if (later.full) {
+            return later;
+        }
+        Map<String, DeviceData> byImei = new LinkedHashMap<>();
+        for (DeviceData device : devices) {
+            byImei.put(device.getImei(), device);
+        }
+        for (DeviceData device : later.devices) {
+            byImei.put(device.getImei(), device);
+        }
+        return new DeviceUpdate(full, new ArrayList<>(byImei.values()));
+    }
+}
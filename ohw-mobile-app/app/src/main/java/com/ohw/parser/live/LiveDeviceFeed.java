@@ -0,0 +1,179 @@
+package com.ohw.parser.live;
+
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.models.DeviceData;
+import com.ohw.parser.state.DeviceStateTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Device changes for the app's screens, throttled so a busy gateway cannot flood
+// the main looper. Nothing happens per record: while the feed has active
+// observers, a background thread wakes at most maxUpdatesPerSecond times a
+// second, compares each slot's state table version with the one it last posted
+// and posts copies of just the devices that moved. The first update after the
+// feed becomes active, or after the service attaches a new table, carries every
+// device.
+//
+// postValue() only hands the latest value to the main thread, so an update the
+// main thread has not picked up yet is folded into the next one rather than
+// replaced by it.
+public final class LiveDeviceFeed extends LiveData<DeviceUpdate> {
+
+    private static final String TAG = "LiveDeviceFeed";
+
+    public static final int DEFAULT_MAX_UPDATES_PER_SECOND = 4;
+    // The ticker's delay is in whole milliseconds
+    public static final int MAX_UPDATES_PER_SECOND = 1000;
+
+    private static final LiveDeviceFeed INSTANCE = new LiveDeviceFeed();
+
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+    private final ScheduledExecutorService ticker;
+    private final AtomicBoolean resync = new AtomicBoolean(true);
+    private volatile DeviceStateTable table;
+    private int maxUpdatesPerSecond = DEFAULT_MAX_UPDATES_PER_SECOND;
+    private ScheduledFuture<?> tick;     // Guarded by this; set while observed
+    private DeviceUpdate unconsumed;     // Guarded by this; posted, not yet delivered
+
+    // Ticker thread only
+    private DeviceStateTable scanned;
+    private long[] postedVersions = new long[0];
+    private long lastModifications = -1;
+
+    public static LiveDeviceFeed get() {
+        return INSTANCE;
+    }
+
+    private LiveDeviceFeed() {
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "live-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // The service's device table; screens opened before the service see updates once it attaches
+    public void attach(DeviceStateTable table) {
+        this.table = table;
+        resync.set(true);
+    }
+
+    public void detach(DeviceStateTable table) {
+        if (this.table == table) {
+            this.table = null;
+        }
+    }
+
+    public synchronized void setMaxUpdatesPerSecond(int maxUpdatesPerSecond) {
+        this.maxUpdatesPerSecond = Math.max(1, Math.min(MAX_UPDATES_PER_SECOND, maxUpdatesPerSecond));
+        if (tick != null) {
+            tick.cancel(false);
+            schedule();
+        }
+    }
+
+    public synchronized int getMaxUpdatesPerSecond() {
+        return maxUpdatesPerSecond;
+    }
+
+    // The observer that made the feed active has no device list yet
+    @Override
+    protected synchronized void onActive() {
+        resync.set(true);
+        if (tick == null) {
+            schedule();
+        }
+    }
+
+    // No screen is showing device data, so the ticker stops waking the phone
+    @Override
+    protected synchronized void onInactive() {
+        if (tick != null) {
+            tick.cancel(false);
+            tick = null;
+        }
+    }
+
+    // Runs on the main thread for every delivered value, posted ones included
+    @Override
+    protected void setValue(DeviceUpdate value) {
+        synchronized (this) {
+            if (unconsumed == value) {
+                unconsumed = null;
+            }
+        }
+        super.setValue(value);
+    }
+
+    private void schedule() {
+        tick = ticker.scheduleWithFixedDelay(this::tick, 0, 1000 / maxUpdatesPerSecond,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void tick() {
+        try {
+            DeviceUpdate update = scan();
+            if (update == null) {
+                return;
+            }
+            synchronized (this) {
+                if (unconsumed != null) {
+                    update = unconsumed.mergedWith(update);
+                }
+                unconsumed = update;
+            }
+            postValue(update);
+            metrics.liveUpdates.increment();
+        } catch (RuntimeException e) {
+            // Keep the schedule alive; the next tick starts over from a full update
+            Log.e(TAG, "Error building live device update", e);
+            resync.set(true);
+        }
+    }
+
+    // Devices whose version moved since they were last posted; null when none did
+    private DeviceUpdate scan() {
+        DeviceStateTable current = table;
+        if (current == null) {
+            return null;
+        }
+        boolean full = resync.getAndSet(false) || current != scanned;
+        long modifications = current.getModificationCount();
+        if (!full && modifications == lastModifications) {
+            return null;
+        }
+        scanned = current;
+        lastModifications = modifications;
+
+        int count = current.size();
+        if (full || count > postedVersions.length) {
+            int from = full ? 0 : postedVersions.length;
+            postedVersions = Arrays.copyOf(postedVersions, Math.max(count, postedVersions.length * 2));
+            Arrays.fill(postedVersions, from, postedVersions.length, -1);
+        }
+        List<DeviceData> changed = new ArrayList<>();
+        for (int slot = 0; slot < count; slot++) {
+            // Version first: a change racing the copy is picked up again next tick
+            long version = current.getVersion(slot);
+            if (version != postedVersions[slot]) {
+                postedVersions[slot] = version;
+                changed.add(current.snapshot(slot));
+            }
+        }
+        if (changed.isEmpty() && !full) {
+            return null;
+        }
+        return new DeviceUpdate(full, changed);
+    }
+}
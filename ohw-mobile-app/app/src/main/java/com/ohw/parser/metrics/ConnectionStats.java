@@ -0,0 +1,24 @@
+package com.ohw.parser.metrics;
+
+public interface ConnectionStats {
+
+    String getRemoteAddress();
+
+    // Protocol bound to the port the device connected to
+    String getProtocol();
+
+    // Numeric IMEI, or -1 while the connection is unidentified
+    long getImei();
+
+    long getConnectedAtMillis();
+
+    long getBytesReceived();
+
+    long getFramesReceived();
+
+    long getFramesRejected();
+
+    long getCrcFailures();
+
+    long getAcksWritten();
+}
@@ -0,0 +1,8 @@
+package com.ohw.parser.metrics;
+
+import java.util.List;
+
+public interface ConnectionStatsSource {
+
+    List<ConnectionStats> getConnectionStats();
+}
@@ -0,0 +1,54 @@
+package com.ohw.parser.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Per-device traffic counters indexed by state-table slot, stored interleaved in
+// fixed-size atomic segments so growth never moves existing counters.
+public class DeviceCounters {
+
+    public static final int BYTES = 0;
+    public static final int FRAMES = 1;
+    public static final int REJECTED = 2;
+    public static final int SHED = 3;
+    private static final int FIELDS = 4;
+
+    private static final int SEGMENT_SHIFT = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private volatile AtomicLongArray[] segments = new AtomicLongArray[0];
+
+    public void add(int slot, int field, long delta) {
+        segmentFor(slot).addAndGet((slot & SEGMENT_MASK) * FIELDS + field, delta);
+    }
+
+    public long get(int slot, int field) {
+        AtomicLongArray[] current = segments;
+        int index = slot >>> SEGMENT_SHIFT;
+        if (index >= current.length) {
+            return 0;
+        }
+        return current[index].get((slot & SEGMENT_MASK) * FIELDS + field);
+    }
+
+    private AtomicLongArray segmentFor(int slot) {
+        int index = slot >>> SEGMENT_SHIFT;
+        AtomicLongArray[] current = segments;
+        if (index < current.length) {
+            return current[index];
+        }
+        synchronized (this) {
+            current = segments;
+            if (index >= current.length) {
+                AtomicLongArray[] grown = new AtomicLongArray[index + 1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                for (int i = current.length; i < grown.length; i++) {
+                    grown[i] = new AtomicLongArray(SEGMENT_SIZE * FIELDS);
+                }
+                segments = grown;
+                current = grown;
+            }
+            return current[index];
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.ohw.parser.metrics;
+
+// Process-wide metrics for the ingestion path. The parser and the services share
+// one instance so hot-path code records without any lookup by name.
+public final class GatewayMetrics {
+
+    private static final GatewayMetrics INSTANCE = new GatewayMetrics();
+
+    public final MetricsRegistry registry = new MetricsRegistry();
+
+    public final Counter connectionsAccepted = registry.counter(
+            "ohw_connections_accepted_total", "Device TCP connections accepted");
+    public final Counter bytesReceived = registry.counter(
+            "ohw_bytes_received_total", "Bytes read from device sockets");
+    public final Counter framesReceived = registry.counter(
+            "ohw_frames_received_total", "Frames handed to the parser");
+    public final Counter framesParsed = registry.counter(
+            "ohw_frames_parsed_total", "Frames decoded into records");
+    public final Counter archiveRecords = registry.counter(
+            "ohw_archive_records_total", "Records split out of multi-record archive frames");
+    public final Counter acceptsPaced = registry.counter(
+            "ohw_accepts_paced_total", "Device accepts delayed to hold the accept rate");
+    public final Counter connectionsRefusedLimit = registry.counter(
+            "ohw_connections_refused_limit_total", "Device connections closed at the connection limit");
+    public final Counter connectionsRefusedRate = registry.counter(
+            "ohw_connections_refused_rate_total", "Device connections closed over their address's connect rate");
+    public final Counter connectionsRefusedOverload = registry.counter(
+            "ohw_connections_refused_overload_total", "Device connections closed while the ingest shards were backed up");
+    public final Counter framesShedRate = registry.counter(
+            "ohw_frames_shed_rate_total", "Frames left unconfirmed over their device's frame rate");
+    public final Counter framesShedArchive = registry.counter(
+            "ohw_frames_shed_archive_total", "Archive frames left unconfirmed under load");
+    public final Counter framesShedLive = registry.counter(
+            "ohw_frames_shed_live_total", "Live frames left unconfirmed under load");
+    public final Counter crcFailures = registry.counter(
+            "ohw_crc_failures_total", "Frames rejected because of a checksum mismatch");
+    public final Counter parseFailures = registry.counter(
+            "ohw_parse_failures_total", "Frames that could not be decoded");
+    public final Counter acksWritten = registry.counter(
+            "ohw_acks_written_total", "Confirmation packets written to devices");
+    public final Counter ackWrites = registry.counter(
+            "ohw_ack_writes_total", "Socket writes carrying one or more confirmations");
+    public final Counter bytesSkipped = registry.counter(
+            "ohw_bytes_skipped_total", "Stream bytes discarded while looking for a frame header");
+    public final Counter commandsQueued = registry.counter(
+            "ohw_commands_queued_total", "Commands queued for connected devices");
+    public final Counter commandsWritten = registry.counter(
+            "ohw_commands_written_total", "Command packets written to device sockets");
+    public final Counter commandsCoalesced = registry.counter(
+            "ohw_commands_coalesced_total", "Command packets written together with acks");
+    public final Counter commandReplies = registry.counter(
+            "ohw_command_replies_total", "Device replies matched to a pending command");
+    public final Counter commandsExpired = registry.counter(
+            "ohw_commands_expired_total", "Commands that got no reply before the timeout");
+    public final Counter alertsRaised = registry.counter(
+            "ohw_alerts_raised_total", "Alert rules that started firing for a device");
+    public final Counter alertsResolved = registry.counter(
+            "ohw_alerts_resolved_total", "Alerts that cleared");
+    public final Counter alertsChanged = registry.counter(
+            "ohw_alerts_changed_total", "Bit changes reported by \"changed\" alert rules");
+    public final Counter geofenceEnters = registry.counter(
+            "ohw_geofence_enters_total", "Devices that moved into a geofence");
+    public final Counter geofenceExits = registry.counter(
+            "ohw_geofence_exits_total", "Devices that left a geofence");
+    public final Counter geofenceTests = registry.counter(
+            "ohw_geofence_tests_total", "Geofences a position was tested against");
+    public final Counter tripsCompleted = registry.counter(
+            "ohw_trips_completed_total", "Trips detected and stored");
+    public final Counter stopsCompleted = registry.counter(
+            "ohw_stops_completed_total", "Stops between trips detected and stored");
+    public final Counter tripFixesSkipped = registry.counter(
+            "ohw_trip_fixes_skipped_total", "Positions older than the device's last one, left out of trips");
+    public final Counter tripJumpsDiscarded = registry.counter(
+            "ohw_trip_jumps_discarded_total", "Position jumps too fast to be real, left off the odometer");
+    public final Counter recordsFiltered = registry.counter(
+            "ohw_records_filtered_total", "Records kept out of broadcasts and track storage as unchanged");
+    public final Counter recordsSnapped = registry.counter(
+            "ohw_records_snapped_total", "Standing positions snapped back to the device's last position");
+    public final Counter peerSyncSessions = registry.counter(
+            "ohw_peer_sync_sessions_total", "Peer sync sessions run against or served to other gateways");
+    public final Counter peerSyncBytes = registry.counter(
+            "ohw_peer_sync_bytes_total", "Bytes exchanged with peer gateways during sync");
+    public final Counter peerSyncPointsReceived = registry.counter(
+            "ohw_peer_sync_points_received_total", "Track points received from peer gateways");
+    public final Counter peerSyncPointsSent = registry.counter(
+            "ohw_peer_sync_points_sent_total", "Track points sent to peer gateways");
+    public final Counter trackCacheHits = registry.counter(
+            "ohw_track_cache_hits_total", "Track accesses served from memory");
+    public final Counter trackCacheMisses = registry.counter(
+            "ohw_track_cache_misses_total", "Track accesses that loaded, created or bypassed to the spill file");
+    public final Counter trackEvictions = registry.counter(
+            "ohw_track_evictions_total", "Tracks written out to make room under the memory budget");
+    public final Counter relayRecordsQueued = registry.counter(
+            "ohw_relay_records_queued_total", "Records staged for the uplink relay");
+    public final Counter relayRecordsDelivered = registry.counter(
+            "ohw_relay_records_delivered_total", "Relayed records acknowledged by the central server");
+    public final Counter relayRecordsDropped = registry.counter(
+            "ohw_relay_records_dropped_total", "Relay records lost to a full buffer, the queue size limit or a rejected batch");
+    public final Counter relayBatchesSent = registry.counter(
+            "ohw_relay_batches_sent_total", "Uplink batches answered by the central server");
+    public final Counter relayBatchFailures = registry.counter(
+            "ohw_relay_batch_failures_total", "Uplink batch attempts that failed and will be retried");
+    public final Counter relayBytesSent = registry.counter(
+            "ohw_relay_bytes_sent_total", "Compressed bytes of delivered uplink batches");
+    public final Counter broadcasts = registry.counter(
+            "ohw_broadcasts_total", "Records fanned out to WebSocket clients");
+    public final Counter broadcastsDropped = registry.counter(
+            "ohw_broadcasts_dropped_total", "Device records not broadcast because the fan-out queue was full");
+    public final Counter liveUpdates = registry.counter(
+            "ohw_live_updates_total", "Throttled device updates posted to the app screens");
+
+    public final LatencyHistogram frameAssembly = registry.histogram(
+            "ohw_frame_assembly_seconds", "Time from socket read to a complete frame");
+    public final LatencyHistogram parse = registry.histogram(
+            "ohw_parse_seconds", "Time to decode one frame");
+    public final LatencyHistogram archiveDecode = registry.histogram(
+            "ohw_archive_decode_seconds", "Time to decode every record of a large archive frame in parallel");
+    public final LatencyHistogram ackWrite = registry.histogram(
+            "ohw_ack_write_seconds", "Time to write and flush one batch of confirmations");
+    public final LatencyHistogram broadcast = registry.histogram(
+            "ohw_broadcast_seconds", "Time to fan out one record to WebSocket clients");
+    public final LatencyHistogram commandRoundTrip = registry.histogram(
+            "ohw_command_round_trip_seconds", "Time from queuing a command to the device's reply");
+    public final LatencyHistogram alertEvaluation = registry.histogram(
+            "ohw_alert_evaluation_seconds", "Time to evaluate the alert rules for one record");
+    public final LatencyHistogram geofenceEvaluation = registry.histogram(
+            "ohw_geofence_evaluation_seconds", "Time to match one position against the geofences");
+    public final LatencyHistogram relayBatch = registry.histogram(
+            "ohw_relay_batch_seconds", "Time to deliver one uplink batch");
+    public final LatencyHistogram queueWait = registry.histogram(
+            "ohw_queue_wait_seconds", "Time a record waits in its shard queue");
+
+    public static GatewayMetrics get() {
+        return INSTANCE;
+    }
+
+    private GatewayMetrics() {
+    }
+}
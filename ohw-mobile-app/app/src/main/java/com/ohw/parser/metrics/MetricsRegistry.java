@@ -0,0 +1,104 @@
+package com.ohw.parser.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Holds named metrics and renders them in the Prometheus text exposition format
+public class MetricsRegistry {
+
+    public interface LongGauge {
+        long get();
+    }
+
+    private static final class GaugeFamily {
+        final String help;
+        final List<String> labels = new ArrayList<>();
+        final List<LongGauge> gauges = new ArrayList<>();
+
+        GaugeFamily(String help) {
+            this.help = help;
+        }
+    }
+
+    private final List<Counter> counters = new ArrayList<>();
+    private final List<LatencyHistogram> histograms = new ArrayList<>();
+    private final Map<String, GaugeFamily> gauges = new LinkedHashMap<>();
+
+    public synchronized Counter counter(String name, String help) {
+        Counter counter = new Counter(name, help);
+        counters.add(counter);
+        return counter;
+    }
+
+    public synchronized LatencyHistogram histogram(String name, String help) {
+        LatencyHistogram histogram = new LatencyHistogram(name, help);
+        histograms.add(histogram);
+        return histogram;
+    }
+
+    // labels is either empty or a Prometheus label set such as shard="0".
+    // Registering the same name and labels again replaces the previous supplier.
+    public synchronized void gauge(String name, String help, String labels, LongGauge gauge) {
+        GaugeFamily family = gauges.get(name);
+        if (family == null) {
+            family = new GaugeFamily(help);
+            gauges.put(name, family);
+        }
+        int existing = family.labels.indexOf(labels);
+        if (existing >= 0) {
+            family.gauges.set(existing, gauge);
+        } else {
+            family.labels.add(labels);
+            family.gauges.add(gauge);
+        }
+    }
+
+    public synchronized List<Counter> getCounters() {
+        return new ArrayList<>(counters);
+    }
+
+    public synchronized List<LatencyHistogram> getHistograms() {
+        return new ArrayList<>(histograms);
+    }
+
+    public synchronized Map<String, Long> sampleGauges() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, GaugeFamily> entry : gauges.entrySet()) {
+            GaugeFamily family = entry.getValue();
+            for (int i = 0; i < family.gauges.size(); i++) {
+                String labels = family.labels.get(i);
+                String key = labels.isEmpty() ? entry.getKey() : entry.getKey() + "{" + labels + "}";
+                values.put(key, family.gauges.get(i).get());
+            }
+        }
+        return values;
+    }
+
+    public synchronized String renderPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Counter counter : counters) {
+            out.append("# HELP ").append(counter.getName()).append(' ').append(counter.getHelp()).append('\n');
+            out.append("# TYPE ").append(counter.getName()).append(" counter\n");
+            out.append(counter.getName()).append(' ').append(counter.get()).append('\n');
+        }
+        for (Map.Entry<String, GaugeFamily> entry : gauges.entrySet()) {
+            GaugeFamily family = entry.getValue();
+            out.append("# HELP ").append(entry.getKey()).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(entry.getKey()).append(" gauge\n");
+            for (int i = 0; i < family.gauges.size(); i++) {
+                out.append(entry.getKey());
+                String labels = family.labels.get(i);
+                if (!labels.isEmpty()) {
+                    out.append('{').append(labels).append('}');
+                }
+                out.append(' ').append(family.gauges.get(i).get()).append('\n');
+            }
+        }
+        for (LatencyHistogram histogram : histograms) {
+            histogram.writePrometheus(out);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package com.ohw.parser.metrics;
+
+import com.google.gson.stream.JsonWriter;
+import com.ohw.parser.parsers.ImeiCodec;
+import com.ohw.parser.state.DeviceStateTable;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+// JSON view of the gateway metrics shared by the WebSocket stats message and HTTP
+public final class StatsReport {
+
+    private StatsReport() {
+    }
+
+    public static void writeSummary(JsonWriter writer, GatewayMetrics metrics) throws IOException {
+        writer.name("counters").beginObject();
+        for (Counter counter : metrics.registry.getCounters()) {
+            writer.name(counter.getName()).value(counter.get());
+        }
+        writer.endObject();
+
+        writer.name("gauges").beginObject();
+        for (Map.Entry<String, Long> gauge : metrics.registry.sampleGauges().entrySet()) {
+            writer.name(gauge.getKey()).value(gauge.getValue());
+        }
+        writer.endObject();
+
+        writer.name("latency").beginObject();
+        for (LatencyHistogram histogram : metrics.registry.getHistograms()) {
+            writer.name(histogram.getName()).beginObject();
+            writer.name("count").value(histogram.getCount());
+            writer.name("p50Nanos").value(histogram.getQuantileNanos(0.50));
+            writer.name("p99Nanos").value(histogram.getQuantileNanos(0.99));
+            writer.name("maxNanos").value(histogram.getMaxNanos());
+            writer.endObject();
+        }
+        writer.endObject();
+    }
+
+    public static void writeConnections(JsonWriter writer, List<? extends ConnectionStats> connections)
+            throws IOException {
+        writer.name("connections").beginArray();
+        for (ConnectionStats connection : connections) {
+            writer.beginObject();
+            writer.name("address").value(connection.getRemoteAddress());
+            writer.name("protocol").value(connection.getProtocol());
+            if (connection.getImei() >= 0) {
+                writer.name("imei").value(ImeiCodec.format(connection.getImei()));
+            }
+            writer.name("connectedAt").value(connection.getConnectedAtMillis());
+            writer.name("bytes").value(connection.getBytesReceived());
+            writer.name("frames").value(connection.getFramesReceived());
+            writer.name("rejected").value(connection.getFramesRejected());
+            writer.name("crcFailures").value(connection.getCrcFailures());
+            writer.name("acks").value(connection.getAcksWritten());
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    // Breakdown for one device when slot >= 0, otherwise for the first limit devices
+    public static void writeDevices(JsonWriter writer, DeviceStateTable table, DeviceCounters counters,
+                                    int slot, int limit) throws IOException {
+        writer.name("devices").beginArray();
+        if (slot >= 0) {
+            writeDevice(writer, table, counters, slot);
+        } else {
+            int count = Math.min(limit, table.size());
+            for (int i = 0; i < count; i++) {
+                writeDevice(writer, table, counters, i);
+            }
+        }
+        writer.endArray();
+    }
+
+    private static void writeDevice(JsonWriter writer, DeviceStateTable table, DeviceCounters counters,
+                                    int slot) throws IOException {
+        writer.beginObject();
+        writer.name("imei").value(ImeiCodec.format(table.getImei(slot)));
+        writer.name("bytes").value(counters.get(slot, DeviceCounters.BYTES));
+        writer.name("frames").value(counters.get(slot, DeviceCounters.FRAMES));
+        writer.name("rejected").value(counters.get(slot, DeviceCounters.REJECTED));
+        writer.name("shed").value(counters.get(slot, DeviceCounters.SHED));
+        writer.endObject();
+    }
+}
@@ -11,12 +11,14 @@ public class DeviceData {
     private LocalDateTime lastSeen;
     private int totalRecords;
     private boolean isOnline;
+    private boolean isStale;
     private double latitude;
     private double longitude;
     private double speed;
     private int satellites;
     private double batteryVoltage;
     private double supplyVoltage;
+    private int status;
 
     public DeviceData(String imei) {
         this.imei = imei;
@@ -25,6 +27,22 @@ public class DeviceData {
         this.isOnline = false;
     }
 
+    public DeviceData(DeviceData other) {
+        this.imei = other.imei;
+        this.clientAddress = other.clientAddress;
+        this.lastSeen = other.lastSeen;
+        this.totalRecords = other.totalRecords;
+        this.isOnline = other.isOnline;
+        this.isStale = other.isStale;
+        this.latitude = other.latitude;
+        this.longitude = other.longitude;
+        this.speed = other.speed;
+        this.satellites = other.satellites;
+        this.batteryVoltage = other.batteryVoltage;
+        this.supplyVoltage = other.supplyVoltage;
+        this.status = other.status;
+    }
+
     // Getters and Setters
     public String getImei() {
         return imei;
@@ -66,6 +84,14 @@ public class DeviceData {
         isOnline = online;
     }
 
+    public boolean isStale() {
+        return isStale;
+    }
+
+    public void setStale(boolean stale) {
+        isStale = stale;
+    }
+
     public double getLatitude() {
         return latitude;
     }
@@ -114,7 +140,25 @@ public class DeviceData {
         this.supplyVoltage = supplyVoltage;
     }
 
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
     // Utility methods
+    public void setLastSeenEpochMillis(long epochMillis) {
+        if (epochMillis <= 0) {
+            this.lastSeen = null;
+        } else {
+            Instant instant = Instant.ofEpochMilli(epochMillis);
+            this.lastSeen = LocalDateTime.ofEpochSecond(instant.getEpochSecond(), instant.getNano(),
+                    ZoneId.systemDefault().getRules().getOffset(instant));
+        }
+    }
+
     public void updateLastSeen() {
         this.lastSeen = LocalDateTime.now();
     }
@@ -136,7 +180,9 @@ public class DeviceData {
     }
 
     public String getStatusText() {
-        if (isOnline) {
+        if (isOnline && isStale) {
+            return "Stale";
+        } else if (isOnline) {
             return "Online";
         } else {
             return "Offline";
@@ -158,12 +204,14 @@ public class DeviceData {
                 ", lastSeen=" + lastSeen +
                 ", totalRecords=" + totalRecords +
                 ", isOnline=" + isOnline +
+                ", isStale=" + isStale +
                 ", latitude=" + latitude +
                 ", longitude=" + longitude +
                 ", speed=" + speed +
                 ", satellites=" + satellites +
                 ", batteryVoltage=" + batteryVoltage +
                 ", supplyVoltage=" + supplyVoltage +
+                ", status=" + status +
                 '}';
     }
 }
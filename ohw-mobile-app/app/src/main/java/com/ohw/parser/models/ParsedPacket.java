@@ -1,11 +1,15 @@
 package com.ohw.parser.models;
 
+import com.ohw.parser.parsers.ImeiCodec;
+
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.Map;
 
 public class ParsedPacket {
     private String imei;
+    // Numeric IMEI used on the ingestion path; the string form is only built on demand
+    private transient long imeiValue = -1L;
     private LocalDateTime timestamp;
     private double latitude;
     private double longitude;
@@ -16,9 +20,14 @@ public class ParsedPacket {
     private double batteryVoltage;
     private double supplyVoltage;
     private int status;
+    // Status is a bit set where 0 is meaningful, so its presence is tracked separately
+    private transient boolean statusPresent;
     private Map<String, Object> additionalData;
     private String packetType;
     private int recordCount;
+    // Command number (tag 0xE0) and text (tag 0xE1) when the frame answers a command
+    private Long commandNumber;
+    private String commandText;
 
     public ParsedPacket() {
         this.additionalData = new HashMap<>();
@@ -27,11 +36,28 @@ public class ParsedPacket {
 
     // Getters and Setters
     public String getImei() {
+        if (imei == null && imeiValue >= 0) {
+            imei = ImeiCodec.format(imeiValue);
+        }
         return imei;
     }
 
     public void setImei(String imei) {
         this.imei = imei;
+        this.imeiValue = ImeiCodec.parse(imei);
+    }
+
+    public long getImeiValue() {
+        return imeiValue;
+    }
+
+    public void setImeiValue(long imeiValue) {
+        this.imeiValue = imeiValue;
+        this.imei = null;
+    }
+
+    public boolean hasImei() {
+        return imeiValue >= 0 || imei != null;
     }
 
     public LocalDateTime getTimestamp() {
@@ -112,6 +138,11 @@ public class ParsedPacket {
 
     public void setStatus(int status) {
         this.status = status;
+        this.statusPresent = true;
+    }
+
+    public boolean hasStatus() {
+        return statusPresent;
     }
 
     public Map<String, Object> getAdditionalData() {
@@ -138,6 +169,26 @@ public class ParsedPacket {
         this.recordCount = recordCount;
     }
 
+    public Long getCommandNumber() {
+        return commandNumber;
+    }
+
+    public void setCommandNumber(Long commandNumber) {
+        this.commandNumber = commandNumber;
+    }
+
+    public String getCommandText() {
+        return commandText;
+    }
+
+    public void setCommandText(String commandText) {
+        this.commandText = commandText;
+    }
+
+    public boolean isCommandReply() {
+        return commandNumber != null;
+    }
+
     // Utility methods
     public void addAdditionalData(String key, Object value) {
         this.additionalData.put(key, value);
@@ -179,7 +230,7 @@ public class ParsedPacket {
     @Override
     public String toString() {
         return "ParsedPacket{" +
-                "imei='" + imei + '\'' +
+                "imei='" + getImei() + '\'' +
                 ", timestamp=" + timestamp +
                 ", latitude=" + latitude +
                 ", longitude=" + longitude +
@@ -192,6 +243,8 @@ public class ParsedPacket {
                 ", status=" + status +
                 ", packetType='" + packetType + '\'' +
                 ", recordCount=" + recordCount +
+                ", commandNumber=" + commandNumber +
+                ", commandText='" + commandText + '\'' +
                 ", additionalData=" + additionalData +
                 '}';
     }
@@ -0,0 +1,29 @@
+package com.ohw.parser.parsers;
+
+// CRC-16/MODBUS (poly 0xA001 reflected, init 0xFFFF) as used by Galileosky frames,
+// computed a byte at a time from a lookup table.
+public final class Crc16 {
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x0001) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private Crc16() {
+    }
+
+    public static int compute(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+}
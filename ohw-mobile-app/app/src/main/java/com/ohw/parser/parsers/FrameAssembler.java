@@ -0,0 +1,171 @@
+package com.ohw.parser.parsers;
+
+// Splits a device byte stream into Galileosky frames:
+//   header (1) | length (2, LE, bit 15 = unsent data flag) | body | CRC16 (2, LE)
+// Bytes are appended as they are read; next() then yields each complete frame
+// with its checksum verified. A frame may span several reads and one read may
+// carry several frames. Unknown header bytes are skipped one at a time to
+// resynchronise. A frame with a bad checksum is reported, but only its header
+// byte is consumed: its length may be junk, so the search for the next frame
+// starts one byte on rather than past the bytes that length claims. Header-like
+// bytes inside the corrupt frame fail too; until a good frame turns up they are
+// skipped like any other byte, so one corrupt frame is reported once, and a
+// good frame after them is not held up by one of their junk lengths.
+public class FrameAssembler implements FrameReader {
+
+    public static final int HEADER_BYTES = 3;
+    public static final int CRC_BYTES = 2;
+    public static final int MAX_FRAME_BYTES = HEADER_BYTES + 0x7FFF + CRC_BYTES;
+
+    private static final byte HEADER_DATA = 0x01;
+    private static final byte HEADER_IGNORABLE = 0x15;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int start;
+    private int end;
+
+    private int frameOffset;
+    private int frameLength;
+    private int frameCrc;
+    private boolean frameValid;
+    private boolean resyncing;
+
+    private long skippedBytes;
+
+    @Override
+    public void append(byte[] data, int offset, int length) {
+        reserve(length);
+        System.arraycopy(data, offset, buffer, end, length);
+        end += length;
+    }
+
+    private void reserve(int length) {
+        if (end + length > buffer.length) {
+            int pending = end - start;
+            if (pending + length > buffer.length) {
+                byte[] grown = new byte[Math.max(buffer.length * 2, pending + length)];
+                System.arraycopy(buffer, start, grown, 0, pending);
+                buffer = grown;
+            } else {
+                System.arraycopy(buffer, start, buffer, 0, pending);
+            }
+            start = 0;
+            end = pending;
+        }
+    }
+
+    // Advances to the next complete frame. The first frame of a resync run that
+    // fails the checksum is also returned (with isFrameValid() false) so callers
+    // can count it.
+    @Override
+    public boolean next() {
+        while (end - start >= HEADER_BYTES) {
+            byte header = buffer[start];
+            if (header != HEADER_DATA && header != HEADER_IGNORABLE) {
+                start++;
+                skippedBytes++;
+                continue;
+            }
+            int bodyLength = ((buffer[start + 1] & 0xFF) | (buffer[start + 2] & 0xFF) << 8) & 0x7FFF;
+            int total = HEADER_BYTES + bodyLength + CRC_BYTES;
+            if (end - start < total) {
+                if (resyncing && skipToNextValidFrame()) {
+                    continue;
+                }
+                break;
+            }
+
+            int crcOffset = start + HEADER_BYTES + bodyLength;
+            frameOffset = start;
+            frameLength = total;
+            frameCrc = (buffer[crcOffset] & 0xFF) | (buffer[crcOffset + 1] & 0xFF) << 8;
+            frameValid = Crc16.compute(buffer, start, HEADER_BYTES + bodyLength) == frameCrc;
+            if (frameValid) {
+                start += total;
+                resyncing = false;
+            } else {
+                // A bad checksum may mean a junk length, so resume one byte on
+                start++;
+                if (resyncing) {
+                    skippedBytes++;
+                    continue;
+                }
+                resyncing = true;
+            }
+            if (start == end) {
+                start = 0;
+                end = 0;
+            }
+            return true;
+        }
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        return false;
+    }
+
+    // While resyncing, a header-like byte with a junk length would otherwise hold
+    // up every frame behind it until that many bytes arrived; a complete frame
+    // further on that passes the checksum is taken as the way back in
+    private boolean skipToNextValidFrame() {
+        for (int position = start + 1; end - position >= HEADER_BYTES; position++) {
+            byte header = buffer[position];
+            if (header != HEADER_DATA && header != HEADER_IGNORABLE) {
+                continue;
+            }
+            int bodyLength = ((buffer[position + 1] & 0xFF) | (buffer[position + 2] & 0xFF) << 8) & 0x7FFF;
+            int crcOffset = position + HEADER_BYTES + bodyLength;
+            if (crcOffset + CRC_BYTES > end) {
+                continue;
+            }
+            int crc = (buffer[crcOffset] & 0xFF) | (buffer[crcOffset + 1] & 0xFF) << 8;
+            if (Crc16.compute(buffer, position, HEADER_BYTES + bodyLength) == crc) {
+                skippedBytes += position - start;
+                start = position;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Current frame, valid until the next call to append()
+    @Override
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public int getFrameOffset() {
+        return frameOffset;
+    }
+
+    @Override
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    @Override
+    public byte[] copyFrame() {
+        byte[] frame = new byte[frameLength];
+        System.arraycopy(buffer, frameOffset, frame, 0, frameLength);
+        return frame;
+    }
+
+    @Override
+    public boolean isFrameValid() {
+        return frameValid;
+    }
+
+    // Checksum as sent by the device; the confirmation echoes it back
+    @Override
+    public int getFrameCheck() {
+        return frameCrc;
+    }
+
+    @Override
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+}
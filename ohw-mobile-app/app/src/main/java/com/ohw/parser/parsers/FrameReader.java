@@ -0,0 +1,31 @@
+package com.ohw.parser.parsers;
+
+// Cuts one connection's byte stream into protocol frames. Bytes are appended as
+// they are read; next() then yields each complete frame in turn. A reader holds
+// the connection's partial frame, so there is one per connection, used only by
+// the thread reading from it.
+public interface FrameReader {
+
+    void append(byte[] data, int offset, int length);
+
+    // Advances to the next complete frame. Frames failing the protocol's integrity
+    // check are also returned (with isFrameValid() false) so callers can count them.
+    boolean next();
+
+    // Current frame, valid until the next call to append()
+    byte[] getBuffer();
+
+    int getFrameOffset();
+
+    int getFrameLength();
+
+    byte[] copyFrame();
+
+    boolean isFrameValid();
+
+    // Check value carried by the current frame (its checksum), for the journal and acks
+    int getFrameCheck();
+
+    // Bytes dropped while looking for a frame start
+    long getSkippedBytes();
+}
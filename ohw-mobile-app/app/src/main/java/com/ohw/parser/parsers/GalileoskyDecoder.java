@@ -0,0 +1,50 @@
+package com.ohw.parser.parsers;
+
+// Galileosky binding of the decoder SPI: FrameAssembler cuts and verifies the
+// frames, GalileoskyParser indexes them into lazy GalileoskyRecords, and each
+// intact frame is confirmed with 0x02 followed by its CRC16 exactly as it
+// appeared on the wire.
+public class GalileoskyDecoder implements ProtocolDecoder {
+
+    public static final String NAME = "galileosky";
+    public static final int DEFAULT_PORT = 3000;
+
+    private static final byte ACK_HEADER = 0x02;
+    private static final int ACK_BYTES = 3;
+
+    private final GalileoskyParser parser = new GalileoskyParser();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public FrameReader newFrameReader() {
+        return new FrameAssembler();
+    }
+
+    @Override
+    public RecordView decode(FrameReader frame) {
+        return parser.index(frame.copyFrame());
+    }
+
+    @Override
+    public int getMaxAckBytes() {
+        return ACK_BYTES;
+    }
+
+    @Override
+    public int writeAck(FrameReader frame, byte[] out, int offset) {
+        int crc = frame.getFrameCheck();
+        out[offset] = ACK_HEADER;
+        out[offset + 1] = (byte) crc;
+        out[offset + 2] = (byte) (crc >>> 8);
+        return ACK_BYTES;
+    }
+
+    @Override
+    public boolean supportsCommands() {
+        return true;
+    }
+}
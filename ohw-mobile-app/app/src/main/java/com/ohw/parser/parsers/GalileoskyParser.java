@@ -1,11 +1,13 @@
 package com.ohw.parser.parsers;
 
-import android.util.Log;
-
+import com.ohw.parser.journal.EventJournal;
+import com.ohw.parser.journal.EventType;
+import com.ohw.parser.metrics.GatewayMetrics;
 import com.ohw.parser.models.ParsedPacket;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.HashMap;
@@ -13,123 +15,150 @@ import java.util.Map;
 
 public class GalileoskyParser {
     
-    private static final String TAG = "GalileoskyParser";
-    
     // Packet types
     private static final byte PACKET_TYPE_DATA = 0x01;
-    private static final byte PACKET_TYPE_CONFIRMATION = 0x02;
     private static final byte PACKET_TYPE_IGNORABLE = 0x15;
     
     // Tag types
-    private static final byte TAG_IMEI = 0x03;
-    private static final byte TAG_DEVICE_NUMBER = 0x04;
-    private static final byte TAG_COMMAND_NUMBER = (byte) 0xE0;
-    private static final byte TAG_COMMAND_TEXT = (byte) 0xE1;
-    private static final byte TAG_ARCHIVE_RECORDS = 0x10;
-    private static final byte TAG_DATETIME = 0x20;
-    private static final byte TAG_MILLISECONDS = 0x21;
-    private static final byte TAG_COORDINATES = 0x30;
-    private static final byte TAG_SPEED_DIRECTION = 0x33;
-    private static final byte TAG_HEIGHT = 0x34;
-    private static final byte TAG_HDOP = 0x35;
-    private static final byte TAG_STATUS = 0x40;
-    private static final byte TAG_SUPPLY_VOLTAGE = 0x41;
-    private static final byte TAG_BATTERY_VOLTAGE = 0x42;
-    private static final byte TAG_INPUTS = 0x46;
-    private static final byte TAG_INPUT_VOLTAGE_0 = 0x50;
-    private static final byte TAG_INPUT_VOLTAGE_1 = 0x51;
-    private static final byte TAG_USER_DATA_0 = (byte) 0xE2;
-    private static final byte TAG_USER_DATA_1 = (byte) 0xE3;
-    private static final byte TAG_USER_DATA_2 = (byte) 0xE4;
-    private static final byte TAG_USER_DATA_3 = (byte) 0xE5;
-    private static final byte TAG_USER_DATA_4 = (byte) 0xE6;
-    private static final byte TAG_MODBUS_0 = 0x0001;
-
-    public ParsedPacket parsePacket(byte[] data) {
-        try {
-            if (data == null || data.length < 3) {
-                Log.w(TAG, "Packet too short: " + (data != null ? data.length : 0) + " bytes");
-                return null;
-            }
-
-            byte header = data[0];
-            Log.d(TAG, "Processing packet with header: 0x" + String.format("%02X", header));
-
-            // Handle different packet types
-            if (header == PACKET_TYPE_DATA) {
-                return parseDataPacket(data);
-            } else if (header == PACKET_TYPE_IGNORABLE) {
-                Log.d(TAG, "Ignorable packet (0x15) - sending confirmation only");
-                return null; // No data to parse, just send confirmation
-            } else {
-                Log.w(TAG, "Unknown packet type: 0x" + String.format("%02X", header));
-                return null;
-            }
-
-        } catch (Exception e) {
-            Log.e(TAG, "Error parsing packet", e);
+    static final byte TAG_IMEI = 0x03;
+    static final byte TAG_DEVICE_NUMBER = 0x04;
+    static final byte TAG_COMMAND_NUMBER = (byte) 0xE0;
+    static final byte TAG_COMMAND_TEXT = (byte) 0xE1;
+    static final byte TAG_ARCHIVE_RECORDS = 0x10;
+    static final byte TAG_DATETIME = 0x20;
+    static final byte TAG_MILLISECONDS = 0x21;
+    static final byte TAG_COORDINATES = 0x30;
+    static final byte TAG_SPEED_DIRECTION = 0x33;
+    static final byte TAG_HEIGHT = 0x34;
+    static final byte TAG_HDOP = 0x35;
+    static final byte TAG_STATUS = 0x40;
+    static final byte TAG_SUPPLY_VOLTAGE = 0x41;
+    static final byte TAG_BATTERY_VOLTAGE = 0x42;
+    static final byte TAG_INPUTS = 0x46;
+    static final byte TAG_INPUT_VOLTAGE_0 = 0x50;
+    static final byte TAG_INPUT_VOLTAGE_1 = 0x51;
+    static final byte TAG_USER_DATA_0 = (byte) 0xE2;
+    static final byte TAG_USER_DATA_1 = (byte) 0xE3;
+    static final byte TAG_USER_DATA_2 = (byte) 0xE4;
+    static final byte TAG_USER_DATA_3 = (byte) 0xE5;
+    static final byte TAG_USER_DATA_4 = (byte) 0xE6;
+
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+    private final EventJournal journal = EventJournal.get();
+
+    // First pass of lazy decoding for frames cut and checksum-verified by
+    // FrameAssembler: checks the header and notes where each tag's value starts
+    // without decoding any. Null when the frame carries no record.
+    public GalileoskyRecord index(byte[] frame) {
+        if (frame.length < FrameAssembler.HEADER_BYTES) {
+            journal.emit(EventType.PACKET_TOO_SHORT, frame.length);
+            metrics.parseFailures.increment();
+            return null;
+        }
+        byte header = frame[0];
+        if (header == PACKET_TYPE_IGNORABLE) {
+            journal.emit(EventType.PACKET_IGNORABLE);
+            return null;
+        } else if (header != PACKET_TYPE_DATA) {
+            journal.emit(EventType.UNKNOWN_PACKET_TYPE, header & 0xFF);
+            metrics.parseFailures.increment();
             return null;
         }
-    }
 
-    private ParsedPacket parseDataPacket(byte[] data) {
-        try {
-            // Extract packet length (2 bytes, little endian)
-            int rawLength = ByteBuffer.wrap(data, 1, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
-            boolean hasUnsentData = (rawLength & 0x8000) != 0;
-            int actualLength = rawLength & 0x7FFF;
-            
-            Log.d(TAG, "Packet validation - Header: 0x01, Length: " + actualLength + 
-                  ", HasUnsentData: " + hasUnsentData);
-
-            // Check if we have the complete packet
-            int expectedLength = actualLength + 3; // Header (1) + Length (2) + Data
-            if (data.length < expectedLength + 2) { // +2 for CRC
-                Log.w(TAG, "Incomplete packet: expected " + (expectedLength + 2) + 
-                      " bytes, got " + data.length + " bytes");
-                return null;
+        int length = ((frame[1] & 0xFF) | (frame[2] & 0xFF) << 8) & 0x7FFF;
+        GalileoskyRecord record = new GalileoskyRecord(this, frame, length);
+        int offset = FrameAssembler.HEADER_BYTES;
+        int end = FrameAssembler.HEADER_BYTES + length;
+        boolean inRecord = false;
+        boolean recordHasTime = false;
+        while (offset < end) {
+            byte tag = frame[offset++];
+            int valueLength = offset < frame.length ? valueLength(frame, offset, tag) : -1;
+            if (valueLength < 0 || offset + valueLength > frame.length) {
+                journal.emit(EventType.TAG_TRUNCATED, offset, frame.length);
+                break;
             }
-
-            // For small packets (< 32 bytes), skip CRC validation
-            if (actualLength < 32) {
-                Log.d(TAG, "Small packet detected (" + actualLength + " bytes) - skipping CRC validation");
-            } else {
-                // Verify checksum for larger packets
-                int calculatedChecksum = calculateCRC16(data, 0, expectedLength);
-                int receivedChecksum = ByteBuffer.wrap(data, expectedLength, 2)
-                    .order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
-                
-                Log.d(TAG, "CRC validation - Calculated: 0x" + 
-                      String.format("%04X", calculatedChecksum) + 
-                      ", Received: 0x" + String.format("%04X", receivedChecksum));
-                
-                if (calculatedChecksum != receivedChecksum) {
-                    Log.w(TAG, "Checksum mismatch for packet with length " + actualLength);
-                    return null;
-                }
+            // Archive records follow each other in one frame, each opened by its
+            // archive number or, without one, by its own timestamp
+            if (tag == TAG_ARCHIVE_RECORDS || (tag == TAG_DATETIME && (recordHasTime || !inRecord))) {
+                record.startRecord();
+                inRecord = true;
+                recordHasTime = false;
             }
+            if (tag == TAG_DATETIME) {
+                recordHasTime = true;
+            }
+            record.addTag(tag, offset);
+            offset += valueLength;
+        }
+        metrics.framesParsed.increment();
+        return record;
+    }
 
-            // Parse packet data
-            return parsePacketData(data, 3, actualLength);
+    // Full decode of a frame indexed above
+    ParsedPacket parseIndexed(byte[] frame, int length) {
+        return parsePacketData(frame, FrameAssembler.HEADER_BYTES, length);
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error parsing data packet", e);
-            return null;
+    // Size of the value following a tag, as parseTag() consumes it
+    private static int valueLength(byte[] data, int offset, byte tag) {
+        switch (tag) {
+            case TAG_IMEI:
+                return ImeiCodec.IMEI_LENGTH;
+            case TAG_COMMAND_TEXT:
+                return 1 + (data[offset] & 0xFF);
+            case TAG_COORDINATES:
+                return 8;
+            case TAG_COMMAND_NUMBER:
+            case TAG_DATETIME:
+            case TAG_SPEED_DIRECTION:
+            case TAG_USER_DATA_0:
+            case TAG_USER_DATA_1:
+            case TAG_USER_DATA_2:
+            case TAG_USER_DATA_3:
+            case TAG_USER_DATA_4:
+                return 4;
+            case TAG_DEVICE_NUMBER:
+            case TAG_ARCHIVE_RECORDS:
+            case TAG_MILLISECONDS:
+            case TAG_HEIGHT:
+            case TAG_STATUS:
+            case TAG_SUPPLY_VOLTAGE:
+            case TAG_BATTERY_VOLTAGE:
+            case TAG_INPUTS:
+            case TAG_INPUT_VOLTAGE_0:
+            case TAG_INPUT_VOLTAGE_1:
+                return 2;
+            case TAG_HDOP:
+            default:
+                return 1; // Unknown tags are skipped a byte at a time, as in parseTag()
         }
     }
 
     private ParsedPacket parsePacketData(byte[] data, int offset, int length) {
         ParsedPacket packet = new ParsedPacket();
         packet.setPacketType("0x01");
-        
-        int currentOffset = offset;
-        int endOffset = offset + length;
-        
-        Log.d(TAG, "Parsing packet data from offset " + offset + " to " + endOffset);
+        parseTags(data, offset, offset + length, packet);
+        journal.emit(EventType.PACKET_PARSED, packet.getImeiValue(), length);
+        return packet;
+    }
 
+    // One record of an archive frame: the frame's leading tags (IMEI, device
+    // number) and then the record's own
+    ParsedPacket parseRecord(byte[] frame, int headerEnd, int recordOffset, int recordEnd) {
+        ParsedPacket packet = new ParsedPacket();
+        packet.setPacketType("0x01");
+        parseTags(frame, FrameAssembler.HEADER_BYTES, headerEnd, packet);
+        parseTags(frame, recordOffset, recordEnd, packet);
+        journal.emit(EventType.PACKET_PARSED, packet.getImeiValue(), recordEnd - recordOffset);
+        return packet;
+    }
+
+    private void parseTags(byte[] data, int offset, int endOffset, ParsedPacket packet) {
+        int currentOffset = offset;
         while (currentOffset < endOffset) {
             if (currentOffset >= data.length) {
-                Log.w(TAG, "Offset " + currentOffset + " exceeds data length " + data.length);
+                journal.emit(EventType.TAG_TRUNCATED, currentOffset, data.length);
                 break;
             }
 
@@ -137,20 +166,18 @@ public class GalileoskyParser {
             currentOffset++;
 
             if (currentOffset >= data.length) {
-                Log.w(TAG, "No data after tag 0x" + String.format("%02X", tag));
+                journal.emit(EventType.TAG_TRUNCATED, currentOffset, data.length);
                 break;
             }
 
+            journal.emit(EventType.TAG_DECODED, tag & 0xFF, currentOffset);
             try {
                 currentOffset = parseTag(data, currentOffset, tag, packet);
             } catch (Exception e) {
-                Log.e(TAG, "Error parsing tag 0x" + String.format("%02X", tag), e);
+                journal.emitError(EventType.TAG_ERROR, tag & 0xFF, e);
                 break;
             }
         }
-
-        Log.d(TAG, "Packet parsed successfully");
-        return packet;
     }
 
     private int parseTag(byte[] data, int offset, byte tag, ParsedPacket packet) {
@@ -159,6 +186,10 @@ public class GalileoskyParser {
                 return parseImeiTag(data, offset, packet);
             case TAG_DEVICE_NUMBER:
                 return parseDeviceNumberTag(data, offset, packet);
+            case TAG_COMMAND_NUMBER:
+                return parseCommandNumberTag(data, offset, packet);
+            case TAG_COMMAND_TEXT:
+                return parseCommandTextTag(data, offset, packet);
             case TAG_ARCHIVE_RECORDS:
                 return parseArchiveRecordsTag(data, offset, packet);
             case TAG_DATETIME:
@@ -192,17 +223,22 @@ public class GalileoskyParser {
             case TAG_USER_DATA_4:
                 return parseUserDataTag(data, offset, tag, packet);
             default:
-                Log.w(TAG, "Unknown tag: 0x" + String.format("%02X", tag));
+                journal.emit(EventType.UNKNOWN_TAG, tag & 0xFF, offset);
                 return offset + 1; // Skip unknown tag
         }
     }
 
     private int parseImeiTag(byte[] data, int offset, ParsedPacket packet) {
-        if (offset + 15 <= data.length) {
-            String imei = new String(data, offset, 15).trim();
-            packet.setImei(imei);
-            Log.d(TAG, "Parsed IMEI: " + imei);
-            return offset + 15;
+        if (offset + ImeiCodec.IMEI_LENGTH <= data.length) {
+            long imei = ImeiCodec.decode(data, offset, ImeiCodec.IMEI_LENGTH);
+            if (imei != ImeiCodec.INVALID) {
+                packet.setImeiValue(imei);
+            } else {
+                // Keep the raw text so the packet is still reported upstream
+                packet.setImei(new String(data, offset, ImeiCodec.IMEI_LENGTH).trim());
+                journal.emit(EventType.INVALID_IMEI);
+            }
+            return offset + ImeiCodec.IMEI_LENGTH;
         }
         return offset;
     }
@@ -211,17 +247,35 @@ public class GalileoskyParser {
         if (offset + 2 <= data.length) {
             int deviceNumber = ByteBuffer.wrap(data, offset, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
             packet.addAdditionalData("deviceNumber", deviceNumber);
-            Log.d(TAG, "Parsed device number: " + deviceNumber);
             return offset + 2;
         }
         return offset;
     }
 
+    private int parseCommandNumberTag(byte[] data, int offset, ParsedPacket packet) {
+        if (offset + 4 <= data.length) {
+            long number = ByteBuffer.wrap(data, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xFFFFFFFFL;
+            packet.setCommandNumber(number);
+            return offset + 4;
+        }
+        return offset;
+    }
+
+    private int parseCommandTextTag(byte[] data, int offset, ParsedPacket packet) {
+        if (offset + 1 <= data.length) {
+            int length = data[offset] & 0xFF;
+            if (offset + 1 + length <= data.length) {
+                packet.setCommandText(new String(data, offset + 1, length, StandardCharsets.ISO_8859_1));
+                return offset + 1 + length;
+            }
+        }
+        return offset;
+    }
+
     private int parseArchiveRecordsTag(byte[] data, int offset, ParsedPacket packet) {
         if (offset + 2 <= data.length) {
             int recordCount = ByteBuffer.wrap(data, offset, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
             packet.setRecordCount(recordCount);
-            Log.d(TAG, "Parsed archive records: " + recordCount);
             return offset + 2;
         }
         return offset;
@@ -232,7 +286,6 @@ public class GalileoskyParser {
             int timestamp = ByteBuffer.wrap(data, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
             LocalDateTime dateTime = LocalDateTime.ofEpochSecond(timestamp, 0, ZoneOffset.UTC);
             packet.setTimestamp(dateTime);
-            Log.d(TAG, "Parsed datetime: " + dateTime);
             return offset + 4;
         }
         return offset;
@@ -242,7 +295,6 @@ public class GalileoskyParser {
         if (offset + 2 <= data.length) {
             int milliseconds = ByteBuffer.wrap(data, offset, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
             packet.addAdditionalData("milliseconds", milliseconds);
-            Log.d(TAG, "Parsed milliseconds: " + milliseconds);
             return offset + 2;
         }
         return offset;
@@ -259,7 +311,6 @@ public class GalileoskyParser {
             packet.setLatitude(latitude);
             packet.setLongitude(longitude);
             
-            Log.d(TAG, "Parsed coordinates: " + latitude + ", " + longitude);
             return offset + 8;
         }
         return offset;
@@ -276,7 +327,6 @@ public class GalileoskyParser {
             packet.setSpeed(speed);
             packet.setDirection(direction);
             
-            Log.d(TAG, "Parsed speed/direction: " + speed + " km/h, " + direction + "°");
             return offset + 4;
         }
         return offset;
@@ -286,7 +336,6 @@ public class GalileoskyParser {
         if (offset + 2 <= data.length) {
             int height = ByteBuffer.wrap(data, offset, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
             packet.setHeight(height);
-            Log.d(TAG, "Parsed height: " + height + " m");
             return offset + 2;
         }
         return offset;
@@ -296,7 +345,6 @@ public class GalileoskyParser {
         if (offset + 1 <= data.length) {
             int hdop = data[offset] & 0xFF;
             packet.addAdditionalData("hdop", hdop);
-            Log.d(TAG, "Parsed HDOP: " + hdop);
             return offset + 1;
         }
         return offset;
@@ -306,7 +354,6 @@ public class GalileoskyParser {
         if (offset + 2 <= data.length) {
             int status = ByteBuffer.wrap(data, offset, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
             packet.setStatus(status);
-            Log.d(TAG, "Parsed status: " + status);
             return offset + 2;
         }
         return offset;
@@ -317,7 +364,6 @@ public class GalileoskyParser {
             int voltageRaw = ByteBuffer.wrap(data, offset, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
             double voltage = voltageRaw / 1000.0; // Convert to volts
             packet.setSupplyVoltage(voltage);
-            Log.d(TAG, "Parsed supply voltage: " + voltage + "V");
             return offset + 2;
         }
         return offset;
@@ -328,7 +374,6 @@ public class GalileoskyParser {
             int voltageRaw = ByteBuffer.wrap(data, offset, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
             double voltage = voltageRaw / 1000.0; // Convert to volts
             packet.setBatteryVoltage(voltage);
-            Log.d(TAG, "Parsed battery voltage: " + voltage + "V");
             return offset + 2;
         }
         return offset;
@@ -338,7 +383,6 @@ public class GalileoskyParser {
         if (offset + 2 <= data.length) {
             int inputsRaw = ByteBuffer.wrap(data, offset, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
             packet.addAdditionalData("inputs", inputsRaw);
-            Log.d(TAG, "Parsed inputs: 0x" + String.format("%04X", inputsRaw));
             return offset + 2;
         }
         return offset;
@@ -349,7 +393,6 @@ public class GalileoskyParser {
             int voltageRaw = ByteBuffer.wrap(data, offset, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
             double voltage = voltageRaw / 1000.0; // Convert to volts
             packet.addAdditionalData("inputVoltage" + inputNumber, voltage);
-            Log.d(TAG, "Parsed input voltage " + inputNumber + ": " + voltage + "V");
             return offset + 2;
         }
         return offset;
@@ -359,24 +402,8 @@ public class GalileoskyParser {
         if (offset + 4 <= data.length) {
             int userData = ByteBuffer.wrap(data, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
             packet.addAdditionalData("userData" + (tag - 0xE2), userData);
-            Log.d(TAG, "Parsed user data " + (tag - 0xE2) + ": " + userData);
             return offset + 4;
         }
         return offset;
     }
-
-    private int calculateCRC16(byte[] data, int offset, int length) {
-        int crc = 0xFFFF;
-        for (int i = offset; i < offset + length; i++) {
-            crc ^= data[i] & 0xFF;
-            for (int j = 0; j < 8; j++) {
-                if ((crc & 0x0001) != 0) {
-                    crc = (crc >> 1) ^ 0xA001;
-                } else {
-                    crc = crc >> 1;
-                }
-            }
-        }
-        return crc;
-    }
 }
@@ -0,0 +1,208 @@
+package com.ohw.parser.parsers;
+
+import com.ohw.parser.models.ParsedPacket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Lazy view of a Galileosky data frame. GalileoskyParser.index() walks the tags
+// once and notes where each value starts; the getters below decode just the tag
+// they need. A tag repeated within the frame reads as its last occurrence, the
+// same value the eager parser ends up with.
+//
+// An archive frame carries several records back to back after the frame's own
+// leading tags (IMEI, device number). index() also notes where each record
+// starts, and getRecord() returns a view of one record that sees the leading
+// tags plus its own, sharing the frame's index.
+public final class GalileoskyRecord implements RecordView {
+
+    private static final int INITIAL_TAGS = 16;
+
+    private final GalileoskyParser parser;
+    private final byte[] frame;
+    private final int bodyLength;
+    private byte[] tags;
+    private int[] offsets;
+    private int tagCount;
+    private int[] recordStarts;     // tag index opening each archive record
+    private int recordCount;
+
+    // The tags this view sees: [from, to) plus the frame's leading [0, headerTo)
+    private final int from;
+    private int to;
+    private final int headerTo;
+    private final boolean part;
+
+    private ParsedPacket packet;    // Guarded by this: a part may be decoded ahead on another thread
+
+    GalileoskyRecord(GalileoskyParser parser, byte[] frame, int bodyLength) {
+        this.parser = parser;
+        this.frame = frame;
+        this.bodyLength = bodyLength;
+        this.tags = new byte[INITIAL_TAGS];
+        this.offsets = new int[INITIAL_TAGS];
+        this.recordStarts = new int[4];
+        this.from = 0;
+        this.headerTo = 0;
+        this.part = false;
+    }
+
+    private GalileoskyRecord(GalileoskyRecord whole, int from, int to) {
+        this.parser = whole.parser;
+        this.frame = whole.frame;
+        this.bodyLength = whole.bodyLength;
+        this.tags = whole.tags;
+        this.offsets = whole.offsets;
+        this.tagCount = whole.tagCount;
+        this.from = from;
+        this.to = to;
+        this.headerTo = whole.recordStarts[0];
+        this.part = true;
+    }
+
+    void addTag(byte tag, int valueOffset) {
+        if (tagCount == tags.length) {
+            tags = Arrays.copyOf(tags, tagCount * 2);
+            offsets = Arrays.copyOf(offsets, tagCount * 2);
+        }
+        tags[tagCount] = tag;
+        offsets[tagCount] = valueOffset;
+        tagCount++;
+        to = tagCount;
+    }
+
+    // The next tag added opens a new archive record
+    void startRecord() {
+        if (recordCount == recordStarts.length) {
+            recordStarts = Arrays.copyOf(recordStarts, recordCount * 2);
+        }
+        recordStarts[recordCount++] = tagCount;
+    }
+
+    // Offset of the tag's value in the frame, or -1
+    private int find(byte tag) {
+        for (int i = to - 1; i >= from; i--) {
+            if (tags[i] == tag) {
+                return offsets[i];
+            }
+        }
+        for (int i = headerTo - 1; i >= 0; i--) {
+            if (tags[i] == tag) {
+                return offsets[i];
+            }
+        }
+        return -1;
+    }
+
+    public int getTagCount() {
+        return tagCount;
+    }
+
+    @Override
+    public int getRecordCount() {
+        return part || recordCount <= 1 ? 1 : recordCount;
+    }
+
+    @Override
+    public RecordView getRecord(int index) {
+        if (getRecordCount() == 1) {
+            return this;
+        }
+        int end = index + 1 < recordCount ? recordStarts[index + 1] : tagCount;
+        return new GalileoskyRecord(this, recordStarts[index], end);
+    }
+
+    @Override
+    public boolean hasImei() {
+        return find(GalileoskyParser.TAG_IMEI) >= 0;
+    }
+
+    @Override
+    public long getImei() {
+        int offset = find(GalileoskyParser.TAG_IMEI);
+        return offset >= 0 ? ImeiCodec.decode(frame, offset, ImeiCodec.IMEI_LENGTH) : ImeiCodec.INVALID;
+    }
+
+    @Override
+    public int getDeviceNumber() {
+        int offset = find(GalileoskyParser.TAG_DEVICE_NUMBER);
+        return offset >= 0 ? readUnsignedShort(offset) : -1;
+    }
+
+    @Override
+    public boolean hasTimestamp() {
+        return find(GalileoskyParser.TAG_DATETIME) >= 0;
+    }
+
+    @Override
+    public long getTimestampSeconds() {
+        int offset = find(GalileoskyParser.TAG_DATETIME);
+        return offset >= 0 ? readInt(offset) : 0;
+    }
+
+    @Override
+    public boolean hasCoordinates() {
+        return find(GalileoskyParser.TAG_COORDINATES) >= 0;
+    }
+
+    @Override
+    public double getLatitude() {
+        int offset = find(GalileoskyParser.TAG_COORDINATES);
+        return offset >= 0 ? readInt(offset) / 1000000.0 : 0;
+    }
+
+    @Override
+    public double getLongitude() {
+        int offset = find(GalileoskyParser.TAG_COORDINATES);
+        return offset >= 0 ? readInt(offset + 4) / 1000000.0 : 0;
+    }
+
+    @Override
+    public boolean isCommandReply() {
+        return find(GalileoskyParser.TAG_COMMAND_NUMBER) >= 0;
+    }
+
+    @Override
+    public long getCommandNumber() {
+        int offset = find(GalileoskyParser.TAG_COMMAND_NUMBER);
+        return offset >= 0 ? readInt(offset) & 0xFFFFFFFFL : -1;
+    }
+
+    @Override
+    public String getCommandText() {
+        int offset = find(GalileoskyParser.TAG_COMMAND_TEXT);
+        if (offset < 0) {
+            return null;
+        }
+        return new String(frame, offset + 1, frame[offset] & 0xFF, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    @Override
+    public synchronized ParsedPacket toPacket() {
+        if (packet == null) {
+            if (part) {
+                // Tags start one byte before their value
+                int bodyEnd = FrameAssembler.HEADER_BYTES + bodyLength;
+                packet = parser.parseRecord(frame, offsets[headerTo] - 1, offsets[from] - 1,
+                        to < tagCount ? offsets[to] - 1 : bodyEnd);
+            } else {
+                packet = parser.parseIndexed(frame, bodyLength);
+            }
+        }
+        return packet;
+    }
+
+    private int readUnsignedShort(int offset) {
+        return (frame[offset] & 0xFF) | (frame[offset + 1] & 0xFF) << 8;
+    }
+
+    private int readInt(int offset) {
+        return (frame[offset] & 0xFF) | (frame[offset + 1] & 0xFF) << 8
+                | (frame[offset + 2] & 0xFF) << 16 | frame[offset + 3] << 24;
+    }
+}
@@ -0,0 +1,69 @@
+package com.ohw.parser.parsers;
+
+// Converts between the 15-digit ASCII IMEI carried in frames and a packed long.
+// Decoding reads the frame bytes in place so device lookups never allocate.
+// Only 15-digit IMEIs are accepted, so format() restores the exact text the
+// device sent. An all-zero IMEI is treated as invalid, so every valid key is positive.
+public final class ImeiCodec {
+
+    public static final int IMEI_LENGTH = 15;
+    public static final long INVALID = -1L;
+
+    private ImeiCodec() {
+    }
+
+    // Digits may be followed by space or NUL padding; anything else is invalid
+    public static long decode(byte[] data, int offset, int length) {
+        long value = 0;
+        int digits = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int b = data[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                digits++;
+            } else if (b == ' ' || b == 0) {
+                for (int j = i + 1; j < end; j++) {
+                    if (data[j] != ' ' && data[j] != 0) {
+                        return INVALID;
+                    }
+                }
+                break;
+            } else {
+                return INVALID;
+            }
+        }
+        // 0 is no real IMEI, and LongIntHashMap uses it as its empty marker
+        return digits != IMEI_LENGTH || value == 0 ? INVALID : value;
+    }
+
+    public static String format(long imei) {
+        String digits = Long.toString(imei);
+        if (digits.length() >= IMEI_LENGTH) { // Never produced by decode or parse
+            return digits;
+        }
+        StringBuilder padded = new StringBuilder(IMEI_LENGTH);
+        for (int i = digits.length(); i < IMEI_LENGTH; i++) {
+            padded.append('0');
+        }
+        return padded.append(digits).toString();
+    }
+
+    public static long parse(String imei) {
+        if (imei == null) {
+            return INVALID;
+        }
+        String trimmed = imei.trim();
+        if (trimmed.length() != IMEI_LENGTH) {
+            return INVALID;
+        }
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+        }
+        long value = Long.parseLong(trimmed);
+        return value == 0 ? INVALID : value;
+    }
+}
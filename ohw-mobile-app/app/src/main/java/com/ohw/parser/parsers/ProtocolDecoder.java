@@ -0,0 +1,29 @@
+package com.ohw.parser.parsers;
+
+// A tracker protocol as the device listener sees it: how the byte stream is cut
+// into frames, how a frame becomes a record and what confirms it to the device.
+// Each listening port is bound to one decoder, so the protocol is settled when a
+// connection is accepted rather than sniffed per packet, and every protocol feeds
+// the same ingest pipeline. A decoder is shared by all connections on its ports
+// and keeps no per-connection state outside the FrameReader it creates.
+public interface ProtocolDecoder {
+
+    // Name used in port bindings, e.g. "galileosky"
+    String getName();
+
+    FrameReader newFrameReader();
+
+    // Indexes the reader's current intact frame for on-demand decoding; null when
+    // it carries no record
+    RecordView decode(FrameReader frame);
+
+    // Upper bound on what writeAck() writes
+    int getMaxAckBytes();
+
+    // Writes the confirmation of the reader's current intact frame into out at
+    // offset; returns its length, 0 when the protocol sends none
+    int writeAck(FrameReader frame, byte[] out, int offset);
+
+    // Whether devices speaking this protocol understand CommandPacketBuilder packets
+    boolean supportsCommands();
+}
@@ -0,0 +1,121 @@
+package com.ohw.parser.parsers;
+
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Known protocol decoders by name, and which device port speaks which protocol.
+// Bindings are read when the listeners start; changing them takes effect on the
+// next service start.
+public class ProtocolRegistry {
+
+    public static final class Binding {
+        public int port;
+        public String protocol;
+
+        public Binding() {
+        }
+
+        public Binding(int port, String protocol) {
+            this.port = port;
+            this.protocol = protocol;
+        }
+    }
+
+    public static final class Config {
+        public List<Binding> ports = new ArrayList<>();
+
+        public Config() {
+            ports.add(new Binding(GalileoskyDecoder.DEFAULT_PORT, GalileoskyDecoder.NAME));
+        }
+    }
+
+    private static final Gson GSON = new Gson();
+
+    private final Map<String, ProtocolDecoder> decoders = new LinkedHashMap<>();
+    private volatile Config config = new Config();
+
+    public ProtocolRegistry() {
+        register(new GalileoskyDecoder());
+    }
+
+    public synchronized void register(ProtocolDecoder decoder) {
+        decoders.put(decoder.getName(), decoder);
+    }
+
+    public synchronized ProtocolDecoder find(String name) {
+        return decoders.get(name);
+    }
+
+    public synchronized List<String> getProtocols() {
+        return new ArrayList<>(decoders.keySet());
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    // Throws IllegalArgumentException for an unknown protocol or a port bound twice
+    public void setConfig(Config config) {
+        Set<Integer> ports = new HashSet<>();
+        for (Binding binding : config.ports) {
+            if (binding == null) {
+                throw new IllegalArgumentException("Empty port binding");
+            }
+            if (binding.port <= 0 || binding.port > 0xFFFF) {
+                throw new IllegalArgumentException("Invalid port " + binding.port);
+            }
+            if (find(binding.protocol) == null) {
+                throw new IllegalArgumentException("Unknown protocol '" + binding.protocol
+                        + "' on port " + binding.port);
+            }
+            if (!ports.add(binding.port)) {
+                throw new IllegalArgumentException("Port " + binding.port + " bound twice");
+            }
+        }
+        this.config = config;
+    }
+
+    // First port bound to the protocol, or -1
+    public int findPort(String protocol) {
+        for (Binding binding : config.ports) {
+            if (binding.protocol.equals(protocol)) {
+                return binding.port;
+            }
+        }
+        return -1;
+    }
+
+    public void loadConfig(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            Config loaded = GSON.fromJson(reader, Config.class);
+            if (loaded != null && loaded.ports != null) {
+                setConfig(loaded);
+            }
+        }
+    }
+
+    public void saveConfig(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            GSON.toJson(config, writer);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+}
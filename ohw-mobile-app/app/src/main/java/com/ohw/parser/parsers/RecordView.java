@@ -0,0 +1,51 @@
+package com.ohw.parser.parsers;
+
+import com.ohw.parser.models.ParsedPacket;
+
+// A decoded frame whose fields are read from the frame bytes on demand. The
+// connection thread only needs the IMEI, device number and command reply fields
+// to identify the device and route the frame, so a decoder hands back this view
+// and the full ParsedPacket is built once, on the shard, by whoever first asks.
+// The view passes from the connection thread to the shard with the IngestRecord
+// and is only read there afterwards; toPacket() alone may also be called ahead of
+// the shard, from ArchiveDecoder.
+public interface RecordView {
+
+    // Records carried by the frame: more than one for an archive flush
+    int getRecordCount();
+
+    // View of one record of the frame; the frame itself when it carries only one
+    RecordView getRecord(int index);
+
+    boolean hasImei();
+
+    // ImeiCodec.INVALID when the frame carries none or it is not numeric
+    long getImei();
+
+    // -1 when the frame carries none
+    int getDeviceNumber();
+
+    boolean hasTimestamp();
+
+    // Device time of the record, seconds since the epoch (UTC)
+    long getTimestampSeconds();
+
+    boolean hasCoordinates();
+
+    double getLatitude();
+
+    double getLongitude();
+
+    boolean isCommandReply();
+
+    long getCommandNumber();
+
+    // Null when the frame carries no command text
+    String getCommandText();
+
+    // The frame exactly as received, for forwarding or storage without re-encoding
+    byte[] getFrame();
+
+    // Decodes every field; later calls return the same packet
+    ParsedPacket toPacket();
+}
@@ -0,0 +1,62 @@
+package com.ohw.parser.pipeline;
+
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.parsers.RecordView;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Decodes the records of a large archive frame on the common fork-join pool so
+// they are ready by the time the device's shard reaches them. A device that
+// flushes its archive sends up to 32 KB of records at once, several hundred of
+// them, which would otherwise be decoded one by one on its shard. Order is kept
+// by the shard queue: RecordView.toPacket() is synchronized, so the shard either
+// finds a record decoded or decodes (or waits for) it itself.
+public final class ArchiveDecoder {
+
+    // Below this a fork-join round trip costs more than decoding on the shard
+    public static final int MIN_PARALLEL_RECORDS = 16;
+    private static final int GRAIN_RECORDS = 8;
+
+    private ArchiveDecoder() {
+    }
+
+    public static void decodeAhead(RecordView[] records) {
+        // With a single core the pool would only add handoffs to the shard's own work
+        if (records.length >= MIN_PARALLEL_RECORDS && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            ForkJoinPool.commonPool().execute(new DecodeTask(records, 0, records.length, System.nanoTime()));
+        }
+    }
+
+    private static final class DecodeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RecordView[] records;
+        private final int from;
+        private final int to;
+        private final long startNanos;     // Set on the root task only
+
+        DecodeTask(RecordView[] records, int from, int to, long startNanos) {
+            this.records = records;
+            this.from = from;
+            this.to = to;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= GRAIN_RECORDS) {
+                for (int i = from; i < to; i++) {
+                    records[i].toPacket();
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new DecodeTask(records, from, middle, 0), new DecodeTask(records, middle, to, 0));
+            }
+            if (startNanos != 0) {
+                GatewayMetrics.get().archiveDecode.recordSince(startNanos);
+            }
+        }
+    }
+}
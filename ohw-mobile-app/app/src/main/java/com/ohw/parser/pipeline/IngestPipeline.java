@@ -0,0 +1,71 @@
+package com.ohw.parser.pipeline;
+
+// Routes decoded records to N single-writer shards by IMEI so each device is always
+// handled by the same thread. Records of one device keep their arrival order because
+// a device is read by one connection thread and its shard queue is FIFO.
+public class IngestPipeline {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+
+    private final IngestShard[] shards;
+
+    public IngestPipeline(RecordConsumer consumer) {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY, consumer);
+    }
+
+    public IngestPipeline(int shardCount, int queueCapacity, RecordConsumer consumer) {
+        shards = new IngestShard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new IngestShard(i, queueCapacity, consumer);
+        }
+    }
+
+    public void start() {
+        for (IngestShard shard : shards) {
+            shard.start();
+        }
+    }
+
+    public void stop() {
+        for (IngestShard shard : shards) {
+            shard.stop();
+        }
+    }
+
+    public void submit(IngestRecord record) {
+        shards[shardFor(record.getImei())].submit(record);
+    }
+
+    public int shardFor(long imei) {
+        long h = imei * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 33) % shards.length);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public int getQueueDepth(int shard) {
+        return shards[shard].getQueueDepth();
+    }
+
+    public int getQueueCapacity(int shard) {
+        return shards[shard].getQueueCapacity();
+    }
+
+    public long getProcessed(int shard) {
+        return shards[shard].getProcessed();
+    }
+
+    public long getFullWaits(int shard) {
+        return shards[shard].getFullWaits();
+    }
+
+    public long getTotalProcessed() {
+        long total = 0;
+        for (IngestShard shard : shards) {
+            total += shard.getProcessed();
+        }
+        return total;
+    }
+}
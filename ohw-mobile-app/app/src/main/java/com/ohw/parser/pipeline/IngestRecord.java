@@ -0,0 +1,65 @@
+package com.ohw.parser.pipeline;
+
+import com.ohw.parser.models.ParsedPacket;
+import com.ohw.parser.parsers.RecordView;
+
+// A decoded record on its way from a connection thread to the shard that owns the
+// device. The connection thread only indexes the frame; the packet is decoded in
+// full on the shard the first time it is asked for.
+public class IngestRecord {
+
+    private final RecordView view;
+    private ParsedPacket packet;
+    private final long imei;
+    private final int slot;
+    private final String clientAddress;
+    private final long receivedAtMillis;
+    private final long enqueuedAtNanos;
+
+    public IngestRecord(RecordView view, long imei, int slot, String clientAddress,
+                        long receivedAtMillis) {
+        this.view = view;
+        this.imei = imei;
+        this.slot = slot;
+        this.clientAddress = clientAddress;
+        this.receivedAtMillis = receivedAtMillis;
+        this.enqueuedAtNanos = System.nanoTime();
+    }
+
+    public RecordView getView() {
+        return view;
+    }
+
+    // Shard thread only
+    public ParsedPacket getPacket() {
+        if (packet == null) {
+            packet = view.toPacket();
+        }
+        return packet;
+    }
+
+    public long getImei() {
+        return imei;
+    }
+
+    // -1 when the connection has not identified its device yet
+    public int getSlot() {
+        return slot;
+    }
+
+    public boolean hasSlot() {
+        return slot >= 0;
+    }
+
+    public String getClientAddress() {
+        return clientAddress;
+    }
+
+    public long getReceivedAtMillis() {
+        return receivedAtMillis;
+    }
+
+    public long getEnqueuedAtNanos() {
+        return enqueuedAtNanos;
+    }
+}
@@ -0,0 +1,102 @@
+package com.ohw.parser.pipeline;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+class IngestShard implements Runnable {
+
+    private static final String TAG = "IngestShard";
+    private static final int SPIN_TRIES = 100;
+    private static final long PARK_NANOS = 10000000L; // 10 ms safety net for missed wakeups
+    private static final long BACKOFF_NANOS = 50000L;  // 50 us while the queue is full
+
+    private final int index;
+    private final MpscQueue<IngestRecord> queue;
+    private final RecordConsumer consumer;
+    private volatile boolean running = true;
+    private volatile boolean sleeping;
+    private volatile long processed;
+    private final AtomicLong fullWaits = new AtomicLong();
+    private Thread thread;
+
+    IngestShard(int index, int queueCapacity, RecordConsumer consumer) {
+        this.index = index;
+        this.queue = new MpscQueue<>(queueCapacity);
+        this.consumer = consumer;
+    }
+
+    void start() {
+        thread = new Thread(this, "ingest-shard-" + index);
+        thread.start();
+    }
+
+    // Blocks the producing connection thread while the shard is saturated
+    void submit(IngestRecord record) {
+        if (!queue.offer(record)) {
+            fullWaits.incrementAndGet();
+            while (!queue.offer(record)) {
+                if (!running) {
+                    return;
+                }
+                LockSupport.parkNanos(BACKOFF_NANOS);
+            }
+        }
+        if (sleeping) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        int idle = 0;
+        long count = processed;
+        while (running) {
+            IngestRecord record = queue.poll();
+            if (record != null) {
+                idle = 0;
+                try {
+                    consumer.onRecord(record, index);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error processing record on shard " + index, e);
+                }
+                processed = ++count;
+                continue;
+            }
+
+            if (++idle < SPIN_TRIES) {
+                Thread.yield();
+                continue;
+            }
+            sleeping = true;
+            if (queue.isEmpty()) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            sleeping = false;
+        }
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    int getQueueCapacity() {
+        return queue.capacity();
+    }
+
+    long getProcessed() {
+        return processed;
+    }
+
+    long getFullWaits() {
+        return fullWaits.get();
+    }
+}
@@ -0,0 +1,59 @@
+package com.ohw.parser.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded lock-free queue for many producers and a single consumer.
+// Producers claim a sequence with CAS and then publish the element; the consumer
+// treats a claimed but not yet published cell as empty and retries later.
+class MpscQueue<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int mask;
+    private final AtomicLong producerIndex = new AtomicLong();
+    private volatile long consumerIndex;
+
+    MpscQueue(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+        buffer = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    boolean offer(E element) {
+        while (true) {
+            long index = producerIndex.get();
+            if (index - consumerIndex > mask) {
+                return false;
+            }
+            if (producerIndex.compareAndSet(index, index + 1)) {
+                buffer.lazySet((int) index & mask, element);
+                return true;
+            }
+        }
+    }
+
+    // Must only be called from the consumer thread
+    E poll() {
+        long index = consumerIndex;
+        int cell = (int) index & mask;
+        E element = buffer.get(cell);
+        if (element == null) {
+            return null;
+        }
+        buffer.lazySet(cell, null);
+        consumerIndex = index + 1;
+        return element;
+    }
+
+    boolean isEmpty() {
+        return producerIndex.get() == consumerIndex;
+    }
+
+    int size() {
+        return (int) Math.max(0, producerIndex.get() - consumerIndex);
+    }
+}
@@ -0,0 +1,8 @@
+package com.ohw.parser.pipeline;
+
+// Runs on a shard thread; every record of a given device reaches it in arrival order
+// and always from the same thread, so per-device state needs no locking.
+public interface RecordConsumer {
+
+    void onRecord(IngestRecord record, int shard);
+}
@@ -0,0 +1,148 @@
+package com.ohw.parser.pipeline;
+
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.models.ParsedPacket;
+import com.ohw.parser.trips.TripDetector;
+
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+// Per-device change filter between the parser and the fan-out. A record is
+// passed on when its position, speed or heading moved past the thresholds,
+// when status or inputs changed, or when the device has been quiet for
+// maxIntervalMillis; otherwise it only updates live state. Positions of a
+// standing device that stay within minDistanceMeters of the last passed one
+// are snapped back to it, so GPS jitter does not wobble the map or the
+// geofence and trip logic. Runs on the device's ingest shard.
+public class RecordFilter {
+
+    public static class Config {
+        public boolean enabled = true;
+        public double minDistanceMeters = 30.0;
+        public double minSpeedDeltaKmh = 5.0;
+        public double minHeadingDegrees = 15.0;
+        public double movingSpeedKmh = 5.0;
+        public long maxIntervalMillis = 60000;     // 1 minute heartbeat
+    }
+
+    // Last passed record of one device
+    private static final class State {
+        boolean primed;
+        long passedMillis;
+        boolean hasPosition;
+        double latitude;
+        double longitude;
+        double speed;
+        double direction;
+        boolean hasStatus;
+        int status;
+        boolean hasInputs;
+        int inputs;
+    }
+
+    private volatile Config config;
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+    private final Object growLock = new Object();
+    private volatile State[] states = new State[1024];
+
+    public RecordFilter(Config config) {
+        this.config = config;
+    }
+
+    public void setConfig(Config config) {
+        this.config = config;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    // True when the record should be broadcast and stored; may snap its position
+    public boolean accept(int slot, ParsedPacket packet, long nowMillis) {
+        Config current = config;
+        if (!current.enabled || slot < 0) {
+            return true;
+        }
+        long time = packet.getTimestamp() != null
+                ? packet.getTimestamp().toEpochSecond(ZoneOffset.UTC) * 1000L
+                : nowMillis;
+        State state = stateFor(slot);
+        if (state.primed && time < state.passedMillis) {
+            // Archive records fill in history and are never thinned
+            return true;
+        }
+
+        Object inputsValue = packet.getAdditionalData("inputs");
+        boolean pass = !state.primed
+                || (packet.hasStatus() && (!state.hasStatus || packet.getStatus() != state.status))
+                || (inputsValue instanceof Integer && (!state.hasInputs || (Integer) inputsValue != state.inputs))
+                || time - state.passedMillis >= current.maxIntervalMillis
+                || Math.abs(packet.getSpeed() - state.speed) >= current.minSpeedDeltaKmh;
+
+        boolean moving = packet.getSpeed() >= current.movingSpeedKmh;
+        if (packet.hasValidCoordinates()) {
+            if (!state.hasPosition) {
+                pass = true;
+            } else {
+                double meters = TripDetector.distanceMeters(state.latitude, state.longitude,
+                        packet.getLatitude(), packet.getLongitude());
+                if (meters >= current.minDistanceMeters) {
+                    pass = true;
+                } else if (!moving) {
+                    packet.setLatitude(state.latitude);
+                    packet.setLongitude(state.longitude);
+                    metrics.recordsSnapped.increment();
+                }
+            }
+            if (moving && headingDelta(packet.getDirection(), state.direction) >= current.minHeadingDegrees) {
+                pass = true;
+            }
+        }
+
+        if (!pass) {
+            metrics.recordsFiltered.increment();
+            return false;
+        }
+        state.primed = true;
+        state.passedMillis = time;
+        if (packet.hasValidCoordinates()) {
+            state.hasPosition = true;
+            state.latitude = packet.getLatitude();
+            state.longitude = packet.getLongitude();
+            state.direction = packet.getDirection();
+        }
+        state.speed = packet.getSpeed();
+        if (packet.hasStatus()) {
+            state.hasStatus = true;
+            state.status = packet.getStatus();
+        }
+        if (inputsValue instanceof Integer) {
+            state.hasInputs = true;
+            state.inputs = (Integer) inputsValue;
+        }
+        return true;
+    }
+
+    private static double headingDelta(double a, double b) {
+        double delta = Math.abs(a - b) % 360.0;
+        return delta > 180.0 ? 360.0 - delta : delta;
+    }
+
+    private State stateFor(int slot) {
+        State[] current = states;
+        if (slot < current.length && current[slot] != null) {
+            return current[slot];
+        }
+        synchronized (growLock) {
+            current = states;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, Math.max(slot + 1, current.length * 2));
+            }
+            if (current[slot] == null) {
+                current[slot] = new State();
+            }
+            states = current;
+            return current[slot];
+        }
+    }
+}
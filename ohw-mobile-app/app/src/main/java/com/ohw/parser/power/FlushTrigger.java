@@ -0,0 +1,67 @@
+package com.ohw.parser.power;
+
+import android.util.Log;
+
+import java.util.concurrent.ScheduledFuture;
+
+// Coalesces one lane's work. The first signal after the lane went idle schedules
+// a single flush one lane interval later; a signal that finds a full batch
+// waiting brings it forward to now. Signals in between cost one volatile read.
+// Flushes run on the scheduler's flush thread.
+public final class FlushTrigger {
+
+    public interface Task {
+        // Hands on everything pending; returns the number of records handled
+        int flush();
+    }
+
+    private static final String TAG = "FlushTrigger";
+    private static final int IDLE = 0;
+    private static final int DELAYED = 1;
+    private static final int IMMEDIATE = 2;
+
+    private final PowerScheduler scheduler;
+    private final PowerScheduler.Lane lane;
+    private final Task task;
+
+    private volatile int state = IDLE;
+    private ScheduledFuture<?> future; // Guarded by this
+
+    FlushTrigger(PowerScheduler scheduler, PowerScheduler.Lane lane, Task task) {
+        this.scheduler = scheduler;
+        this.lane = lane;
+        this.task = task;
+    }
+
+    // Called after adding work; pending is the number of records now waiting
+    public void signal(int pending) {
+        int current = state;
+        boolean full = pending >= scheduler.getBatchRecords(lane);
+        if (current == IMMEDIATE || (current == DELAYED && !full)) {
+            return;
+        }
+        synchronized (this) {
+            if (state == IMMEDIATE || (state == DELAYED && !full)) {
+                return;
+            }
+            if (future != null) {
+                future.cancel(false);
+            }
+            state = full ? IMMEDIATE : DELAYED;
+            future = scheduler.schedule(this::run, full ? 0 : scheduler.getIntervalMillis(lane));
+        }
+    }
+
+    private void run() {
+        synchronized (this) {
+            state = IDLE;
+            future = null;
+        }
+        // Work added from here on schedules the next flush
+        try {
+            scheduler.recordWakeup(lane, task.flush());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error flushing " + lane.getJsonName() + " lane", e);
+        }
+    }
+}
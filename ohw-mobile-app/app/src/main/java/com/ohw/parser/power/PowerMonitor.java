@@ -0,0 +1,72 @@
+package com.ohw.parser.power;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+// Feeds the phone's power state into a PowerScheduler: battery level and
+// charging from the sticky battery broadcast, power-save mode from its change
+// broadcast, and the thermal status (API 29+) whenever either arrives or
+// refresh() is called. While the uplink is deferred a WorkManager window is kept
+// queued for it.
+public class PowerMonitor extends BroadcastReceiver {
+
+    private final Context context;
+    private final PowerScheduler scheduler;
+
+    public PowerMonitor(Context context, PowerScheduler scheduler) {
+        this.context = context;
+        this.scheduler = scheduler;
+    }
+
+    public void start() {
+        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        // The battery broadcast is sticky, so the current state arrives straight away
+        Intent battery = context.registerReceiver(this, filter);
+        if (battery != null) {
+            onBattery(battery);
+        }
+        refresh();
+    }
+
+    public void stop() {
+        context.unregisterReceiver(this);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+            onBattery(intent);
+        }
+        refresh();
+    }
+
+    // Re-reads power-save mode and the thermal status
+    public void refresh() {
+        PowerManager power = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (power == null) {
+            return;
+        }
+        int thermal = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ? power.getCurrentThermalStatus() : 0;
+        scheduler.updateDevice(power.isPowerSaveMode(), thermal);
+        if (scheduler.isDeferred(PowerScheduler.Lane.UPLINK)) {
+            UplinkWindowWorker.schedule(context, scheduler.getIntervalMillis(PowerScheduler.Lane.UPLINK));
+        }
+    }
+
+    private void onBattery(Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        boolean plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        boolean charging = plugged || status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL;
+        int percent = level >= 0 && scale > 0 ? level * 100 / scale : 100;
+        scheduler.updateBattery(percent, charging);
+    }
+}
@@ -0,0 +1,290 @@
+package com.ohw.parser.power;
+
+import com.ohw.parser.journal.EventJournal;
+import com.ohw.parser.journal.EventType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+// Decides how often the gateway's deferrable work may wake the phone. That work
+// is grouped into lanes (writing staged records to disk, WebSocket fan-out,
+// uplink POSTs); a lane flushes once its interval has passed since work arrived,
+// or straight away when a full batch is waiting. Intervals follow the power
+// profile (charging, battery level, power-save mode, thermal state) and batch
+// sizes follow the recent ingest rate, so a busy gateway on battery makes a few
+// large flushes instead of one wakeup per record.
+//
+// Power state comes from PowerMonitor; tick() re-reads the load and closes the
+// per-minute wakeup statistics.
+public class PowerScheduler {
+
+    public enum Profile {
+        REALTIME("realtime"),   // charging and cool
+        BALANCED("balanced"),
+        SAVER("saver"),         // low battery, power-save mode or warm
+        MINIMAL("minimal");     // critical battery or thermal throttling
+
+        private final String jsonName;
+
+        Profile(String jsonName) {
+            this.jsonName = jsonName;
+        }
+
+        public String getJsonName() {
+            return jsonName;
+        }
+    }
+
+    public enum Lane {
+        PERSISTENCE("persistence"),
+        FANOUT("fanout"),
+        UPLINK("uplink");
+
+        private final String jsonName;
+
+        Lane(String jsonName) {
+            this.jsonName = jsonName;
+        }
+
+        public String getJsonName() {
+            return jsonName;
+        }
+    }
+
+    public static class Config {
+        public int lowBatteryPercent = 30;
+        public int criticalBatteryPercent = 15;
+        // Flush interval per profile, REALTIME to MINIMAL
+        public long[] persistenceMillis = {200, 1000, 5000, 15000};
+        public long[] fanoutMillis = {100, 500, 2000, 5000};
+        public long[] uplinkMillis = {200, 5000, 30000, 120000};
+        // Batch size is the records expected in one interval at the current rate, within these bounds
+        public int minBatchRecords = 32;
+        public int maxBatchRecords = 8192;
+    }
+
+    // Thermal levels as reported by PowerManager.getCurrentThermalStatus()
+    public static final int THERMAL_MODERATE = 2;
+    public static final int THERMAL_SEVERE = 3;
+
+    private static final Lane[] LANES = Lane.values();
+
+    private static final PowerScheduler INSTANCE = new PowerScheduler(new Config());
+
+    private volatile Config config;
+    private final EventJournal journal = EventJournal.get();
+    private final ScheduledExecutorService flusher;
+
+    // Inputs, guarded by this; until PowerMonitor reports, the phone is assumed plugged in
+    private int batteryPercent = 100;
+    private boolean charging = true;
+    private boolean powerSave;
+    private int thermalStatus;
+    private LongSupplier loadSource;
+    private long lastLoadCount = -1;
+    private long lastTickMillis;
+    private double recordsPerSecond;
+
+    // Current pacing, replaced whole
+    private volatile Profile profile = Profile.REALTIME;
+    private volatile long[] intervals = new long[LANES.length];
+    private volatile int[] batches = new int[LANES.length];
+
+    private final List<List<Runnable>> windowListeners = new ArrayList<>();
+
+    // Wakeup accounting per lane: running totals, and the last closed minute
+    private final AtomicLongArray wakeups = new AtomicLongArray(LANES.length);
+    private final AtomicLongArray records = new AtomicLongArray(LANES.length);
+    private final long[] tickWakeups = new long[LANES.length];
+    private final long[] tickRecords = new long[LANES.length];
+    private volatile long[] wakeupsPerMinute = new long[LANES.length];
+    private volatile double[] recordsPerWakeup = new double[LANES.length];
+
+    public static PowerScheduler get() {
+        return INSTANCE;
+    }
+
+    PowerScheduler(Config config) {
+        this.config = config;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "power-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < LANES.length; i++) {
+            windowListeners.add(new CopyOnWriteArrayList<>());
+        }
+        repace();
+    }
+
+    public synchronized void setConfig(Config config) {
+        this.config = config;
+        repace();
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    // Ingest counter sampled by tick() to size batches
+    public synchronized void setLoadSource(LongSupplier loadSource) {
+        this.loadSource = loadSource;
+        this.lastLoadCount = -1;
+    }
+
+    public synchronized void updateBattery(int batteryPercent, boolean charging) {
+        this.batteryPercent = batteryPercent;
+        this.charging = charging;
+        repace();
+    }
+
+    public synchronized void updateDevice(boolean powerSave, int thermalStatus) {
+        this.powerSave = powerSave;
+        this.thermalStatus = thermalStatus;
+        repace();
+    }
+
+    // Called about once a minute: samples the ingest rate and closes the wakeup statistics
+    public synchronized void tick(long nowMillis) {
+        if (lastTickMillis > 0 && nowMillis > lastTickMillis) {
+            long elapsed = nowMillis - lastTickMillis;
+            long[] perMinute = new long[LANES.length];
+            double[] perWakeup = new double[LANES.length];
+            for (int i = 0; i < LANES.length; i++) {
+                long lane = wakeups.get(i);
+                long laneRecords = records.get(i);
+                long deltaWakeups = lane - tickWakeups[i];
+                perMinute[i] = deltaWakeups * 60000 / elapsed;
+                perWakeup[i] = deltaWakeups > 0 ? (double) (laneRecords - tickRecords[i]) / deltaWakeups : 0;
+                tickWakeups[i] = lane;
+                tickRecords[i] = laneRecords;
+            }
+            wakeupsPerMinute = perMinute;
+            recordsPerWakeup = perWakeup;
+            if (loadSource != null) {
+                long count = loadSource.getAsLong();
+                if (lastLoadCount >= 0) {
+                    recordsPerSecond = (count - lastLoadCount) * 1000.0 / elapsed;
+                }
+                lastLoadCount = count;
+            }
+        } else if (loadSource != null) {
+            lastLoadCount = loadSource.getAsLong();
+        }
+        lastTickMillis = nowMillis;
+        repace();
+    }
+
+    private void repace() {
+        Config current = config;
+        Profile next;
+        boolean cool = thermalStatus < THERMAL_MODERATE;
+        if (thermalStatus >= THERMAL_SEVERE
+                || (!charging && batteryPercent <= current.criticalBatteryPercent)) {
+            next = Profile.MINIMAL;
+        } else if (charging && cool && !powerSave) {
+            next = Profile.REALTIME;
+        } else if (powerSave || !cool || batteryPercent <= current.lowBatteryPercent) {
+            next = Profile.SAVER;
+        } else {
+            next = Profile.BALANCED;
+        }
+
+        long[] nextIntervals = new long[LANES.length];
+        int[] nextBatches = new int[LANES.length];
+        int index = next.ordinal();
+        nextIntervals[Lane.PERSISTENCE.ordinal()] = current.persistenceMillis[index];
+        nextIntervals[Lane.FANOUT.ordinal()] = current.fanoutMillis[index];
+        nextIntervals[Lane.UPLINK.ordinal()] = current.uplinkMillis[index];
+        for (int i = 0; i < LANES.length; i++) {
+            long expected = Math.round(recordsPerSecond * nextIntervals[i] / 1000.0);
+            nextBatches[i] = (int) Math.max(current.minBatchRecords,
+                    Math.min(current.maxBatchRecords, expected));
+        }
+        intervals = nextIntervals;
+        batches = nextBatches;
+
+        // Log formatting rides on the persistence lane
+        int persistence = Lane.PERSISTENCE.ordinal();
+        if (next == Profile.REALTIME) {
+            journal.setBatching(1, EventJournal.DEFAULT_MAX_DELAY_MILLIS);
+        } else {
+            journal.setBatching(nextBatches[persistence], nextIntervals[persistence]);
+        }
+
+        if (next != profile) {
+            profile = next;
+            journal.emit(EventType.POWER_PROFILE_CHANGED, next.ordinal(), batteryPercent, charging ? 1 : 0);
+        }
+    }
+
+    public Profile getProfile() {
+        return profile;
+    }
+
+    public long getIntervalMillis(Lane lane) {
+        return intervals[lane.ordinal()];
+    }
+
+    public int getBatchRecords(Lane lane) {
+        return batches[lane.ordinal()];
+    }
+
+    // In SAVER and MINIMAL the uplink waits for a WorkManager window rather than its own timer
+    public boolean isDeferred(Lane lane) {
+        Profile current = profile;
+        return lane == Lane.UPLINK && (current == Profile.SAVER || current == Profile.MINIMAL);
+    }
+
+    public synchronized double getRecordsPerSecond() {
+        return recordsPerSecond;
+    }
+
+    // A flush of the lane that handled the given number of records
+    public void recordWakeup(Lane lane, int handled) {
+        wakeups.incrementAndGet(lane.ordinal());
+        records.addAndGet(lane.ordinal(), handled);
+    }
+
+    public long getWakeups(Lane lane) {
+        return wakeups.get(lane.ordinal());
+    }
+
+    public long getWakeupsPerMinute(Lane lane) {
+        return wakeupsPerMinute[lane.ordinal()];
+    }
+
+    public double getRecordsPerWakeup(Lane lane) {
+        return recordsPerWakeup[lane.ordinal()];
+    }
+
+    public void addWindowListener(Lane lane, Runnable listener) {
+        windowListeners.get(lane.ordinal()).add(listener);
+    }
+
+    public void removeWindowListener(Lane lane, Runnable listener) {
+        windowListeners.get(lane.ordinal()).remove(listener);
+    }
+
+    // The system granted a window for deferred work of the lane (see UplinkWindowWorker)
+    public void openWindow(Lane lane) {
+        for (Runnable listener : windowListeners.get(lane.ordinal())) {
+            listener.run();
+        }
+    }
+
+    public FlushTrigger newTrigger(Lane lane, FlushTrigger.Task task) {
+        return new FlushTrigger(this, lane, task);
+    }
+
+    ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return flusher.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
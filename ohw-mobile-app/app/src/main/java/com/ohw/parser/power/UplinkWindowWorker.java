@@ -0,0 +1,54 @@
+package com.ohw.parser.power;
+
+import android.content.Context;
+
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.util.concurrent.TimeUnit;
+
+// Deferred uplink on battery: instead of waking the radio on its own timer, the
+// relay waits for this job, which WorkManager runs only with a network and lines
+// up with other apps' work and Doze maintenance windows. While the uplink stays
+// deferred each run queues the next one.
+public class UplinkWindowWorker extends Worker {
+
+    private static final String WORK_NAME = "uplink-window";
+
+    public UplinkWindowWorker(Context context, WorkerParameters parameters) {
+        super(context, parameters);
+    }
+
+    // Queues a window unless one is already waiting
+    public static void schedule(Context context, long delayMillis) {
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.KEEP,
+                request(delayMillis));
+    }
+
+    private static OneTimeWorkRequest request(long delayMillis) {
+        return new OneTimeWorkRequest.Builder(UplinkWindowWorker.class)
+                .setConstraints(new Constraints.Builder()
+                        .setRequiredNetworkType(NetworkType.CONNECTED)
+                        .build())
+                .setInitialDelay(delayMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @Override
+    public Result doWork() {
+        PowerScheduler scheduler = PowerScheduler.get();
+        scheduler.openWindow(PowerScheduler.Lane.UPLINK);
+        if (scheduler.isDeferred(PowerScheduler.Lane.UPLINK)) {
+            // Appended work starts once this run has finished
+            WorkManager.getInstance(getApplicationContext()).enqueueUniqueWork(WORK_NAME,
+                    ExistingWorkPolicy.APPEND_OR_REPLACE,
+                    request(scheduler.getIntervalMillis(PowerScheduler.Lane.UPLINK)));
+        }
+        return Result.success();
+    }
+}
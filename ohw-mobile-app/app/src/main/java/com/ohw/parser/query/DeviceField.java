@@ -0,0 +1,131 @@
+package com.ohw.parser.query;
+
+import com.google.gson.stream.JsonWriter;
+import com.ohw.parser.models.DeviceData;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.List;
+
+public enum DeviceField {
+    IMEI("imei") {
+        @Override
+        void write(JsonWriter writer, DeviceData device) throws IOException {
+            writer.value(device.getImei());
+        }
+    },
+    CLIENT_ADDRESS("clientAddress") {
+        @Override
+        void write(JsonWriter writer, DeviceData device) throws IOException {
+            writer.value(device.getClientAddress());
+        }
+    },
+    LAST_SEEN("lastSeen") {
+        @Override
+        void write(JsonWriter writer, DeviceData device) throws IOException {
+            writer.value(device.getLastSeenText());
+        }
+    },
+    TOTAL_RECORDS("totalRecords") {
+        @Override
+        void write(JsonWriter writer, DeviceData device) throws IOException {
+            writer.value(device.getTotalRecords());
+        }
+    },
+    ONLINE("isOnline") {
+        @Override
+        void write(JsonWriter writer, DeviceData device) throws IOException {
+            writer.value(device.isOnline());
+        }
+    },
+    STALE("isStale") {
+        @Override
+        void write(JsonWriter writer, DeviceData device) throws IOException {
+            writer.value(device.isStale());
+        }
+    },
+    LATITUDE("latitude") {
+        @Override
+        void write(JsonWriter writer, DeviceData device) throws IOException {
+            writer.value(device.getLatitude());
+        }
+    },
+    LONGITUDE("longitude") {
+        @Override
+        void write(JsonWriter writer, DeviceData device) throws IOException {
+            writer.value(device.getLongitude());
+        }
+    },
+    SPEED("speed") {
+        @Override
+        void write(JsonWriter writer, DeviceData device) throws IOException {
+            writer.value(device.getSpeed());
+        }
+    },
+    SATELLITES("satellites") {
+        @Override
+        void write(JsonWriter writer, DeviceData device) throws IOException {
+            writer.value(device.getSatellites());
+        }
+    },
+    BATTERY_VOLTAGE("batteryVoltage") {
+        @Override
+        void write(JsonWriter writer, DeviceData device) throws IOException {
+            writer.value(device.getBatteryVoltage());
+        }
+    },
+    SUPPLY_VOLTAGE("supplyVoltage") {
+        @Override
+        void write(JsonWriter writer, DeviceData device) throws IOException {
+            writer.value(device.getSupplyVoltage());
+        }
+    };
+
+    private final String jsonName;
+
+    DeviceField(String jsonName) {
+        this.jsonName = jsonName;
+    }
+
+    public String getJsonName() {
+        return jsonName;
+    }
+
+    abstract void write(JsonWriter writer, DeviceData device) throws IOException;
+
+    public static DeviceField fromJsonName(String name) {
+        for (DeviceField field : values()) {
+            if (field.jsonName.equals(name)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    // Unknown names are ignored; an empty or missing projection selects every field
+    public static EnumSet<DeviceField> parseProjection(List<String> names) {
+        EnumSet<DeviceField> fields = EnumSet.noneOf(DeviceField.class);
+        if (names != null) {
+            for (String name : names) {
+                DeviceField field = fromJsonName(name);
+                if (field != null) {
+                    fields.add(field);
+                }
+            }
+        }
+        if (fields.isEmpty()) {
+            return EnumSet.allOf(DeviceField.class);
+        }
+        return fields;
+    }
+
+    public static void writeDevice(JsonWriter writer, DeviceData device, EnumSet<DeviceField> fields)
+            throws IOException {
+        writer.beginObject();
+        for (DeviceField field : fields) {
+            writer.name(field.jsonName);
+            field.write(writer, device);
+        }
+        writer.endObject();
+    }
+}
@@ -0,0 +1,41 @@
+package com.ohw.parser.query;
+
+import java.util.EnumSet;
+
+public class DevicePage {
+
+    private final DeviceSnapshot snapshot;
+    private final int offset;
+    private final int count;
+    private final String nextCursor;
+    private final EnumSet<DeviceField> fields;
+
+    DevicePage(DeviceSnapshot snapshot, int offset, int count, String nextCursor,
+               EnumSet<DeviceField> fields) {
+        this.snapshot = snapshot;
+        this.offset = offset;
+        this.count = count;
+        this.nextCursor = nextCursor;
+        this.fields = fields;
+    }
+
+    public DeviceSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public EnumSet<DeviceField> getFields() {
+        return fields;
+    }
+}
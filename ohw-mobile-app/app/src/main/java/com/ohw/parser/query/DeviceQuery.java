@@ -0,0 +1,91 @@
+package com.ohw.parser.query;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+public class DeviceQuery {
+
+    public static final int DEFAULT_LIMIT = 500;
+    public static final int MAX_LIMIT = 10000;
+
+    public enum SortOrder {
+        LAST_SEEN_DESC,
+        LAST_SEEN_ASC
+    }
+
+    private int limit = DEFAULT_LIMIT;
+    private String cursor;
+    private EnumSet<DeviceField> fields = EnumSet.allOf(DeviceField.class);
+    private SortOrder sortOrder = SortOrder.LAST_SEEN_DESC;
+
+    public static DeviceQuery fromJson(JsonObject body) {
+        DeviceQuery query = new DeviceQuery();
+        if (body == null) {
+            return query;
+        }
+
+        if (body.has("limit") && body.get("limit").isJsonPrimitive()) {
+            query.setLimit(body.get("limit").getAsInt());
+        }
+        if (body.has("cursor") && body.get("cursor").isJsonPrimitive()) {
+            query.setCursor(body.get("cursor").getAsString());
+        }
+        if (body.has("fields") && body.get("fields").isJsonArray()) {
+            JsonArray array = body.getAsJsonArray("fields");
+            List<String> names = new ArrayList<>(array.size());
+            for (JsonElement element : array) {
+                if (element.isJsonPrimitive()) {
+                    names.add(element.getAsString());
+                }
+            }
+            query.setFields(DeviceField.parseProjection(names));
+        }
+        if (body.has("sort") && body.get("sort").isJsonPrimitive()) {
+            String sort = body.get("sort").getAsString();
+            query.setSortOrder("last_seen_asc".equalsIgnoreCase(sort)
+                    ? SortOrder.LAST_SEEN_ASC : SortOrder.LAST_SEEN_DESC);
+        }
+        return query;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        if (limit <= 0) {
+            this.limit = DEFAULT_LIMIT;
+        } else {
+            this.limit = Math.min(limit, MAX_LIMIT);
+        }
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public EnumSet<DeviceField> getFields() {
+        return fields;
+    }
+
+    public void setFields(EnumSet<DeviceField> fields) {
+        this.fields = fields;
+    }
+
+    public SortOrder getSortOrder() {
+        return sortOrder;
+    }
+
+    public void setSortOrder(SortOrder sortOrder) {
+        this.sortOrder = sortOrder;
+    }
+}
@@ -0,0 +1,102 @@
+package com.ohw.parser.query;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DeviceQueryEngine {
+
+    private static final long SNAPSHOT_TTL_MS = 60000; // 60 seconds
+    private static final int MAX_SNAPSHOTS = 16;
+
+    private final DeviceSource source;
+    private final AtomicLong snapshotIds = new AtomicLong();
+    private final LinkedHashMap<Long, DeviceSnapshot> snapshots = new LinkedHashMap<>();
+
+    public DeviceQueryEngine(DeviceSource source) {
+        this.source = source;
+    }
+
+    public DevicePage query(DeviceQuery query) throws InvalidCursorException {
+        DeviceSnapshot snapshot;
+        int offset;
+
+        if (query.getCursor() == null || query.getCursor().isEmpty()) {
+            snapshot = new DeviceSnapshot(snapshotIds.incrementAndGet(),
+                    source.snapshotDevices(), query.getSortOrder());
+            offset = 0;
+        } else {
+            long snapshotId;
+            try {
+                int separator = query.getCursor().indexOf('.');
+                snapshotId = Long.parseLong(query.getCursor().substring(0, separator));
+                offset = Integer.parseInt(query.getCursor().substring(separator + 1));
+            } catch (RuntimeException e) {
+                throw new InvalidCursorException("Malformed cursor: " + query.getCursor());
+            }
+            snapshot = findSnapshot(snapshotId);
+            if (snapshot == null) {
+                throw new InvalidCursorException("Cursor expired: " + query.getCursor());
+            }
+            if (offset < 0 || offset > snapshot.size()) {
+                throw new InvalidCursorException("Cursor out of range: " + query.getCursor());
+            }
+        }
+
+        int count = Math.min(query.getLimit(), snapshot.size() - offset);
+        String nextCursor = null;
+        if (offset + count < snapshot.size()) {
+            nextCursor = snapshot.getId() + "." + (offset + count);
+            retainSnapshot(snapshot);
+        }
+        return new DevicePage(snapshot, offset, count, nextCursor, query.getFields());
+    }
+
+    // Streams the page body; callers own the surrounding envelope object
+    public static void writeDevices(JsonWriter writer, DevicePage page) throws IOException {
+        DeviceSnapshot snapshot = page.getSnapshot();
+        writer.beginArray();
+        int end = page.getOffset() + page.getCount();
+        for (int i = page.getOffset(); i < end; i++) {
+            DeviceField.writeDevice(writer, snapshot.get(i), page.getFields());
+        }
+        writer.endArray();
+    }
+
+    private synchronized DeviceSnapshot findSnapshot(long id) {
+        expireSnapshots();
+        return snapshots.get(id);
+    }
+
+    private synchronized void retainSnapshot(DeviceSnapshot snapshot) {
+        expireSnapshots();
+        snapshots.put(snapshot.getId(), snapshot);
+        while (snapshots.size() > MAX_SNAPSHOTS) {
+            Iterator<Long> oldest = snapshots.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private void expireSnapshots() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Long, DeviceSnapshot>> iterator = snapshots.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue().getCreatedAtMillis() > SNAPSHOT_TTL_MS) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public static class InvalidCursorException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidCursorException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.ohw.parser.query;
+
+import com.ohw.parser.models.DeviceData;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Immutable, sorted point-in-time copy of the device table that pages are cut from
+public class DeviceSnapshot {
+
+    private static final Comparator<DeviceData> LAST_SEEN_ASC = new Comparator<DeviceData>() {
+        @Override
+        public int compare(DeviceData a, DeviceData b) {
+            LocalDateTime left = a.getLastSeen();
+            LocalDateTime right = b.getLastSeen();
+            int result;
+            if (left == null || right == null) {
+                result = left == null ? (right == null ? 0 : -1) : 1;
+            } else {
+                result = left.compareTo(right);
+            }
+            if (result == 0) {
+                result = String.valueOf(a.getImei()).compareTo(String.valueOf(b.getImei()));
+            }
+            return result;
+        }
+    };
+
+    private final long id;
+    private final long createdAtMillis;
+    private final DeviceQuery.SortOrder sortOrder;
+    private final DeviceData[] devices;
+
+    DeviceSnapshot(long id, List<DeviceData> devices, DeviceQuery.SortOrder sortOrder) {
+        this.id = id;
+        this.createdAtMillis = System.currentTimeMillis();
+        this.sortOrder = sortOrder;
+        this.devices = devices.toArray(new DeviceData[0]);
+        Arrays.sort(this.devices, sortOrder == DeviceQuery.SortOrder.LAST_SEEN_ASC
+                ? LAST_SEEN_ASC : LAST_SEEN_ASC.reversed());
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getCreatedAtMillis() {
+        return createdAtMillis;
+    }
+
+    public DeviceQuery.SortOrder getSortOrder() {
+        return sortOrder;
+    }
+
+    public int size() {
+        return devices.length;
+    }
+
+    public DeviceData get(int index) {
+        return devices[index];
+    }
+}
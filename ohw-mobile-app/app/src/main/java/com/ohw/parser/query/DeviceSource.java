@@ -0,0 +1,11 @@
+package com.ohw.parser.query;
+
+import com.ohw.parser.models.DeviceData;
+
+import java.util.List;
+
+public interface DeviceSource {
+
+    // Returns detached copies of the current device state
+    List<DeviceData> snapshotDevices();
+}
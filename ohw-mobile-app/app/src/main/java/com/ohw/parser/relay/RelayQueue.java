@@ -0,0 +1,335 @@
+package com.ohw.parser.relay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Disk-backed FIFO between ingestion and the uplink. Producers only copy an
+// encoded record into a staging buffer; the relay thread writes staged records
+// to the current segment file in one write per flush. Records are numbered by
+// sequence, and the sequence below which everything has been delivered is kept
+// in a cursor file, so a restart resends from the first unacknowledged record.
+//
+// Segment files are named by their first sequence number and hold
+//   length (4) | record bytes
+// entries. Segments wholly below the cursor are deleted.
+class RelayQueue {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE = "cursor";
+
+    private final File directory;
+    private final long segmentBytes;
+    private final int maxStagedBytes;
+
+    // Staged records, guarded by stageLock
+    private final Object stageLock = new Object();
+    private byte[] stage = new byte[64 * 1024];
+    private byte[] spare = new byte[64 * 1024];
+    private int stagedBytes;
+    private int stagedRecords;
+    private long stagedDropped;
+
+    // Relay thread only
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private FileChannel writer;
+    private long writerStart;
+    private volatile long diskBytes;
+    private FileChannel reader;
+    private long readerStart = -1;
+    private long readerSeq;
+    private long readerPosition;
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+
+    private volatile long written;     // records below this are on disk
+    private volatile long acknowledged;
+    private long persisted;
+
+    RelayQueue(File directory, long segmentBytes, int maxStagedBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxStagedBytes = maxStagedBytes;
+    }
+
+    // Recovers segments and the cursor; a torn tail entry from a crash is cut off
+    void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                    } catch (NumberFormatException e) {
+                        // Not ours
+                    }
+                }
+            }
+        }
+        acknowledged = readCursor();
+        persisted = acknowledged;
+        long next = acknowledged;
+        if (!segments.isEmpty()) {
+            Map.Entry<Long, File> last = segments.lastEntry();
+            writerStart = last.getKey();
+            writer = new RandomAccessFile(last.getValue(), "rw").getChannel();
+            long records = 0;
+            long position = 0;
+            ByteBuffer length = ByteBuffer.allocate(4);
+            while (true) {
+                length.clear();
+                if (writer.read(length, position) < 4) {
+                    break;
+                }
+                long end = position + 4 + length.getInt(0);
+                if (length.getInt(0) < 0 || end > writer.size()) {
+                    break;
+                }
+                position = end;
+                records++;
+            }
+            writer.truncate(position);
+            writer.position(position);
+            next = Math.max(next, writerStart + records);
+            for (File file : segments.values()) {
+                diskBytes += file.length();
+            }
+            // Records below the first segment were dropped while over the size limit
+            acknowledged = Math.min(Math.max(acknowledged, segments.firstKey()), next);
+        }
+        written = next;
+    }
+
+    // Copies the record into the staging buffer; returns the bytes now staged, or -1
+    // when the buffer is full
+    int offer(byte[] record) {
+        synchronized (stageLock) {
+            int needed = stagedBytes + 4 + record.length;
+            if (needed > stage.length) {
+                if (needed > maxStagedBytes) {
+                    stagedDropped++;
+                    return -1;
+                }
+                stage = Arrays.copyOf(stage, Math.min(maxStagedBytes, Math.max(needed, stage.length * 2)));
+            }
+            ByteBuffer.wrap(stage, stagedBytes, 4).putInt(record.length);
+            System.arraycopy(record, 0, stage, stagedBytes + 4, record.length);
+            stagedBytes += 4 + record.length;
+            stagedRecords++;
+            return stagedBytes;
+        }
+    }
+
+    // Writes staged records to disk; returns how many
+    int flush() throws IOException {
+        byte[] buffer;
+        int bytes;
+        int records;
+        synchronized (stageLock) {
+            if (stagedRecords == 0) {
+                return 0;
+            }
+            buffer = stage;
+            bytes = stagedBytes;
+            records = stagedRecords;
+            stage = spare.length >= buffer.length ? spare : new byte[buffer.length];
+            spare = buffer;
+            stagedBytes = 0;
+            stagedRecords = 0;
+        }
+        if (writer == null || writer.size() >= segmentBytes) {
+            roll();
+        }
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytes);
+        while (data.hasRemaining()) {
+            writer.write(data);
+        }
+        writer.force(false);
+        diskBytes += bytes;
+        written += records;
+        return records;
+    }
+
+    private void roll() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+        writerStart = written;
+        File file = new File(directory, String.format("%020d%s", writerStart, SEGMENT_SUFFIX));
+        segments.put(writerStart, file);
+        writer = new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    // Reads up to maxRecords records starting at sequence from, stopping before maxBytes
+    // would be exceeded (but always at least one); returns the number read
+    int read(long from, int maxRecords, int maxBytes, List<byte[]> out) throws IOException {
+        long end = Math.min(written, from + maxRecords);
+        int bytes = 0;
+        long seq = from;
+        while (seq < end) {
+            if (!positionReader(seq)) {
+                break;
+            }
+            int length = readLength();
+            if (seq > from && bytes + length > maxBytes) {
+                break;
+            }
+            byte[] record = new byte[length];
+            readFully(ByteBuffer.wrap(record), readerPosition + 4);
+            out.add(record);
+            bytes += length;
+            readerPosition += 4 + length;
+            readerSeq = ++seq;
+        }
+        return (int) (seq - from);
+    }
+
+    // Places the reader at the entry of seq, scanning forward only when it jumped
+    private boolean positionReader(long seq) throws IOException {
+        Map.Entry<Long, File> segment = segments.floorEntry(seq);
+        if (segment == null) {
+            return false;
+        }
+        if (reader == null || readerStart != segment.getKey() || readerSeq > seq) {
+            if (reader != null) {
+                reader.close();
+            }
+            reader = new RandomAccessFile(segment.getValue(), "r").getChannel();
+            readerStart = segment.getKey();
+            readerSeq = readerStart;
+            readerPosition = 0;
+        }
+        while (readerSeq < seq) {
+            readerPosition += 4 + readLength();
+            readerSeq++;
+        }
+        return true;
+    }
+
+    private int readLength() throws IOException {
+        lengthBuffer.clear();
+        readFully(lengthBuffer, readerPosition);
+        return lengthBuffer.getInt(0);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = reader.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Relay segment ends early at sequence " + readerSeq);
+            }
+            position += n;
+        }
+    }
+
+    // Everything below seq was delivered: drop finished segments, and persist the
+    // cursor when asked to (a stale cursor only means resending after a crash)
+    void acknowledge(long seq, boolean persist) throws IOException {
+        if (seq > acknowledged) {
+            acknowledged = seq;
+            deleteBelow(seq);
+        }
+        if (persist && acknowledged != persisted) {
+            writeCursor(acknowledged);
+        }
+    }
+
+    // Drops the oldest segments until the queue fits in maxBytes; returns the records dropped
+    long trim(long maxBytes) throws IOException {
+        long dropped = 0;
+        while (diskBytes > maxBytes && segments.size() > 1) {
+            long start = segments.firstKey();
+            long next = segments.higherKey(start);
+            if (next > acknowledged) {
+                dropped += next - Math.max(start, acknowledged);
+                acknowledged = next;
+                writeCursor(next);
+            }
+            deleteBelow(next);
+        }
+        return dropped;
+    }
+
+    private void deleteBelow(long seq) throws IOException {
+        while (segments.size() > 1) {
+            Map.Entry<Long, File> first = segments.firstEntry();
+            Long next = segments.higherKey(first.getKey());
+            if (next > seq) {
+                break;
+            }
+            if (reader != null && readerStart == first.getKey()) {
+                reader.close();
+                reader = null;
+                readerStart = -1;
+            }
+            diskBytes -= first.getValue().length();
+            if (!first.getValue().delete()) {
+                throw new IOException("Cannot delete " + first.getValue());
+            }
+            segments.remove(first.getKey());
+        }
+    }
+
+    private long readCursor() throws IOException {
+        File file = new File(directory, CURSOR_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return in.length() >= 8 ? in.readLong() : 0;
+        }
+    }
+
+    private void writeCursor(long seq) throws IOException {
+        File file = new File(directory, CURSOR_FILE);
+        File temp = new File(directory, CURSOR_FILE + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            out.setLength(0);
+            out.writeLong(seq);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+        persisted = seq;
+    }
+
+    void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    long getWritten() {
+        return written;
+    }
+
+    long getAcknowledged() {
+        return acknowledged;
+    }
+
+    long getDiskBytes() {
+        return diskBytes;
+    }
+
+    // Records refused because the staging buffer was full
+    long getStagedDropped() {
+        synchronized (stageLock) {
+            return stagedDropped;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.ohw.parser.relay;
+
+import com.google.gson.stream.JsonWriter;
+import com.ohw.parser.models.ParsedPacket;
+import com.ohw.parser.parsers.ImeiCodec;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.Map;
+
+// Upstream form of one record: a JSON object on its own line, so a batch body is
+// newline-delimited JSON. Records are encoded once, on the ingest shard, and
+// kept in this form in the relay queue. A record's sequence number is the
+// batch's first sequence plus its line index.
+public final class RelayRecords {
+
+    private RelayRecords() {
+    }
+
+    public static byte[] encode(long imei, ParsedPacket packet, long receivedAtMillis) {
+        StringWriter buffer = new StringWriter(256);
+        try {
+            JsonWriter writer = new JsonWriter(buffer);
+            writer.beginObject();
+            writer.name("imei").value(ImeiCodec.format(imei));
+            writer.name("receivedAt").value(receivedAtMillis);
+            if (packet.getTimestamp() != null) {
+                writer.name("time").value(packet.getTimestamp().toEpochSecond(ZoneOffset.UTC) * 1000L);
+            }
+            if (packet.hasValidCoordinates()) {
+                writer.name("latitude").value(packet.getLatitude());
+                writer.name("longitude").value(packet.getLongitude());
+                writer.name("speed").value(packet.getSpeed());
+                writer.name("direction").value(packet.getDirection());
+                writer.name("height").value(packet.getHeight());
+                writer.name("satellites").value(packet.getSatellites());
+            }
+            if (packet.hasValidVoltage()) {
+                writer.name("batteryVoltage").value(packet.getBatteryVoltage());
+                writer.name("supplyVoltage").value(packet.getSupplyVoltage());
+            }
+            if (packet.hasStatus()) {
+                writer.name("status").value(packet.getStatus());
+            }
+            Map<String, Object> data = packet.getAdditionalData();
+            if (data != null && !data.isEmpty()) {
+                writer.name("data").beginObject();
+                for (Map.Entry<String, Object> entry : data.entrySet()) {
+                    Object value = entry.getValue();
+                    writer.name(entry.getKey());
+                    if (value instanceof Number) {
+                        writer.value((Number) value);
+                    } else if (value instanceof Boolean) {
+                        writer.value((Boolean) value);
+                    } else if (value == null) {
+                        writer.nullValue();
+                    } else {
+                        writer.value(value.toString());
+                    }
+                }
+                writer.endObject();
+            }
+            writer.endObject();
+            writer.flush();
+        } catch (IOException e) {
+            // A StringWriter does not fail
+            throw new IllegalStateException(e);
+        }
+        buffer.append('\n');
+        return buffer.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,552 @@
+package com.ohw.parser.relay;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.ohw.parser.journal.EventJournal;
+import com.ohw.parser.journal.EventType;
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.models.ParsedPacket;
+import com.ohw.parser.power.PowerScheduler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+// Store-and-forward of decoded records to a central server over a flaky uplink.
+// Ingest shards only encode a record and stage it in the RelayQueue; the relay
+// thread writes staged records to disk and drains them to the server on the
+// PowerScheduler's persistence and uplink lanes, so on battery the radio comes
+// up for one large drain instead of a trickle. A drain cuts the records into
+// gzipped newline-delimited JSON batches and keeps up to maxInFlight POSTs
+// going at once until nothing is left. A failed batch is retried first, after
+// an exponential backoff with jitter, and the persisted cursor only moves past
+// a batch once it and every batch before it were acknowledged. Only a 400, 413
+// or 422, which say the payload itself is bad, drops a batch. Delivery is at
+// least once: the receiver drops repeats by gateway id and sequence number.
+public class UplinkRelay {
+
+    public static class Config {
+        public String url;                          // POST target; the relay is off while null
+        public int maxBatchRecords = 500;
+        public int maxBatchBytes = 256 * 1024;      // before compression
+        public int maxInFlight = 4;
+        public long minBackoffMillis = 1000;        // 1 second
+        public long maxBackoffMillis = 60000;       // 1 minute
+        public int connectTimeoutMillis = 10000;
+        public int readTimeoutMillis = 30000;
+        public long maxQueueBytes = 256L * 1024 * 1024;
+    }
+
+    private static final String TAG = "UplinkRelay";
+    private static final Gson GSON = new Gson();
+    private static final long SEGMENT_BYTES = 4L * 1024 * 1024;
+    private static final int MAX_STAGED_BYTES = 8 * 1024 * 1024;
+    private static final int EARLY_FLUSH_BYTES = 1024 * 1024;
+    private static final long CURSOR_INTERVAL_MILLIS = 1000;
+    private static final int MAX_BATCHES_PER_PASS = 64;
+    // While deferred the uplink waits for a WorkManager window, but never longer than this many intervals
+    private static final int DEFERRED_FALLBACK_FACTOR = 4;
+    private static final String GATEWAY_ID_FILE = "gateway-id";
+
+    private static final class Batch {
+        final long first;
+        final int count;
+        final byte[] body;
+
+        Batch(long first, int count, byte[] body) {
+            this.first = first;
+            this.count = count;
+            this.body = body;
+        }
+    }
+
+    private volatile Config config;
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+    private final EventJournal journal = EventJournal.get();
+    private final PowerScheduler power = PowerScheduler.get();
+    private final Runnable windowListener = this::onWindow;
+    private volatile RelayQueue queue;
+    private String gatewayId;
+    private Thread thread;
+    private ExecutorService senders;
+    private volatile boolean running;
+    private volatile boolean flushRequested;
+    private volatile boolean windowOpen;
+    private volatile long stagedSinceMillis;    // first record staged since the last flush, or 0
+
+    // Delivery state, guarded by lock
+    private final Object lock = new Object();
+    private boolean signalled;                  // something changed since the relay thread last looked
+    private final PriorityQueue<Batch> retries = new PriorityQueue<>(8, (a, b) -> Long.compare(a.first, b.first));
+    private final TreeMap<Long, Integer> delivered = new TreeMap<>();
+    private int inFlight;
+    private long backoffMillis;
+    private long backoffUntil;
+
+    // Relay thread only: next sequence to cut into a new batch
+    private long nextSend;
+    private long cursorWrittenMillis;
+    private boolean draining;
+    private int drainRecords;
+    private long drainEndMillis;
+
+    public UplinkRelay(Config config) {
+        this.config = config;
+    }
+
+    public void setConfig(Config config) {
+        this.config = config;
+        wake();
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public void loadConfig(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            Config loaded = GSON.fromJson(reader, Config.class);
+            if (loaded != null) {
+                setConfig(loaded);
+            }
+        }
+    }
+
+    public void saveConfig(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            GSON.toJson(config, writer);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    // Recovers the queue and its cursor from the directory; call before start()
+    public void open(File directory) throws IOException {
+        RelayQueue opened = new RelayQueue(directory, SEGMENT_BYTES, MAX_STAGED_BYTES);
+        opened.open();
+        gatewayId = readGatewayId(new File(directory, GATEWAY_ID_FILE));
+        nextSend = opened.getAcknowledged();
+        queue = opened;
+    }
+
+    public synchronized void start() {
+        if (queue == null || running) {
+            return;
+        }
+        running = true;
+        power.addWindowListener(PowerScheduler.Lane.UPLINK, windowListener);
+        senders = Executors.newCachedThreadPool();
+        thread = new Thread(this::run, "uplink-relay");
+        thread.start();
+    }
+
+    // Writes out what is staged; batches still in flight are resent after a restart
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        power.removeWindowListener(PowerScheduler.Lane.UPLINK, windowListener);
+        wake();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        senders.shutdown();
+        try {
+            senders.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            queue.flush();
+            acknowledgeDelivered(true);
+            queue.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing relay queue", e);
+        }
+    }
+
+    // Called on the ingest shard; never blocks on disk or network
+    public void offer(long imei, ParsedPacket packet, long receivedAtMillis) {
+        RelayQueue current = queue;
+        if (current == null || config.url == null) {
+            return;
+        }
+        byte[] record = RelayRecords.encode(imei, packet, receivedAtMillis);
+        int staged = current.offer(record);
+        if (staged < 0) {
+            metrics.relayRecordsDropped.increment();
+            return;
+        }
+        metrics.relayRecordsQueued.increment();
+        if (staged == 4 + record.length) {
+            // First record since the last flush: the persistence interval starts now
+            stagedSinceMillis = System.currentTimeMillis();
+            wake();
+        } else if (staged >= EARLY_FLUSH_BYTES && !flushRequested) {
+            // A burst: write it out before the staging buffer fills up
+            flushRequested = true;
+            wake();
+        }
+    }
+
+    // A WorkManager window: the network is up, so drain now whatever the interval says
+    private void onWindow() {
+        windowOpen = true;
+        wake();
+    }
+
+    private void wake() {
+        synchronized (lock) {
+            signalled = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            Config current = config;
+            long wakeAt = Long.MAX_VALUE;
+            try {
+                long now = System.currentTimeMillis();
+                long stagedSince = stagedSinceMillis;
+                if (flushRequested) {
+                    flush();
+                } else if (stagedSince != 0) {
+                    long due = stagedSince + power.getIntervalMillis(PowerScheduler.Lane.PERSISTENCE);
+                    if (now >= due) {
+                        flush();
+                    } else {
+                        wakeAt = due;
+                    }
+                }
+                long dropped = queue.trim(current.maxQueueBytes);
+                if (dropped > 0) {
+                    metrics.relayRecordsDropped.add(dropped);
+                    journal.emit(EventType.RELAY_RECORDS_DROPPED, dropped);
+                }
+                boolean persist = now - cursorWrittenMillis >= CURSOR_INTERVAL_MILLIS;
+                if (persist) {
+                    cursorWrittenMillis = now;
+                }
+                acknowledgeDelivered(persist);
+                if (current.url != null) {
+                    wakeAt = Math.min(wakeAt, drain(current, now));
+                }
+            } catch (IOException e) {
+                journal.emitError(EventType.RELAY_QUEUE_ERROR, nextSend, e);
+                wakeAt = Math.min(wakeAt, System.currentTimeMillis() + current.minBackoffMillis);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error in uplink relay", e);
+                wakeAt = Math.min(wakeAt, System.currentTimeMillis() + current.minBackoffMillis);
+            }
+            synchronized (lock) {
+                try {
+                    // Offers, completions, windows and stop() all signal, so an idle relay sleeps until one does
+                    if (!signalled && running) {
+                        if (wakeAt == Long.MAX_VALUE) {
+                            lock.wait();
+                        } else {
+                            long delay = wakeAt - System.currentTimeMillis();
+                            if (delay > 0) {
+                                lock.wait(delay);
+                            }
+                        }
+                    }
+                    signalled = false;
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        flushRequested = false;
+        stagedSinceMillis = 0;
+        int flushed = queue.flush();
+        if (flushed > 0) {
+            power.recordWakeup(PowerScheduler.Lane.PERSISTENCE, flushed);
+        }
+    }
+
+    // Moves the cursor over the batches acknowledged without a gap
+    private void acknowledgeDelivered(boolean persist) throws IOException {
+        long cursor = queue.getAcknowledged();
+        synchronized (lock) {
+            // Batches may start below the cursor when the size limit moved it
+            while (!delivered.isEmpty() && delivered.firstKey() <= cursor) {
+                Map.Entry<Long, Integer> batch = delivered.pollFirstEntry();
+                cursor = Math.max(cursor, batch.getKey() + batch.getValue());
+            }
+        }
+        queue.acknowledge(cursor, persist);
+        if (nextSend < queue.getAcknowledged()) {
+            // The size limit dropped records that were never cut into a batch
+            nextSend = queue.getAcknowledged();
+        }
+    }
+
+    // Starts a drain when a window opens, a full uplink batch is on disk or the
+    // uplink interval has passed since the last drain, and keeps it going until
+    // everything sent is acknowledged; returns when the relay must look again
+    private long drain(Config current, long now) throws IOException {
+        boolean window = windowOpen;
+        windowOpen = false;
+        boolean pending;
+        synchronized (lock) {
+            pending = nextSend < queue.getWritten() || !retries.isEmpty() || inFlight > 0;
+        }
+        if (!draining) {
+            if (!pending) {
+                return Long.MAX_VALUE;
+            }
+            long interval = power.getIntervalMillis(PowerScheduler.Lane.UPLINK);
+            if (power.isDeferred(PowerScheduler.Lane.UPLINK)) {
+                interval *= DEFERRED_FALLBACK_FACTOR;
+            }
+            long due = drainEndMillis + interval;
+            boolean full = queue.getWritten() - nextSend >= power.getBatchRecords(PowerScheduler.Lane.UPLINK);
+            if (!window && !full && now < due) {
+                return due;
+            }
+            draining = true;
+            drainRecords = 0;
+        }
+        if (!pending) {
+            // Everything sent was acknowledged; the radio may sleep until the next drain
+            draining = false;
+            drainEndMillis = now;
+            power.recordWakeup(PowerScheduler.Lane.UPLINK, drainRecords);
+            acknowledgeDelivered(true);
+            cursorWrittenMillis = now;
+            return Long.MAX_VALUE;
+        }
+        drainRecords += dispatch(current);
+        synchronized (lock) {
+            // Completions signal; only a backoff needs a timed wait
+            return backoffUntil > now ? backoffUntil : Long.MAX_VALUE;
+        }
+    }
+
+    // Keeps maxInFlight sends going; returns the number of records started. A
+    // burst staged meanwhile is written out between batches so it cannot overflow
+    private int dispatch(Config current) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        int sent = 0;
+        for (int started = 0; started < MAX_BATCHES_PER_PASS; started++) {
+            Batch batch;
+            synchronized (lock) {
+                if (inFlight >= current.maxInFlight || System.currentTimeMillis() < backoffUntil) {
+                    return sent;
+                }
+                batch = retries.poll();
+                while (batch != null && batch.first + batch.count <= queue.getAcknowledged()) {
+                    // Dropped by the size limit while waiting for its retry
+                    batch = retries.poll();
+                }
+                if (batch == null && nextSend >= queue.getWritten()) {
+                    return sent;
+                }
+                inFlight++;
+            }
+            final Batch sending;
+            try {
+                if (batch == null) {
+                    records.clear();
+                    int count = queue.read(nextSend, current.maxBatchRecords, current.maxBatchBytes, records);
+                    batch = new Batch(nextSend, count, compress(records));
+                    nextSend += count;
+                }
+                sending = batch;
+                senders.execute(() -> send(sending, current));
+            } catch (IOException | RuntimeException e) {
+                // The send never started; give its slot back or the relay stalls at maxInFlight
+                synchronized (lock) {
+                    if (batch != null) {
+                        retries.add(batch);
+                    }
+                    inFlight--;
+                }
+                throw e;
+            }
+            sent += sending.count;
+            if (flushRequested) {
+                flush();
+            }
+        }
+        // More to cut: look again straight away
+        wake();
+        return sent;
+    }
+
+    private void send(Batch batch, Config current) {
+        long start = System.nanoTime();
+        int status = -1;
+        try {
+            status = post(batch, current);
+        } catch (IOException e) {
+            Log.d(TAG, "Uplink batch " + batch.first + " failed: " + e.getMessage());
+        }
+        // Only a verdict on the payload itself drops it. Auth and routing errors (401,
+        // 403, 404, a captive portal) are the gateway's problem and are retried
+        boolean rejected = status == 400 || status == 413 || status == 422;
+        if (status >= 200 && status < 300 || rejected) {
+            metrics.relayBatch.recordSince(start);
+            metrics.relayBatchesSent.increment();
+            metrics.relayBytesSent.add(batch.body.length);
+            if (rejected) {
+                // Retrying a request the server refuses would stall the queue for good
+                metrics.relayRecordsDropped.add(batch.count);
+                journal.emit(EventType.RELAY_BATCH_REJECTED, batch.first, status);
+            } else {
+                metrics.relayRecordsDelivered.add(batch.count);
+            }
+            synchronized (lock) {
+                delivered.put(batch.first, batch.count);
+                inFlight--;
+                backoffMillis = 0;
+                signalled = true;
+                lock.notifyAll();
+            }
+            return;
+        }
+        metrics.relayBatchFailures.increment();
+        if (status >= 400 && status < 500 && status != 408 && status != 429) {
+            journal.emit(EventType.RELAY_BATCH_REFUSED, batch.first, status);
+        } else {
+            journal.emit(EventType.RELAY_BATCH_FAILED, batch.first, status);
+        }
+        synchronized (lock) {
+            retries.add(batch);
+            inFlight--;
+            backoffMillis = backoffMillis == 0 ? current.minBackoffMillis
+                    : Math.min(current.maxBackoffMillis, backoffMillis * 2);
+            // Jitter keeps a fleet of gateways from retrying in lockstep
+            backoffUntil = System.currentTimeMillis() + backoffMillis / 2
+                    + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+            signalled = true;
+            lock.notifyAll();
+        }
+    }
+
+    private int post(Batch batch, Config current) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(current.url).openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(current.connectTimeoutMillis);
+            connection.setReadTimeout(current.readTimeoutMillis);
+            connection.setFixedLengthStreamingMode(batch.body.length);
+            connection.setRequestProperty("Content-Type", "application/x-ndjson");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("X-Gateway-Id", gatewayId);
+            connection.setRequestProperty("X-First-Sequence", Long.toString(batch.first));
+            connection.setRequestProperty("X-Record-Count", Integer.toString(batch.count));
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(batch.body);
+            }
+            int status = connection.getResponseCode();
+            // Read the reply to the end so the connection goes back to the keep-alive pool
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in != null) {
+                byte[] discard = new byte[1024];
+                while (in.read(discard) >= 0) {
+                    // Drain
+                }
+                in.close();
+            }
+            return status;
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private static byte[] compress(List<byte[]> records) throws IOException {
+        int size = 0;
+        for (byte[] record : records) {
+            size += record.length;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(size / 6 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(buffer, 8192);
+        for (byte[] record : records) {
+            gzip.write(record);
+        }
+        gzip.close();
+        return buffer.toByteArray();
+    }
+
+    private static String readGatewayId(File file) throws IOException {
+        if (file.exists()) {
+            byte[] bytes = new byte[(int) file.length()];
+            try (FileInputStream in = new FileInputStream(file)) {
+                int read = 0;
+                while (read < bytes.length) {
+                    int n = in.read(bytes, read, bytes.length - read);
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+            }
+            String id = new String(bytes, StandardCharsets.UTF_8).trim();
+            if (!id.isEmpty()) {
+                return id;
+            }
+        }
+        String id = UUID.randomUUID().toString();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(id.getBytes(StandardCharsets.UTF_8));
+        }
+        return id;
+    }
+
+    // Records on disk that the server has not acknowledged yet
+    public long getBacklog() {
+        RelayQueue current = queue;
+        return current != null ? current.getWritten() - current.getAcknowledged() : 0;
+    }
+
+    public int getInFlight() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    public long getQueueBytes() {
+        RelayQueue current = queue;
+        return current != null ? current.getDiskBytes() : 0;
+    }
+
+    public String getGatewayId() {
+        return gatewayId;
+    }
+}
@@ -0,0 +1,59 @@
+package com.ohw.parser.rollups;
+
+// HyperLogLog distinct counting over register blocks stored inside a larger
+// byte array, so a ring of buckets needs one allocation. 2^10 registers per
+// block give about 3% standard error.
+final class HyperLogLog {
+
+    static final int PRECISION = 10;
+    static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private HyperLogLog() {
+    }
+
+    static void add(byte[] registers, int base, long value) {
+        long hash = mix(value);
+        int index = (int) (hash >>> (64 - PRECISION));
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank > registers[base + index]) {
+            registers[base + index] = (byte) rank;
+        }
+    }
+
+    // Folds one block into a REGISTERS-sized accumulator
+    static void merge(byte[] into, byte[] registers, int base) {
+        for (int i = 0; i < REGISTERS; i++) {
+            if (registers[base + i] > into[i]) {
+                into[i] = registers[base + i];
+            }
+        }
+    }
+
+    static long estimate(byte[] registers) {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            sum += 1.0 / (1L << registers[i]);
+            if (registers[i] == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // Linear counting is more accurate while many registers are empty
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    // Finalizer of MurmurHash3; IMEIs are dense and need spreading
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
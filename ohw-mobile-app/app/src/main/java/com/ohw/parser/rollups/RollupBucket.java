@@ -0,0 +1,64 @@
+package com.ohw.parser.rollups;
+
+// Statistics of one time bucket, for one device or the whole fleet
+public class RollupBucket {
+
+    final long startMillis;
+    final long durationMillis;
+    int records;
+    int positioned;
+    double speedSum;
+    float minBattery = Float.POSITIVE_INFINITY;
+    float maxBattery = Float.NEGATIVE_INFINITY;
+    float minSupply = Float.POSITIVE_INFINITY;
+    float maxSupply = Float.NEGATIVE_INFINITY;
+    long activeDevices = -1;
+
+    RollupBucket(long startMillis, long durationMillis) {
+        this.startMillis = startMillis;
+        this.durationMillis = durationMillis;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public int getRecords() {
+        return records;
+    }
+
+    // Mean speed of the records that carried a position, km/h
+    public double getAverageSpeed() {
+        return positioned > 0 ? speedSum / positioned : 0;
+    }
+
+    // Voltage bounds; NaN when no record in the bucket carried the voltage
+    public double getMinBatteryVoltage() {
+        return bound(minBattery);
+    }
+
+    public double getMaxBatteryVoltage() {
+        return bound(maxBattery);
+    }
+
+    public double getMinSupplyVoltage() {
+        return bound(minSupply);
+    }
+
+    public double getMaxSupplyVoltage() {
+        return bound(maxSupply);
+    }
+
+    // Estimated distinct devices that reported; -1 for per-device buckets
+    public long getActiveDevices() {
+        return activeDevices;
+    }
+
+    private static double bound(float value) {
+        return Float.isInfinite(value) ? Double.NaN : value;
+    }
+}
@@ -0,0 +1,147 @@
+package com.ohw.parser.rollups;
+
+import com.ohw.parser.models.ParsedPacket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Incremental per-minute and per-hour statistics, per device and fleet-wide,
+// updated as records are applied on the ingest shards. Every record lands in
+// its minute and its hour bucket at once, so the coarse buckets are complete
+// when the fine ones age out. Fleet buckets are kept per shard to stay single
+// writer and are merged at query time; a query touches a bounded number of
+// buckets however much history or how many devices there are.
+public class RollupEngine {
+
+    public enum Resolution {
+        MINUTE("minute", 60000L, 120, 60),
+        HOUR("hour", 3600000L, 168, 48);
+
+        private final String jsonName;
+        final long bucketMillis;
+        final int fleetBuckets;
+        final int deviceBuckets;
+
+        Resolution(String jsonName, long bucketMillis, int fleetBuckets, int deviceBuckets) {
+            this.jsonName = jsonName;
+            this.bucketMillis = bucketMillis;
+            this.fleetBuckets = fleetBuckets;
+            this.deviceBuckets = deviceBuckets;
+        }
+
+        public String getJsonName() {
+            return jsonName;
+        }
+
+        // Buckets a fleet query can return
+        public int getFleetBuckets() {
+            return fleetBuckets;
+        }
+
+        // Buckets a device query can return
+        public int getDeviceBuckets() {
+            return deviceBuckets;
+        }
+
+        public static Resolution fromJsonName(String name) {
+            for (Resolution resolution : values()) {
+                if (resolution.jsonName.equals(name)) {
+                    return resolution;
+                }
+            }
+            throw new IllegalArgumentException("Unknown resolution: " + name);
+        }
+    }
+
+    private static final Resolution[] RESOLUTIONS = Resolution.values();
+
+    // [shard][resolution]
+    private final RollupRing[][] fleet;
+    private final Object growLock = new Object();
+    // [slot][resolution], created on a device's first record
+    private volatile RollupRing[][] devices = new RollupRing[1024][];
+
+    public RollupEngine(int shardCount) {
+        fleet = new RollupRing[shardCount][];
+        for (int shard = 0; shard < shardCount; shard++) {
+            fleet[shard] = new RollupRing[RESOLUTIONS.length];
+            for (Resolution resolution : RESOLUTIONS) {
+                fleet[shard][resolution.ordinal()] =
+                        new RollupRing(resolution.bucketMillis, resolution.fleetBuckets, true);
+            }
+        }
+    }
+
+    // Called on the record's shard thread; slot and imei are -1 for unidentified devices
+    public void onRecord(int shard, int slot, long imei, ParsedPacket packet, long nowMillis) {
+        RollupRing[] shardRings = fleet[shard];
+        for (RollupRing ring : shardRings) {
+            ring.add(nowMillis, imei, packet);
+        }
+        if (slot >= 0) {
+            for (RollupRing ring : ringsFor(slot, true)) {
+                ring.add(nowMillis, imei, packet);
+            }
+        }
+    }
+
+    // The last count buckets up to and including the current one, oldest first
+    public List<RollupBucket> fleet(Resolution resolution, int count, long nowMillis) {
+        count = Math.max(0, Math.min(count, resolution.fleetBuckets));
+        long current = nowMillis / resolution.bucketMillis;
+        List<RollupBucket> buckets = new ArrayList<>(count);
+        byte[] distinct = new byte[HyperLogLog.REGISTERS];
+        for (long bucket = current - count + 1; bucket <= current; bucket++) {
+            RollupBucket result = new RollupBucket(bucket * resolution.bucketMillis, resolution.bucketMillis);
+            Arrays.fill(distinct, (byte) 0);
+            for (RollupRing[] shardRings : fleet) {
+                shardRings[resolution.ordinal()].mergeInto(result, bucket, distinct);
+            }
+            result.activeDevices = result.records > 0 ? HyperLogLog.estimate(distinct) : 0;
+            buckets.add(result);
+        }
+        return buckets;
+    }
+
+    public List<RollupBucket> device(int slot, Resolution resolution, int count, long nowMillis) {
+        count = Math.max(0, Math.min(count, resolution.deviceBuckets));
+        long current = nowMillis / resolution.bucketMillis;
+        RollupRing[] rings = ringsFor(slot, false);
+        List<RollupBucket> buckets = new ArrayList<>(count);
+        for (long bucket = current - count + 1; bucket <= current; bucket++) {
+            RollupBucket result = new RollupBucket(bucket * resolution.bucketMillis, resolution.bucketMillis);
+            if (rings != null) {
+                rings[resolution.ordinal()].mergeInto(result, bucket, null);
+            }
+            buckets.add(result);
+        }
+        return buckets;
+    }
+
+    private RollupRing[] ringsFor(int slot, boolean create) {
+        RollupRing[][] current = devices;
+        if (slot < current.length && current[slot] != null) {
+            return current[slot];
+        }
+        if (!create) {
+            return null;
+        }
+        synchronized (growLock) {
+            current = devices;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, Math.max(slot + 1, current.length * 2));
+            }
+            if (current[slot] == null) {
+                RollupRing[] rings = new RollupRing[RESOLUTIONS.length];
+                for (Resolution resolution : RESOLUTIONS) {
+                    rings[resolution.ordinal()] =
+                            new RollupRing(resolution.bucketMillis, resolution.deviceBuckets, false);
+                }
+                current[slot] = rings;
+            }
+            devices = current;
+            return current[slot];
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.ohw.parser.rollups;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.List;
+
+// JSON view of rollup buckets shared by the WebSocket rollups message and HTTP
+public final class RollupReport {
+
+    private RollupReport() {
+    }
+
+    public static void writeBuckets(JsonWriter writer, List<RollupBucket> buckets) throws IOException {
+        writer.name("buckets").beginArray();
+        for (RollupBucket bucket : buckets) {
+            writer.beginObject();
+            writer.name("start").value(bucket.getStartMillis());
+            writer.name("records").value(bucket.getRecords());
+            if (bucket.getActiveDevices() >= 0) {
+                writer.name("activeDevices").value(bucket.getActiveDevices());
+            }
+            writer.name("averageSpeed").value(bucket.getAverageSpeed());
+            writeVoltage(writer, "minBatteryVoltage", bucket.getMinBatteryVoltage());
+            writeVoltage(writer, "maxBatteryVoltage", bucket.getMaxBatteryVoltage());
+            writeVoltage(writer, "minSupplyVoltage", bucket.getMinSupplyVoltage());
+            writeVoltage(writer, "maxSupplyVoltage", bucket.getMaxSupplyVoltage());
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    private static void writeVoltage(JsonWriter writer, String name, double value) throws IOException {
+        if (!Double.isNaN(value)) {
+            writer.name(name).value(Math.round(value * 1000.0) / 1000.0);
+        }
+    }
+}
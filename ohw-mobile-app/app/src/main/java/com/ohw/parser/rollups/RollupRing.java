@@ -0,0 +1,99 @@
+package com.ohw.parser.rollups;
+
+import com.ohw.parser.models.ParsedPacket;
+
+import java.util.Arrays;
+
+// Fixed number of consecutive time buckets in primitive arrays. A slot is
+// reused once time has moved a whole ring further, so old buckets age out
+// without any sweeping. Written by one shard thread; readers accept that a
+// bucket being reset may look partially filled.
+final class RollupRing {
+
+    final long bucketMillis;
+    final int size;
+    // Bucket number (time / bucketMillis) each slot holds, -1 when never used
+    final long[] number;
+    final int[] records;
+    final int[] positioned;
+    final double[] speedSum;
+    final float[] minBattery;
+    final float[] maxBattery;
+    final float[] minSupply;
+    final float[] maxSupply;
+    // HyperLogLog blocks for distinct devices, null when not tracked
+    final byte[] distinct;
+
+    RollupRing(long bucketMillis, int size, boolean trackDistinct) {
+        this.bucketMillis = bucketMillis;
+        this.size = size;
+        number = new long[size];
+        Arrays.fill(number, -1L);
+        records = new int[size];
+        positioned = new int[size];
+        speedSum = new double[size];
+        minBattery = new float[size];
+        maxBattery = new float[size];
+        minSupply = new float[size];
+        maxSupply = new float[size];
+        distinct = trackDistinct ? new byte[size * HyperLogLog.REGISTERS] : null;
+    }
+
+    void add(long nowMillis, long imei, ParsedPacket packet) {
+        long bucket = nowMillis / bucketMillis;
+        int i = (int) (bucket % size);
+        if (number[i] != bucket) {
+            reset(i, bucket);
+        }
+        records[i]++;
+        if (packet.hasValidCoordinates()) {
+            positioned[i]++;
+            speedSum[i] += packet.getSpeed();
+        }
+        float battery = (float) packet.getBatteryVoltage();
+        if (battery > 0) {
+            minBattery[i] = Math.min(minBattery[i], battery);
+            maxBattery[i] = Math.max(maxBattery[i], battery);
+        }
+        float supply = (float) packet.getSupplyVoltage();
+        if (supply > 0) {
+            minSupply[i] = Math.min(minSupply[i], supply);
+            maxSupply[i] = Math.max(maxSupply[i], supply);
+        }
+        if (distinct != null && imei >= 0) {
+            HyperLogLog.add(distinct, i * HyperLogLog.REGISTERS, imei);
+        }
+    }
+
+    private void reset(int i, long bucket) {
+        records[i] = 0;
+        positioned[i] = 0;
+        speedSum[i] = 0;
+        minBattery[i] = Float.POSITIVE_INFINITY;
+        maxBattery[i] = Float.NEGATIVE_INFINITY;
+        minSupply[i] = Float.POSITIVE_INFINITY;
+        maxSupply[i] = Float.NEGATIVE_INFINITY;
+        if (distinct != null) {
+            Arrays.fill(distinct, i * HyperLogLog.REGISTERS, (i + 1) * HyperLogLog.REGISTERS, (byte) 0);
+        }
+        number[i] = bucket;
+    }
+
+    // Adds the bucket's values to the accumulator if the ring still holds it
+    void mergeInto(RollupBucket into, long bucket, byte[] distinctInto) {
+        int i = (int) (bucket % size);
+        if (number[i] != bucket) {
+            return;
+        }
+        into.records += records[i];
+        into.positioned += positioned[i];
+        into.speedSum += speedSum[i];
+        into.minBattery = Math.min(into.minBattery, minBattery[i]);
+        into.maxBattery = Math.max(into.maxBattery, maxBattery[i]);
+        into.minSupply = Math.min(into.minSupply, minSupply[i]);
+        into.maxSupply = Math.max(into.maxSupply, maxSupply[i]);
+        if (distinct != null && distinctInto != null) {
+            HyperLogLog.merge(distinctInto, distinct, i * HyperLogLog.REGISTERS);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.ohw.parser.services;
+
+import com.ohw.parser.commands.CommandChannel;
+import com.ohw.parser.journal.EventJournal;
+import com.ohw.parser.journal.EventType;
+import com.ohw.parser.metrics.ConnectionStats;
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.parsers.FrameReader;
+import com.ohw.parser.parsers.ProtocolDecoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Per-socket state owned by the connection thread that reads from it.
+// Counters have a single writer and are read racily by the stats endpoints.
+// Writes to the socket go through writeLock: the reader thread takes it to send
+// acks (plus any queued commands), command writers only ever try it.
+class DeviceConnection implements ConnectionStats, CommandChannel {
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+    private final long id = NEXT_ID.getAndIncrement();
+    private final Socket socket;
+    private final String remoteAddress;
+    private final long connectedAtMillis;
+    private final ProtocolDecoder decoder;
+    private final FrameReader frameReader;
+    private final WriteBatch readerBatch = new WriteBatch();
+    private final WriteBatch commandBatch = new WriteBatch();
+    private final ConcurrentLinkedQueue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile OutputStream output;
+    private volatile int deviceNumber;
+    private volatile long imei = -1L;
+    private volatile int slot = -1;
+    private volatile long bytesReceived;
+    private volatile long framesReceived;
+    private volatile long framesRejected;
+    private volatile long crcFailures;
+    private volatile long acksWritten;
+    private boolean invalidImeiReported; // reader thread only
+    private boolean admissionExempt;     // reader thread only
+
+    DeviceConnection(Socket socket, ProtocolDecoder decoder) {
+        this.socket = socket;
+        this.decoder = decoder;
+        this.frameReader = decoder.newFrameReader();
+        this.remoteAddress = String.valueOf(socket.getRemoteSocketAddress());
+        this.connectedAtMillis = System.currentTimeMillis();
+    }
+
+    // Short numeric id used to correlate journal events with this socket
+    long getId() {
+        return id;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String getProtocol() {
+        return decoder.getName();
+    }
+
+    @Override
+    public long getImei() {
+        return imei;
+    }
+
+    @Override
+    public long getConnectedAtMillis() {
+        return connectedAtMillis;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public long getFramesReceived() {
+        return framesReceived;
+    }
+
+    @Override
+    public long getFramesRejected() {
+        return framesRejected;
+    }
+
+    @Override
+    public long getCrcFailures() {
+        return crcFailures;
+    }
+
+    @Override
+    public long getAcksWritten() {
+        return acksWritten;
+    }
+
+    void onBytesReceived(int count) {
+        bytesReceived += count;
+    }
+
+    void onFrameReceived(boolean accepted) {
+        framesReceived++;
+        if (!accepted) {
+            framesRejected++;
+        }
+    }
+
+    void onCrcFailure() {
+        framesReceived++;
+        framesRejected++;
+        crcFailures++;
+    }
+
+    void onAcksWritten(int count) {
+        acksWritten += count;
+    }
+
+    // Frames from an exempt connection skip the admission budget
+    boolean isAdmissionExempt() {
+        return admissionExempt;
+    }
+
+    void setAdmissionExempt(boolean admissionExempt) {
+        this.admissionExempt = admissionExempt;
+    }
+
+    // True the first time a frame with an unusable IMEI arrives on this connection
+    boolean reportInvalidImei() {
+        if (invalidImeiReported) {
+            return false;
+        }
+        invalidImeiReported = true;
+        return true;
+    }
+
+    // Protocol of the port the device connected to, fixed for the connection
+    ProtocolDecoder getDecoder() {
+        return decoder;
+    }
+
+    FrameReader getFrameReader() {
+        return frameReader;
+    }
+
+    // Batch filled by the reader thread; written under writeLock
+    WriteBatch getWriteBatch() {
+        return readerBatch;
+    }
+
+    void attachOutput(OutputStream output) {
+        this.output = output;
+    }
+
+    void lockWrites() {
+        writeLock.lock();
+    }
+
+    void unlockWrites() {
+        writeLock.unlock();
+    }
+
+    // Moves queued command packets into the batch; caller holds writeLock
+    int drainOutbound(WriteBatch batch) {
+        int drained = 0;
+        byte[] packet;
+        while ((packet = outbound.poll()) != null) {
+            batch.addPacket(packet);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public int getDeviceNumber() {
+        return deviceNumber;
+    }
+
+    void setDeviceNumber(int deviceNumber) {
+        this.deviceNumber = deviceNumber;
+    }
+
+    @Override
+    public void enqueueOutbound(byte[] packet) {
+        outbound.add(packet);
+    }
+
+    @Override
+    public void flushOutbound() {
+        OutputStream out = output;
+        if (out == null) {
+            return;
+        }
+        // Whoever holds the lock re-checks the queue after releasing it
+        while (!outbound.isEmpty() && writeLock.tryLock()) {
+            try {
+                int drained = drainOutbound(commandBatch);
+                commandBatch.writeTo(out);
+                GatewayMetrics.get().commandsWritten.add(drained);
+            } catch (IOException e) {
+                EventJournal.get().emitError(EventType.COMMAND_WRITE_ERROR, id, e);
+                outbound.clear();
+                closeQuietly();
+                return;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            socket.close(); // The reader thread sees the failure and cleans up
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    boolean isIdentified() {
+        return slot >= 0;
+    }
+
+    void identify(long imei, int slot) {
+        this.imei = imei;
+        this.slot = slot;
+    }
+}
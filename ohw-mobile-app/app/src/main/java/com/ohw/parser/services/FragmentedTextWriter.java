@@ -0,0 +1,117 @@
+package com.ohw.parser.services;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.enums.Opcode;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Writer that streams one WebSocket text message as a series of continuation frames.
+// Messages that fit in a single chunk are sent as a regular unfragmented frame.
+class FragmentedTextWriter extends Writer {
+
+    static final int DEFAULT_CHUNK_CHARS = 16 * 1024;
+
+    private final WebSocket connection;
+    private final char[] buffer;
+    private int position;
+    private boolean fragmentsSent;
+    private boolean closed;
+
+    FragmentedTextWriter(WebSocket connection) {
+        this(connection, DEFAULT_CHUNK_CHARS);
+    }
+
+    FragmentedTextWriter(WebSocket connection, int chunkChars) {
+        this.connection = connection;
+        this.buffer = new char[chunkChars];
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        ensureOpen();
+        while (length > 0) {
+            if (position == buffer.length) {
+                sendChunk(false);
+            }
+            int count = Math.min(length, buffer.length - position);
+            System.arraycopy(chars, offset, buffer, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void write(String text, int offset, int length) throws IOException {
+        ensureOpen();
+        while (length > 0) {
+            if (position == buffer.length) {
+                sendChunk(false);
+            }
+            int count = Math.min(length, buffer.length - position);
+            text.getChars(offset, offset + count, buffer, position);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        ensureOpen();
+        if (position == buffer.length) {
+            sendChunk(false);
+        }
+        buffer[position++] = (char) c;
+    }
+
+    @Override
+    public void flush() {
+        // Chunks are only emitted when full so frames stay large
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!fragmentsSent) {
+            connection.send(new String(buffer, 0, position));
+        } else {
+            sendChunk(true);
+        }
+    }
+
+    private void sendChunk(boolean fin) throws IOException {
+        // Never split a surrogate pair across two frames
+        int length = position;
+        if (!fin && length > 0 && Character.isHighSurrogate(buffer[length - 1])) {
+            length--;
+        }
+
+        ByteBuffer payload = StandardCharsets.UTF_8.encode(CharBuffer.wrap(buffer, 0, length));
+        try {
+            connection.sendFragmentedFrame(Opcode.TEXT, payload, fin);
+        } catch (RuntimeException e) {
+            throw new IOException("WebSocket closed while streaming", e);
+        }
+        fragmentsSent = true;
+
+        int remaining = position - length;
+        if (remaining > 0) {
+            System.arraycopy(buffer, length, buffer, 0, remaining);
+        }
+        position = remaining;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Writer closed");
+        }
+    }
+}
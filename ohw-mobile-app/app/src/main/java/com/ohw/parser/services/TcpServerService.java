@@ -14,52 +14,210 @@ import androidx.core.app.NotificationCompat;
 
 import com.ohw.parser.MainActivity;
 import com.ohw.parser.R;
-import com.ohw.parser.parsers.GalileoskyParser;
+import com.ohw.parser.admission.AdmissionControl;
+import com.ohw.parser.alerts.AlertEngine;
+import com.ohw.parser.alerts.AlertEvent;
+import com.ohw.parser.alerts.AlertListener;
+import com.ohw.parser.alerts.AlertRuleDefinition;
+import com.ohw.parser.alerts.AlertRules;
+import com.ohw.parser.capture.CaptureReplayer;
+import com.ohw.parser.capture.CaptureWriter;
+import com.ohw.parser.commands.Command;
+import com.ohw.parser.commands.CommandChannel;
+import com.ohw.parser.commands.CommandDispatcher;
+import com.ohw.parser.commands.CommandListener;
+import com.ohw.parser.geofence.GeofenceDefinition;
+import com.ohw.parser.geofence.GeofenceEngine;
+import com.ohw.parser.geofence.GeofenceEvent;
+import com.ohw.parser.geofence.GeofenceIndex;
+import com.ohw.parser.geofence.GeofenceListener;
+import com.ohw.parser.http.HttpApiServer;
+import com.ohw.parser.journal.EventJournal;
+import com.ohw.parser.journal.EventType;
+import com.ohw.parser.live.LiveDeviceFeed;
+import com.ohw.parser.power.PowerMonitor;
+import com.ohw.parser.power.PowerScheduler;
+import com.ohw.parser.metrics.ConnectionStats;
+import com.ohw.parser.metrics.DeviceCounters;
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.metrics.MetricsRegistry;
+import com.ohw.parser.parsers.FrameReader;
+import com.ohw.parser.parsers.GalileoskyDecoder;
+import com.ohw.parser.parsers.ImeiCodec;
+import com.ohw.parser.parsers.ProtocolDecoder;
+import com.ohw.parser.parsers.ProtocolRegistry;
+import com.ohw.parser.parsers.RecordView;
 import com.ohw.parser.models.DeviceData;
-import com.ohw.parser.models.ParsedPacket;
+import com.ohw.parser.pipeline.ArchiveDecoder;
+import com.ohw.parser.pipeline.IngestPipeline;
+import com.ohw.parser.pipeline.IngestRecord;
+import com.ohw.parser.pipeline.RecordConsumer;
+import com.ohw.parser.pipeline.RecordFilter;
+import com.ohw.parser.relay.UplinkRelay;
+import com.ohw.parser.rollups.RollupEngine;
+import com.ohw.parser.query.DeviceSource;
+import com.ohw.parser.state.DeviceStateTable;
+import com.ohw.parser.state.PresenceListener;
+import com.ohw.parser.state.PresenceState;
+import com.ohw.parser.state.PresenceTracker;
+import com.ohw.parser.state.TrackStore;
+import com.ohw.parser.sync.PeerSyncClient;
+import com.ohw.parser.sync.PeerSyncServer;
+import com.ohw.parser.sync.SyncIndex;
+import com.ohw.parser.trips.TripDetector;
+import com.ohw.parser.trips.TripListener;
+import com.ohw.parser.trips.TripSegment;
+import com.ohw.parser.trips.TripStore;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class TcpServerService extends Service {
+public class TcpServerService extends Service
+        implements DeviceSource, PresenceListener, RecordConsumer, CommandListener, AlertListener,
+        GeofenceListener, TripListener {
 
     private static final String TAG = "TcpServerService";
     private static final String CHANNEL_ID = "OHW_PARSER_CHANNEL";
     private static final int NOTIFICATION_ID = 1001;
     
-    // Server configuration
-    private static final int TCP_PORT = 3000;
+    // Server configuration; device ports come from the protocol bindings
     private static final int HTTP_PORT = 3001;
-    private static final int SOCKET_TIMEOUT = 30000; // 30 seconds
+    public static final int SYNC_PORT = 3003;
+    private static final int SOCKET_TIMEOUT = 30000; // 30 seconds, until the device identifies itself
+    
+    // Traffic capture and replay, driven through startService intents
+    public static final String ACTION_START_CAPTURE = "com.ohw.parser.action.START_CAPTURE";
+    public static final String ACTION_STOP_CAPTURE = "com.ohw.parser.action.STOP_CAPTURE";
+    public static final String ACTION_REPLAY_CAPTURE = "com.ohw.parser.action.REPLAY_CAPTURE";
+    public static final String EXTRA_CAPTURE_PATH = "capture_path";
+    public static final String EXTRA_REPLAY_MAX_SPEED = "replay_max_speed";
+    
+    // Track exchange with another gateway phone's SYNC_PORT
+    public static final String ACTION_PEER_SYNC = "com.ohw.parser.action.PEER_SYNC";
+    public static final String EXTRA_PEER_HOST = "peer_host";
+    public static final String EXTRA_PEER_PORT = "peer_port";
+    private static final String CAPTURE_DIR = "captures";
+    private static final String ALERT_RULES_FILE = "alert-rules.json";
+    private static final String GEOFENCES_FILE = "geofences.json";
+    private static final String TRIPS_DIR = "trips";
+    private static final String RELAY_DIR = "relay";
+    private static final String RELAY_CONFIG_FILE = "relay.json";
+    private static final String PORTS_FILE = "ports.json";
+    private static final String ADMISSION_CONFIG_FILE = "admission.json";
+    private static final String SYNC_CONFIG_FILE = "sync.json";
+    private static final String TRACK_SPILL_FILE = "tracks.spill";
+    
+    private static volatile TcpServerService runningInstance;
     
     // Server state
-    private ServerSocket tcpServer;
+    private final List<ServerSocket> deviceServers = new CopyOnWriteArrayList<>();
     private ServerSocket httpServer;
+    private ServerSocket syncServer;
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
     private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService presenceTicker = Executors.newSingleThreadScheduledExecutor();
     
     // Device tracking
-    private final ConcurrentHashMap<String, DeviceData> devices = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<Socket, String> deviceConnections = new ConcurrentHashMap<>();
+    private final DeviceStateTable deviceTable = new DeviceStateTable();
+    private final TrackStore trackStore = new TrackStore();
+    
+    // Hash tree over the tracks, compared with peer gateways to exchange only what differs
+    private final SyncIndex syncIndex = new SyncIndex(deviceTable, trackStore);
+    private final PeerSyncServer peerSyncServer = new PeerSyncServer(syncIndex);
+    private final PeerSyncClient peerSyncClient = new PeerSyncClient(syncIndex);
+    private final TripDetector tripDetector =
+            new TripDetector(new TripDetector.Config(), new TripStore(), this);
+    private final Set<DeviceConnection> deviceConnections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger identifiedConnections = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, DeviceConnection> connectionsBySlot = new ConcurrentHashMap<>();
+    private final PresenceTracker presenceTracker =
+            new PresenceTracker(deviceTable, new PresenceTracker.Config(), this);
+    
+    // Decoders, and the protocol each device port speaks
+    private final ProtocolRegistry protocols = new ProtocolRegistry();
+    
+    // Instrumentation
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+    private final EventJournal journal = EventJournal.get();
+    private final DeviceCounters deviceCounters = new DeviceCounters();
+    
+    // Decoded records are applied to device state on per-device shard threads
+    private final IngestPipeline ingestPipeline = new IngestPipeline(this);
+    
+    // Accept pacing, connection limits and load shedding in front of the pipeline
+    private final AdmissionControl admission =
+            new AdmissionControl(new AdmissionControl.Config(), ingestPipeline);
+    
+    // Unchanged records still update live state but skip track storage and broadcasts
+    private final RecordFilter recordFilter = new RecordFilter(new RecordFilter.Config());
+    
+    // Minute and hour statistics for dashboards, also maintained on the shards
+    private final RollupEngine rollupEngine = new RollupEngine(ingestPipeline.getShardCount());
     
-    // Parser
-    private final GalileoskyParser parser = new GalileoskyParser();
+    // Changed records forwarded to the central server through a disk queue
+    private final UplinkRelay uplinkRelay = new UplinkRelay(new UplinkRelay.Config());
     
-    // WebSocket service reference
-    private WebSocketService webSocketService;
+    // Query API served on HTTP_PORT
+    private final HttpApiServer httpApiServer =
+            new HttpApiServer(deviceTable, trackStore, tripDetector, rollupEngine, deviceCounters,
+                    this::getConnectionStats);
+    
+    // Alert rules evaluated on every record, inline on its shard
+    private final AlertEngine alertEngine = new AlertEngine(this);
+    
+    // Geofence enter/exit detection, also inline on the shard
+    private final GeofenceEngine geofenceEngine = new GeofenceEngine(this);
+    
+    // Downlink commands to connected devices
+    private final CommandDispatcher commandDispatcher =
+            new CommandDispatcher(this::findCommandChannel, this);
+    
+    // Raw inbound traffic is recorded while a capture is active
+    private volatile CaptureWriter captureWriter;
+    
+    // Battery and thermal state pace the relay, the fan-out and the journal
+    private final PowerScheduler powerScheduler = PowerScheduler.get();
+    private PowerMonitor powerMonitor;
+    
+    public static TcpServerService getRunningInstance() {
+        return runningInstance;
+    }
 
     @Override
     public void onCreate() {
         super.onCreate();
+        runningInstance = this;
         createNotificationChannel();
+        registerGauges();
+        loadPortBindings();
+        loadAdmissionConfig();
+        loadSyncConfig();
+        trackStore.setListener(syncIndex);
+        LiveDeviceFeed.get().attach(deviceTable);
+        loadAlertRules();
+        loadGeofences();
+        openTripStore();
+        openTrackSpill();
+        openUplinkRelay();
+        powerScheduler.setLoadSource(metrics.framesParsed::get);
+        powerMonitor = new PowerMonitor(this, powerScheduler);
+        powerMonitor.start();
         Log.i(TAG, "TCP Server Service created");
     }
 
@@ -72,23 +230,89 @@ public class TcpServerService extends Service {
             startServers();
         }
         
+        if (intent != null && intent.getAction() != null) {
+            handleAction(intent);
+        }
+        
         return START_STICKY;
     }
 
+    private void handleAction(Intent intent) {
+        String path = intent.getStringExtra(EXTRA_CAPTURE_PATH);
+        switch (intent.getAction()) {
+            case ACTION_START_CAPTURE:
+                startCapture(path != null ? new File(path) : newCaptureFile());
+                break;
+            case ACTION_STOP_CAPTURE:
+                stopCapture();
+                break;
+            case ACTION_REPLAY_CAPTURE:
+                if (path == null) {
+                    Log.w(TAG, "Replay requested without a capture path");
+                    break;
+                }
+                replayCapture(new File(path), intent.getBooleanExtra(EXTRA_REPLAY_MAX_SPEED, false)
+                        ? CaptureReplayer.Mode.MAX_SPEED : CaptureReplayer.Mode.TIMED);
+                break;
+            case ACTION_PEER_SYNC:
+                String host = intent.getStringExtra(EXTRA_PEER_HOST);
+                if (host == null) {
+                    Log.w(TAG, "Peer sync requested without a peer host");
+                    break;
+                }
+                syncWithPeer(host, intent.getIntExtra(EXTRA_PEER_PORT, SYNC_PORT));
+                break;
+            default:
+                break;
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
     }
 
     private void startServers() {
-        // Start TCP server in background thread
-        executorService.submit(() -> {
+        ingestPipeline.start();
+        uplinkRelay.start();
+        
+        // Single ticker drives the presence timer wheel for every device
+        presenceTicker.scheduleAtFixedRate(() -> {
             try {
-                startTcpServer();
+                presenceTracker.tick(System.currentTimeMillis());
             } catch (Exception e) {
-                Log.e(TAG, "Error starting TCP server", e);
+                Log.e(TAG, "Error advancing presence tracker", e);
             }
-        });
+        }, presenceTracker.getTickMillis(), presenceTracker.getTickMillis(), TimeUnit.MILLISECONDS);
+        presenceTicker.scheduleAtFixedRate(() -> {
+            try {
+                commandDispatcher.expire();
+            } catch (Exception e) {
+                Log.e(TAG, "Error expiring commands", e);
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        presenceTicker.scheduleAtFixedRate(() -> {
+            try {
+                // Thermal state has no broadcast, so it is polled along with the load
+                powerMonitor.refresh();
+                powerScheduler.tick(System.currentTimeMillis());
+            } catch (Exception e) {
+                Log.e(TAG, "Error updating power pacing", e);
+            }
+        }, 0, 1, TimeUnit.MINUTES);
+        presenceTicker.scheduleAtFixedRate(admission::prune, 1, 1, TimeUnit.MINUTES);
+        
+        // One device listener per bound port, each in a background thread
+        for (ProtocolRegistry.Binding binding : protocols.getConfig().ports) {
+            ProtocolDecoder decoder = protocols.find(binding.protocol);
+            executorService.submit(() -> {
+                try {
+                    startDeviceServer(binding.port, decoder);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error starting " + decoder.getName() + " server on port " + binding.port, e);
+                }
+            });
+        }
         
         // Start HTTP server in background thread
         executorService.submit(() -> {
@@ -98,24 +322,43 @@ public class TcpServerService extends Service {
                 Log.e(TAG, "Error starting HTTP server", e);
             }
         });
+        
+        // Peer sync server, in background thread, only when turned on
+        if (peerSyncServer.getConfig().enabled) {
+            executorService.submit(() -> {
+                try {
+                    startSyncServer();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error starting peer sync server", e);
+                }
+            });
+        }
     }
 
-    private void startTcpServer() throws IOException {
-        tcpServer = new ServerSocket(TCP_PORT);
-        Log.i(TAG, "TCP Server started on port " + TCP_PORT);
+    private void startDeviceServer(int port, ProtocolDecoder decoder) throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        deviceServers.add(server);
+        Log.i(TAG, "TCP Server started on port " + port + " (" + decoder.getName() + ")");
         
         while (isRunning.get()) {
             try {
-                Socket clientSocket = tcpServer.accept();
-                Log.i(TAG, "New device connected: " + clientSocket.getRemoteSocketAddress());
-                
+                admission.paceAccept();
+                Socket clientSocket = server.accept();
+                if (!admission.admitConnection(clientSocket.getInetAddress(), deviceConnections.size())) {
+                    // Refused before any read; the tracker reconnects later
+                    clientSocket.close();
+                    continue;
+                }
                 // Handle client connection in separate thread
-                executorService.submit(() -> handleClientConnection(clientSocket));
+                executorService.submit(() -> handleClientConnection(clientSocket, decoder));
                 
             } catch (IOException e) {
                 if (isRunning.get()) {
                     Log.e(TAG, "Error accepting TCP connection", e);
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
         }
     }
@@ -140,11 +383,51 @@ public class TcpServerService extends Service {
         }
     }
 
-    private void handleClientConnection(Socket clientSocket) {
+    private void startSyncServer() throws IOException {
+        syncServer = new ServerSocket(SYNC_PORT);
+        Log.i(TAG, "Peer sync server started on port " + SYNC_PORT);
+        
+        while (isRunning.get()) {
+            try {
+                Socket peerSocket = syncServer.accept();
+                if (!peerSyncServer.isAllowed(peerSocket.getInetAddress())) {
+                    Log.w(TAG, "Refusing peer sync from unlisted " + peerSocket.getRemoteSocketAddress());
+                    peerSocket.close();
+                    continue;
+                }
+                Log.i(TAG, "Peer gateway connected: " + peerSocket.getRemoteSocketAddress());
+                executorService.submit(() -> peerSyncServer.handleConnection(peerSocket));
+                
+            } catch (IOException e) {
+                if (isRunning.get()) {
+                    Log.e(TAG, "Error accepting peer sync connection", e);
+                }
+            }
+        }
+    }
+
+    private void handleClientConnection(Socket clientSocket, ProtocolDecoder decoder) {
+        DeviceConnection connection = new DeviceConnection(clientSocket, decoder);
+        connection.setAdmissionExempt(admission.isExempt(clientSocket.getInetAddress()));
+        deviceConnections.add(connection);
+        metrics.connectionsAccepted.increment();
+        Log.i(TAG, "New " + decoder.getName() + " device connected: " + connection.getRemoteAddress()
+                + " (connection " + connection.getId() + ")");
+        // Captures are replayed against the Galileosky port, so only its traffic is recorded
+        boolean capturable = GalileoskyDecoder.NAME.equals(decoder.getName());
+        CaptureWriter capture = captureWriter;
+        if (capture != null && capturable) {
+            try {
+                capture.onOpen((int) connection.getId(), connection.getRemoteAddress());
+            } catch (IOException e) {
+                abortCapture(capture, e);
+            }
+        }
         try {
             clientSocket.setSoTimeout(SOCKET_TIMEOUT);
             InputStream inputStream = clientSocket.getInputStream();
             OutputStream outputStream = clientSocket.getOutputStream();
+            connection.attachOutput(outputStream);
             
             byte[] buffer = new byte[4096];
             int bytesRead;
@@ -156,120 +439,576 @@ public class TcpServerService extends Service {
                 }
                 
                 if (bytesRead > 0) {
-                    // Process received data
-                    byte[] data = new byte[bytesRead];
-                    System.arraycopy(buffer, 0, data, 0, bytesRead);
+                    long readAt = System.nanoTime();
+                    metrics.bytesReceived.add(bytesRead);
+                    connection.onBytesReceived(bytesRead);
+                    CaptureWriter activeCapture = captureWriter;
+                    if (activeCapture != null && capturable) {
+                        try {
+                            activeCapture.onData((int) connection.getId(), readAt, buffer, 0, bytesRead);
+                        } catch (IOException e) {
+                            abortCapture(activeCapture, e);
+                        }
+                    }
+                    
+                    journal.emitPayload(EventType.FRAME_RECEIVED, connection.getId(), bytesRead,
+                            buffer, 0, bytesRead);
                     
-                    Log.i(TAG, "Raw data received from " + clientSocket.getRemoteSocketAddress() + 
-                          ": " + bytesToHex(data));
+                    // A read may hold several frames or only part of one
+                    FrameReader frames = connection.getFrameReader();
+                    long skippedBefore = frames.getSkippedBytes();
+                    frames.append(buffer, 0, bytesRead);
+                    while (frames.next()) {
+                        metrics.frameAssembly.recordSince(readAt);
+                        processFrame(frames, connection);
+                    }
+                    metrics.bytesSkipped.add(frames.getSkippedBytes() - skippedBefore);
                     
-                    // Parse and process packet
-                    processPacket(data, clientSocket, outputStream);
+                    // Confirm everything taken from this read in one write
+                    writeBatch(connection, outputStream);
                 }
             }
             
         } catch (IOException e) {
             Log.e(TAG, "Error handling client connection", e);
         } finally {
-            handleClientDisconnection(clientSocket);
+            handleClientDisconnection(connection);
         }
     }
 
     private void handleHttpConnection(Socket clientSocket) {
+        // Serves keep-alive requests until the client closes or goes idle
+        httpApiServer.handleConnection(clientSocket);
+    }
+
+    private void processFrame(FrameReader frame, DeviceConnection connection) {
+        metrics.framesReceived.increment();
+        int frameLength = frame.getFrameLength();
+        if (!frame.isFrameValid()) {
+            // No confirmation: the device resends the frame. Its length may be junk, so
+            // the bytes are left to the skipped count rather than added to the device's
+            metrics.crcFailures.increment();
+            connection.onCrcFailure();
+            if (connection.isIdentified()) {
+                deviceCounters.add(connection.getSlot(), DeviceCounters.FRAMES, 1);
+                deviceCounters.add(connection.getSlot(), DeviceCounters.REJECTED, 1);
+            }
+            journal.emit(EventType.FRAME_CRC_MISMATCH, connection.getId(), frameLength,
+                    frame.getFrameCheck());
+            return;
+        }
+        
+        ProtocolDecoder decoder = connection.getDecoder();
+        boolean confirmed = false;
         try {
-            // Simple HTTP response for now
-            String response = "HTTP/1.1 200 OK\r\n" +
-                            "Content-Type: text/plain\r\n" +
-                            "Content-Length: 13\r\n" +
-                            "\r\n" +
-                            "OHW Parser OK";
+            // Index with the protocol bound to the connection's port; only the
+            // fields needed to route the frame are decoded on this thread
+            long parseStart = System.nanoTime();
+            RecordView record = decoder.decode(frame);
+            metrics.parse.recordSince(parseStart);
             
-            OutputStream outputStream = clientSocket.getOutputStream();
-            outputStream.write(response.getBytes());
-            outputStream.flush();
+            connection.onFrameReceived(record != null);
+            if (record != null && record.hasImei()) {
+                // Resolve the device slot once per connection, then reuse it
+                identifyDevice(connection, record.getImei());
+            }
+            if (connection.isIdentified()) {
+                deviceCounters.add(connection.getSlot(), DeviceCounters.BYTES, frameLength);
+                deviceCounters.add(connection.getSlot(), DeviceCounters.FRAMES, 1);
+                if (record == null) {
+                    deviceCounters.add(connection.getSlot(), DeviceCounters.REJECTED, 1);
+                }
+            }
             
-        } catch (IOException e) {
-            Log.e(TAG, "Error handling HTTP connection", e);
+            // Every intact frame is confirmed, including ones we cannot decode, so the
+            // device does not resend them forever. A frame shed under load is not, and
+            // the device resends it later.
+            if (record != null && !connection.isAdmissionExempt()
+                    && !admission.admitFrame(connection.getSlot(), connection.getImei(),
+                            admission.priorityOf(record, System.currentTimeMillis()))) {
+                if (connection.isIdentified()) {
+                    deviceCounters.add(connection.getSlot(), DeviceCounters.SHED, 1);
+                }
+                return;
+            }
+            connection.getWriteBatch().addAck(decoder, frame);
+            confirmed = true;
+            
+            if (record != null) {
+                int deviceNumber = record.getDeviceNumber();
+                if (deviceNumber >= 0) {
+                    connection.setDeviceNumber(deviceNumber);
+                }
+            }
+            
+            if (record != null && record.isCommandReply()) {
+                // Answers to our commands are correlated here and not ingested as telemetry
+                if (connection.isIdentified()) {
+                    commandDispatcher.onReply(connection.getImei(), record.getCommandNumber(),
+                            record.getCommandText());
+                }
+            } else if (record != null) {
+                submitRecords(record, connection);
+                journal.emit(EventType.PACKET_PROCESSED, connection.getId(), connection.getImei());
+            }
+            
+        } catch (Exception e) {
+            if (!confirmed) {
+                connection.getWriteBatch().addAck(decoder, frame);
+            }
+            journal.emitError(EventType.PACKET_PROCESS_ERROR, connection.getId(), e);
+        }
+    }
+
+    // State updates and fan-out happen on the device's shard, which decodes the rest.
+    // An archive flush becomes one ingest record per archived record, in order.
+    private void submitRecords(RecordView frame, DeviceConnection connection) {
+        long receivedAtMillis = System.currentTimeMillis();
+        int count = frame.getRecordCount();
+        if (count == 1) {
+            ingestPipeline.submit(new IngestRecord(frame, connection.getImei(), connection.getSlot(),
+                    connection.getRemoteAddress(), receivedAtMillis));
+            return;
+        }
+        RecordView[] records = new RecordView[count];
+        for (int i = 0; i < count; i++) {
+            records[i] = frame.getRecord(i);
+        }
+        ArchiveDecoder.decodeAhead(records);
+        for (RecordView record : records) {
+            ingestPipeline.submit(new IngestRecord(record, connection.getImei(), connection.getSlot(),
+                    connection.getRemoteAddress(), receivedAtMillis));
+        }
+        metrics.archiveRecords.add(count);
+    }
+
+    // Acks from this read plus any queued commands go out in one write
+    private void writeBatch(DeviceConnection connection, OutputStream outputStream) throws IOException {
+        WriteBatch batch = connection.getWriteBatch();
+        if (batch.isEmpty()) {
+            return;
+        }
+        connection.lockWrites();
+        try {
+            int commands = connection.drainOutbound(batch);
+            int acks = batch.getAckCount();
+            long ackStart = System.nanoTime();
+            batch.writeTo(outputStream);
+            metrics.ackWrite.recordSince(ackStart);
+            metrics.ackWrites.increment();
+            metrics.acksWritten.add(acks);
+            connection.onAcksWritten(acks);
+            if (commands > 0) {
+                metrics.commandsWritten.add(commands);
+                metrics.commandsCoalesced.add(commands);
+            }
         } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing HTTP client socket", e);
+            connection.unlockWrites();
+        }
+        // Commands queued while the lock was held
+        connection.flushOutbound();
+    }
+
+    private CommandChannel findCommandChannel(long imei) {
+        int slot = deviceTable.findSlot(imei);
+        DeviceConnection connection = slot >= 0 ? connectionsBySlot.get(slot) : null;
+        // Command packets are Galileosky frames; other protocols cannot take them
+        return connection != null && connection.getDecoder().supportsCommands() ? connection : null;
+    }
+
+    @Override
+    public void onCommandReply(Command command, String reply, long roundTripNanos) {
+        journal.emit(EventType.COMMAND_REPLIED, command.getImei(), command.getNumber(),
+                roundTripNanos / 1000);
+        WebSocketService webSocketService = WebSocketService.getRunningInstance();
+        if (webSocketService != null) {
+            webSocketService.broadcastCommandResult(command, reply, roundTripNanos);
+        }
+    }
+
+    @Override
+    public void onCommandExpired(Command command) {
+        journal.emit(EventType.COMMAND_EXPIRED, command.getImei(), command.getNumber());
+        WebSocketService webSocketService = WebSocketService.getRunningInstance();
+        if (webSocketService != null) {
+            webSocketService.broadcastCommandResult(command, null, -1);
+        }
+    }
+
+    @Override
+    public void onRecord(IngestRecord record, int shard) {
+        metrics.queueWait.recordSince(record.getEnqueuedAtNanos());
+        
+        // Runs first so jitter snapping reaches every consumer below
+        boolean changed = recordFilter.accept(record.getSlot(), record.getPacket(),
+                record.getReceivedAtMillis());
+        
+        // Single writer for this device: only this shard thread updates its slot
+        if (record.hasSlot()) {
+            int previousFlags = deviceTable.recordPacket(record.getSlot(), record.getPacket(),
+                    record.getClientAddress(), record.getReceivedAtMillis());
+            presenceTracker.onRecord(record.getSlot(), previousFlags, record.getReceivedAtMillis());
+            if (changed) {
+                trackStore.append(record.getSlot(), record.getPacket());
+                uplinkRelay.offer(record.getImei(), record.getPacket(), record.getReceivedAtMillis());
             }
+            tripDetector.onRecord(record.getSlot(), record.getImei(), record.getPacket(),
+                    record.getReceivedAtMillis());
+            alertEngine.evaluate(record.getSlot(), record.getImei(), record.getPacket(),
+                    record.getReceivedAtMillis());
+            geofenceEngine.evaluate(record.getSlot(), record.getImei(), record.getPacket(),
+                    record.getReceivedAtMillis());
+        }
+        rollupEngine.onRecord(shard, record.getSlot(), record.getImei(), record.getPacket(),
+                record.getReceivedAtMillis());
+        
+        // Emit data to WebSocket clients if available
+        WebSocketService webSocketService = WebSocketService.getRunningInstance();
+        if (changed && webSocketService != null) {
+            long broadcastStart = System.nanoTime();
+            webSocketService.broadcastDeviceData(record.getPacket());
+            metrics.broadcast.recordSince(broadcastStart);
         }
     }
 
-    private void processPacket(byte[] data, Socket clientSocket, OutputStream outputStream) {
+    @Override
+    public void onAlert(AlertEvent event) {
+        switch (event.getType()) {
+            case RAISED:
+                journal.emit(EventType.ALERT_RAISED, event.getImei());
+                break;
+            case RESOLVED:
+                journal.emit(EventType.ALERT_RESOLVED, event.getImei());
+                break;
+            default:
+                journal.emit(EventType.ALERT_CHANGED, event.getImei());
+                break;
+        }
+        WebSocketService webSocketService = WebSocketService.getRunningInstance();
+        if (webSocketService != null) {
+            webSocketService.broadcastAlert(event);
+        }
+    }
+
+    private void loadAlertRules() {
+        File file = new File(getFilesDir(), ALERT_RULES_FILE);
+        if (!file.exists()) {
+            return;
+        }
         try {
-            // Parse packet using Galileosky parser
-            ParsedPacket parsedPacket = parser.parsePacket(data);
-            
-            if (parsedPacket != null) {
-                // Extract IMEI and update device tracking
-                String imei = parsedPacket.getImei();
-                if (imei != null) {
-                    updateDeviceTracking(imei, clientSocket.getRemoteSocketAddress());
-                    deviceConnections.put(clientSocket, imei);
-                }
-                
-                // Send confirmation packet
-                byte[] confirmation = buildConfirmationPacket(data);
-                outputStream.write(confirmation);
-                outputStream.flush();
-                
-                Log.i(TAG, "Packet processed successfully from " + clientSocket.getRemoteSocketAddress());
-                
-                // Emit data to WebSocket clients if available
-                if (webSocketService != null) {
-                    webSocketService.broadcastDeviceData(parsedPacket);
-                }
+            alertEngine.loadRules(file);
+            Log.i(TAG, "Loaded " + alertEngine.getRules().size() + " alert rules");
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading alert rules from " + file, e);
+        }
+    }
+
+    // Compiles and installs the rules, then persists them; throws IllegalArgumentException for bad rules
+    public void updateAlertRules(List<AlertRuleDefinition> definitions) {
+        alertEngine.setRules(AlertRules.compile(definitions));
+        try {
+            alertEngine.saveRules(new File(getFilesDir(), ALERT_RULES_FILE));
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving alert rules", e);
+        }
+        Log.i(TAG, "Installed " + alertEngine.getRules().size() + " alert rules");
+    }
+
+    @Override
+    public void onGeofence(GeofenceEvent event) {
+        journal.emit(event.getType() == GeofenceEvent.Type.ENTER ? EventType.GEOFENCE_ENTER
+                : EventType.GEOFENCE_EXIT, event.getImei());
+        WebSocketService webSocketService = WebSocketService.getRunningInstance();
+        if (webSocketService != null) {
+            webSocketService.broadcastGeofence(event);
+        }
+    }
+
+    @Override
+    public void onSegment(TripSegment segment) {
+        long seconds = segment.getDurationMillis() / 1000;
+        if (segment.getKind() == TripSegment.Kind.TRIP) {
+            journal.emit(EventType.TRIP_ENDED, segment.getImei(), Math.round(segment.getDistanceMeters()),
+                    seconds);
+        } else {
+            journal.emit(EventType.STOP_ENDED, segment.getImei(), seconds);
+        }
+    }
+
+    private void openTripStore() {
+        File dir = new File(getFilesDir(), TRIPS_DIR);
+        try {
+            int loaded = tripDetector.getStore().open(dir);
+            Log.i(TAG, "Loaded " + loaded + " trip segments");
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading trips from " + dir, e);
+        }
+    }
+
+    // Tracks over the memory budget go to the cache dir; they only matter while running
+    private void openTrackSpill() {
+        File file = new File(getCacheDir(), TRACK_SPILL_FILE);
+        try {
+            trackStore.openSpill(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening track spill file " + file + ", keeping all tracks in memory", e);
+        }
+    }
+
+    private void loadAdmissionConfig() {
+        File file = new File(getFilesDir(), ADMISSION_CONFIG_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            admission.loadConfig(file);
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading admission settings from " + file, e);
+        }
+    }
+
+    // Applies and persists the admission settings; takes effect on the next connection or frame.
+    // Throws IllegalArgumentException for a non-positive rate or burst or a fill outside 0..1.
+    public void updateAdmissionConfig(AdmissionControl.Config config) {
+        admission.setConfig(config);
+        try {
+            admission.saveConfig(new File(getFilesDir(), ADMISSION_CONFIG_FILE));
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving admission settings", e);
+        }
+    }
+
+    private void loadSyncConfig() {
+        File file = new File(getFilesDir(), SYNC_CONFIG_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            peerSyncServer.loadConfig(file);
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading peer sync settings from " + file, e);
+        }
+    }
+
+    // Applies and persists the peer sync settings. The peer list applies to the next
+    // connection; turning the server on or off takes effect on the next service start.
+    public void updateSyncConfig(PeerSyncServer.Config config) {
+        peerSyncServer.setConfig(config);
+        try {
+            peerSyncServer.saveConfig(new File(getFilesDir(), SYNC_CONFIG_FILE));
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving peer sync settings", e);
+        }
+    }
+
+    private void loadPortBindings() {
+        File file = new File(getFilesDir(), PORTS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            protocols.loadConfig(file);
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading port bindings from " + file, e);
+        }
+    }
+
+    // Validates and persists the bindings; listeners pick them up on the next service start.
+    // Throws IllegalArgumentException for an unknown protocol or a port bound twice.
+    public void updatePortBindings(ProtocolRegistry.Config config) {
+        protocols.setConfig(config);
+        try {
+            protocols.saveConfig(new File(getFilesDir(), PORTS_FILE));
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving port bindings", e);
+        }
+    }
+
+    public ProtocolRegistry getProtocols() {
+        return protocols;
+    }
+
+    private void openUplinkRelay() {
+        File config = new File(getFilesDir(), RELAY_CONFIG_FILE);
+        try {
+            if (config.exists()) {
+                uplinkRelay.loadConfig(config);
             }
-            
+            uplinkRelay.open(new File(getFilesDir(), RELAY_DIR));
+            Log.i(TAG, "Uplink relay " + (uplinkRelay.getConfig().url != null
+                    ? "to " + uplinkRelay.getConfig().url : "disabled") + ", "
+                    + uplinkRelay.getBacklog() + " records waiting");
+        } catch (Exception e) {
+            Log.e(TAG, "Error opening uplink relay", e);
+        }
+    }
+
+    // Applies and persists the relay settings; a null url pauses forwarding
+    public void updateRelayConfig(UplinkRelay.Config config) {
+        uplinkRelay.setConfig(config);
+        try {
+            uplinkRelay.saveConfig(new File(getFilesDir(), RELAY_CONFIG_FILE));
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving relay settings", e);
+        }
+    }
+
+    private void loadGeofences() {
+        File file = new File(getFilesDir(), GEOFENCES_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            geofenceEngine.loadGeofences(file);
+            Log.i(TAG, "Loaded " + geofenceEngine.getIndex().size() + " geofences");
         } catch (Exception e) {
-            Log.e(TAG, "Error processing packet", e);
+            Log.e(TAG, "Error loading geofences from " + file, e);
+        }
+    }
+
+    // Compiles and installs the fences, then persists them; throws IllegalArgumentException for bad fences
+    public void updateGeofences(List<GeofenceDefinition> definitions) {
+        geofenceEngine.setIndex(GeofenceIndex.compile(definitions));
+        try {
+            geofenceEngine.saveGeofences(new File(getFilesDir(), GEOFENCES_FILE));
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving geofences", e);
         }
+        Log.i(TAG, "Installed " + geofenceEngine.getIndex().size() + " geofences");
     }
 
-    private void updateDeviceTracking(String imei, SocketAddress clientAddress) {
-        DeviceData deviceData = devices.computeIfAbsent(imei, k -> new DeviceData(imei));
-        deviceData.updateLastSeen();
-        deviceData.incrementRecordCount();
-        deviceData.setClientAddress(clientAddress.toString());
+    private void identifyDevice(DeviceConnection connection, long imei) {
+        if (imei == ImeiCodec.INVALID) {
+            // Every frame repeats the IMEI; one warning per connection is enough
+            if (connection.reportInvalidImei()) {
+                Log.w(TAG, "Ignoring device with non-numeric IMEI from " + connection.getRemoteAddress());
+            }
+            return;
+        }
+        if (imei == connection.getImei()) {
+            return;
+        }
         
-        Log.i(TAG, "Device " + imei + " updated: " + deviceData.getTotalRecords() + " total records");
+        if (!connection.isIdentified()) {
+            identifiedConnections.incrementAndGet();
+            try {
+                // Idle identified sockets are closed by the presence tracker instead
+                connection.getSocket().setSoTimeout(0);
+            } catch (SocketException e) {
+                Log.w(TAG, "Unable to clear socket timeout for " + connection.getRemoteAddress());
+            }
+        } else {
+            connectionsBySlot.remove(connection.getSlot(), connection);
+        }
+        int slot = deviceTable.getOrCreateSlot(imei);
+        connection.identify(imei, slot);
+        connectionsBySlot.put(slot, connection);
+        Log.i(TAG, "Device " + ImeiCodec.format(imei) + " identified in slot " + slot);
     }
 
-    private void handleClientDisconnection(Socket clientSocket) {
-        String imei = deviceConnections.remove(clientSocket);
-        if (imei != null) {
-            Log.i(TAG, "Device " + imei + " disconnected from " + clientSocket.getRemoteSocketAddress());
+    private void handleClientDisconnection(DeviceConnection connection) {
+        deviceConnections.remove(connection);
+        CaptureWriter capture = captureWriter;
+        if (capture != null) {
+            try {
+                capture.onClose((int) connection.getId());
+            } catch (IOException e) {
+                abortCapture(capture, e);
+            }
+        }
+        if (connection.isIdentified()) {
+            identifiedConnections.decrementAndGet();
+            connectionsBySlot.remove(connection.getSlot(), connection);
+            Log.i(TAG, "Device " + ImeiCodec.format(connection.getImei()) + " disconnected from "
+                    + connection.getRemoteAddress());
         }
         
         try {
-            clientSocket.close();
+            connection.getSocket().close();
         } catch (IOException e) {
             Log.e(TAG, "Error closing client socket", e);
         }
     }
 
-    private byte[] buildConfirmationPacket(byte[] originalData) {
-        // Simple confirmation packet (0x02 + last 2 bytes of original packet)
-        if (originalData.length >= 2) {
-            byte[] confirmation = new byte[3];
-            confirmation[0] = 0x02;
-            confirmation[1] = originalData[originalData.length - 2];
-            confirmation[2] = originalData[originalData.length - 1];
-            return confirmation;
+    @Override
+    public void onPresenceChanged(int slot, long imei, PresenceState state) {
+        Log.i(TAG, "Device " + ImeiCodec.format(imei) + " is now " + state.getJsonName());
+        
+        WebSocketService webSocketService = WebSocketService.getRunningInstance();
+        if (webSocketService != null) {
+            webSocketService.broadcastPresence(ImeiCodec.format(imei), state,
+                    deviceTable.getLastSeenMillis(slot));
+        }
+    }
+
+    @Override
+    public void onIdleTimeout(int slot, long imei) {
+        DeviceConnection connection = connectionsBySlot.get(slot);
+        if (connection == null) {
+            return;
+        }
+        
+        Log.i(TAG, "Closing idle connection of device " + ImeiCodec.format(imei));
+        try {
+            // The read loop observes the close and runs the normal disconnect path
+            connection.getSocket().close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing idle socket", e);
         }
-        return new byte[]{0x02, 0x00, 0x00};
     }
 
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder result = new StringBuilder();
-        for (byte b : bytes) {
-            result.append(String.format("%02X", b));
+    private void registerGauges() {
+        MetricsRegistry registry = metrics.registry;
+        registry.gauge("ohw_device_connections", "Open device TCP connections", "",
+                deviceConnections::size);
+        registry.gauge("ohw_devices", "Devices in the live state table", "", deviceTable::size);
+        registry.gauge("ohw_devices_tracked", "Devices with an armed presence timer", "",
+                presenceTracker::getTrackedCount);
+        registry.gauge("ohw_state_table_bytes", "Estimated state table footprint", "",
+                deviceTable::estimateMemoryBytes);
+        registry.gauge("ohw_admission_addresses", "Remote addresses with a connect rate bucket", "",
+                admission::getTrackedAddresses);
+        registry.gauge("ohw_tracks_resident", "Device tracks held in memory", "",
+                trackStore::getResidentCount);
+        registry.gauge("ohw_tracks_spilled", "Device tracks held in the spill file", "",
+                trackStore::getSpilledCount);
+        registry.gauge("ohw_track_memory_bytes", "Estimated heap held by resident tracks", "",
+                trackStore::getResidentBytes);
+        registry.gauge("ohw_geofences", "Geofences in the active index", "",
+                () -> geofenceEngine.getIndex().size());
+        for (int i = 0; i < ingestPipeline.getShardCount(); i++) {
+            final int shard = i;
+            String labels = "shard=\"" + shard + "\"";
+            registry.gauge("ohw_shard_queue_depth", "Records waiting in a shard queue", labels,
+                    () -> ingestPipeline.getQueueDepth(shard));
+            registry.gauge("ohw_shard_processed", "Records applied by a shard", labels,
+                    () -> ingestPipeline.getProcessed(shard));
+            registry.gauge("ohw_shard_full_waits", "Submissions that waited on a full shard queue", labels,
+                    () -> ingestPipeline.getFullWaits(shard));
+        }
+        registry.gauge("ohw_relay_backlog", "Relay records on disk not yet acknowledged upstream", "",
+                uplinkRelay::getBacklog);
+        registry.gauge("ohw_relay_in_flight", "Uplink batches awaiting a response", "",
+                uplinkRelay::getInFlight);
+        registry.gauge("ohw_relay_queue_bytes", "Size of the relay queue on disk", "",
+                uplinkRelay::getQueueBytes);
+        registry.gauge("ohw_journal_written", "Journal events formatted and logged", "",
+                journal::getWritten);
+        registry.gauge("ohw_journal_dropped", "Journal events dropped on a full ring", "",
+                journal::getDropped);
+        registry.gauge("ohw_journal_backlog", "Journal events waiting for the formatter", "",
+                journal::getBacklog);
+        registry.gauge("ohw_power_profile", "Power profile: 0 realtime, 1 balanced, 2 saver, 3 minimal", "",
+                () -> powerScheduler.getProfile().ordinal());
+        for (PowerScheduler.Lane lane : PowerScheduler.Lane.values()) {
+            String labels = "lane=\"" + lane.getJsonName() + "\"";
+            registry.gauge("ohw_wakeups_per_minute", "Flushes of a deferrable lane in the last minute", labels,
+                    () -> powerScheduler.getWakeupsPerMinute(lane));
+            registry.gauge("ohw_records_per_wakeup", "Records handled per flush of a lane in the last minute",
+                    labels, () -> Math.round(powerScheduler.getRecordsPerWakeup(lane)));
+            registry.gauge("ohw_wakeups", "Flushes of a deferrable lane since start", labels,
+                    () -> powerScheduler.getWakeups(lane));
         }
-        return result.toString();
     }
 
     private void createNotificationChannel() {
@@ -311,28 +1050,180 @@ public class TcpServerService extends Service {
         
         // Close servers
         try {
-            if (tcpServer != null) tcpServer.close();
+            for (ServerSocket server : deviceServers) {
+                server.close();
+            }
+            deviceServers.clear();
             if (httpServer != null) httpServer.close();
+            if (syncServer != null) syncServer.close();
         } catch (IOException e) {
             Log.e(TAG, "Error closing servers", e);
         }
         
-        // Shutdown executor service
+        stopCapture();
+        LiveDeviceFeed.get().detach(deviceTable);
+        if (powerMonitor != null) {
+            powerMonitor.stop();
+        }
+        
+        // Shutdown executor services
+        ingestPipeline.stop();
+        uplinkRelay.stop();
+        presenceTicker.shutdown();
+        commandDispatcher.shutdown();
         executorService.shutdown();
+        try {
+            tripDetector.getStore().close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing trip store", e);
+        }
+        trackStore.closeSpill();
+        
+        if (runningInstance == this) {
+            runningInstance = null;
+        }
         
         super.onDestroy();
     }
 
     // Public methods for other components
+    public synchronized boolean startCapture(File file) {
+        if (captureWriter != null) {
+            Log.w(TAG, "Capture already running to " + captureWriter.getFile());
+            return false;
+        }
+        try {
+            File dir = file.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            captureWriter = new CaptureWriter(file);
+            Log.i(TAG, "Capturing device traffic to " + file);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error starting capture", e);
+            return false;
+        }
+    }
+
+    public synchronized void stopCapture() {
+        CaptureWriter capture = captureWriter;
+        if (capture == null) {
+            return;
+        }
+        captureWriter = null;
+        try {
+            capture.close();
+            Log.i(TAG, "Capture stopped: " + capture.getRecords() + " records, "
+                    + capture.getBytesWritten() + " bytes in " + capture.getFile()
+                    + (capture.isFull() ? " (size limit reached)" : ""));
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing capture", e);
+        }
+    }
+
+    public boolean isCapturing() {
+        return captureWriter != null;
+    }
+
+    private synchronized void abortCapture(CaptureWriter capture, IOException error) {
+        if (captureWriter == capture) {
+            Log.e(TAG, "Capture write failed, stopping capture", error);
+            stopCapture();
+        }
+    }
+
+    private File newCaptureFile() {
+        return new File(new File(getFilesDir(), CAPTURE_DIR),
+                "capture-" + System.currentTimeMillis() + ".ohwcap");
+    }
+
+    // Streams a capture back through this gateway's own device port
+    public void replayCapture(File file, CaptureReplayer.Mode mode) {
+        executorService.submit(() -> {
+            Log.i(TAG, "Replaying " + file + " (" + mode + ")");
+            try {
+                int port = protocols.findPort(GalileoskyDecoder.NAME);
+                if (port < 0) {
+                    Log.w(TAG, "No port is bound to " + GalileoskyDecoder.NAME + ", cannot replay");
+                    return;
+                }
+                CaptureReplayer.Result result =
+                        new CaptureReplayer(file, "127.0.0.1", port, mode).run();
+                Log.i(TAG, "Replay finished: " + result);
+            } catch (IOException e) {
+                Log.e(TAG, "Error replaying capture", e);
+            }
+        });
+    }
+
+    // Reconciles tracks with another gateway in both directions
+    public void syncWithPeer(String host, int port) {
+        executorService.submit(() -> {
+            Log.i(TAG, "Syncing tracks with " + host + ":" + port);
+            try {
+                PeerSyncClient.Result result = peerSyncClient.sync(host, port);
+                Log.i(TAG, "Peer sync finished: " + result);
+            } catch (IOException e) {
+                Log.e(TAG, "Error syncing with " + host + ":" + port, e);
+            }
+        });
+    }
+
     public boolean isServerRunning() {
         return isRunning.get();
     }
     
     public int getConnectedDeviceCount() {
-        return deviceConnections.size();
+        return identifiedConnections.get();
+    }
+    
+    public IngestPipeline getIngestPipeline() {
+        return ingestPipeline;
+    }
+    
+    public CommandDispatcher getCommandDispatcher() {
+        return commandDispatcher;
+    }
+    
+    public AlertEngine getAlertEngine() {
+        return alertEngine;
+    }
+
+    public RecordFilter getRecordFilter() {
+        return recordFilter;
+    }
+
+    public UplinkRelay getUplinkRelay() {
+        return uplinkRelay;
+    }
+
+    public RollupEngine getRollupEngine() {
+        return rollupEngine;
+    }
+
+    public GeofenceEngine getGeofenceEngine() {
+        return geofenceEngine;
     }
     
-    public ConcurrentHashMap<String, DeviceData> getDevices() {
-        return devices;
+    public List<ConnectionStats> getConnectionStats() {
+        return new ArrayList<ConnectionStats>(deviceConnections);
+    }
+    
+    public DeviceCounters getDeviceCounters() {
+        return deviceCounters;
+    }
+    
+    public TrackStore getTrackStore() {
+        return trackStore;
+    }
+    
+    public DeviceStateTable getDeviceTable() {
+        return deviceTable;
+    }
+    
+    @Override
+    public List<DeviceData> snapshotDevices() {
+        return deviceTable.snapshotAll();
     }
 }
@@ -6,30 +6,84 @@ import android.os.IBinder;
 import android.util.Log;
 
 import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.TextFrame;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.ohw.parser.alerts.AlertEngine;
+import com.ohw.parser.alerts.AlertEvent;
+import com.ohw.parser.alerts.AlertRuleDefinition;
+import com.ohw.parser.geofence.GeofenceDefinition;
+import com.ohw.parser.geofence.GeofenceEngine;
+import com.ohw.parser.geofence.GeofenceEvent;
+import com.ohw.parser.rollups.RollupEngine;
+import com.ohw.parser.rollups.RollupReport;
+import com.ohw.parser.commands.Command;
+import com.ohw.parser.commands.CommandDispatcher;
+import com.ohw.parser.journal.EventJournal;
+import com.ohw.parser.journal.EventType;
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.metrics.StatsReport;
 import com.ohw.parser.models.ParsedPacket;
+import com.ohw.parser.parsers.ImeiCodec;
+import com.ohw.parser.parsers.ProtocolRegistry;
+import com.ohw.parser.power.FlushTrigger;
+import com.ohw.parser.power.PowerScheduler;
+import com.ohw.parser.query.DevicePage;
+import com.ohw.parser.query.DeviceQuery;
+import com.ohw.parser.query.DeviceQueryEngine;
+import com.ohw.parser.state.PresenceState;
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 
 public class WebSocketService extends Service {
 
     private static final String TAG = "WebSocketService";
     private static final int WS_PORT = 3002;
     
+    private static volatile WebSocketService runningInstance;
+    
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
     private final ConcurrentHashMap<String, WebSocket> connectedClients = new ConcurrentHashMap<>();
     private final Gson gson = new Gson();
     
+    // Device data waits for the fan-out lane, then goes to each client in one write
+    private static final int MAX_PENDING_BROADCASTS = 10000;
+    private final ConcurrentLinkedQueue<ParsedPacket> pendingBroadcasts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final FlushTrigger broadcastTrigger =
+            PowerScheduler.get().newTrigger(PowerScheduler.Lane.FANOUT, this::flushBroadcasts);
+    
     private WebSocketServer webSocketServer;
+    private DeviceQueryEngine deviceQueryEngine;      // Guarded by this
+    private TcpServerService deviceQuerySource;
+
+    public static WebSocketService getRunningInstance() {
+        return runningInstance;
+    }
 
     @Override
     public void onCreate() {
         super.onCreate();
+        runningInstance = this;
         Log.i(TAG, "WebSocket Service created");
     }
 
@@ -54,6 +108,8 @@ public class WebSocketService extends Service {
             @Override
             public void onOpen(WebSocket conn, ClientHandshake handshake) {
                 String clientId = conn.getRemoteSocketAddress().toString();
+                // Lock for every frame sent to this client, set before any send
+                conn.setAttachment(new Object());
                 connectedClients.put(clientId, conn);
                 Log.i(TAG, "WebSocket client connected: " + clientId);
                 Log.i(TAG, "Total WebSocket clients: " + connectedClients.size());
@@ -90,11 +146,26 @@ public class WebSocketService extends Service {
         webSocketServer.start();
     }
 
+    // Sends from the socket thread and from broadcasts on other threads are not
+    // ordered by the library, and a streamed message goes out as several
+    // continuation frames that nothing may interleave with; so every frame to a
+    // client is written while holding that client's lock, for the whole message.
+    private static Object sendLock(WebSocket conn) {
+        Object lock = conn.getAttachment();
+        return lock != null ? lock : conn;
+    }
+
+    private static void send(WebSocket conn, String text) {
+        synchronized (sendLock(conn)) {
+            conn.send(text);
+        }
+    }
+
     private void sendInitialData(WebSocket conn) {
         try {
             // Send server status and basic info
             String initialData = gson.toJson(new ServerStatus("connected", "OHW Parser Mobile"));
-            conn.send(initialData);
+            send(conn, initialData);
         } catch (Exception e) {
             Log.e(TAG, "Error sending initial data", e);
         }
@@ -102,13 +173,54 @@ public class WebSocketService extends Service {
 
     private void handleWebSocketMessage(WebSocket conn, String message) {
         try {
-            // Parse message and handle different types
-            if (message.contains("get_status")) {
-                sendServerStatus(conn);
-            } else if (message.contains("get_devices")) {
-                sendDeviceList(conn);
-            } else if (message.contains("send_command")) {
-                handleCommandRequest(conn, message);
+            // Parse the envelope once and dispatch on its type
+            ClientMessage request = ClientMessage.parse(message);
+            if (request.type == null) {
+                Log.w(TAG, "WebSocket message without type");
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "unknown_type",
+                        "Message has no type")));
+                return;
+            }
+            
+            switch (request.type) {
+                case "get_status":
+                    sendServerStatus(conn);
+                    break;
+                case "get_devices":
+                    sendDeviceList(conn, request);
+                    break;
+                case "get_stats":
+                    sendStats(conn, request);
+                    break;
+                case "send_command":
+                    handleCommandRequest(conn, request);
+                    break;
+                case "get_rollups":
+                    sendRollups(conn, request);
+                    break;
+                case "get_alert_rules":
+                    sendAlertRules(conn, request.requestId);
+                    break;
+                case "set_alert_rules":
+                    handleSetAlertRules(conn, request);
+                    break;
+                case "get_geofences":
+                    sendGeofences(conn, request.requestId);
+                    break;
+                case "set_geofences":
+                    handleSetGeofences(conn, request);
+                    break;
+                case "get_ports":
+                    sendPortBindings(conn, request.requestId);
+                    break;
+                case "set_ports":
+                    handleSetPorts(conn, request);
+                    break;
+                default:
+                    Log.w(TAG, "Unknown WebSocket message type: " + request.type);
+                    send(conn, gson.toJson(new ErrorResponse(request.requestId, "unknown_type",
+                            "Unknown message type: " + request.type)));
+                    break;
             }
         } catch (Exception e) {
             Log.e(TAG, "Error handling WebSocket message", e);
@@ -118,50 +230,490 @@ public class WebSocketService extends Service {
     private void sendServerStatus(WebSocket conn) {
         try {
             ServerStatus status = new ServerStatus("running", "OHW Parser Mobile");
-            conn.send(gson.toJson(status));
+            send(conn, gson.toJson(status));
         } catch (Exception e) {
             Log.e(TAG, "Error sending server status", e);
         }
     }
 
-    private void sendDeviceList(WebSocket conn) {
+    private void sendDeviceList(WebSocket conn, ClientMessage request) {
         try {
-            // This would get device data from TcpServerService
-            // For now, send empty list
-            DeviceListResponse response = new DeviceListResponse();
-            conn.send(gson.toJson(response));
+            DeviceQueryEngine engine = getDeviceQueryEngine();
+            if (engine == null) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "unavailable",
+                        "TCP server is not running")));
+                return;
+            }
+            
+            DevicePage page;
+            try {
+                page = engine.query(DeviceQuery.fromJson(request.body));
+            } catch (DeviceQueryEngine.InvalidCursorException e) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "invalid_cursor", e.getMessage())));
+                return;
+            } catch (NumberFormatException e) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "invalid_request", e.getMessage())));
+                return;
+            }
+            
+            // Stream the page so large fleets never materialize as one string
+            synchronized (sendLock(conn)) {
+                JsonWriter writer = new JsonWriter(new FragmentedTextWriter(conn));
+                writer.beginObject();
+                writer.name("type").value("devices");
+                if (request.requestId != null) {
+                    writer.name("requestId").value(request.requestId);
+                }
+                writer.name("snapshotId").value(page.getSnapshot().getId());
+                writer.name("total").value(page.getSnapshot().size());
+                writer.name("count").value(page.getCount());
+                writer.name("nextCursor");
+                if (page.getNextCursor() != null) {
+                    writer.value(page.getNextCursor());
+                } else {
+                    writer.nullValue();
+                }
+                writer.name("devices");
+                DeviceQueryEngine.writeDevices(writer, page);
+                writer.endObject();
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error streaming device list", e);
         } catch (Exception e) {
             Log.e(TAG, "Error sending device list", e);
         }
     }
 
-    private void handleCommandRequest(WebSocket conn, String message) {
+    private void sendStats(WebSocket conn, ClientMessage request) {
         try {
-            // Parse command request and forward to TCP service
-            // This would integrate with the command system
-            CommandResponse response = new CommandResponse("received", "Command queued");
-            conn.send(gson.toJson(response));
+            TcpServerService tcpServerService = TcpServerService.getRunningInstance();
+            
+            synchronized (sendLock(conn)) {
+                JsonWriter writer = new JsonWriter(new FragmentedTextWriter(conn));
+                writer.beginObject();
+                writer.name("type").value("stats");
+                if (request.requestId != null) {
+                    writer.name("requestId").value(request.requestId);
+                }
+                StatsReport.writeSummary(writer, GatewayMetrics.get());
+                if (tcpServerService != null) {
+                    StatsReport.writeConnections(writer, tcpServerService.getConnectionStats());
+                
+                    // Per-device breakdown for one IMEI or the first "devices" entries
+                    int slot = -1;
+                    int limit = 0;
+                    if (request.body != null && request.body.has("imei")) {
+                        long imei = ImeiCodec.parse(request.body.get("imei").getAsString());
+                        slot = imei != ImeiCodec.INVALID ? tcpServerService.getDeviceTable().findSlot(imei) : -1;
+                        limit = slot >= 0 ? 1 : 0;
+                    } else if (request.body != null && request.body.has("devices")) {
+                        limit = request.body.get("devices").getAsInt();
+                    }
+                    if (slot >= 0 || limit > 0) {
+                        StatsReport.writeDevices(writer, tcpServerService.getDeviceTable(),
+                                tcpServerService.getDeviceCounters(), slot, limit);
+                    }
+                }
+                writer.endObject();
+                writer.close();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending stats", e);
+        }
+    }
+
+    // Rebuilt when the TCP service restarts, so pages never come from a stopped instance
+    private synchronized DeviceQueryEngine getDeviceQueryEngine() {
+        TcpServerService tcpServerService = TcpServerService.getRunningInstance();
+        if (tcpServerService == null) {
+            return null;
+        }
+        if (deviceQueryEngine == null || deviceQuerySource != tcpServerService) {
+            deviceQueryEngine = new DeviceQueryEngine(tcpServerService);
+            deviceQuerySource = tcpServerService;
+        }
+        return deviceQueryEngine;
+    }
+
+    // {"type": "send_command", "command": "...", "imei": "..."} or "imeis": [...] for fan-out
+    private void handleCommandRequest(WebSocket conn, ClientMessage request) {
+        try {
+            TcpServerService tcpServerService = TcpServerService.getRunningInstance();
+            if (tcpServerService == null) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "unavailable",
+                        "TCP server is not running")));
+                return;
+            }
+            String text = request.body != null && request.body.has("command")
+                    ? request.body.get("command").getAsString() : null;
+            long[] imeis = commandTargets(request.body);
+            if (text == null || imeis == null) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "invalid_command",
+                        "send_command needs \"command\" and \"imei\" or \"imeis\"")));
+                return;
+            }
+            
+            CommandDispatcher.FanOut result;
+            try {
+                result = tcpServerService.getCommandDispatcher().submitAll(imeis, text, request.requestId);
+            } catch (IllegalArgumentException e) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "invalid_command", e.getMessage())));
+                return;
+            }
+            
+            CommandResponse response = new CommandResponse(request.requestId,
+                    result.queued.isEmpty() ? "not_connected" : "queued",
+                    result.queued.size() + " of " + imeis.length + " commands queued");
+            response.queued = result.queued.size();
+            if (result.queued.size() == 1) {
+                response.commandNumber = result.queued.get(0).getNumber();
+            }
+            if (!result.notConnected.isEmpty()) {
+                response.notConnected = new ArrayList<>(result.notConnected.size());
+                for (long imei : result.notConnected) {
+                    response.notConnected.add(ImeiCodec.format(imei));
+                }
+            }
+            send(conn, gson.toJson(response));
         } catch (Exception e) {
             Log.e(TAG, "Error handling command request", e);
         }
     }
 
+    private static long[] commandTargets(JsonObject body) {
+        if (body == null) {
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        if (body.has("imei")) {
+            values.add(body.get("imei").getAsString());
+        } else if (body.has("imeis") && body.get("imeis").isJsonArray()) {
+            for (JsonElement element : body.getAsJsonArray("imeis")) {
+                values.add(element.getAsString());
+            }
+        }
+        if (values.isEmpty()) {
+            return null;
+        }
+        long[] imeis = new long[values.size()];
+        for (int i = 0; i < imeis.length; i++) {
+            imeis[i] = ImeiCodec.parse(values.get(i));
+            if (imeis[i] == ImeiCodec.INVALID) {
+                return null;
+            }
+        }
+        return imeis;
+    }
+
+    // Queues the record for the next fan-out flush; called on the ingest shards
     public void broadcastDeviceData(ParsedPacket packet) {
         if (connectedClients.isEmpty()) {
             return;
         }
+        int pending = pendingCount.incrementAndGet();
+        if (pending > MAX_PENDING_BROADCASTS) {
+            // Clients that cannot keep up lose live records rather than the gateway its memory
+            pendingCount.decrementAndGet();
+            GatewayMetrics.get().broadcastsDropped.increment();
+            return;
+        }
+        pendingBroadcasts.add(packet);
+        broadcastTrigger.signal(pending);
+    }
+
+    // Serialises each queued record once and hands every client all of them in a single
+    // sendFrame, so a flush costs one socket write per client; returns the records sent
+    private int flushBroadcasts() {
+        List<byte[]> messages = new ArrayList<>();
+        ParsedPacket packet;
+        while ((packet = pendingBroadcasts.poll()) != null) {
+            pendingCount.decrementAndGet();
+            try {
+                // Gson writes fields, and the parser only fills in the numeric IMEI;
+                // getImei() formats the string field here, at the API edge
+                packet.getImei();
+                messages.add(gson.toJson(packet).getBytes(StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                Log.e(TAG, "Error serialising device data", e);
+            }
+        }
+        if (messages.isEmpty() || connectedClients.isEmpty()) {
+            return messages.size();
+        }
+        
+        EventJournal.get().emit(EventType.BROADCAST, connectedClients.size(), messages.size());
+        for (WebSocket client : connectedClients.values()) {
+            if (!client.isOpen()) {
+                continue;
+            }
+            List<Framedata> frames = new ArrayList<>(messages.size());
+            for (byte[] message : messages) {
+                TextFrame frame = new TextFrame();
+                frame.setPayload(ByteBuffer.wrap(message));
+                frame.setFin(true);
+                frames.add(frame);
+            }
+            try {
+                synchronized (sendLock(client)) {
+                    client.sendFrame(frames);
+                }
+            } catch (WebsocketNotConnectedException e) {
+                // Closed since isOpen(); onClose removes it
+            }
+        }
+        GatewayMetrics.get().broadcasts.add(messages.size());
+        return messages.size();
+    }
+
+    public void broadcastPresence(String imei, PresenceState state, long lastSeenMillis) {
+        if (connectedClients.isEmpty()) {
+            return;
+        }
         
         try {
-            String deviceData = gson.toJson(packet);
-            Log.i(TAG, "Broadcasting device data to " + connectedClients.size() + " clients");
+            String event = gson.toJson(new PresenceEvent(imei, state.getJsonName(), lastSeenMillis));
+            for (WebSocket client : connectedClients.values()) {
+                if (client.isOpen()) {
+                    send(client, event);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error broadcasting presence", e);
+        }
+    }
+
+    // {"type": "get_rollups", "resolution": "minute"|"hour", "buckets": n, "imei": optional}
+    private void sendRollups(WebSocket conn, ClientMessage request) {
+        try {
+            TcpServerService tcpServerService = TcpServerService.getRunningInstance();
+            if (tcpServerService == null) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "unavailable",
+                        "TCP server is not running")));
+                return;
+            }
+            RollupEngine.Resolution resolution = RollupEngine.Resolution.MINUTE;
+            int count = 60;
+            int slot = -1;
+            if (request.body != null) {
+                try {
+                    if (request.body.has("resolution")) {
+                        resolution = RollupEngine.Resolution.fromJsonName(
+                                request.body.get("resolution").getAsString());
+                    }
+                } catch (IllegalArgumentException e) {
+                    send(conn, gson.toJson(new ErrorResponse(request.requestId, "invalid_request",
+                            e.getMessage())));
+                    return;
+                }
+                if (request.body.has("buckets")) {
+                    count = request.body.get("buckets").getAsInt();
+                }
+                if (request.body.has("imei")) {
+                    long imei = ImeiCodec.parse(request.body.get("imei").getAsString());
+                    slot = imei != ImeiCodec.INVALID ? tcpServerService.getDeviceTable().findSlot(imei) : -1;
+                    if (slot < 0) {
+                        send(conn, gson.toJson(new ErrorResponse(request.requestId, "unknown_device",
+                                "Unknown device: " + request.body.get("imei").getAsString())));
+                        return;
+                    }
+                }
+            }
+            RollupEngine rollups = tcpServerService.getRollupEngine();
+            long now = System.currentTimeMillis();
             
+            synchronized (sendLock(conn)) {
+                JsonWriter writer = new JsonWriter(new FragmentedTextWriter(conn));
+                writer.beginObject();
+                writer.name("type").value("rollups");
+                if (request.requestId != null) {
+                    writer.name("requestId").value(request.requestId);
+                }
+                writer.name("resolution").value(resolution.getJsonName());
+                RollupReport.writeBuckets(writer, slot >= 0 ? rollups.device(slot, resolution, count, now)
+                        : rollups.fleet(resolution, count, now));
+                writer.endObject();
+                writer.close();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending rollups", e);
+        }
+    }
+
+    private void sendAlertRules(WebSocket conn, String requestId) {
+        TcpServerService tcpServerService = TcpServerService.getRunningInstance();
+        if (tcpServerService == null) {
+            send(conn, gson.toJson(new ErrorResponse(requestId, "unavailable", "TCP server is not running")));
+            return;
+        }
+        AlertRulesResponse response = new AlertRulesResponse(requestId,
+                tcpServerService.getAlertEngine().getRules().getDefinitions());
+        send(conn, gson.toJson(response));
+    }
+
+    // {"type": "set_alert_rules", "rules": [...]} replaces the whole rule set
+    private void handleSetAlertRules(WebSocket conn, ClientMessage request) {
+        try {
+            TcpServerService tcpServerService = TcpServerService.getRunningInstance();
+            if (tcpServerService == null) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "unavailable",
+                        "TCP server is not running")));
+                return;
+            }
+            if (request.body == null || !request.body.has("rules")) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "invalid_rules",
+                        "set_alert_rules needs \"rules\"")));
+                return;
+            }
+            try {
+                tcpServerService.updateAlertRules(AlertEngine.readDefinitions(
+                        new StringReader(request.body.toString())));
+            } catch (IllegalArgumentException | IllegalStateException | JsonParseException e) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "invalid_rules", e.getMessage())));
+                return;
+            }
+            sendAlertRules(conn, request.requestId);
+        } catch (Exception e) {
+            Log.e(TAG, "Error updating alert rules", e);
+        }
+    }
+
+    private void sendPortBindings(WebSocket conn, String requestId) {
+        TcpServerService tcpServerService = TcpServerService.getRunningInstance();
+        if (tcpServerService == null) {
+            send(conn, gson.toJson(new ErrorResponse(requestId, "unavailable", "TCP server is not running")));
+            return;
+        }
+        ProtocolRegistry protocols = tcpServerService.getProtocols();
+        send(conn, gson.toJson(new PortsResponse(requestId, protocols.getConfig().ports,
+                protocols.getProtocols())));
+    }
+
+    // {"type": "set_ports", "ports": [{"port": 3000, "protocol": "galileosky"}]} replaces
+    // the bindings; the listeners pick them up on the next service start
+    private void handleSetPorts(WebSocket conn, ClientMessage request) {
+        try {
+            TcpServerService tcpServerService = TcpServerService.getRunningInstance();
+            if (tcpServerService == null) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "unavailable",
+                        "TCP server is not running")));
+                return;
+            }
+            if (request.body == null || !request.body.has("ports")) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "invalid_ports",
+                        "set_ports needs \"ports\"")));
+                return;
+            }
+            try {
+                ProtocolRegistry.Config config = gson.fromJson(request.body, ProtocolRegistry.Config.class);
+                if (config.ports == null) {
+                    throw new IllegalArgumentException("\"ports\" must be a list");
+                }
+                tcpServerService.updatePortBindings(config);
+            } catch (IllegalArgumentException | IllegalStateException | JsonParseException e) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "invalid_ports", e.getMessage())));
+                return;
+            }
+            sendPortBindings(conn, request.requestId);
+        } catch (Exception e) {
+            Log.e(TAG, "Error updating port bindings", e);
+        }
+    }
+
+    private void sendGeofences(WebSocket conn, String requestId) {
+        TcpServerService tcpServerService = TcpServerService.getRunningInstance();
+        if (tcpServerService == null) {
+            send(conn, gson.toJson(new ErrorResponse(requestId, "unavailable", "TCP server is not running")));
+            return;
+        }
+        GeofencesResponse response = new GeofencesResponse(requestId,
+                tcpServerService.getGeofenceEngine().getIndex().getDefinitions());
+        send(conn, gson.toJson(response));
+    }
+
+    // {"type": "set_geofences", "geofences": [...]} replaces the whole fence set
+    private void handleSetGeofences(WebSocket conn, ClientMessage request) {
+        try {
+            TcpServerService tcpServerService = TcpServerService.getRunningInstance();
+            if (tcpServerService == null) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "unavailable",
+                        "TCP server is not running")));
+                return;
+            }
+            if (request.body == null || !request.body.has("geofences")) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "invalid_geofences",
+                        "set_geofences needs \"geofences\"")));
+                return;
+            }
+            try {
+                tcpServerService.updateGeofences(GeofenceEngine.readDefinitions(
+                        new StringReader(request.body.toString())));
+            } catch (IllegalArgumentException | IllegalStateException | JsonParseException e) {
+                send(conn, gson.toJson(new ErrorResponse(request.requestId, "invalid_geofences",
+                        e.getMessage())));
+                return;
+            }
+            sendGeofences(conn, request.requestId);
+        } catch (Exception e) {
+            Log.e(TAG, "Error updating geofences", e);
+        }
+    }
+
+    public void broadcastGeofence(GeofenceEvent event) {
+        if (connectedClients.isEmpty()) {
+            return;
+        }
+        
+        try {
+            String message = gson.toJson(new GeofenceMessage(event));
+            for (WebSocket client : connectedClients.values()) {
+                if (client.isOpen()) {
+                    send(client, message);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error broadcasting geofence event", e);
+        }
+    }
+
+    public void broadcastAlert(AlertEvent event) {
+        if (connectedClients.isEmpty()) {
+            return;
+        }
+        
+        try {
+            String message = gson.toJson(new AlertMessage(event));
+            for (WebSocket client : connectedClients.values()) {
+                if (client.isOpen()) {
+                    send(client, message);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error broadcasting alert", e);
+        }
+    }
+
+    // Reply to a command, or its expiry when reply is null
+    public void broadcastCommandResult(Command command, String reply, long roundTripNanos) {
+        if (connectedClients.isEmpty()) {
+            return;
+        }
+        
+        try {
+            CommandResultEvent event = new CommandResultEvent(reply != null ? "command_reply" : "command_expired",
+                    command.getRequestId(), ImeiCodec.format(command.getImei()), command.getNumber());
+            if (reply != null) {
+                event.reply = reply;
+                event.roundTripMs = roundTripNanos / 1000000.0;
+            }
+            String message = gson.toJson(event);
             for (WebSocket client : connectedClients.values()) {
                 if (client.isOpen()) {
-                    client.send(deviceData);
+                    send(client, message);
                 }
             }
         } catch (Exception e) {
-            Log.e(TAG, "Error broadcasting device data", e);
+            Log.e(TAG, "Error broadcasting command result", e);
         }
     }
 
@@ -171,7 +723,16 @@ public class WebSocketService extends Service {
         isRunning.set(false);
         
         if (webSocketServer != null) {
-            webSocketServer.stop();
+            try {
+                webSocketServer.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.e(TAG, "Interrupted while stopping WebSocket server", e);
+            }
+        }
+        
+        if (runningInstance == this) {
+            runningInstance = null;
         }
         
         super.onDestroy();
@@ -188,18 +749,174 @@ public class WebSocketService extends Service {
         }
     }
     
-    private static class DeviceListResponse {
-        public String[] devices = new String[0];
-        public int count = 0;
-    }
-    
     private static class CommandResponse {
+        public String type = "command_status";
+        public String requestId;
         public String status;
         public String message;
+        public int queued;
+        public Long commandNumber;
+        public List<String> notConnected;
         
-        public CommandResponse(String status, String message) {
+        public CommandResponse(String requestId, String status, String message) {
+            this.requestId = requestId;
             this.status = status;
             this.message = message;
         }
     }
+    
+    private static class AlertRulesResponse {
+        public String type = "alert_rules";
+        public String requestId;
+        public List<AlertRuleDefinition> rules;
+        
+        public AlertRulesResponse(String requestId, List<AlertRuleDefinition> rules) {
+            this.requestId = requestId;
+            this.rules = rules;
+        }
+    }
+    
+    private static class AlertMessage {
+        public String type = "alert";
+        public String event;
+        public String ruleId;
+        public String ruleName;
+        public String severity;
+        public String metric;
+        public String imei;
+        public double value;
+        public long timestamp;
+        
+        public AlertMessage(AlertEvent alert) {
+            this.event = alert.getType().getJsonName();
+            this.ruleId = alert.getRuleId();
+            this.ruleName = alert.getRuleName();
+            this.severity = alert.getSeverity();
+            this.metric = alert.getMetric().getJsonName();
+            this.imei = ImeiCodec.format(alert.getImei());
+            this.value = alert.getValue();
+            this.timestamp = alert.getTimestampMillis();
+        }
+    }
+    
+    private static class GeofencesResponse {
+        public String type = "geofences";
+        public String requestId;
+        public List<GeofenceDefinition> geofences;
+        
+        public GeofencesResponse(String requestId, List<GeofenceDefinition> geofences) {
+            this.requestId = requestId;
+            this.geofences = geofences;
+        }
+    }
+    
+    private static class PortsResponse {
+        public String type = "ports";
+        public String requestId;
+        public List<ProtocolRegistry.Binding> ports;
+        public List<String> protocols;
+        
+        public PortsResponse(String requestId, List<ProtocolRegistry.Binding> ports, List<String> protocols) {
+            this.requestId = requestId;
+            this.ports = ports;
+            this.protocols = protocols;
+        }
+    }
+    
+    private static class GeofenceMessage {
+        public String type = "geofence";
+        public String event;
+        public String fenceId;
+        public String fenceName;
+        public String imei;
+        public double latitude;
+        public double longitude;
+        public long timestamp;
+        
+        public GeofenceMessage(GeofenceEvent geofence) {
+            this.event = geofence.getType().getJsonName();
+            this.fenceId = geofence.getFenceId();
+            this.fenceName = geofence.getFenceName();
+            this.imei = ImeiCodec.format(geofence.getImei());
+            this.latitude = geofence.getLatitude();
+            this.longitude = geofence.getLongitude();
+            this.timestamp = geofence.getTimestampMillis();
+        }
+    }
+    
+    private static class CommandResultEvent {
+        public String type;
+        public String requestId;
+        public String imei;
+        public long commandNumber;
+        public String reply;
+        public Double roundTripMs;
+        
+        public CommandResultEvent(String type, String requestId, String imei, long commandNumber) {
+            this.type = type;
+            this.requestId = requestId;
+            this.imei = imei;
+            this.commandNumber = commandNumber;
+        }
+    }
+    
+    private static class PresenceEvent {
+        public String type = "presence";
+        public String imei;
+        public String state;
+        public long lastSeen;
+        
+        public PresenceEvent(String imei, String state, long lastSeen) {
+            this.imei = imei;
+            this.state = state;
+            this.lastSeen = lastSeen;
+        }
+    }
+    
+    private static class ErrorResponse {
+        public String type = "error";
+        public String requestId;
+        public String code;
+        public String message;
+        
+        public ErrorResponse(String requestId, String code, String message) {
+            this.requestId = requestId;
+            this.code = code;
+            this.message = message;
+        }
+    }
+    
+    // Typed request envelope: {"type": "...", "requestId": "...", ...body fields}
+    private static class ClientMessage {
+        public String type;
+        public String requestId;
+        public JsonObject body;
+        
+        static ClientMessage parse(String message) {
+            ClientMessage request = new ClientMessage();
+            String trimmed = message.trim();
+            if (!trimmed.startsWith("{")) {
+                // Legacy clients send the bare message type
+                request.type = trimmed.isEmpty() ? null : trimmed;
+                return request;
+            }
+            
+            try {
+                JsonElement element = JsonParser.parseString(trimmed);
+                if (element.isJsonObject()) {
+                    request.body = element.getAsJsonObject();
+                    request.type = stringField(request.body, "type");
+                    request.requestId = stringField(request.body, "requestId");
+                }
+            } catch (JsonParseException e) {
+                Log.w(TAG, "Malformed WebSocket message: " + e.getMessage());
+            }
+            return request;
+        }
+        
+        private static String stringField(JsonObject object, String name) {
+            JsonElement value = object.get(name);
+            return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+        }
+    }
 }
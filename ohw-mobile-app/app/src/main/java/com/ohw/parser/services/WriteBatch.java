@@ -0,0 +1,70 @@
+package com.ohw.parser.services;
+
+import com.ohw.parser.parsers.FrameReader;
+import com.ohw.parser.parsers.ProtocolDecoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Bytes bound for one device socket, written with a single write. Holds the
+// confirmations gathered while draining one read (in the connection protocol's
+// format) and any command packets queued for the device in the meantime.
+class WriteBatch {
+
+    private byte[] buffer = new byte[64];
+    private int length;
+    private int ackCount;
+    private int packetCount;
+
+    // The decoder writes its confirmation of the current frame straight into the batch
+    void addAck(ProtocolDecoder decoder, FrameReader frame) {
+        ensureCapacity(decoder.getMaxAckBytes());
+        int written = decoder.writeAck(frame, buffer, length);
+        if (written > 0) {
+            length += written;
+            ackCount++;
+        }
+    }
+
+    void addPacket(byte[] packet) {
+        ensureCapacity(packet.length);
+        System.arraycopy(packet, 0, buffer, length, packet.length);
+        length += packet.length;
+        packetCount++;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+    int getAckCount() {
+        return ackCount;
+    }
+
+    int getPacketCount() {
+        return packetCount;
+    }
+
+    boolean isEmpty() {
+        return length == 0;
+    }
+
+    // Writes and flushes everything pending, then resets the batch
+    void writeTo(OutputStream out) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        try {
+            out.write(buffer, 0, length);
+            out.flush();
+        } finally {
+            length = 0;
+            ackCount = 0;
+            packetCount = 0;
+        }
+    }
+}
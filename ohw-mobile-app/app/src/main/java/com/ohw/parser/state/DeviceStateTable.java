@@ -0,0 +1,267 @@
+package com.ohw.parser.state;
+
+import com.ohw.parser.models.DeviceData;
+import com.ohw.parser.models.ParsedPacket;
+import com.ohw.parser.parsers.ImeiCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+// Live per-device state stored column-wise in primitive arrays indexed by a dense slot.
+// Slots are grouped into fixed-size segments so growth never moves existing columns.
+// Writers take the stripe write lock of their slot; readers use optimistic stamps and
+// fall back to the read lock, which gives consistent per-device snapshots.
+public class DeviceStateTable {
+
+    private static final int SEGMENT_SHIFT = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT; // 1024 devices per segment
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    public static final int FLAG_ONLINE = 1;
+    public static final int FLAG_STALE = 2;
+
+    private final StampedLock[] stripes;
+    private final int stripeMask;
+
+    private final Object allocationLock = new Object();
+    private final AtomicInteger slotCount = new AtomicInteger();
+    private final LongIntHashMap slotsByImei = new LongIntHashMap();
+    private volatile Segment[] segments = new Segment[0];
+    private final LongAdder modifications = new LongAdder();
+
+    private static final class Segment {
+        final long[] imei = new long[SEGMENT_SIZE];
+        final long[] version = new long[SEGMENT_SIZE];
+        final long[] lastSeenMillis = new long[SEGMENT_SIZE];
+        final long[] totalRecords = new long[SEGMENT_SIZE];
+        final int[] latitudeE6 = new int[SEGMENT_SIZE];
+        final int[] longitudeE6 = new int[SEGMENT_SIZE];
+        final int[] speedTenths = new int[SEGMENT_SIZE];
+        final int[] satellites = new int[SEGMENT_SIZE];
+        final int[] batteryMillivolts = new int[SEGMENT_SIZE];
+        final int[] supplyMillivolts = new int[SEGMENT_SIZE];
+        final int[] status = new int[SEGMENT_SIZE];
+        final byte[] flags = new byte[SEGMENT_SIZE];
+        final String[] clientAddress = new String[SEGMENT_SIZE];
+    }
+
+    // Bytes of column storage per device, excluding the IMEI index
+    public static final int COLUMN_BYTES_PER_DEVICE = 4 * 8 + 7 * 4 + 1 + 4;
+
+    public DeviceStateTable() {
+        this(Runtime.getRuntime().availableProcessors() * 8);
+    }
+
+    public DeviceStateTable(int minStripes) {
+        int count = Integer.highestOneBit(Math.max(1, minStripes - 1)) << 1;
+        stripes = new StampedLock[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new StampedLock();
+        }
+        stripeMask = count - 1;
+    }
+
+    public int size() {
+        return slotCount.get();
+    }
+
+    // Grows with every state change anywhere in the table; used for cheap change detection
+    public long getModificationCount() {
+        return modifications.sum() + slotCount.get();
+    }
+
+    public int findSlot(long imei) {
+        return slotsByImei.get(imei);
+    }
+
+    public int getOrCreateSlot(long imei) {
+        int slot = slotsByImei.get(imei);
+        if (slot != LongIntHashMap.MISSING) {
+            return slot;
+        }
+
+        synchronized (allocationLock) {
+            slot = slotsByImei.get(imei);
+            if (slot != LongIntHashMap.MISSING) {
+                return slot;
+            }
+
+            int newSlot = slotCount.get();
+            ensureSegment(newSlot >>> SEGMENT_SHIFT);
+            Segment segment = segments[newSlot >>> SEGMENT_SHIFT];
+            StampedLock lock = stripes[newSlot & stripeMask];
+            long stamp = lock.writeLock();
+            try {
+                segment.imei[newSlot & SEGMENT_MASK] = imei;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+
+            // Publish the slot only after its key column is written
+            slotCount.set(newSlot + 1);
+            slotsByImei.put(imei, newSlot);
+            return newSlot;
+        }
+    }
+
+    // Returns the presence flags the device had before this record
+    public int recordPacket(int slot, ParsedPacket packet, String clientAddress, long nowMillis) {
+        Segment segment = segments[slot >>> SEGMENT_SHIFT];
+        int i = slot & SEGMENT_MASK;
+        StampedLock lock = stripes[slot & stripeMask];
+        long stamp = lock.writeLock();
+        try {
+            segment.lastSeenMillis[i] = nowMillis;
+            segment.totalRecords[i]++;
+            if (packet.hasValidCoordinates()) {
+                segment.latitudeE6[i] = (int) Math.round(packet.getLatitude() * 1000000.0);
+                segment.longitudeE6[i] = (int) Math.round(packet.getLongitude() * 1000000.0);
+                segment.speedTenths[i] = (int) Math.round(packet.getSpeed() * 10.0);
+                segment.satellites[i] = packet.getSatellites();
+            }
+            if (packet.getBatteryVoltage() > 0) {
+                segment.batteryMillivolts[i] = (int) Math.round(packet.getBatteryVoltage() * 1000.0);
+            }
+            if (packet.getSupplyVoltage() > 0) {
+                segment.supplyMillivolts[i] = (int) Math.round(packet.getSupplyVoltage() * 1000.0);
+            }
+            segment.status[i] = packet.getStatus();
+            if (clientAddress != null && !clientAddress.equals(segment.clientAddress[i])) {
+                segment.clientAddress[i] = clientAddress;
+            }
+            byte previousFlags = segment.flags[i];
+            segment.flags[i] = (byte) ((previousFlags | FLAG_ONLINE) & ~FLAG_STALE);
+            segment.version[i]++;
+            modifications.increment();
+            return previousFlags;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Applies presence flags only if no record arrived after expectedLastSeen
+    public boolean updatePresence(int slot, long expectedLastSeen, int presenceFlags) {
+        Segment segment = segments[slot >>> SEGMENT_SHIFT];
+        int i = slot & SEGMENT_MASK;
+        StampedLock lock = stripes[slot & stripeMask];
+        long stamp = lock.writeLock();
+        try {
+            if (segment.lastSeenMillis[i] != expectedLastSeen) {
+                return false;
+            }
+            byte flags = segment.flags[i];
+            byte updated = (byte) ((flags & ~(FLAG_ONLINE | FLAG_STALE)) | presenceFlags);
+            if (updated != flags) {
+                segment.flags[i] = updated;
+                segment.version[i]++;
+                modifications.increment();
+            }
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public long getImei(int slot) {
+        // The key column is immutable once the slot is published
+        return segments[slot >>> SEGMENT_SHIFT].imei[slot & SEGMENT_MASK];
+    }
+
+    public long getLastSeenMillis(int slot) {
+        Segment segment = segments[slot >>> SEGMENT_SHIFT];
+        int i = slot & SEGMENT_MASK;
+        StampedLock lock = stripes[slot & stripeMask];
+        long stamp = lock.tryOptimisticRead();
+        long lastSeen = segment.lastSeenMillis[i];
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                lastSeen = segment.lastSeenMillis[i];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return lastSeen;
+    }
+
+    public long getVersion(int slot) {
+        Segment segment = segments[slot >>> SEGMENT_SHIFT];
+        int i = slot & SEGMENT_MASK;
+        StampedLock lock = stripes[slot & stripeMask];
+        long stamp = lock.tryOptimisticRead();
+        long version = segment.version[i];
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                version = segment.version[i];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return version;
+    }
+
+    public DeviceData snapshot(int slot) {
+        Segment segment = segments[slot >>> SEGMENT_SHIFT];
+        int i = slot & SEGMENT_MASK;
+        DeviceData device = new DeviceData(ImeiCodec.format(segment.imei[i]));
+        StampedLock lock = stripes[slot & stripeMask];
+
+        long stamp = lock.tryOptimisticRead();
+        readInto(segment, i, device);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                readInto(segment, i, device);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return device;
+    }
+
+    public List<DeviceData> snapshotAll() {
+        int count = slotCount.get();
+        List<DeviceData> devices = new ArrayList<>(count);
+        for (int slot = 0; slot < count; slot++) {
+            devices.add(snapshot(slot));
+        }
+        return devices;
+    }
+
+    public long estimateMemoryBytes() {
+        long columns = (long) segments.length * SEGMENT_SIZE * COLUMN_BYTES_PER_DEVICE;
+        return columns + slotsByImei.estimateMemoryBytes();
+    }
+
+    private static void readInto(Segment segment, int i, DeviceData device) {
+        device.setLastSeenEpochMillis(segment.lastSeenMillis[i]);
+        device.setTotalRecords((int) segment.totalRecords[i]);
+        device.setLatitude(segment.latitudeE6[i] / 1000000.0);
+        device.setLongitude(segment.longitudeE6[i] / 1000000.0);
+        device.setSpeed(segment.speedTenths[i] / 10.0);
+        device.setSatellites(segment.satellites[i]);
+        device.setBatteryVoltage(segment.batteryMillivolts[i] / 1000.0);
+        device.setSupplyVoltage(segment.supplyMillivolts[i] / 1000.0);
+        device.setStatus(segment.status[i]);
+        device.setOnline((segment.flags[i] & FLAG_ONLINE) != 0);
+        device.setStale((segment.flags[i] & FLAG_STALE) != 0);
+        device.setClientAddress(segment.clientAddress[i]);
+    }
+
+    private void ensureSegment(int index) {
+        Segment[] current = segments;
+        if (index < current.length) {
+            return;
+        }
+        Segment[] grown = new Segment[index + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        for (int i = current.length; i < grown.length; i++) {
+            grown[i] = new Segment();
+        }
+        segments = grown;
+    }
+}
@@ -0,0 +1,78 @@
+package com.ohw.parser.state;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Approximate access counts for TinyLFU admission: a count-min sketch of 4-bit
+// counters, sixteen to a long. A key bumps one counter in each of four rows and
+// its estimate is the smallest of the four. Once the increments reach ten times
+// the population being ranked every counter is halved, so a device that went
+// quiet stops outranking newcomers. Updates are lock-free; a few increments may
+// be lost to the halving race, which only blurs estimates.
+final class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {
+            0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L};
+
+    private final AtomicLongArray table;
+    private final int mask;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    FrequencySketch(int population) {
+        int length = Integer.highestOneBit(Math.max(64, population * 2) - 1) << 1;
+        table = new AtomicLongArray(length);
+        mask = length - 1;
+        sampleSize = Math.max(1024, population * 10);
+    }
+
+    void increment(int key) {
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            long hash = hash(key, row);
+            int index = (int) hash & mask;
+            int shift = (int) (hash >>> 60) << 2;
+            while (true) {
+                long value = table.get(index);
+                if (((value >>> shift) & MAX_COUNT) == MAX_COUNT) {
+                    break;
+                }
+                if (table.compareAndSet(index, value, value + (1L << shift))) {
+                    added = true;
+                    break;
+                }
+            }
+        }
+        if (added && additions.incrementAndGet() == sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(int key) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < SEEDS.length; row++) {
+            long hash = hash(key, row);
+            int shift = (int) (hash >>> 60) << 2;
+            int count = (int) ((table.get((int) hash & mask) >>> shift) & MAX_COUNT);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (int i = 0; i <= mask; i++) {
+            long value;
+            do {
+                value = table.get(i);
+            } while (!table.compareAndSet(i, value, (value >>> 1) & RESET_MASK));
+        }
+        additions.addAndGet(-sampleSize / 2);
+    }
+
+    private static long hash(int key, int row) {
+        long h = (key + SEEDS[row]) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+}
@@ -0,0 +1,114 @@
+package com.ohw.parser.state;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Open-addressing map from positive long keys to int values with linear probing.
+// Lookups are lock-free and allocation-free; inserts are serialized internally.
+// A value is written before its key is published, so a reader that sees the key
+// also sees the value. Tables are replaced, never rehashed in place.
+public class LongIntHashMap {
+
+    public static final int MISSING = -1;
+
+    private static final long EMPTY = 0L;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private static final class Table {
+        final AtomicLongArray keys;
+        final int[] values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new int[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table;
+    private int size;
+
+    public LongIntHashMap() {
+        this(1024);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        table = new Table(capacity);
+    }
+
+    public int get(long key) {
+        Table t = table;
+        int i = index(key, t.mask);
+        while (true) {
+            long k = t.keys.get(i);
+            if (k == key) {
+                return t.values[i];
+            }
+            if (k == EMPTY) {
+                return MISSING;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    // Keys must be positive; value must not be MISSING
+    public synchronized void put(long key, int value) {
+        Table t = table;
+        if (size + 1 > (t.mask + 1) * LOAD_FACTOR) {
+            t = resize(t);
+        }
+        if (insert(t, key, value)) {
+            size++;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public long capacity() {
+        return table.mask + 1;
+    }
+
+    // Bytes held by the key and value arrays
+    public long estimateMemoryBytes() {
+        return capacity() * (8 + 4);
+    }
+
+    private static boolean insert(Table t, long key, int value) {
+        int i = index(key, t.mask);
+        while (true) {
+            long k = t.keys.get(i);
+            if (k == key) {
+                t.values[i] = value;
+                // Republish so lock-free readers observe the new value
+                t.keys.set(i, key);
+                return false;
+            }
+            if (k == EMPTY) {
+                t.values[i] = value;
+                t.keys.set(i, key);
+                return true;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    private Table resize(Table old) {
+        Table grown = new Table((old.mask + 1) << 1);
+        for (int i = 0; i <= old.mask; i++) {
+            long k = old.keys.get(i);
+            if (k != EMPTY) {
+                insert(grown, k, old.values[i]);
+            }
+        }
+        table = grown;
+        return grown;
+    }
+
+    private static int index(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
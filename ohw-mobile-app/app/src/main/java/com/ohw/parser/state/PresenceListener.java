@@ -0,0 +1,9 @@
+package com.ohw.parser.state;
+
+public interface PresenceListener {
+
+    void onPresenceChanged(int slot, long imei, PresenceState state);
+
+    // The device has been silent past the idle window; its socket should be closed
+    void onIdleTimeout(int slot, long imei);
+}
@@ -0,0 +1,17 @@
+package com.ohw.parser.state;
+
+public enum PresenceState {
+    ONLINE("online"),
+    STALE("stale"),
+    OFFLINE("offline");
+
+    private final String jsonName;
+
+    PresenceState(String jsonName) {
+        this.jsonName = jsonName;
+    }
+
+    public String getJsonName() {
+        return jsonName;
+    }
+}
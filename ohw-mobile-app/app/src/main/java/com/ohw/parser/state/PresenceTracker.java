@@ -0,0 +1,181 @@
+package com.ohw.parser.state;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Derives online/stale/offline presence from record arrival using a timer wheel.
+// Records only touch the state table; the wheel is consulted when a device was not
+// already online. Each timer re-reads last-seen when it fires and re-arms itself
+// from it, so a steady stream of records costs nothing beyond the table write.
+public class PresenceTracker {
+
+    public static class Config {
+        public long tickMillis = 1000;
+        public long staleAfterMillis = 120000;      // 2 minutes
+        public long idleCloseAfterMillis = 300000;  // 5 minutes
+        public long offlineAfterMillis = 600000;    // 10 minutes
+    }
+
+    private static final int FIRED_STALE = 1;
+    private static final int FIRED_IDLE = 2;
+    private static final int FIRED_OFFLINE = 4;
+
+    private final DeviceStateTable table;
+    private final Config config;
+    private final PresenceListener listener;
+    private final TimerWheel wheel;
+
+    // Guarded by this
+    private byte[] fired = new byte[1024];
+    private long[] epochs = new long[1024];
+    private final List<PendingEvent> pendingEvents = new ArrayList<>();
+
+    private static final class PendingEvent {
+        final int slot;
+        final long imei;
+        final PresenceState state; // null for idle timeouts
+
+        PendingEvent(int slot, long imei, PresenceState state) {
+            this.slot = slot;
+            this.imei = imei;
+            this.state = state;
+        }
+    }
+
+    public PresenceTracker(DeviceStateTable table, Config config, PresenceListener listener) {
+        this.table = table;
+        this.config = config;
+        this.listener = listener;
+        this.wheel = new TimerWheel(System.currentTimeMillis() / config.tickMillis, 1024);
+    }
+
+    // Called after DeviceStateTable.recordPacket with the flags it returned
+    public void onRecord(int slot, int previousFlags, long nowMillis) {
+        if ((previousFlags & DeviceStateTable.FLAG_ONLINE) != 0
+                && (previousFlags & DeviceStateTable.FLAG_STALE) == 0) {
+            return;
+        }
+
+        synchronized (this) {
+            ensureCapacity(slot + 1);
+            fired[slot] = 0;
+            epochs[slot] = nowMillis;
+            if (!wheel.isScheduled(slot)) {
+                wheel.schedule(slot, toTick(nowMillis + nextThreshold(0)));
+            }
+        }
+        listener.onPresenceChanged(slot, table.getImei(slot), PresenceState.ONLINE);
+    }
+
+    public void tick(long nowMillis) {
+        List<PendingEvent> events;
+        synchronized (this) {
+            wheel.advanceTo(nowMillis / config.tickMillis, new TimerWheel.ExpiryHandler() {
+                @Override
+                public void onExpired(int slot, long nowTick) {
+                    evaluate(slot, nowMillis);
+                }
+            });
+            if (pendingEvents.isEmpty()) {
+                return;
+            }
+            events = new ArrayList<>(pendingEvents);
+            pendingEvents.clear();
+        }
+
+        for (PendingEvent event : events) {
+            if (event.state != null) {
+                listener.onPresenceChanged(event.slot, event.imei, event.state);
+            } else {
+                listener.onIdleTimeout(event.slot, event.imei);
+            }
+        }
+    }
+
+    public synchronized int getTrackedCount() {
+        return wheel.size();
+    }
+
+    public long getTickMillis() {
+        return config.tickMillis;
+    }
+
+    private void evaluate(int slot, long nowMillis) {
+        long lastSeen = table.getLastSeenMillis(slot);
+        if (lastSeen != epochs[slot]) {
+            // Records arrived since the chain started; thresholds restart from them
+            fired[slot] = 0;
+            epochs[slot] = lastSeen;
+        }
+
+        long silence = nowMillis - lastSeen;
+        int done = fired[slot];
+        long imei = table.getImei(slot);
+
+        if ((done & FIRED_OFFLINE) == 0 && silence >= config.offlineAfterMillis) {
+            if (!table.updatePresence(slot, lastSeen, 0)) {
+                reschedule(slot, nowMillis);
+                return;
+            }
+            done |= FIRED_OFFLINE | FIRED_STALE;
+            pendingEvents.add(new PendingEvent(slot, imei, PresenceState.OFFLINE));
+            if ((done & FIRED_IDLE) == 0) {
+                // Never keep a socket open for a device already declared offline
+                done |= FIRED_IDLE;
+                pendingEvents.add(new PendingEvent(slot, imei, null));
+            }
+        } else if ((done & FIRED_STALE) == 0 && silence >= config.staleAfterMillis) {
+            if (!table.updatePresence(slot, lastSeen,
+                    DeviceStateTable.FLAG_ONLINE | DeviceStateTable.FLAG_STALE)) {
+                reschedule(slot, nowMillis);
+                return;
+            }
+            done |= FIRED_STALE;
+            pendingEvents.add(new PendingEvent(slot, imei, PresenceState.STALE));
+        }
+        if ((done & FIRED_IDLE) == 0 && silence >= config.idleCloseAfterMillis) {
+            done |= FIRED_IDLE;
+            pendingEvents.add(new PendingEvent(slot, imei, null));
+        }
+        fired[slot] = (byte) done;
+
+        if ((done & FIRED_OFFLINE) == 0) {
+            wheel.schedule(slot, toTick(lastSeen + nextThreshold(done)));
+        }
+    }
+
+    private void reschedule(int slot, long nowMillis) {
+        // Lost a race with a new record: start over from its timestamp
+        fired[slot] = 0;
+        epochs[slot] = table.getLastSeenMillis(slot);
+        wheel.schedule(slot, toTick(epochs[slot] + nextThreshold(0)));
+    }
+
+    private long nextThreshold(int done) {
+        long next = Long.MAX_VALUE;
+        if ((done & FIRED_STALE) == 0) {
+            next = Math.min(next, config.staleAfterMillis);
+        }
+        if ((done & FIRED_IDLE) == 0) {
+            next = Math.min(next, config.idleCloseAfterMillis);
+        }
+        if ((done & FIRED_OFFLINE) == 0) {
+            next = Math.min(next, config.offlineAfterMillis);
+        }
+        return next;
+    }
+
+    private long toTick(long millis) {
+        return (millis + config.tickMillis - 1) / config.tickMillis;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= fired.length) {
+            return;
+        }
+        int grown = Math.max(capacity, fired.length * 2);
+        fired = Arrays.copyOf(fired, grown);
+        epochs = Arrays.copyOf(epochs, grown);
+    }
+}
@@ -0,0 +1,163 @@
+package com.ohw.parser.state;
+
+import java.util.Arrays;
+
+// Hierarchical hashed timer wheel over dense int ids (device slots).
+// Timers are intrusive doubly-linked list nodes stored in primitive arrays, so
+// schedule and cancel are O(1) and allocate nothing. Four levels of 64 buckets
+// cover 64^4 ticks; later deadlines are clamped to the outermost level.
+// Not thread-safe: callers serialize access.
+public class TimerWheel {
+
+    public interface ExpiryHandler {
+        void onExpired(int id, long nowTick);
+    }
+
+    private static final int LEVELS = 4;
+    private static final int BUCKET_BITS = 6;
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+    private static final int BUCKET_MASK = BUCKETS - 1;
+    private static final int NONE = -1;
+
+    private final int[] heads = new int[LEVELS * BUCKETS];
+    private int[] next;
+    private int[] prev;
+    private int[] bucketOf;
+    private long[] deadlines;
+    private long currentTick;
+    private int scheduled;
+
+    public TimerWheel(long startTick, int initialCapacity) {
+        currentTick = startTick;
+        Arrays.fill(heads, NONE);
+        next = new int[Math.max(16, initialCapacity)];
+        prev = new int[next.length];
+        bucketOf = new int[next.length];
+        deadlines = new long[next.length];
+        Arrays.fill(bucketOf, NONE);
+    }
+
+    public long getCurrentTick() {
+        return currentTick;
+    }
+
+    public int size() {
+        return scheduled;
+    }
+
+    public boolean isScheduled(int id) {
+        return id < bucketOf.length && bucketOf[id] != NONE;
+    }
+
+    public void schedule(int id, long deadlineTick) {
+        ensureCapacity(id + 1);
+        if (bucketOf[id] != NONE) {
+            unlink(id);
+        }
+        deadlines[id] = deadlineTick;
+        link(id, bucketFor(deadlineTick));
+    }
+
+    public void cancel(int id) {
+        if (id < bucketOf.length && bucketOf[id] != NONE) {
+            unlink(id);
+        }
+    }
+
+    // Fires every timer with a deadline up to and including targetTick
+    public void advanceTo(long targetTick, ExpiryHandler handler) {
+        while (currentTick < targetTick) {
+            currentTick++;
+            int bucket = (int) (currentTick & BUCKET_MASK);
+            if (bucket == 0) {
+                cascade(1);
+            }
+            // Handlers never reschedule into the current bucket, so draining terminates
+            int id;
+            while ((id = heads[bucket]) != NONE) {
+                unlink(id);
+                handler.onExpired(id, currentTick);
+            }
+        }
+    }
+
+    private void cascade(int level) {
+        if (level >= LEVELS) {
+            return;
+        }
+        int index = (int) ((currentTick >>> (BUCKET_BITS * level)) & BUCKET_MASK);
+        if (index == 0) {
+            cascade(level + 1);
+        }
+        int bucket = level * BUCKETS + index;
+        int id;
+        while ((id = heads[bucket]) != NONE) {
+            unlink(id);
+            if (deadlines[id] <= currentTick) {
+                link(id, (int) (currentTick & BUCKET_MASK));
+            } else {
+                link(id, bucketFor(deadlines[id]));
+            }
+        }
+    }
+
+    private int bucketFor(long deadlineTick) {
+        long delta = deadlineTick - currentTick;
+        if (delta <= 0) {
+            // Already due: fire on the next tick
+            return (int) ((currentTick + 1) & BUCKET_MASK);
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < (1L << (BUCKET_BITS * (level + 1)))) {
+                if (level == 0) {
+                    return (int) (deadlineTick & BUCKET_MASK);
+                }
+                return level * BUCKETS + (int) ((deadlineTick >>> (BUCKET_BITS * level)) & BUCKET_MASK);
+            }
+        }
+        long clamped = currentTick + (1L << (BUCKET_BITS * LEVELS)) - 1;
+        return (LEVELS - 1) * BUCKETS
+                + (int) ((clamped >>> (BUCKET_BITS * (LEVELS - 1))) & BUCKET_MASK);
+    }
+
+    private void link(int id, int bucket) {
+        int head = heads[bucket];
+        next[id] = head;
+        prev[id] = NONE;
+        if (head != NONE) {
+            prev[head] = id;
+        }
+        heads[bucket] = id;
+        bucketOf[id] = bucket;
+        scheduled++;
+    }
+
+    private void unlink(int id) {
+        int bucket = bucketOf[id];
+        int before = prev[id];
+        int after = next[id];
+        if (before != NONE) {
+            next[before] = after;
+        } else {
+            heads[bucket] = after;
+        }
+        if (after != NONE) {
+            prev[after] = before;
+        }
+        bucketOf[id] = NONE;
+        scheduled--;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= next.length) {
+            return;
+        }
+        int grown = Math.max(capacity, next.length * 2);
+        int oldLength = next.length;
+        next = Arrays.copyOf(next, grown);
+        prev = Arrays.copyOf(prev, grown);
+        deadlines = Arrays.copyOf(deadlines, grown);
+        bucketOf = Arrays.copyOf(bucketOf, grown);
+        Arrays.fill(bucketOf, oldLength, grown, NONE);
+    }
+}
@@ -0,0 +1,10 @@
+package com.ohw.parser.state;
+
+// Told about every point entering or leaving a device's track, while the track is locked
+public interface TrackListener {
+
+    void onPointAdded(int slot, long timeMillis);
+
+    // The point was overwritten by a newer one or dropped by a merge
+    void onPointEvicted(int slot, long timeMillis);
+}
@@ -0,0 +1,715 @@
+package com.ohw.parser.state;
+
+import android.util.Log;
+
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.models.ParsedPacket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Recent positions per device kept in fixed-size primitive ring buffers.
+// Each device is appended to by its shard thread only; readers lock the track.
+//
+// Once a spill file is open, at most maxResidentBytes of tracks stay on the
+// heap; the rest live in the file, one fixed-size record per slot, and come
+// back when their device sends again. Residency follows TinyLFU: a track only
+// displaces the least recently used of a few sampled resident tracks if its
+// device has been more active lately. Devices that lose are appended to in the
+// file directly, so a fleet rotating through the gateway cannot flush out the
+// regulars. The file only holds points; each file track's count, head and
+// version stay on the heap, so appending to it is one write, done under a
+// per-stripe lock rather than the residency lock so shards do their I/O in
+// parallel.
+public class TrackStore {
+
+    private static final String TAG = "TrackStore";
+
+    public static final int DEFAULT_POINTS_PER_DEVICE = 1024;
+    public static final long DEFAULT_MAX_RESIDENT_BYTES = 64L * 1024 * 1024;
+
+    private static final int SAMPLE_SIZE = 8;
+    private static final int SPILL_STRIPES = 64;
+    private static final int POINT_BYTES = 8 + 4 + 4 + 2 + 2;
+
+    private final int pointsPerDevice;
+    private final long trackBytes;
+    private final int maxResident;
+    private final int recordBytes;
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+    private volatile Track[] tracks = new Track[1024];
+    private volatile TrackListener listener;
+
+    // Residency, guarded by residencyLock; taken before any track's own lock
+    private final Object residencyLock = new Object();
+    private final FrequencySketch sketch;
+    private int[] residentSlots = new int[1024];
+    private int residentCount;
+
+    // A slot's file record and its entry in tracks change under the slot's spill
+    // lock, taken after residencyLock and the track's lock. Swapping the file
+    // takes all of them.
+    private final ReentrantLock[] spillLocks = new ReentrantLock[SPILL_STRIPES];
+    private final Object growLock = new Object();
+    private volatile SpillRecord[] records = new SpillRecord[1024];
+    private final AtomicInteger spilledCount = new AtomicInteger();
+    private volatile FileChannel spill;
+    private final ThreadLocal<ByteBuffer> io;
+
+    // Ring state of a slot's track in the file, guarded by the slot's spill lock
+    private static final class SpillRecord {
+        int count;
+        int head;
+        long version;
+        boolean inFile;
+    }
+
+    public static final class Track {
+        final int slot;
+        final long[] timeMillis;
+        final int[] latitudeE6;
+        final int[] longitudeE6;
+        final short[] speedTenths;
+        final short[] directionTenths;
+        int head;   // next write position
+        int count;
+        long version;
+        volatile long lastUsedMillis;
+        int residentPosition;   // index in residentSlots
+        boolean evicted;        // written out; the slot's next user reads the file
+
+        Track(int slot, int capacity) {
+            this.slot = slot;
+            timeMillis = new long[capacity];
+            latitudeE6 = new int[capacity];
+            longitudeE6 = new int[capacity];
+            speedTenths = new short[capacity];
+            directionTenths = new short[capacity];
+        }
+    }
+
+    public static final class Point {
+        public final long timeMillis;
+        public final double latitude;
+        public final double longitude;
+        public final double speed;
+        public final double direction;
+
+        Point(long timeMillis, double latitude, double longitude, double speed, double direction) {
+            this.timeMillis = timeMillis;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.speed = speed;
+            this.direction = direction;
+        }
+    }
+
+    public TrackStore() {
+        this(DEFAULT_POINTS_PER_DEVICE);
+    }
+
+    public TrackStore(int pointsPerDevice) {
+        this(pointsPerDevice, DEFAULT_MAX_RESIDENT_BYTES);
+    }
+
+    public TrackStore(int pointsPerDevice, long maxResidentBytes) {
+        this.pointsPerDevice = pointsPerDevice;
+        // Five arrays and the object itself on top of the points
+        this.trackBytes = (long) pointsPerDevice * POINT_BYTES + 6 * 16;
+        this.maxResident = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxResidentBytes / trackBytes));
+        this.recordBytes = pointsPerDevice * POINT_BYTES;
+        this.sketch = new FrequencySketch(maxResident);
+        for (int i = 0; i < SPILL_STRIPES; i++) {
+            spillLocks[i] = new ReentrantLock();
+        }
+        final int bufferBytes = recordBytes;
+        this.io = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocate(bufferBytes);
+            }
+        };
+    }
+
+    public void setListener(TrackListener listener) {
+        this.listener = listener;
+    }
+
+    // Enables the memory budget. The file only backs this process's tracks and
+    // is emptied here, so nothing is marked as spilled until it is written again.
+    public void openSpill(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        synchronized (residencyLock) {
+            lockAllSpill();
+            try {
+                closeSpillLocked();
+                channel.truncate(0);
+                spill = channel;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            } finally {
+                unlockAllSpill();
+            }
+        }
+    }
+
+    // Tracks that were only in the file are dropped with it
+    public void closeSpill() {
+        synchronized (residencyLock) {
+            lockAllSpill();
+            try {
+                closeSpillLocked();
+            } finally {
+                unlockAllSpill();
+            }
+        }
+    }
+
+    private void closeSpillLocked() {
+        for (SpillRecord record : records) {
+            if (record != null) {
+                record.inFile = false;
+            }
+        }
+        spilledCount.set(0);
+        if (spill == null) {
+            return;
+        }
+        try {
+            spill.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing track spill file", e);
+        }
+        spill = null;
+    }
+
+    private void lockAllSpill() {
+        for (ReentrantLock lock : spillLocks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAllSpill() {
+        for (ReentrantLock lock : spillLocks) {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock spillLock(int slot) {
+        return spillLocks[slot & (SPILL_STRIPES - 1)];
+    }
+
+    public void append(int slot, ParsedPacket packet) {
+        if (!packet.hasValidCoordinates()) {
+            return;
+        }
+        long timeMillis = packet.getTimestamp() != null
+                ? packet.getTimestamp().toEpochSecond(ZoneOffset.UTC) * 1000L
+                : System.currentTimeMillis();
+        append(slot, timeMillis,
+                (int) Math.round(packet.getLatitude() * 1000000.0),
+                (int) Math.round(packet.getLongitude() * 1000000.0),
+                (int) Math.round(packet.getSpeed() * 10.0),
+                (int) Math.round(packet.getDirection() * 10.0));
+    }
+
+    public void append(int slot, long timeMillis, int latitudeE6, int longitudeE6,
+                       int speedTenths, int directionTenths) {
+        sketch.increment(slot);
+        while (true) {
+            Track track = residentTrack(slot);
+            if (track == null) {
+                synchronized (residencyLock) {
+                    track = residentTrack(slot);
+                    if (track == null) {
+                        metrics.trackCacheMisses.increment();
+                        track = admit(slot);
+                    }
+                }
+                if (track == null) {
+                    // Stays in the file; the I/O happens outside the residency lock
+                    if (appendSpilled(slot, timeMillis, latitudeE6, longitudeE6, speedTenths,
+                            directionTenths)) {
+                        return;
+                    }
+                    continue; // Made resident meanwhile
+                }
+            } else {
+                metrics.trackCacheHits.increment();
+            }
+            synchronized (track) {
+                if (track.evicted) {
+                    continue; // Written out after we found it; look again
+                }
+                track.lastUsedMillis = System.currentTimeMillis();
+                int i = track.head;
+                TrackListener current = listener;
+                if (current != null && track.count == track.timeMillis.length) {
+                    current.onPointEvicted(slot, track.timeMillis[i]);
+                }
+                track.timeMillis[i] = timeMillis;
+                track.latitudeE6[i] = latitudeE6;
+                track.longitudeE6[i] = longitudeE6;
+                track.speedTenths[i] = (short) speedTenths;
+                track.directionTenths[i] = (short) directionTenths;
+                track.head = (i + 1) % track.timeMillis.length;
+                if (track.count < track.timeMillis.length) {
+                    track.count++;
+                }
+                track.version++;
+                if (current != null) {
+                    current.onPointAdded(slot, timeMillis);
+                }
+                return;
+            }
+        }
+    }
+
+    // Adds points from elsewhere (a peer gateway) that the track does not hold yet,
+    // matched by time. The track is rewritten in time order and keeps its newest
+    // points when the union does not fit. Returns the number of points added.
+    public int merge(int slot, long[] timeMillis, int[] latitudeE6, int[] longitudeE6,
+                     short[] speedTenths, short[] directionTenths, int count) {
+        while (true) {
+            Track track = residentTrack(slot);
+            if (track == null) {
+                synchronized (residencyLock) {
+                    track = residentTrack(slot);
+                    if (track == null) {
+                        track = admit(slot);
+                    }
+                }
+                if (track == null) {
+                    int added = mergeSpilled(slot, timeMillis, latitudeE6, longitudeE6, speedTenths,
+                            directionTenths, count);
+                    if (added >= 0) {
+                        return added;
+                    }
+                    continue; // Made resident meanwhile
+                }
+            }
+            synchronized (track) {
+                if (!track.evicted) {
+                    return mergeInto(track, timeMillis, latitudeE6, longitudeE6, speedTenths,
+                            directionTenths, count);
+                }
+            }
+        }
+    }
+
+    // Caller holds the track's lock, or the slot's spill lock for a copy
+    private int mergeInto(Track track, long[] timeMillis, int[] latitudeE6, int[] longitudeE6,
+                          short[] speedTenths, short[] directionTenths, int count) {
+        int slot = track.slot;
+        int capacity = track.timeMillis.length;
+        int start = (track.head - track.count + capacity) % capacity;
+        int total = track.count + count;
+        long[] times = new long[total];
+        Integer[] order = new Integer[total];
+        // Own points first, so they win ties against incoming ones
+        for (int n = 0; n < track.count; n++) {
+            times[n] = track.timeMillis[(start + n) % capacity];
+            order[n] = n;
+        }
+        for (int n = 0; n < count; n++) {
+            times[track.count + n] = timeMillis[n];
+            order[track.count + n] = track.count + n;
+        }
+        Arrays.sort(order, Comparator.comparingLong(n -> times[n]));
+
+        int[] kept = new int[total];
+        int size = 0;
+        for (int k = 0; k < total; k++) {
+            int n = order[k];
+            if (n >= track.count && size > 0 && times[kept[size - 1]] == times[n]) {
+                continue;
+            }
+            kept[size++] = n;
+        }
+        int from = Math.max(0, size - capacity);
+
+        long[] oldTime = track.timeMillis.clone();
+        int[] oldLatitude = track.latitudeE6.clone();
+        int[] oldLongitude = track.longitudeE6.clone();
+        short[] oldSpeed = track.speedTenths.clone();
+        short[] oldDirection = track.directionTenths.clone();
+        boolean[] survived = new boolean[track.count];
+        TrackListener current = listener;
+        int added = 0;
+        for (int k = from; k < size; k++) {
+            int n = kept[k];
+            int i = k - from;
+            if (n < track.count) {
+                int j = (start + n) % capacity;
+                track.timeMillis[i] = oldTime[j];
+                track.latitudeE6[i] = oldLatitude[j];
+                track.longitudeE6[i] = oldLongitude[j];
+                track.speedTenths[i] = oldSpeed[j];
+                track.directionTenths[i] = oldDirection[j];
+                survived[n] = true;
+            } else {
+                int j = n - track.count;
+                track.timeMillis[i] = timeMillis[j];
+                track.latitudeE6[i] = latitudeE6[j];
+                track.longitudeE6[i] = longitudeE6[j];
+                track.speedTenths[i] = speedTenths[j];
+                track.directionTenths[i] = directionTenths[j];
+                added++;
+                if (current != null) {
+                    current.onPointAdded(slot, timeMillis[j]);
+                }
+            }
+        }
+        if (current != null) {
+            for (int n = 0; n < survived.length; n++) {
+                if (!survived[n]) {
+                    current.onPointEvicted(slot, times[n]);
+                }
+            }
+        }
+        track.count = size - from;
+        track.head = track.count % capacity;
+        track.version++;
+        return added;
+    }
+
+    // Version changes whenever a point is appended; -1 when the device has no track
+    public long getVersion(int slot) {
+        Track track = readableTrack(slot);
+        if (track == null) {
+            return -1;
+        }
+        synchronized (track) {
+            return track.version;
+        }
+    }
+
+    // Points with fromMillis <= time <= toMillis, oldest first
+    public Point[] range(int slot, long fromMillis, long toMillis) {
+        Track track = readableTrack(slot);
+        if (track == null) {
+            return new Point[0];
+        }
+        synchronized (track) {
+            int capacity = track.timeMillis.length;
+            int start = (track.head - track.count + capacity) % capacity;
+            Point[] result = new Point[track.count];
+            int size = 0;
+            for (int n = 0; n < track.count; n++) {
+                int i = (start + n) % capacity;
+                long time = track.timeMillis[i];
+                if (time >= fromMillis && time <= toMillis) {
+                    result[size++] = new Point(time, track.latitudeE6[i] / 1000000.0,
+                            track.longitudeE6[i] / 1000000.0, track.speedTenths[i] / 10.0,
+                            track.directionTenths[i] / 10.0);
+                }
+            }
+            return Arrays.copyOf(result, size);
+        }
+    }
+
+    public int getResidentCount() {
+        synchronized (residencyLock) {
+            return residentCount;
+        }
+    }
+
+    public long getResidentBytes() {
+        return getResidentCount() * trackBytes;
+    }
+
+    public int getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    private Track residentTrack(int slot) {
+        Track[] current = tracks;
+        return slot < current.length ? current[slot] : null;
+    }
+
+    // A resident track, or a copy read from the file for a reader; null when the
+    // device has no track
+    private Track readableTrack(int slot) {
+        Track track = residentTrack(slot);
+        if (track != null) {
+            // A track evicted meanwhile still holds its points, so reading it is fine
+            return track;
+        }
+        ReentrantLock lock = spillLock(slot);
+        lock.lock();
+        try {
+            track = residentTrack(slot);
+            if (track == null) {
+                metrics.trackCacheMisses.increment();
+                track = readSpilled(slot);
+            }
+            return track;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Makes the slot's track resident if it may be; null when it stays in the file.
+    // Caller holds residencyLock.
+    private Track admit(int slot) {
+        if (spill != null && residentCount >= maxResident) {
+            Track victim = sampleVictim();
+            // TinyLFU admission: only a device busier than the victim displaces it
+            if (sketch.frequency(slot) <= sketch.frequency(victim.slot) || !evict(victim)) {
+                return null;
+            }
+        }
+        Track track;
+        ReentrantLock lock = spillLock(slot);
+        lock.lock();
+        try {
+            track = readSpilled(slot);
+            if (track != null) {
+                setInFile(recordOf(slot), false);
+            } else {
+                track = new Track(slot, pointsPerDevice);
+            }
+            track.lastUsedMillis = System.currentTimeMillis();
+
+            // Published under the spill lock, so a file append that follows sees it
+            Track[] current = tracks;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, Math.max(slot + 1, current.length * 2));
+            }
+            current[slot] = track;
+            tracks = current;
+        } finally {
+            lock.unlock();
+        }
+        if (residentCount == residentSlots.length) {
+            residentSlots = Arrays.copyOf(residentSlots, residentCount * 2);
+        }
+        track.residentPosition = residentCount;
+        residentSlots[residentCount++] = slot;
+        return track;
+    }
+
+    // Least recently used of a few resident tracks picked at random
+    private Track sampleVictim() {
+        Track[] current = tracks;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Track victim = null;
+        for (int n = 0; n < SAMPLE_SIZE; n++) {
+            Track candidate = current[residentSlots[random.nextInt(residentCount)]];
+            if (victim == null || candidate.lastUsedMillis < victim.lastUsedMillis) {
+                victim = candidate;
+            }
+        }
+        return victim;
+    }
+
+    // Caller holds residencyLock; false when the track could not be written out
+    private boolean evict(Track victim) {
+        ReentrantLock lock = spillLock(victim.slot);
+        synchronized (victim) {
+            lock.lock();
+            try {
+                if (!writeSpilled(victim)) {
+                    return false;
+                }
+                victim.evicted = true;
+                int last = residentSlots[--residentCount];
+                residentSlots[victim.residentPosition] = last;
+                tracks[last].residentPosition = victim.residentPosition;
+                tracks[victim.slot] = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+        metrics.trackEvictions.increment();
+        return true;
+    }
+
+    // Appends one point to a track that stays in the file; false when the slot
+    // became resident before its spill lock was taken
+    private boolean appendSpilled(int slot, long timeMillis, int latitudeE6, int longitudeE6,
+                                  int speedTenths, int directionTenths) {
+        ReentrantLock lock = spillLock(slot);
+        lock.lock();
+        try {
+            FileChannel channel = spill;
+            if (residentTrack(slot) != null || channel == null) {
+                return false;
+            }
+            ByteBuffer buffer = io.get();
+            SpillRecord record = recordFor(slot);
+            if (!record.inFile) {
+                record.count = 0;
+                record.head = 0;
+                record.version = 0;
+            }
+            long position = (long) slot * recordBytes + (long) record.head * POINT_BYTES;
+            try {
+                TrackListener current = listener;
+                if (current != null && record.count == pointsPerDevice) {
+                    readFully(channel, buffer, position, 8);
+                    current.onPointEvicted(slot, buffer.getLong());
+                }
+                buffer.clear();
+                buffer.putLong(timeMillis).putInt(latitudeE6).putInt(longitudeE6)
+                        .putShort((short) speedTenths).putShort((short) directionTenths);
+                writeFully(channel, buffer, position);
+                record.count = Math.min(record.count + 1, pointsPerDevice);
+                record.head = (record.head + 1) % pointsPerDevice;
+                record.version++;
+                setInFile(record, true);
+                if (current != null) {
+                    current.onPointAdded(slot, timeMillis);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error appending to spilled track " + slot, e);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Merged in a copy and written back, like an append to a file track; -1 when
+    // the slot became resident before its spill lock was taken
+    private int mergeSpilled(int slot, long[] timeMillis, int[] latitudeE6, int[] longitudeE6,
+                             short[] speedTenths, short[] directionTenths, int count) {
+        ReentrantLock lock = spillLock(slot);
+        lock.lock();
+        try {
+            if (residentTrack(slot) != null || spill == null) {
+                return -1;
+            }
+            Track copy = readSpilled(slot);
+            if (copy == null) {
+                copy = new Track(slot, pointsPerDevice);
+            }
+            int added = mergeInto(copy, timeMillis, latitudeE6, longitudeE6, speedTenths,
+                    directionTenths, count);
+            writeSpilled(copy);
+            return added;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds the slot's spill lock; null when the slot has nothing in the file
+    private Track readSpilled(int slot) {
+        FileChannel channel = spill;
+        SpillRecord record = recordOf(slot);
+        if (channel == null || record == null || !record.inFile) {
+            return null;
+        }
+        ByteBuffer buffer = io.get();
+        Track track = new Track(slot, pointsPerDevice);
+        track.count = record.count;
+        track.head = record.head;
+        track.version = record.version;
+        // Only the positions holding points; past them the last record may not
+        // reach that far into the file yet
+        int start = (record.head - record.count + pointsPerDevice) % pointsPerDevice;
+        int used = Math.min(pointsPerDevice, start + record.count);
+        try {
+            readFully(channel, buffer, (long) slot * recordBytes, used * POINT_BYTES);
+            for (int i = 0; i < used; i++) {
+                track.timeMillis[i] = buffer.getLong();
+                track.latitudeE6[i] = buffer.getInt();
+                track.longitudeE6[i] = buffer.getInt();
+                track.speedTenths[i] = buffer.getShort();
+                track.directionTenths[i] = buffer.getShort();
+            }
+        } catch (IOException e) {
+            // The points are gone; the device starts a new track
+            Log.e(TAG, "Error reading spilled track " + slot, e);
+            setInFile(record, false);
+            return new Track(slot, pointsPerDevice);
+        }
+        return track;
+    }
+
+    // Caller holds the slot's spill lock and the track's lock (or owns a copy)
+    private boolean writeSpilled(Track track) {
+        FileChannel channel = spill;
+        if (channel == null) {
+            return false;
+        }
+        ByteBuffer buffer = io.get();
+        buffer.clear();
+        for (int i = 0; i < pointsPerDevice; i++) {
+            buffer.putLong(track.timeMillis[i]).putInt(track.latitudeE6[i]).putInt(track.longitudeE6[i])
+                    .putShort(track.speedTenths[i]).putShort(track.directionTenths[i]);
+        }
+        try {
+            writeFully(channel, buffer, (long) track.slot * recordBytes);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing out track " + track.slot, e);
+            return false;
+        }
+        SpillRecord record = recordFor(track.slot);
+        record.count = track.count;
+        record.head = track.head;
+        record.version = track.version;
+        setInFile(record, true);
+        return true;
+    }
+
+    // Caller holds the slot's spill lock
+    private void setInFile(SpillRecord record, boolean inFile) {
+        if (record.inFile != inFile) {
+            record.inFile = inFile;
+            spilledCount.addAndGet(inFile ? 1 : -1);
+        }
+    }
+
+    private SpillRecord recordOf(int slot) {
+        SpillRecord[] current = records;
+        return slot < current.length ? current[slot] : null;
+    }
+
+    private SpillRecord recordFor(int slot) {
+        SpillRecord record = recordOf(slot);
+        if (record != null) {
+            return record;
+        }
+        synchronized (growLock) {
+            SpillRecord[] current = records;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, Math.max(slot + 1, current.length * 2));
+            }
+            if (current[slot] == null) {
+                current[slot] = new SpillRecord();
+            }
+            records = current;
+            return current[slot];
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Spill file truncated at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
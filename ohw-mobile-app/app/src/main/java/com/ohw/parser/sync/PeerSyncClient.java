@@ -0,0 +1,262 @@
+package com.ohw.parser.sync;
+
+import com.ohw.parser.journal.EventJournal;
+import com.ohw.parser.journal.EventType;
+import com.ohw.parser.metrics.GatewayMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Brings this gateway's tracks and a peer's into the same state in both
+// directions. The two hash trees are compared level by level, so identical
+// gateways settle after one round trip and the bytes exchanged grow with the
+// number of differing buckets rather than with the number of points held.
+public class PeerSyncClient {
+
+    public static final class Result {
+        public final int rounds;
+        public final long bytesSent;
+        public final long bytesReceived;
+        public final int groupsDiffering;
+        public final int devicesDiffering;
+        public final int bucketsDiffering;
+        public final int pointsReceived;
+        public final int pointsSent;
+        public final long elapsedNanos;
+
+        Result(int rounds, long bytesSent, long bytesReceived, int groupsDiffering,
+               int devicesDiffering, int bucketsDiffering, int pointsReceived, int pointsSent,
+               long elapsedNanos) {
+            this.rounds = rounds;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.groupsDiffering = groupsDiffering;
+            this.devicesDiffering = devicesDiffering;
+            this.bucketsDiffering = bucketsDiffering;
+            this.pointsReceived = pointsReceived;
+            this.pointsSent = pointsSent;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d round trips, %d bytes sent, %d received in %.1f ms; "
+                            + "%d groups, %d devices, %d buckets differed; "
+                            + "%d points received, %d sent",
+                    rounds, bytesSent, bytesReceived, elapsedNanos / 1e6,
+                    groupsDiffering, devicesDiffering, bucketsDiffering, pointsReceived, pointsSent);
+        }
+    }
+
+    private static final int CONNECT_TIMEOUT = 10000; // 10 seconds
+    private static final int READ_TIMEOUT = 30000;    // 30 seconds
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // One bucket whose points are compared with the peer's
+    private static final class DiffEntry {
+        final long imei;
+        final long horizon;
+        final long bucket;
+
+        DiffEntry(long imei, long horizon, long bucket) {
+            this.imei = imei;
+            this.horizon = horizon;
+            this.bucket = bucket;
+        }
+    }
+
+    private final SyncIndex index;
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+
+    // Per session
+    private DataInputStream in;
+    private DataOutputStream out;
+    private int rounds;
+    private long bytesSent;
+    private long bytesReceived;
+
+    public PeerSyncClient(SyncIndex index) {
+        this.index = index;
+    }
+
+    public synchronized Result sync(String host, int port) throws IOException {
+        long start = System.nanoTime();
+        rounds = 0;
+        bytesSent = 0;
+        bytesReceived = 0;
+        int groupsDiffering = 0;
+        int devicesDiffering = 0;
+        int pointsReceived = 0;
+        int pointsSent = 0;
+        List<DiffEntry> diff = new ArrayList<>();
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            metrics.peerSyncSessions.increment();
+
+            // Root
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream request = new DataOutputStream(buffer);
+            SyncProtocol.writeVarLong(request, SyncProtocol.VERSION);
+            DataInputStream reply = exchange(SyncProtocol.HELLO, buffer);
+            long version = SyncProtocol.readVarLong(reply);
+            if (version != SyncProtocol.VERSION) {
+                throw new IOException("Peer speaks sync version " + version);
+            }
+            if (reply.readLong() != index.rootHash()) {
+                // Groups, and the peer's devices in the groups that differ
+                buffer.reset();
+                for (int g = 0; g < SyncIndex.GROUPS; g++) {
+                    request.writeLong(index.groupHash(g));
+                }
+                reply = exchange(SyncProtocol.GROUPS, buffer);
+                boolean[] groups = new boolean[SyncIndex.GROUPS];
+                groupsDiffering = SyncProtocol.readCount(reply);
+                for (int i = 0; i < groupsDiffering; i++) {
+                    groups[reply.readUnsignedByte()] = true;
+                }
+                Map<Long, SyncIndex.DeviceSummary> theirs = new HashMap<>();
+                int count = SyncProtocol.readCount(reply, 24);
+                for (int i = 0; i < count; i++) {
+                    SyncIndex.DeviceSummary summary = new SyncIndex.DeviceSummary(
+                            reply.readLong(), reply.readLong(), reply.readLong());
+                    theirs.put(summary.imei, summary);
+                }
+                Map<Long, SyncIndex.DeviceSummary> ours = new HashMap<>();
+                for (SyncIndex.DeviceSummary summary : index.summaries(groups)) {
+                    ours.put(summary.imei, summary);
+                }
+
+                // Devices that differ; ones only we hold go straight to the bucket diff
+                Set<Long> imeis = new LinkedHashSet<>(ours.keySet());
+                imeis.addAll(theirs.keySet());
+                buffer.reset();
+                List<long[]> compared = new ArrayList<>();
+                for (long imei : imeis) {
+                    SyncIndex.DeviceSummary mine = ours.get(imei);
+                    SyncIndex.DeviceSummary peer = theirs.get(imei);
+                    if (mine != null && peer != null && mine.hash == peer.hash) {
+                        continue;
+                    }
+                    devicesDiffering++;
+                    long horizon = Math.max(mine != null ? mine.oldestMillis : Long.MIN_VALUE,
+                            peer != null ? peer.oldestMillis : Long.MIN_VALUE);
+                    if (peer == null) {
+                        addBuckets(diff, imei, horizon, index.buckets(imei, bucketOf(horizon)), new long[0]);
+                    } else {
+                        compared.add(new long[] {imei, horizon});
+                    }
+                }
+
+                // Bucket hashes of the devices both sides hold
+                if (!compared.isEmpty()) {
+                    SyncProtocol.writeVarLong(request, compared.size());
+                    for (long[] device : compared) {
+                        request.writeLong(device[0]);
+                        request.writeLong(device[1]);
+                    }
+                    reply = exchange(SyncProtocol.BUCKETS, buffer);
+                    for (long[] device : compared) {
+                        long[] peerBuckets = new long[SyncProtocol.readCount(reply, 9) * 2];
+                        for (int i = 0; i < peerBuckets.length; i += 2) {
+                            peerBuckets[i] = SyncProtocol.readSignedVarLong(reply);
+                            peerBuckets[i + 1] = reply.readLong();
+                        }
+                        addBuckets(diff, device[0], device[1],
+                                index.buckets(device[0], bucketOf(device[1])), peerBuckets);
+                    }
+                }
+            }
+
+            // Points of the differing buckets: take what we lack, push what the peer lacks
+            if (!diff.isEmpty()) {
+                buffer.reset();
+                SyncProtocol.writeVarLong(request, diff.size());
+                for (DiffEntry entry : diff) {
+                    request.writeLong(entry.imei);
+                    request.writeLong(entry.horizon);
+                    SyncProtocol.writeSignedVarLong(request, entry.bucket);
+                    SyncProtocol.writeTimes(request, index.times(entry.imei, entry.bucket, entry.horizon));
+                }
+                reply = exchange(SyncProtocol.DIFF, buffer);
+                PointBatch received = PointBatch.read(reply);
+                pointsReceived = received.size();
+                index.apply(received);
+                PointBatch push = new PointBatch();
+                int wanted = SyncProtocol.readCount(reply, 9);
+                for (int i = 0; i < wanted; i++) {
+                    long imei = reply.readLong();
+                    index.readPoints(imei, SyncProtocol.readTimes(reply), push);
+                }
+                pointsSent = push.size();
+                if (pointsSent > 0) {
+                    buffer.reset();
+                    push.write(request);
+                    exchange(SyncProtocol.PUSH, buffer);
+                }
+            }
+        } finally {
+            in = null;
+            out = null;
+            metrics.peerSyncBytes.add(bytesSent + bytesReceived);
+            metrics.peerSyncPointsReceived.add(pointsReceived);
+            metrics.peerSyncPointsSent.add(pointsSent);
+        }
+        EventJournal.get().emit(EventType.PEER_SYNC_FINISHED, pointsReceived, pointsSent,
+                bytesSent + bytesReceived);
+        return new Result(rounds, bytesSent, bytesReceived, groupsDiffering, devicesDiffering,
+                diff.size(), pointsReceived, pointsSent, System.nanoTime() - start);
+    }
+
+    // Queues every bucket that is missing on one side or hashes differently; both ascending pairs
+    private static void addBuckets(List<DiffEntry> diff, long imei, long horizon, long[] ours, long[] theirs) {
+        int i = 0;
+        int j = 0;
+        while (i < ours.length || j < theirs.length) {
+            if (j == theirs.length || (i < ours.length && ours[i] < theirs[j])) {
+                diff.add(new DiffEntry(imei, horizon, ours[i]));
+                i += 2;
+            } else if (i == ours.length || theirs[j] < ours[i]) {
+                diff.add(new DiffEntry(imei, horizon, theirs[j]));
+                j += 2;
+            } else {
+                if (ours[i + 1] != theirs[j + 1]) {
+                    diff.add(new DiffEntry(imei, horizon, ours[i]));
+                }
+                i += 2;
+                j += 2;
+            }
+        }
+    }
+
+    private static long bucketOf(long millis) {
+        return Math.floorDiv(millis, SyncIndex.BUCKET_MILLIS);
+    }
+
+    private DataInputStream exchange(int type, ByteArrayOutputStream payload) throws IOException {
+        bytesSent += SyncProtocol.writeFrame(out, type, payload);
+        SyncProtocol.Frame reply = SyncProtocol.readFrame(in);
+        if (reply == null || reply.type != type) {
+            throw new IOException("Peer closed the sync session");
+        }
+        bytesReceived += reply.wireBytes;
+        rounds++;
+        return reply.body;
+    }
+}
@@ -0,0 +1,223 @@
+package com.ohw.parser.sync;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.ohw.parser.journal.EventJournal;
+import com.ohw.parser.journal.EventType;
+import com.ohw.parser.metrics.GatewayMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Answers another gateway's PeerSyncClient: one session per connection, one reply
+// per request, until the client closes. Points the client pushes are merged into
+// the local tracks.
+//
+// The port is unauthenticated and a push can add devices, so it is only opened
+// once enabled, and then only answers the listed peers when there are any.
+public class PeerSyncServer {
+
+    public static class Config {
+        public boolean enabled = false;
+        public List<String> peers = new ArrayList<>(); // addresses allowed to connect; empty allows any
+    }
+
+    private static final String TAG = "PeerSyncServer";
+    private static final int SESSION_TIMEOUT = 30000; // 30 seconds between requests
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final Gson GSON = new Gson();
+
+    private final SyncIndex index;
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+    private volatile Config config = new Config();
+
+    public PeerSyncServer(SyncIndex index) {
+        this.index = index;
+    }
+
+    public void setConfig(Config config) {
+        if (config.peers == null) {
+            config.peers = new ArrayList<>();
+        }
+        this.config = config;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public void loadConfig(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            Config loaded = GSON.fromJson(reader, Config.class);
+            if (loaded != null) {
+                setConfig(loaded);
+            }
+        }
+    }
+
+    public void saveConfig(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            GSON.toJson(config, writer);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    public boolean isAllowed(InetAddress address) {
+        List<String> peers = config.peers;
+        return peers.isEmpty() || peers.contains(address.getHostAddress());
+    }
+
+    public void handleConnection(Socket socket) {
+        long bytes = 0;
+        int received = 0;
+        int sent = 0;
+        try {
+            socket.setSoTimeout(SESSION_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            metrics.peerSyncSessions.increment();
+
+            SyncProtocol.Frame request;
+            while ((request = SyncProtocol.readFrame(in)) != null) {
+                bytes += request.wireBytes;
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                DataOutputStream reply = new DataOutputStream(buffer);
+                switch (request.type) {
+                    case SyncProtocol.HELLO:
+                        long version = SyncProtocol.readVarLong(request.body);
+                        if (version != SyncProtocol.VERSION) {
+                            throw new IOException("Unsupported sync version " + version);
+                        }
+                        SyncProtocol.writeVarLong(reply, SyncProtocol.VERSION);
+                        reply.writeLong(index.rootHash());
+                        break;
+                    case SyncProtocol.GROUPS:
+                        answerGroups(request.body, reply);
+                        break;
+                    case SyncProtocol.BUCKETS:
+                        answerBuckets(request.body, reply);
+                        break;
+                    case SyncProtocol.DIFF:
+                        sent += answerDiff(request.body, reply);
+                        break;
+                    case SyncProtocol.PUSH:
+                        PointBatch batch = PointBatch.read(request.body);
+                        received += batch.size();
+                        SyncProtocol.writeVarLong(reply, index.apply(batch));
+                        break;
+                    default:
+                        throw new IOException("Unknown sync request " + request.type);
+                }
+                bytes += SyncProtocol.writeFrame(out, request.type, buffer);
+            }
+        } catch (SocketTimeoutException e) {
+            Log.d(TAG, "Peer sync session timed out");
+        } catch (IOException e) {
+            Log.w(TAG, "Peer sync session failed: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing peer sync socket", e);
+            }
+        }
+        metrics.peerSyncBytes.add(bytes);
+        metrics.peerSyncPointsReceived.add(received);
+        metrics.peerSyncPointsSent.add(sent);
+        EventJournal.get().emit(EventType.PEER_SYNC_SERVED, received, sent, bytes);
+    }
+
+    private void answerGroups(DataInputStream in, DataOutputStream reply) throws IOException {
+        boolean[] differing = new boolean[SyncIndex.GROUPS];
+        int count = 0;
+        for (int g = 0; g < SyncIndex.GROUPS; g++) {
+            if (in.readLong() != index.groupHash(g)) {
+                differing[g] = true;
+                count++;
+            }
+        }
+        SyncProtocol.writeVarLong(reply, count);
+        for (int g = 0; g < SyncIndex.GROUPS; g++) {
+            if (differing[g]) {
+                reply.writeByte(g);
+            }
+        }
+        List<SyncIndex.DeviceSummary> summaries = index.summaries(differing);
+        SyncProtocol.writeVarLong(reply, summaries.size());
+        for (SyncIndex.DeviceSummary summary : summaries) {
+            reply.writeLong(summary.imei);
+            reply.writeLong(summary.hash);
+            reply.writeLong(summary.oldestMillis);
+        }
+    }
+
+    private void answerBuckets(DataInputStream in, DataOutputStream reply) throws IOException {
+        int devices = SyncProtocol.readCount(in, 16);
+        for (int d = 0; d < devices; d++) {
+            long imei = in.readLong();
+            long horizon = in.readLong();
+            long[] buckets = index.buckets(imei, Math.floorDiv(horizon, SyncIndex.BUCKET_MILLIS));
+            SyncProtocol.writeVarLong(reply, buckets.length / 2);
+            for (int i = 0; i < buckets.length; i += 2) {
+                SyncProtocol.writeSignedVarLong(reply, buckets[i]);
+                reply.writeLong(buckets[i + 1]);
+            }
+        }
+    }
+
+    // Returns the number of points sent
+    private int answerDiff(DataInputStream in, DataOutputStream reply) throws IOException {
+        PointBatch missing = new PointBatch();
+        ByteArrayOutputStream wantedBuffer = new ByteArrayOutputStream();
+        DataOutputStream wanted = new DataOutputStream(wantedBuffer);
+        int wantedEntries = 0;
+
+        int entries = SyncProtocol.readCount(in, 18);
+        for (int e = 0; e < entries; e++) {
+            long imei = in.readLong();
+            long horizon = in.readLong();
+            long bucket = SyncProtocol.readSignedVarLong(in);
+            long[] theirs = SyncProtocol.readTimes(in);
+            long[] ours = index.times(imei, bucket, horizon);
+            long[] onlyOurs = SyncIndex.subtract(ours, theirs);
+            long[] onlyTheirs = SyncIndex.subtract(theirs, ours);
+            if (onlyOurs.length > 0) {
+                index.readPoints(imei, onlyOurs, missing);
+            }
+            if (onlyTheirs.length > 0) {
+                wanted.writeLong(imei);
+                SyncProtocol.writeTimes(wanted, onlyTheirs);
+                wantedEntries++;
+            }
+        }
+        missing.write(reply);
+        SyncProtocol.writeVarLong(reply, wantedEntries);
+        wanted.flush();
+        wantedBuffer.writeTo(reply);
+        return missing.size();
+    }
+}
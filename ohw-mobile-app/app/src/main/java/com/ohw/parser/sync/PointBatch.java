@@ -0,0 +1,108 @@
+package com.ohw.parser.sync;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Track points moving between peers, grouped by device in ascending time. Each
+// field is delta-coded against the previous point, so a batch gzips to a few
+// bytes per point.
+final class PointBatch {
+
+    static final class Device {
+        final long imei;
+        int count;
+        long[] timeMillis = new long[16];
+        int[] latitudeE6 = new int[16];
+        int[] longitudeE6 = new int[16];
+        short[] speedTenths = new short[16];
+        short[] directionTenths = new short[16];
+
+        Device(long imei) {
+            this.imei = imei;
+        }
+
+        void add(long time, int latitude, int longitude, int speed, int direction) {
+            if (count == timeMillis.length) {
+                int capacity = count * 2;
+                timeMillis = Arrays.copyOf(timeMillis, capacity);
+                latitudeE6 = Arrays.copyOf(latitudeE6, capacity);
+                longitudeE6 = Arrays.copyOf(longitudeE6, capacity);
+                speedTenths = Arrays.copyOf(speedTenths, capacity);
+                directionTenths = Arrays.copyOf(directionTenths, capacity);
+            }
+            timeMillis[count] = time;
+            latitudeE6[count] = latitude;
+            longitudeE6[count] = longitude;
+            speedTenths[count] = (short) speed;
+            directionTenths[count] = (short) direction;
+            count++;
+        }
+    }
+
+    final List<Device> devices = new ArrayList<>();
+
+    // Entry to append the device's points to; consecutive calls for one device share it
+    Device device(long imei) {
+        Device last = devices.isEmpty() ? null : devices.get(devices.size() - 1);
+        if (last != null && last.imei == imei) {
+            return last;
+        }
+        Device device = new Device(imei);
+        devices.add(device);
+        return device;
+    }
+
+    int size() {
+        int size = 0;
+        for (Device device : devices) {
+            size += device.count;
+        }
+        return size;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        SyncProtocol.writeVarLong(out, devices.size());
+        for (Device device : devices) {
+            out.writeLong(device.imei);
+            SyncProtocol.writeVarLong(out, device.count);
+            long time = 0;
+            int latitude = 0;
+            int longitude = 0;
+            for (int i = 0; i < device.count; i++) {
+                SyncProtocol.writeSignedVarLong(out, device.timeMillis[i] - time);
+                SyncProtocol.writeSignedVarLong(out, device.latitudeE6[i] - latitude);
+                SyncProtocol.writeSignedVarLong(out, device.longitudeE6[i] - longitude);
+                SyncProtocol.writeSignedVarLong(out, device.speedTenths[i]);
+                SyncProtocol.writeSignedVarLong(out, device.directionTenths[i]);
+                time = device.timeMillis[i];
+                latitude = device.latitudeE6[i];
+                longitude = device.longitudeE6[i];
+            }
+        }
+    }
+
+    static PointBatch read(DataInputStream in) throws IOException {
+        PointBatch batch = new PointBatch();
+        int devices = SyncProtocol.readCount(in, 9);
+        for (int d = 0; d < devices; d++) {
+            Device device = new Device(in.readLong());
+            batch.devices.add(device);
+            int count = SyncProtocol.readCount(in, 5);
+            long time = 0;
+            int latitude = 0;
+            int longitude = 0;
+            for (int i = 0; i < count; i++) {
+                time += SyncProtocol.readSignedVarLong(in);
+                latitude += (int) SyncProtocol.readSignedVarLong(in);
+                longitude += (int) SyncProtocol.readSignedVarLong(in);
+                device.add(time, latitude, longitude, (int) SyncProtocol.readSignedVarLong(in),
+                        (int) SyncProtocol.readSignedVarLong(in));
+            }
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,239 @@
+package com.ohw.parser.sync;
+
+import com.ohw.parser.state.DeviceStateTable;
+import com.ohw.parser.state.TrackListener;
+import com.ohw.parser.state.TrackStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Hash tree over the positions in the TrackStore, kept current as points are
+// appended and evicted: root -> 256 groups of devices by IMEI hash -> device ->
+// 10-minute buckets -> points. A point hashes its (IMEI, time) identity and each
+// node is the sum of the hashes below it, so an append updates one path in O(1)
+// and two gateways holding the same points have the same root. Peers compare
+// the tree top-down and only descend into nodes whose hashes differ.
+public class SyncIndex implements TrackListener {
+
+    public static final int GROUPS = 256;
+    public static final long BUCKET_MILLIS = 10 * 60 * 1000L;
+
+    static final class DeviceSummary {
+        final long imei;
+        final long hash;
+        final long oldestMillis;
+
+        DeviceSummary(long imei, long hash, long oldestMillis) {
+            this.imei = imei;
+            this.hash = hash;
+            this.oldestMillis = oldestMillis;
+        }
+    }
+
+    // Bucket number -> {hash, points}; guarded by itself
+    private static final class Digest {
+        long hash;
+        final TreeMap<Long, long[]> buckets = new TreeMap<>();
+    }
+
+    private final DeviceStateTable deviceTable;
+    private final TrackStore trackStore;
+    private final AtomicLongArray groupHashes = new AtomicLongArray(GROUPS);
+    private final ConcurrentHashMap<Long, Digest> devices = new ConcurrentHashMap<>();
+
+    public SyncIndex(DeviceStateTable deviceTable, TrackStore trackStore) {
+        this.deviceTable = deviceTable;
+        this.trackStore = trackStore;
+    }
+
+    @Override
+    public void onPointAdded(int slot, long timeMillis) {
+        update(deviceTable.getImei(slot), timeMillis, 1);
+    }
+
+    @Override
+    public void onPointEvicted(int slot, long timeMillis) {
+        update(deviceTable.getImei(slot), timeMillis, -1);
+    }
+
+    private void update(long imei, long timeMillis, int sign) {
+        long hash = sign * pointHash(imei, timeMillis);
+        Digest digest = devices.get(imei);
+        if (digest == null) {
+            Digest created = new Digest();
+            digest = devices.putIfAbsent(imei, created);
+            if (digest == null) {
+                digest = created;
+            }
+        }
+        synchronized (digest) {
+            long bucket = Math.floorDiv(timeMillis, BUCKET_MILLIS);
+            long[] entry = digest.buckets.get(bucket);
+            if (entry == null) {
+                entry = new long[2];
+                digest.buckets.put(bucket, entry);
+            }
+            entry[0] += hash;
+            entry[1] += sign;
+            if (entry[1] == 0) {
+                digest.buckets.remove(bucket);
+            }
+            digest.hash += hash;
+        }
+        groupHashes.addAndGet(group(imei), hash);
+    }
+
+    public long rootHash() {
+        long root = 0;
+        for (int g = 0; g < GROUPS; g++) {
+            root += groupHashes.get(g);
+        }
+        return root;
+    }
+
+    long groupHash(int group) {
+        return groupHashes.get(group);
+    }
+
+    // Devices with points in the flagged groups
+    List<DeviceSummary> summaries(boolean[] groups) {
+        List<DeviceSummary> result = new ArrayList<>();
+        for (Map.Entry<Long, Digest> entry : devices.entrySet()) {
+            long imei = entry.getKey();
+            if (!groups[group(imei)]) {
+                continue;
+            }
+            Digest digest = entry.getValue();
+            long hash;
+            long firstBucket;
+            synchronized (digest) {
+                if (digest.buckets.isEmpty()) {
+                    continue;
+                }
+                hash = digest.hash;
+                firstBucket = digest.buckets.firstKey();
+            }
+            long oldest = Long.MAX_VALUE;
+            for (long time : times(imei, firstBucket, Long.MIN_VALUE)) {
+                oldest = Math.min(oldest, time);
+            }
+            result.add(new DeviceSummary(imei, hash, oldest));
+        }
+        return result;
+    }
+
+    // Buckets at or after fromBucket as {bucket, hash} pairs, ascending
+    long[] buckets(long imei, long fromBucket) {
+        Digest digest = devices.get(imei);
+        if (digest == null) {
+            return new long[0];
+        }
+        synchronized (digest) {
+            Map<Long, long[]> tail = digest.buckets.tailMap(fromBucket, true);
+            long[] result = new long[tail.size() * 2];
+            int i = 0;
+            for (Map.Entry<Long, long[]> entry : tail.entrySet()) {
+                result[i++] = entry.getKey();
+                result[i++] = entry.getValue()[0];
+            }
+            return result;
+        }
+    }
+
+    // Ascending times of the device's points in the bucket, from horizonMillis on
+    long[] times(long imei, long bucket, long horizonMillis) {
+        int slot = deviceTable.findSlot(imei);
+        if (slot < 0) {
+            return new long[0];
+        }
+        long from = Math.max(horizonMillis, bucket * BUCKET_MILLIS);
+        TrackStore.Point[] points = trackStore.range(slot, from, bucket * BUCKET_MILLIS + BUCKET_MILLIS - 1);
+        long[] times = new long[points.length];
+        for (int i = 0; i < points.length; i++) {
+            times[i] = points[i].timeMillis;
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    // Appends the device's points at the given ascending times to the batch
+    void readPoints(long imei, long[] times, PointBatch batch) {
+        int slot = deviceTable.findSlot(imei);
+        if (slot < 0 || times.length == 0) {
+            return;
+        }
+        TrackStore.Point[] points = trackStore.range(slot, times[0], times[times.length - 1]);
+        Arrays.sort(points, (a, b) -> Long.compare(a.timeMillis, b.timeMillis));
+        PointBatch.Device device = batch.device(imei);
+        int t = 0;
+        for (TrackStore.Point point : points) {
+            while (t < times.length && times[t] < point.timeMillis) {
+                t++;
+            }
+            if (t == times.length) {
+                break;
+            }
+            if (times[t] == point.timeMillis) {
+                device.add(point.timeMillis, (int) Math.round(point.latitude * 1000000.0),
+                        (int) Math.round(point.longitude * 1000000.0),
+                        (int) Math.round(point.speed * 10.0), (int) Math.round(point.direction * 10.0));
+                t++;
+            }
+        }
+    }
+
+    // Merges a peer's points into the tracks; returns the number added
+    int apply(PointBatch batch) {
+        int added = 0;
+        for (PointBatch.Device device : batch.devices) {
+            if (device.count == 0) {
+                continue;
+            }
+            int slot = deviceTable.getOrCreateSlot(device.imei);
+            added += trackStore.merge(slot, device.timeMillis, device.latitudeE6, device.longitudeE6,
+                    device.speedTenths, device.directionTenths, device.count);
+        }
+        return added;
+    }
+
+    // Times in a that are not in b; both ascending
+    static long[] subtract(long[] a, long[] b) {
+        long[] result = new long[a.length];
+        int size = 0;
+        int j = 0;
+        for (long time : a) {
+            while (j < b.length && b[j] < time) {
+                j++;
+            }
+            if (j < b.length && b[j] == time) {
+                j++;
+            } else {
+                result[size++] = time;
+            }
+        }
+        return size == a.length ? result : Arrays.copyOf(result, size);
+    }
+
+    static int group(long imei) {
+        return (int) (mix(imei) >>> 56);
+    }
+
+    static long pointHash(long imei, long timeMillis) {
+        return mix(mix(imei) + timeMillis);
+    }
+
+    // Finalizer of MurmurHash3
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,181 @@
+package com.ohw.parser.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Wire format of peer sync. Every message is a frame of
+//   type (1, high bit set when the payload is gzipped) | payload length (4) | payload
+// and the client drives one request/response exchange per tree level:
+//   HELLO   version                       -> version, root hash
+//   GROUPS  hash of each of the 256 groups -> differing groups, then the server's
+//                                             (imei, hash, oldest millis) in them
+//   BUCKETS (imei, horizon) per device     -> (bucket, hash) lists, same order
+//   DIFF    (imei, horizon, bucket, times)  -> points the client lacks, then the
+//                                             (imei, times) the server lacks
+//   PUSH    points                         -> number of points added
+// The horizon is the later of the two sides' oldest points; older points have
+// already been evicted by one side and are not exchanged.
+final class SyncProtocol {
+
+    static final int VERSION = 1;
+
+    static final int HELLO = 1;
+    static final int GROUPS = 2;
+    static final int BUCKETS = 3;
+    static final int DIFF = 4;
+    static final int PUSH = 5;
+
+    private static final int GZIPPED = 0x80;
+    private static final int GZIP_MIN_BYTES = 512;
+    // Also the limit after inflating; decoded times take up to 8 bytes per frame byte
+    private static final int MAX_FRAME_BYTES = 8 * 1024 * 1024;
+
+    static final class Frame {
+        final int type;
+        final DataInputStream body;
+        final int wireBytes;
+
+        Frame(int type, DataInputStream body, int wireBytes) {
+            this.type = type;
+            this.body = body;
+            this.wireBytes = wireBytes;
+        }
+    }
+
+    private SyncProtocol() {
+    }
+
+    // Writes and flushes one frame; returns the bytes it took on the wire
+    static int writeFrame(DataOutputStream out, int type, ByteArrayOutputStream payload) throws IOException {
+        byte[] body = payload.toByteArray();
+        if (body.length > MAX_FRAME_BYTES) {
+            throw new IOException("Sync frame of " + body.length + " bytes is over the limit");
+        }
+        if (body.length >= GZIP_MIN_BYTES) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length / 4 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(buffer, 8192);
+            gzip.write(body);
+            gzip.close();
+            if (buffer.size() < body.length) {
+                body = buffer.toByteArray();
+                type |= GZIPPED;
+            }
+        }
+        out.writeByte(type);
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+        return 5 + body.length;
+    }
+
+    // Null at a clean end of stream between frames
+    static Frame readFrame(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Bad sync frame length " + length);
+        }
+        // Buffered as it arrives, so a peer that only claims a large frame costs nothing
+        byte[] body = copy(in, length, true);
+        if ((type & GZIPPED) != 0) {
+            body = copy(new GZIPInputStream(new ByteArrayInputStream(body), 8192), MAX_FRAME_BYTES, false);
+        }
+        // Kept in memory so readCount() can bound every count by the bytes left
+        return new Frame(type & ~GZIPPED, new DataInputStream(new ByteArrayInputStream(body)), 5 + length);
+    }
+
+    // Reads exactly limit bytes, or up to limit bytes until the end of the stream
+    private static byte[] copy(InputStream in, int limit, boolean exact) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(limit, 8192));
+        byte[] chunk = new byte[8192];
+        int total = 0;
+        while (!exact || total < limit) {
+            int read = in.read(chunk, 0, exact ? Math.min(chunk.length, limit - total) : chunk.length);
+            if (read < 0) {
+                if (exact) {
+                    throw new EOFException("Sync frame ends after " + total + " of " + limit + " bytes");
+                }
+                break;
+            }
+            total += read;
+            if (total > limit) {
+                throw new IOException("Sync frame inflates past " + limit + " bytes");
+            }
+            out.write(chunk, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static void writeSignedVarLong(DataOutputStream out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readSignedVarLong(DataInputStream in) throws IOException {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int readCount(DataInputStream in) throws IOException {
+        return readCount(in, 1);
+    }
+
+    // A count of items that each take at least minItemBytes in the frame; a count
+    // the rest of the frame cannot hold is refused before anything is allocated
+    static int readCount(DataInputStream in, int minItemBytes) throws IOException {
+        long count = readVarLong(in);
+        if (count < 0 || count > in.available() / minItemBytes) {
+            throw new IOException("Bad sync count " + count);
+        }
+        return (int) count;
+    }
+
+    // Ascending times as deltas
+    static void writeTimes(DataOutputStream out, long[] times) throws IOException {
+        writeVarLong(out, times.length);
+        long previous = 0;
+        for (long time : times) {
+            writeSignedVarLong(out, time - previous);
+            previous = time;
+        }
+    }
+
+    static long[] readTimes(DataInputStream in) throws IOException {
+        long[] times = new long[readCount(in)];
+        long previous = 0;
+        for (int i = 0; i < times.length; i++) {
+            previous += readSignedVarLong(in);
+            times[i] = previous;
+        }
+        return times;
+    }
+}
@@ -0,0 +1,259 @@
+package com.ohw.parser.trips;
+
+import com.ohw.parser.journal.EventJournal;
+import com.ohw.parser.journal.EventType;
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.models.ParsedPacket;
+
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+// Streaming trip/stop detection and odometer per device, fed by every decoded
+// record on its ingest shard. A trip starts once the device has been moving for
+// startConfirmMillis and ends at the first fix of a standstill that lasts
+// stopAfterMillis (or at once when ignition goes off); the time between trips is
+// a stop. Finished segments go to the TripStore, so trip reports read summaries
+// instead of rescanning positions.
+public class TripDetector {
+
+    public static class Config {
+        public double movingSpeedKmh = 5.0;
+        public long startConfirmMillis = 30000;    // 30 seconds
+        public long stopAfterMillis = 300000;      // 5 minutes
+        public double driftMeters = 30.0;          // parked GPS wander that is not counted
+        public double maxSpeedKmh = 300.0;         // jumps implying more are GPS glitches
+        public int ignitionInput = -1;             // "inputs" bit wired to ignition, -1 when none
+    }
+
+    private static final double EARTH_RADIUS_METERS = 6371000.0;
+
+    private final Config config;
+    private final TripStore store;
+    private final TripListener listener;
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+    private final Object growLock = new Object();
+    private volatile TripState[] states = new TripState[1024];
+
+    public TripDetector(Config config, TripStore store, TripListener listener) {
+        this.config = config;
+        this.store = store;
+        this.listener = listener;
+    }
+
+    public TripStore getStore() {
+        return store;
+    }
+
+    public void onRecord(int slot, long imei, ParsedPacket packet, long nowMillis) {
+        if (!packet.hasValidCoordinates()) {
+            return;
+        }
+        long time = packet.getTimestamp() != null
+                ? packet.getTimestamp().toEpochSecond(ZoneOffset.UTC) * 1000L
+                : nowMillis;
+        TripState state = stateFor(slot);
+        if (!state.seeded) {
+            seed(state, imei);
+        }
+        // Archive records replayed after live ones cannot be placed in the sequence
+        if (state.hasFix && time <= state.lastMillis) {
+            metrics.tripFixesSkipped.increment();
+            return;
+        }
+
+        double latitude = packet.getLatitude();
+        double longitude = packet.getLongitude();
+        double speed = packet.getSpeed();
+        boolean ignitionOff = false;
+        if (config.ignitionInput >= 0) {
+            Object inputs = packet.getAdditionalData("inputs");
+            ignitionOff = inputs instanceof Integer && ((Integer) inputs & (1 << config.ignitionInput)) == 0;
+        }
+        boolean moving = speed >= config.movingSpeedKmh && !ignitionOff;
+
+        // A long silence ends the trip where the device was last heard from
+        if (state.inTrip && time - state.lastMillis >= config.stopAfterMillis) {
+            if (state.idleMillis < 0) {
+                markIdle(state, state.lastMillis, state.lastLatitude, state.lastLongitude);
+            }
+            endTrip(state, imei);
+        }
+
+        advanceOdometer(state, time, latitude, longitude, moving);
+        state.lastMillis = time;
+        state.lastLatitude = latitude;
+        state.lastLongitude = longitude;
+
+        if (!state.inTrip) {
+            if (!moving) {
+                state.candidateMillis = -1;
+                return;
+            }
+            if (state.candidateMillis < 0) {
+                state.candidateMillis = time;
+                state.candidateLatitude = latitude;
+                state.candidateLongitude = longitude;
+                state.candidateOdometer = state.odometerMeters;
+                state.maxSpeedTenths = 0;
+            }
+            state.maxSpeedTenths = Math.max(state.maxSpeedTenths, (int) Math.round(speed * 10.0));
+            if (time - state.candidateMillis >= config.startConfirmMillis) {
+                startTrip(state, imei);
+            }
+            return;
+        }
+
+        state.maxSpeedTenths = Math.max(state.maxSpeedTenths, (int) Math.round(speed * 10.0));
+        if (moving) {
+            state.idleMillis = -1;
+            return;
+        }
+        if (state.idleMillis < 0) {
+            markIdle(state, time, latitude, longitude);
+        }
+        if (ignitionOff || time - state.idleMillis >= config.stopAfterMillis) {
+            endTrip(state, imei);
+        }
+    }
+
+    // Continues the odometer and the pending stop from the device's last stored segment
+    private void seed(TripState state, long imei) {
+        state.seeded = true;
+        TripSegment last = store.last(imei);
+        if (last == null) {
+            return;
+        }
+        state.odometerMeters = last.getOdometerMeters();
+        if (last.getKind() == TripSegment.Kind.TRIP) {
+            state.stopMillis = last.getEndMillis();
+            state.stopLatitude = last.getEndLatitude();
+            state.stopLongitude = last.getEndLongitude();
+        }
+    }
+
+    private void advanceOdometer(TripState state, long time, double latitude, double longitude,
+                                 boolean moving) {
+        if (!state.hasFix) {
+            state.hasFix = true;
+            anchor(state, time, latitude, longitude);
+            return;
+        }
+        double meters = distanceMeters(state.fixLatitude, state.fixLongitude, latitude, longitude);
+        if (!moving && meters < config.driftMeters) {
+            return;
+        }
+        long elapsed = time - state.fixMillis;
+        if (elapsed > 0 && meters * 3600.0 / elapsed > config.maxSpeedKmh) {
+            // Re-anchor without counting, so one bad fix costs two short segments at most
+            metrics.tripJumpsDiscarded.increment();
+        } else {
+            state.odometerMeters += meters;
+        }
+        anchor(state, time, latitude, longitude);
+    }
+
+    private static void anchor(TripState state, long time, double latitude, double longitude) {
+        state.fixMillis = time;
+        state.fixLatitude = latitude;
+        state.fixLongitude = longitude;
+    }
+
+    private static void markIdle(TripState state, long time, double latitude, double longitude) {
+        state.idleMillis = time;
+        state.idleLatitude = latitude;
+        state.idleLongitude = longitude;
+        state.idleOdometer = state.odometerMeters;
+    }
+
+    private void startTrip(TripState state, long imei) {
+        if (state.stopMillis >= 0) {
+            emit(new TripSegment(TripSegment.Kind.STOP, imei, state.stopMillis, state.candidateMillis,
+                    e6(state.stopLatitude), e6(state.stopLongitude),
+                    e6(state.candidateLatitude), e6(state.candidateLongitude),
+                    0f, (short) 0, state.candidateOdometer));
+        }
+        state.inTrip = true;
+        state.tripMillis = state.candidateMillis;
+        state.tripLatitude = state.candidateLatitude;
+        state.tripLongitude = state.candidateLongitude;
+        state.tripOdometer = state.candidateOdometer;
+        state.candidateMillis = -1;
+        state.idleMillis = -1;
+    }
+
+    private void endTrip(TripState state, long imei) {
+        emit(new TripSegment(TripSegment.Kind.TRIP, imei, state.tripMillis, state.idleMillis,
+                e6(state.tripLatitude), e6(state.tripLongitude),
+                e6(state.idleLatitude), e6(state.idleLongitude),
+                (float) (state.idleOdometer - state.tripOdometer),
+                (short) Math.min(Short.MAX_VALUE, state.maxSpeedTenths), state.idleOdometer));
+        state.inTrip = false;
+        state.stopMillis = state.idleMillis;
+        state.stopLatitude = state.idleLatitude;
+        state.stopLongitude = state.idleLongitude;
+        state.idleMillis = -1;
+        state.candidateMillis = -1;
+    }
+
+    private void emit(TripSegment segment) {
+        if (segment.getKind() == TripSegment.Kind.TRIP) {
+            metrics.tripsCompleted.increment();
+        } else {
+            metrics.stopsCompleted.increment();
+        }
+        try {
+            store.append(segment);
+        } catch (IOException e) {
+            EventJournal.get().emitError(EventType.TRIP_STORE_ERROR, segment.getImei(), e);
+        }
+        listener.onSegment(segment);
+    }
+
+    private static int e6(double degrees) {
+        return (int) Math.round(degrees * 1000000.0);
+    }
+
+    // Haversine distance, as the backend's dataAggregator computes it
+    public static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.sin(dLon / 2) * Math.sin(dLon / 2)
+                * Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2));
+        return EARTH_RADIUS_METERS * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    public double getOdometerMeters(int slot) {
+        TripState state = existingState(slot);
+        return state != null ? state.odometerMeters : 0;
+    }
+
+    public boolean isInTrip(int slot) {
+        TripState state = existingState(slot);
+        return state != null && state.inTrip;
+    }
+
+    private TripState existingState(int slot) {
+        TripState[] current = states;
+        return slot >= 0 && slot < current.length ? current[slot] : null;
+    }
+
+    private TripState stateFor(int slot) {
+        TripState[] current = states;
+        if (slot < current.length && current[slot] != null) {
+            return current[slot];
+        }
+        synchronized (growLock) {
+            current = states;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, Math.max(slot + 1, current.length * 2));
+            }
+            if (current[slot] == null) {
+                current[slot] = new TripState();
+            }
+            states = current;
+            return current[slot];
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.ohw.parser.trips;
+
+// Receives finished trips and stops on the device's ingest shard thread
+public interface TripListener {
+
+    void onSegment(TripSegment segment);
+}
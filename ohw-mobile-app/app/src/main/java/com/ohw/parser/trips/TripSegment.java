@@ -0,0 +1,125 @@
+package com.ohw.parser.trips;
+
+// Summary of one trip, or of the stop between two trips. Positions are kept
+// in microdegrees, the same resolution TrackStore uses.
+public class TripSegment {
+
+    public enum Kind {
+        TRIP("trip"),
+        STOP("stop");
+
+        private final String jsonName;
+
+        Kind(String jsonName) {
+            this.jsonName = jsonName;
+        }
+
+        public String getJsonName() {
+            return jsonName;
+        }
+    }
+
+    private final Kind kind;
+    private final long imei;
+    private final long startMillis;
+    private final long endMillis;
+    private final int startLatitudeE6;
+    private final int startLongitudeE6;
+    private final int endLatitudeE6;
+    private final int endLongitudeE6;
+    private final float distanceMeters;
+    private final short maxSpeedTenths;
+    private final double odometerMeters;
+
+    TripSegment(Kind kind, long imei, long startMillis, long endMillis,
+                int startLatitudeE6, int startLongitudeE6, int endLatitudeE6, int endLongitudeE6,
+                float distanceMeters, short maxSpeedTenths, double odometerMeters) {
+        this.kind = kind;
+        this.imei = imei;
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.startLatitudeE6 = startLatitudeE6;
+        this.startLongitudeE6 = startLongitudeE6;
+        this.endLatitudeE6 = endLatitudeE6;
+        this.endLongitudeE6 = endLongitudeE6;
+        this.distanceMeters = distanceMeters;
+        this.maxSpeedTenths = maxSpeedTenths;
+        this.odometerMeters = odometerMeters;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public long getImei() {
+        return imei;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getEndMillis() {
+        return endMillis;
+    }
+
+    public long getDurationMillis() {
+        return endMillis - startMillis;
+    }
+
+    public double getStartLatitude() {
+        return startLatitudeE6 / 1000000.0;
+    }
+
+    public double getStartLongitude() {
+        return startLongitudeE6 / 1000000.0;
+    }
+
+    public double getEndLatitude() {
+        return endLatitudeE6 / 1000000.0;
+    }
+
+    public double getEndLongitude() {
+        return endLongitudeE6 / 1000000.0;
+    }
+
+    public double getDistanceMeters() {
+        return distanceMeters;
+    }
+
+    // km/h
+    public double getMaxSpeed() {
+        return maxSpeedTenths / 10.0;
+    }
+
+    // km/h over the whole segment
+    public double getAverageSpeed() {
+        long duration = getDurationMillis();
+        return duration > 0 ? distanceMeters * 3600.0 / duration : 0;
+    }
+
+    // Device odometer when the segment ended
+    public double getOdometerMeters() {
+        return odometerMeters;
+    }
+
+    int startLatitudeE6() {
+        return startLatitudeE6;
+    }
+
+    int startLongitudeE6() {
+        return startLongitudeE6;
+    }
+
+    int endLatitudeE6() {
+        return endLatitudeE6;
+    }
+
+    int endLongitudeE6() {
+        return endLongitudeE6;
+    }
+
+    short maxSpeedTenths() {
+        return maxSpeedTenths;
+    }
+}
@@ -0,0 +1,44 @@
+package com.ohw.parser.trips;
+
+// Trip state machine of one device. Only touched by the device's ingest shard
+// thread; getters read it racily for reporting.
+final class TripState {
+
+    boolean seeded;
+    double odometerMeters;
+
+    // Anchor for distance: last fix that was counted
+    boolean hasFix;
+    long fixMillis;
+    double fixLatitude;
+    double fixLongitude;
+    long lastMillis;
+    double lastLatitude;
+    double lastLongitude;
+
+    boolean inTrip;
+
+    // While parked: first moving fix of a possible trip, -1 when none
+    long candidateMillis = -1;
+    double candidateLatitude;
+    double candidateLongitude;
+    double candidateOdometer;
+
+    // Current trip
+    long tripMillis;
+    double tripLatitude;
+    double tripLongitude;
+    double tripOdometer;
+    int maxSpeedTenths;
+
+    // While in a trip: first fix of the current standstill, -1 when moving
+    long idleMillis = -1;
+    double idleLatitude;
+    double idleLongitude;
+    double idleOdometer;
+
+    // Where and when the current stop began, -1 before the first trip ended
+    long stopMillis = -1;
+    double stopLatitude;
+    double stopLongitude;
+}
@@ -0,0 +1,218 @@
+package com.ohw.parser.trips;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Finished trips and stops, kept per device in memory for lookups and appended
+// to a log file so they survive restarts. The log is rotated once it reaches
+// its size limit; the previous generation is still read back on load.
+//
+// Log layout (big-endian): "OHWTRP01", then fixed-size records of
+//   imei (8) | kind (1) | start millis (8) | end millis (8) |
+//   start lat/lon E6 (4 + 4) | end lat/lon E6 (4 + 4) |
+//   distance meters (4, float) | max speed tenths (2) | odometer meters (8)
+public class TripStore {
+
+    public static final int SEGMENTS_PER_DEVICE = 256;
+    public static final long DEFAULT_MAX_FILE_BYTES = 8L * 1024 * 1024;
+
+    private static final byte[] MAGIC = "OHWTRP01".getBytes(StandardCharsets.US_ASCII);
+    static final int RECORD_BYTES = 8 + 1 + 8 + 8 + 16 + 4 + 2 + 8;
+    private static final String FILE_NAME = "trips.bin";
+    private static final String ROTATED_FILE_NAME = "trips.1.bin";
+
+    // Oldest first; trimmed to SEGMENTS_PER_DEVICE
+    private static final class DeviceSegments {
+        TripSegment[] segments = new TripSegment[8];
+        int count;
+    }
+
+    private final long maxFileBytes;
+    private final ConcurrentHashMap<Long, DeviceSegments> devices = new ConcurrentHashMap<>();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+    // Guarded by this
+    private File directory;
+    private FileChannel channel;
+
+    public TripStore() {
+        this(DEFAULT_MAX_FILE_BYTES);
+    }
+
+    public TripStore(long maxFileBytes) {
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    // Binds the store to its directory and reads the rotated and current logs back
+    // into memory; returns the number of segments
+    public int open(File directory) throws IOException {
+        synchronized (this) {
+            this.directory = directory;
+        }
+        int loaded = 0;
+        for (String name : new String[] {ROTATED_FILE_NAME, FILE_NAME}) {
+            File file = new File(directory, name);
+            if (!file.exists()) {
+                continue;
+            }
+            try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(in.size(), Integer.MAX_VALUE));
+                while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+                    // Read the whole file
+                }
+                buffer.flip();
+                byte[] magic = new byte[MAGIC.length];
+                if (buffer.remaining() < MAGIC.length) {
+                    continue;
+                }
+                buffer.get(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException("Not a trip log: " + file);
+                }
+                // A torn tail record from a crash is ignored
+                while (buffer.remaining() >= RECORD_BYTES) {
+                    remember(read(buffer));
+                    loaded++;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    public void append(TripSegment segment) throws IOException {
+        remember(segment);
+        synchronized (this) {
+            if (channel == null || channel.size() + RECORD_BYTES > maxFileBytes) {
+                openLog();
+            }
+            record.clear();
+            write(record, segment);
+            record.flip();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        }
+    }
+
+    private void openLog() throws IOException {
+        if (directory == null) {
+            throw new IOException("Trip store is not open");
+        }
+        File file = new File(directory, FILE_NAME);
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            File rotated = new File(directory, ROTATED_FILE_NAME);
+            if (rotated.exists() && !rotated.delete() || !file.renameTo(rotated)) {
+                throw new IOException("Cannot rotate " + file);
+            }
+        }
+        directory.mkdirs();
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        if (channel.size() == 0) {
+            channel.write(ByteBuffer.wrap(MAGIC));
+        } else {
+            // Drop a torn tail so records stay aligned
+            long records = (channel.size() - MAGIC.length) / RECORD_BYTES;
+            channel.truncate(MAGIC.length + records * RECORD_BYTES);
+        }
+        channel.position(channel.size());
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void remember(TripSegment segment) {
+        DeviceSegments device = devices.get(segment.getImei());
+        if (device == null) {
+            DeviceSegments created = new DeviceSegments();
+            device = devices.putIfAbsent(segment.getImei(), created);
+            if (device == null) {
+                device = created;
+            }
+        }
+        synchronized (device) {
+            if (device.count == SEGMENTS_PER_DEVICE) {
+                System.arraycopy(device.segments, SEGMENTS_PER_DEVICE / 4, device.segments, 0,
+                        SEGMENTS_PER_DEVICE - SEGMENTS_PER_DEVICE / 4);
+                device.count -= SEGMENTS_PER_DEVICE / 4;
+                Arrays.fill(device.segments, device.count, SEGMENTS_PER_DEVICE, null);
+            } else if (device.count == device.segments.length) {
+                device.segments = Arrays.copyOf(device.segments,
+                        Math.min(SEGMENTS_PER_DEVICE, device.count * 2));
+            }
+            device.segments[device.count++] = segment;
+        }
+    }
+
+    // Segments overlapping fromMillis..toMillis, oldest first
+    public List<TripSegment> range(long imei, long fromMillis, long toMillis) {
+        DeviceSegments device = devices.get(imei);
+        if (device == null) {
+            return Collections.emptyList();
+        }
+        synchronized (device) {
+            // Segments are appended in time order, so end times are ascending
+            int low = 0;
+            int high = device.count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (device.segments[mid].getEndMillis() < fromMillis) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            List<TripSegment> result = new ArrayList<>();
+            for (int i = low; i < device.count && device.segments[i].getStartMillis() <= toMillis; i++) {
+                result.add(device.segments[i]);
+            }
+            return result;
+        }
+    }
+
+    // Most recent segment of the device, or null
+    public TripSegment last(long imei) {
+        DeviceSegments device = devices.get(imei);
+        if (device == null) {
+            return null;
+        }
+        synchronized (device) {
+            return device.count > 0 ? device.segments[device.count - 1] : null;
+        }
+    }
+
+    private static void write(ByteBuffer buffer, TripSegment segment) {
+        buffer.putLong(segment.getImei());
+        buffer.put((byte) segment.getKind().ordinal());
+        buffer.putLong(segment.getStartMillis());
+        buffer.putLong(segment.getEndMillis());
+        buffer.putInt(segment.startLatitudeE6());
+        buffer.putInt(segment.startLongitudeE6());
+        buffer.putInt(segment.endLatitudeE6());
+        buffer.putInt(segment.endLongitudeE6());
+        buffer.putFloat((float) segment.getDistanceMeters());
+        buffer.putShort(segment.maxSpeedTenths());
+        buffer.putDouble(segment.getOdometerMeters());
+    }
+
+    private static TripSegment read(ByteBuffer buffer) {
+        long imei = buffer.getLong();
+        TripSegment.Kind kind = TripSegment.Kind.values()[buffer.get()];
+        return new TripSegment(kind, imei, buffer.getLong(), buffer.getLong(),
+                buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                buffer.getFloat(), buffer.getShort(), buffer.getDouble());
+    }
+}
@@ -0,0 +1,194 @@
+package com.ohw.parser.admission;
+
+import com.ohw.parser.commands.CommandPacketBuilder;
+import com.ohw.parser.metrics.GatewayMetrics;
+import com.ohw.parser.parsers.GalileoskyFrames;
+import com.ohw.parser.parsers.GalileoskyParser;
+import com.ohw.parser.parsers.RecordView;
+import com.ohw.parser.pipeline.IngestPipeline;
+import com.ohw.parser.pipeline.IngestRecord;
+import com.ohw.parser.pipeline.RecordConsumer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AdmissionControlTest {
+
+    private static final long FIRST_IMEI = 350000000000000L;
+
+    private final GatewayMetrics metrics = GatewayMetrics.get();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private IngestPipeline pipeline;
+
+    private IngestPipeline startPipeline(int capacity, final boolean blocked) {
+        pipeline = new IngestPipeline(1, capacity, new RecordConsumer() {
+            @Override
+            public void onRecord(IngestRecord record, int shard) {
+                if (blocked) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        pipeline.start();
+        return pipeline;
+    }
+
+    @After
+    public void stopPipeline() {
+        release.countDown();
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+    }
+
+    // A carrier NAT address with many trackers behind it
+    private static InetAddress carrierAddress(int i) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] { 10, 64, (byte) (i >>> 8), (byte) i });
+    }
+
+    // The whole fleet reconnects at once after an outage: 2000 trackers behind 20
+    // carrier addresses hit one acceptor, which paces accepts and admits or
+    // refuses each connection as TcpServerService's acceptor does
+    @Test
+    public void reconnectStorm() throws Exception {
+        AdmissionControl.Config config = new AdmissionControl.Config();
+        config.maxConnections = 1500;
+        config.acceptsPerSecond = 2000;
+        config.acceptBurst = 200;
+        config.connectsPerAddressPerSecond = 20;
+        config.connectBurstPerAddress = 60;
+        AdmissionControl admission = new AdmissionControl(config, startPipeline(1024, false));
+
+        long pacedBefore = metrics.acceptsPaced.get();
+        long limitBefore = metrics.connectionsRefusedLimit.get();
+        long rateBefore = metrics.connectionsRefusedRate.get();
+        int trackers = 2000;
+        int open = 0;
+        long start = System.nanoTime();
+        int waiting = trackers;
+        for (int round = 0; round < 3 && waiting > 0; round++) {
+            // Refused trackers try again; admitted ones stay connected
+            int attempts = waiting;
+            for (int i = 0; i < attempts; i++) {
+                admission.paceAccept();
+                if (admission.admitConnection(carrierAddress(i % 20), open)) {
+                    open++;
+                    waiting--;
+                }
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long paced = metrics.acceptsPaced.get() - pacedBefore;
+        long refusedLimit = metrics.connectionsRefusedLimit.get() - limitBefore;
+        long refusedRate = metrics.connectionsRefusedRate.get() - rateBefore;
+        System.out.printf("Reconnect storm: %d trackers, %d admitted in %.2f s; %d accepts paced,"
+                        + " %d refused at the limit, %d over their address's rate%n",
+                trackers, open, seconds, paced, refusedLimit, refusedRate);
+
+        assertTrue("over maxConnections", open <= config.maxConnections);
+        assertTrue("address rate never applied", refusedRate > 0);
+        assertTrue("accepts were not paced", paced > 0);
+        // Every attempt beyond the burst waited for its token
+        long attempts = open + refusedLimit + refusedRate;
+        assertTrue("accepts too fast: " + seconds + " s",
+                seconds >= (attempts - config.acceptBurst) / config.acceptsPerSecond * 0.9);
+    }
+
+    @Test
+    public void refusesConnectionsAtTheLimit() throws Exception {
+        AdmissionControl.Config config = new AdmissionControl.Config();
+        config.maxConnections = 10;
+        AdmissionControl admission = new AdmissionControl(config, startPipeline(64, false));
+        assertTrue(admission.admitConnection(carrierAddress(1), 9));
+        assertFalse(admission.admitConnection(carrierAddress(1), 10));
+        // Replays and tools on the phone itself are never limited
+        assertTrue(admission.admitConnection(InetAddress.getLoopbackAddress(), 10));
+    }
+
+    @Test
+    public void floodingTrackerOnlyLosesItsOwnBudget() throws Exception {
+        AdmissionControl.Config config = new AdmissionControl.Config();
+        config.framesPerDevicePerSecond = 1;
+        config.frameBurstPerDevice = 50;
+        AdmissionControl admission = new AdmissionControl(config, startPipeline(64, false));
+        int admitted = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (admission.admitFrame(0, FIRST_IMEI, AdmissionControl.Priority.LIVE)) {
+                admitted++;
+            }
+        }
+        assertTrue("flood admitted: " + admitted, admitted >= 50 && admitted <= 52);
+        assertTrue(admission.admitFrame(1, FIRST_IMEI + 1, AdmissionControl.Priority.LIVE));
+        assertTrue(admission.admitFrame(0, FIRST_IMEI, AdmissionControl.Priority.REPLY));
+    }
+
+    // As the shard queue fills: new connections first, then archive frames, then
+    // live ones; command replies always get through
+    @Test
+    public void shedsByPriorityAsTheQueueFills() throws Exception {
+        AdmissionControl.Config config = new AdmissionControl.Config();
+        config.frameBurstPerDevice = 100000;
+        IngestPipeline pipeline = startPipeline(100, true);
+        AdmissionControl admission = new AdmissionControl(config, pipeline);
+        int capacity = pipeline.getQueueCapacity(0);
+
+        fillTo(pipeline, 0.55, capacity);
+        assertFalse(admission.admitConnection(carrierAddress(1), 0));
+        assertTrue(admission.admitFrame(0, FIRST_IMEI, AdmissionControl.Priority.ARCHIVE));
+
+        fillTo(pipeline, 0.65, capacity);
+        assertFalse(admission.admitFrame(0, FIRST_IMEI, AdmissionControl.Priority.ARCHIVE));
+        assertTrue(admission.admitFrame(0, FIRST_IMEI, AdmissionControl.Priority.LIVE));
+
+        fillTo(pipeline, 0.95, capacity);
+        assertFalse(admission.admitFrame(0, FIRST_IMEI, AdmissionControl.Priority.LIVE));
+        assertTrue(admission.admitFrame(0, FIRST_IMEI, AdmissionControl.Priority.REPLY));
+    }
+
+    private static void fillTo(IngestPipeline pipeline, double fill, int capacity) throws InterruptedException {
+        while (pipeline.getQueueDepth(0) < fill * capacity) {
+            pipeline.submit(new IngestRecord(null, FIRST_IMEI, 0, "test", 0));
+        }
+        Thread.sleep(20);     // The shard has taken its one record and is stuck on it
+    }
+
+    @Test
+    public void classifiesFramesByPriority() {
+        AdmissionControl admission = new AdmissionControl(new AdmissionControl.Config(), startPipeline(64, false));
+        GalileoskyParser parser = new GalileoskyParser();
+        long nowMillis = 1700000000000L;
+        RecordView live = parser.index(GalileoskyFrames.frame(FIRST_IMEI, nowMillis / 1000, 1));
+        RecordView old = parser.index(GalileoskyFrames.frame(FIRST_IMEI, nowMillis / 1000 - 3600, 1));
+        RecordView flush = parser.index(GalileoskyFrames.frame(FIRST_IMEI, nowMillis / 1000 - 3600, 20));
+        RecordView reply = parser.index(CommandPacketBuilder.build(FIRST_IMEI, 1, 5, "OK"));
+        assertEquals(AdmissionControl.Priority.LIVE, admission.priorityOf(live, nowMillis));
+        assertEquals(AdmissionControl.Priority.ARCHIVE, admission.priorityOf(old, nowMillis));
+        assertEquals(AdmissionControl.Priority.ARCHIVE, admission.priorityOf(flush, nowMillis));
+        assertEquals(AdmissionControl.Priority.REPLY, admission.priorityOf(reply, nowMillis));
+    }
+
+    @Test
+    public void rejectsConfigThatWouldStallTheListener() {
+        AdmissionControl.Config config = new AdmissionControl.Config();
+        config.acceptsPerSecond = 0;
+        try {
+            new AdmissionControl(config, startPipeline(64, false));
+            fail("zero accept rate accepted");
+        } catch (IllegalArgumentException expected) {
+            // paceAccept would sleep forever
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.ohw.parser.alerts;
+
+import com.ohw.parser.models.ParsedPacket;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class AlertEngineTest {
+
+    private static final long IMEI = 350000000000001L;
+
+    private final List<AlertEvent> events = new ArrayList<>();
+    private final AlertEngine engine = new AlertEngine(new AlertListener() {
+        @Override
+        public void onAlert(AlertEvent event) {
+            events.add(event);
+        }
+    });
+
+    @Test
+    public void raisesOnceAndClearsPastHysteresis() {
+        AlertRuleDefinition rule = AlertRuleDefinition.fromCondition("low", "Low battery", "high",
+                "batteryVoltage < 3.5");
+        rule.hysteresis = 0.2;
+        engine.setRules(AlertRules.compile(listOf(rule)));
+
+        evaluateBattery(3.6, 0);
+        evaluateBattery(3.4, 1000);
+        evaluateBattery(3.3, 2000);
+        evaluateBattery(3.6, 3000);     // Within hysteresis: still raised
+        assertEquals(1, events.size());
+        assertEquals(AlertEvent.Type.RAISED, events.get(0).getType());
+        assertEquals(1, engine.getActiveCount(0));
+
+        evaluateBattery(3.8, 4000);
+        assertEquals(2, events.size());
+        assertEquals(AlertEvent.Type.RESOLVED, events.get(1).getType());
+        assertEquals(0, engine.getActiveCount(0));
+    }
+
+    @Test
+    public void waitsForTheDebouncePeriod() {
+        AlertRuleDefinition rule = AlertRuleDefinition.fromCondition("fast", "Speeding", "medium", "speed > 90");
+        rule.debounceMillis = 10000;
+        engine.setRules(AlertRules.compile(listOf(rule)));
+
+        evaluateSpeed(100, 0);
+        evaluateSpeed(80, 5000);        // A dip restarts the debounce
+        evaluateSpeed(100, 6000);
+        evaluateSpeed(100, 15000);
+        assertEquals(0, events.size());
+        evaluateSpeed(100, 16000);
+        assertEquals(1, events.size());
+        assertEquals(AlertEvent.Type.RAISED, events.get(0).getType());
+    }
+
+    @Test
+    public void watchesStatusBitsAndInputChanges() {
+        engine.setRules(AlertRules.compile(listOf(
+                AlertRuleDefinition.fromCondition("alarm", "Alarm", "high", "status.3 set"),
+                AlertRuleDefinition.fromCondition("inputs", "Inputs", "low", "inputs changed"))));
+
+        ParsedPacket packet = new ParsedPacket();
+        packet.setStatus(0);
+        packet.addAdditionalData("inputs", 1);
+        engine.evaluate(0, IMEI, packet, 0);
+        packet.setStatus(1 << 3);
+        packet.addAdditionalData("inputs", 3);
+        engine.evaluate(0, IMEI, packet, 1000);
+        assertEquals(2, events.size());
+
+        packet.setStatus(0);
+        engine.evaluate(0, IMEI, packet, 2000);
+        assertEquals(3, events.size());
+        assertEquals(AlertEvent.Type.RESOLVED, events.get(2).getType());
+        assertEquals("alarm", events.get(2).getRuleId());
+    }
+
+    @Test
+    public void ignoresRulesScopedToOtherDevices() {
+        AlertRuleDefinition rule = AlertRuleDefinition.fromCondition("fast", "Speeding", "medium", "speed > 90");
+        rule.imei = "350000000000002";
+        engine.setRules(AlertRules.compile(listOf(rule)));
+        evaluateSpeed(120, 0);
+        assertEquals(0, events.size());
+    }
+
+    // Records/sec through 1k active rules: thresholds on both voltages and speed,
+    // status and input bits, spread over 1k devices
+    @Test
+    public void benchmarkThousandRules() {
+        final long[] transitions = new long[1];
+        AlertEngine engine = new AlertEngine(new AlertListener() {
+            @Override
+            public void onAlert(AlertEvent event) {
+                transitions[0]++;
+            }
+        });
+        List<AlertRuleDefinition> definitions = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            AlertRuleDefinition rule;
+            switch (i % 5) {
+                case 0:
+                    rule = AlertRuleDefinition.fromCondition("b" + i, "Battery", "high", "batteryVoltage < " + (3.0 + i % 10 * 0.05));
+                    rule.hysteresis = 0.1;
+                    break;
+                case 1:
+                    rule = AlertRuleDefinition.fromCondition("s" + i, "Supply", "medium", "supplyVoltage < " + (11 + i % 10 * 0.1));
+                    break;
+                case 2:
+                    rule = AlertRuleDefinition.fromCondition("v" + i, "Speed", "medium", "speed > " + (60 + i % 60));
+                    rule.debounceMillis = 5000;
+                    break;
+                case 3:
+                    rule = AlertRuleDefinition.fromCondition("t" + i, "Status", "low", "status." + (i % 16) + " set");
+                    break;
+                default:
+                    rule = AlertRuleDefinition.fromCondition("i" + i, "Inputs", "low", "inputs." + (i % 8) + " changed");
+                    break;
+            }
+            definitions.add(rule);
+        }
+        engine.setRules(AlertRules.compile(definitions));
+
+        int devices = 1000;
+        ParsedPacket[] packets = new ParsedPacket[64];
+        for (int i = 0; i < packets.length; i++) {
+            ParsedPacket packet = new ParsedPacket();
+            packet.setBatteryVoltage(3.0 + (i % 16) * 0.05);
+            packet.setSupplyVoltage(11.0 + (i % 20) * 0.1);
+            packet.setSpeed(i * 2);
+            packet.setStatus(i * 37);
+            packet.addAdditionalData("inputs", i % 4);
+            packets[i] = packet;
+        }
+        // Each device moves to the next sample every 50 records, so most records change nothing
+        int records = 300000;
+        for (int round = 0; round < 3; round++) {
+            transitions[0] = 0;
+            long start = System.nanoTime();
+            for (int r = 0; r < records; r++) {
+                int device = r % devices;
+                engine.evaluate(device, IMEI + device, packets[(r / devices / 50 + device) % packets.length], r);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (round == 2) {
+                System.out.printf("Alerts: %d rules, %d devices: %.0f records/s, %d transitions%n",
+                        definitions.size(), devices, records / seconds, transitions[0]);
+            }
+        }
+    }
+
+    private void evaluateBattery(double volts, long nowMillis) {
+        ParsedPacket packet = new ParsedPacket();
+        packet.setBatteryVoltage(volts);
+        engine.evaluate(0, IMEI, packet, nowMillis);
+    }
+
+    private void evaluateSpeed(double speed, long nowMillis) {
+        ParsedPacket packet = new ParsedPacket();
+        packet.setSpeed(speed);
+        engine.evaluate(0, IMEI, packet, nowMillis);
+    }
+
+    private static List<AlertRuleDefinition> listOf(AlertRuleDefinition... rules) {
+        List<AlertRuleDefinition> list = new ArrayList<>();
+        for (AlertRuleDefinition rule : rules) {
+            list.add(rule);
+        }
+        return list;
+    }
+}
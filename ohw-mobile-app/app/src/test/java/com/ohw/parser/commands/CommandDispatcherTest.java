@@ -0,0 +1,198 @@
+package com.ohw.parser.commands;
+
+import com.ohw.parser.metrics.LatencyHistogram;
+import com.ohw.parser.parsers.GalileoskyParser;
+import com.ohw.parser.parsers.RecordView;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CommandDispatcherTest {
+
+    private static final long FIRST_IMEI = 350000000000000L;
+
+    // In-memory device connection: flushing "writes" its packets to the simulated devices
+    private static final class FakeChannel implements CommandChannel {
+        final long imei;
+        final ConcurrentLinkedQueue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+        final BlockingQueue<byte[]> wire;
+
+        FakeChannel(long imei, BlockingQueue<byte[]> wire) {
+            this.imei = imei;
+            this.wire = wire;
+        }
+
+        @Override
+        public long getImei() {
+            return imei;
+        }
+
+        @Override
+        public int getDeviceNumber() {
+            return 7;
+        }
+
+        @Override
+        public void enqueueOutbound(byte[] packet) {
+            outbound.add(packet);
+        }
+
+        @Override
+        public void flushOutbound() {
+            byte[] packet;
+            while ((packet = outbound.poll()) != null) {
+                wire.add(packet);
+            }
+        }
+    }
+
+    private static final class Fleet implements CommandDispatcher.ChannelResolver {
+        final ConcurrentHashMap<Long, FakeChannel> channels = new ConcurrentHashMap<>();
+        final BlockingQueue<byte[]> wire = new LinkedBlockingQueue<>();
+
+        Fleet(int devices) {
+            for (int i = 0; i < devices; i++) {
+                channels.put(FIRST_IMEI + i, new FakeChannel(FIRST_IMEI + i, wire));
+            }
+        }
+
+        @Override
+        public CommandChannel findChannel(long imei) {
+            return channels.get(imei);
+        }
+    }
+
+    private static class Recorder implements CommandListener {
+        final ConcurrentLinkedQueue<String> replies = new ConcurrentLinkedQueue<>();
+        final AtomicInteger expired = new AtomicInteger();
+
+        @Override
+        public void onCommandReply(Command command, String reply, long roundTripNanos) {
+            replies.add(reply);
+        }
+
+        @Override
+        public void onCommandExpired(Command command) {
+            expired.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void buildsPacketsTheParserReadsBack() throws Exception {
+        Fleet fleet = new Fleet(1);
+        CommandDispatcher dispatcher = new CommandDispatcher(fleet, new Recorder(), 60000, 1);
+        try {
+            Command command = dispatcher.submit(FIRST_IMEI, "STATUS", "r1");
+            assertNotNull(command);
+            byte[] packet = fleet.wire.poll(5, TimeUnit.SECONDS);
+            assertNotNull(packet);
+            RecordView view = new GalileoskyParser().index(packet);
+            assertTrue(view.isCommandReply());
+            assertEquals(FIRST_IMEI, view.getImei());
+            assertEquals(command.getNumber(), view.getCommandNumber());
+            assertEquals("STATUS", view.getCommandText());
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void matchesRepliesByNumberAndImei() {
+        Recorder recorder = new Recorder();
+        CommandDispatcher dispatcher = new CommandDispatcher(new Fleet(2), recorder, 60000, 1);
+        try {
+            assertNull(dispatcher.submit(FIRST_IMEI + 5, "STATUS", null));
+            Command command = dispatcher.submit(FIRST_IMEI, "STATUS", null);
+            assertFalse(dispatcher.onReply(FIRST_IMEI + 1, command.getNumber(), "wrong device"));
+            assertTrue(dispatcher.onReply(FIRST_IMEI, command.getNumber(), "OK"));
+            assertFalse(dispatcher.onReply(FIRST_IMEI, command.getNumber(), "duplicate"));
+            assertEquals("OK", recorder.replies.poll());
+            assertEquals(0, dispatcher.getPendingCount());
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void expiresUnansweredCommands() {
+        Recorder recorder = new Recorder();
+        CommandDispatcher dispatcher = new CommandDispatcher(new Fleet(3), recorder, 0, 1);
+        try {
+            dispatcher.submitAll(new long[] { FIRST_IMEI, FIRST_IMEI + 1, FIRST_IMEI + 2 }, "STATUS", null);
+            assertEquals(3, dispatcher.expire());
+            assertEquals(3, recorder.expired.get());
+            assertEquals(0, dispatcher.getPendingCount());
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    // Fan-out to a whole fleet: simulated devices parse each packet off the wire and
+    // reply at once, so the round trip is dispatcher, writer pool and reply matching
+    @Test
+    public void benchmarkFleetRoundTrip() throws Exception {
+        final int devices = 10000;
+        final Fleet fleet = new Fleet(devices);
+        long[] imeis = new long[devices];
+        for (int i = 0; i < devices; i++) {
+            imeis[i] = FIRST_IMEI + i;
+        }
+        for (int round = 0; round < 3; round++) {
+            final LatencyHistogram roundTrips = new LatencyHistogram("bench_seconds", "bench");
+            final CountDownLatch answered = new CountDownLatch(devices);
+            final CommandDispatcher dispatcher = new CommandDispatcher(fleet, new Recorder() {
+                @Override
+                public void onCommandReply(Command command, String reply, long roundTripNanos) {
+                    roundTrips.record(roundTripNanos);
+                    answered.countDown();
+                }
+            }, 60000, 2);
+            Thread devicesThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    GalileoskyParser parser = new GalileoskyParser();
+                    try {
+                        while (answered.getCount() > 0) {
+                            byte[] packet = fleet.wire.poll(100, TimeUnit.MILLISECONDS);
+                            if (packet != null) {
+                                RecordView view = parser.index(packet);
+                                dispatcher.onReply(view.getImei(), view.getCommandNumber(), "OK");
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            devicesThread.start();
+            long start = System.nanoTime();
+            CommandDispatcher.FanOut fanOut = dispatcher.submitAll(imeis, "STATUS", null);
+            long submitNanos = System.nanoTime() - start;
+            assertTrue("replies missing", answered.await(60, TimeUnit.SECONDS));
+            double seconds = (System.nanoTime() - start) / 1e9;
+            devicesThread.join();
+            dispatcher.shutdown();
+            assertEquals(devices, fanOut.queued.size());
+            assertEquals(0, dispatcher.getPendingCount());
+            if (round == 2) {
+                System.out.printf("Commands to %d devices: submitAll %.1f ms, all answered in %.1f ms"
+                                + " (%.0f commands/s), round trip p50 %.2f ms, p99 %.2f ms%n",
+                        devices, submitNanos / 1e6, seconds * 1e3, devices / seconds,
+                        roundTrips.getQuantileNanos(0.5) / 1e6, roundTrips.getQuantileNanos(0.99) / 1e6);
+            }
+        }
+    }
+}
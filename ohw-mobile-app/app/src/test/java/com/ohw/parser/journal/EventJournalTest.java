@@ -0,0 +1,117 @@
+package com.ohw.parser.journal;
+
+import android.util.Log;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventJournalTest {
+
+    @Test
+    public void skipsEventsBelowTheLevel() {
+        EventJournal journal = new EventJournal(64);
+        journal.setMinLevel(JournalLevel.WARN);
+        assertTrue(journal.isEnabled(EventType.UNKNOWN_TAG));
+        assertTrue(!journal.isEnabled(EventType.PACKET_PARSED));
+        for (int i = 0; i < 1000; i++) {
+            journal.emit(EventType.PACKET_PARSED, i, 10);
+        }
+        assertEquals(0, journal.getBacklog());
+        assertEquals(0, journal.getWritten());
+    }
+
+    @Test
+    public void keepsEveryNthSampledEvent() throws Exception {
+        EventJournal journal = new EventJournal(256);
+        journal.setMinLevel(JournalLevel.TRACE);
+        journal.setSampling(EventType.TAG_DECODED, 4);
+        for (int i = 0; i < 100; i++) {
+            journal.emit(EventType.TAG_DECODED, 0x30, i);
+        }
+        awaitWritten(journal, 25);
+        assertEquals(25, journal.getWritten());
+        assertEquals(0, journal.getDropped());
+    }
+
+    @Test
+    public void dropsInsteadOfBlockingWhenFull() throws Exception {
+        EventJournal journal = new EventJournal(16);
+        journal.setMinLevel(JournalLevel.TRACE);
+        int emitted = 100000;
+        for (int i = 0; i < emitted; i++) {
+            journal.emit(EventType.FRAME_RECEIVED, 1, i);
+        }
+        awaitWritten(journal, emitted - journal.getDropped());
+        assertEquals(emitted, journal.getWritten() + journal.getDropped());
+    }
+
+    // Producer-side cost per packet: the journal as configured in production (INFO),
+    // with every parser event enabled, and the synchronous logging it replaced, which
+    // hex-dumped the frame and formatted a line per tag on the connection thread
+    @Test
+    public void benchmarkAgainstSynchronousLogging() throws Exception {
+        final byte[] frame = new byte[120];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (i * 31);
+        }
+        int packets = 200000;
+        for (int round = 0; round < 3; round++) {
+            EventJournal journal = new EventJournal(4096);
+            journal.setMinLevel(JournalLevel.INFO);
+            long quiet = timeJournal(journal, frame, packets);
+            journal.setMinLevel(JournalLevel.TRACE);
+            long verbose = timeJournal(journal, frame, packets);
+            long logged = timeLogging(frame, packets / 20) * 20; // Far slower, so fewer packets
+            if (round == 2) {
+                System.out.printf("Per packet: journal at INFO %.1f ns, journal at TRACE %.1f ns"
+                                + " (%d dropped), synchronous Log %.1f ns%n",
+                        (double) quiet / packets, (double) verbose / packets, journal.getDropped(),
+                        (double) logged / packets);
+                assertTrue("journal slower than formatting", quiet < logged);
+            }
+        }
+    }
+
+    private static long timeJournal(EventJournal journal, byte[] frame, int packets) {
+        long start = System.nanoTime();
+        for (int p = 0; p < packets; p++) {
+            journal.emitPayload(EventType.FRAME_RECEIVED, 1, frame.length, frame, 0, frame.length);
+            for (int tag = 0; tag < 12; tag++) {
+                journal.emit(EventType.TAG_DECODED, 0x20 + tag, 3 + tag * 4);
+            }
+            journal.emit(EventType.PACKET_PARSED, 350000000000000L + p, frame.length);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long timeLogging(byte[] frame, int packets) {
+        long start = System.nanoTime();
+        int sink = 0;
+        for (int p = 0; p < packets; p++) {
+            sink += Log.i("TcpServerService", "Raw data received: " + bytesToHex(frame));
+            for (int tag = 0; tag < 12; tag++) {
+                sink += Log.d("GalileoskyParser", String.format("Tag 0x%02X at offset %d", 0x20 + tag, 3 + tag * 4));
+            }
+            sink += Log.d("GalileoskyParser", "Packet parsed, IMEI: " + (350000000000000L + p));
+        }
+        assertEquals(0, sink);
+        return System.nanoTime() - start;
+    }
+
+    private static String bytesToHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : bytes) {
+            result.append(String.format("%02X", b));
+        }
+        return result.toString();
+    }
+
+    private static void awaitWritten(EventJournal journal, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (journal.getWritten() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.ohw.parser.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void histogramBucketsCoverTheirValues() {
+        for (long value = 0; value < 1000000; value = value < 64 ? value + 1 : value * 9 / 8) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue("lower bound of " + value, LatencyHistogram.lowerBound(index) <= value);
+            assertTrue("upper bound of " + value, LatencyHistogram.upperBound(index) >= value);
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.indexOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void histogramQuantilesStayWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram("test_seconds", "test");
+        for (long nanos = 1; nanos <= 100000; nanos++) {
+            histogram.record(nanos * 100);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(10000000L, histogram.getMaxNanos());
+        long median = histogram.getQuantileNanos(0.5);
+        assertTrue("median " + median, median >= 5000000L && median <= 5000000L * 9 / 8);
+        assertEquals(10000000L, histogram.getQuantileNanos(1.0));
+    }
+
+    @Test
+    public void rendersPrometheusText() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_total", "Counted things").add(3);
+        registry.histogram("test_seconds", "Timed things").record(2000);
+        registry.gauge("test_depth", "Queue depth", "shard=\"0\"", new MetricsRegistry.LongGauge() {
+            @Override
+            public long get() {
+                return 7;
+            }
+        });
+        String text = registry.renderPrometheus();
+        assertTrue(text, text.contains("# TYPE test_total counter\ntest_total 3\n"));
+        assertTrue(text, text.contains("test_seconds_bucket{le=\"1e-06\"} 0\n"));
+        assertTrue(text, text.contains("test_seconds_bucket{le=\"1e-05\"} 1\n"));
+        assertTrue(text, text.contains("test_seconds_count 1\n"));
+        assertTrue(text, text.contains("test_depth{shard=\"0\"} 7\n"));
+    }
+
+    @Test
+    public void deviceCountersGrowWithoutLosingCounts() {
+        DeviceCounters counters = new DeviceCounters();
+        counters.add(3, DeviceCounters.BYTES, 10);
+        counters.add(5000, DeviceCounters.FRAMES, 1);
+        assertEquals(10, counters.get(3, DeviceCounters.BYTES));
+        assertEquals(1, counters.get(5000, DeviceCounters.FRAMES));
+        assertEquals(0, counters.get(100000, DeviceCounters.FRAMES));
+    }
+
+    // Cost of one recorded event on the ingestion path, single-threaded and with
+    // four threads recording into the same metrics
+    @Test
+    public void benchmarkRecordingOverhead() throws Exception {
+        final Counter counter = new Counter("bench_total", "bench");
+        final LatencyHistogram histogram = new LatencyHistogram("bench_seconds", "bench");
+        final DeviceCounters devices = new DeviceCounters();
+        final int events = 2000000;
+        for (int threads = 1; threads <= 4; threads *= 4) {
+            for (int round = 0; round < 3; round++) {     // The first rounds warm up the JIT
+                long counterNanos = time(threads, events, new Recorder() {
+                    @Override
+                    public void record(int i) {
+                        counter.increment();
+                    }
+                });
+                long histogramNanos = time(threads, events, new Recorder() {
+                    @Override
+                    public void record(int i) {
+                        histogram.record(i & 0xFFFF);
+                    }
+                });
+                long deviceNanos = time(threads, events, new Recorder() {
+                    @Override
+                    public void record(int i) {
+                        devices.add(i & 0x3FF, DeviceCounters.FRAMES, 1);
+                    }
+                });
+                if (round == 2) {
+                    System.out.printf("Metrics, %d threads on %d cores: counter %.1f ns, histogram %.1f ns, device counter %.1f ns per event%n",
+                            threads, Runtime.getRuntime().availableProcessors(), (double) counterNanos / events, (double) histogramNanos / events,
+                            (double) deviceNanos / events);
+                    // Loose bound so slow CI hosts pass; the numbers above are the result
+                    assertTrue("histogram record too slow", histogramNanos / events < 2000);
+                }
+            }
+        }
+    }
+
+    private interface Recorder {
+        void record(int i);
+    }
+
+    // Wall time of the recordings times the thread count, so per-event figures are
+    // comparable across thread counts as long as each thread has its own core
+    private static long time(int threads, final int events, final Recorder recorder) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        final int perThread = events / threads;
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        recorder.record(i);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (System.nanoTime() - start) * threads;
+    }
+}
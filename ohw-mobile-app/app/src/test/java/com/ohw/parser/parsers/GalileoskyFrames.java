@@ -0,0 +1,70 @@
+package com.ohw.parser.parsers;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Builds Galileosky data frames as a tracker sends them, for tests and benchmarks:
+//   0x01 | length (bit 15: archive data follows) | 0x03 IMEI | 0x04 device number
+//        | records, each 0x20 time, 0x30 coordinates, 0x33 speed/direction,
+//          0x40 status, 0x41 supply and 0x42 battery voltage | CRC16
+public final class GalileoskyFrames {
+
+    public static final int RECORD_BYTES = 5 + 9 + 5 + 3 + 3 + 3;
+
+    private GalileoskyFrames() {
+    }
+
+    public static byte[] frame(long imei, long firstSeconds, int records) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(19 + records * RECORD_BYTES);
+        body.write(GalileoskyParser.TAG_IMEI);
+        byte[] imeiBytes = ImeiCodec.format(imei).getBytes(StandardCharsets.US_ASCII);
+        body.write(imeiBytes, 0, imeiBytes.length);
+        body.write(GalileoskyParser.TAG_DEVICE_NUMBER);
+        writeShort(body, (int) (imei & 0xFFFF));
+        for (int i = 0; i < records; i++) {
+            writeRecord(body, firstSeconds + i, i);
+        }
+        return seal(body.toByteArray(), records > 1);
+    }
+
+    private static void writeRecord(ByteArrayOutputStream body, long seconds, int i) {
+        body.write(GalileoskyParser.TAG_DATETIME);
+        writeInt(body, (int) seconds);
+        body.write(GalileoskyParser.TAG_COORDINATES);
+        writeInt(body, 55750000 + i * 10);
+        writeInt(body, 37610000 + i * 10);
+        body.write(GalileoskyParser.TAG_SPEED_DIRECTION);
+        writeShort(body, 400 + i % 100);        // 40.0 km/h and up
+        writeShort(body, (i * 10) % 3600);
+        body.write(GalileoskyParser.TAG_STATUS);
+        writeShort(body, i & 0x0F);
+        body.write(GalileoskyParser.TAG_SUPPLY_VOLTAGE);
+        writeShort(body, 12000 + i % 500);
+        body.write(GalileoskyParser.TAG_BATTERY_VOLTAGE);
+        writeShort(body, 4000 - i % 500);
+    }
+
+    private static byte[] seal(byte[] body, boolean archive) {
+        byte[] frame = new byte[FrameAssembler.HEADER_BYTES + body.length + FrameAssembler.CRC_BYTES];
+        int length = body.length | (archive ? 0x8000 : 0);
+        frame[0] = 0x01;
+        frame[1] = (byte) length;
+        frame[2] = (byte) (length >>> 8);
+        System.arraycopy(body, 0, frame, FrameAssembler.HEADER_BYTES, body.length);
+        int end = FrameAssembler.HEADER_BYTES + body.length;
+        int crc = Crc16.compute(frame, 0, end);
+        frame[end] = (byte) crc;
+        frame[end + 1] = (byte) (crc >>> 8);
+        return frame;
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value);
+        writeShort(out, value >>> 16);
+    }
+}
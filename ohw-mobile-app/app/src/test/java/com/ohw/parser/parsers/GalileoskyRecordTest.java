@@ -0,0 +1,91 @@
+package com.ohw.parser.parsers;
+
+import com.ohw.parser.models.ParsedPacket;
+
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GalileoskyRecordTest {
+
+    private static final long IMEI = 350000000000042L;
+    private static final long START_SECONDS = 1700000000L;
+
+    private final GalileoskyParser parser = new GalileoskyParser();
+
+    @Test
+    public void lazyFieldsMatchTheFullDecode() {
+        byte[] frame = GalileoskyFrames.frame(IMEI, START_SECONDS, 5);
+        GalileoskyRecord record = parser.index(frame);
+        assertEquals(5, record.getRecordCount());
+        assertArrayEquals(frame, record.getFrame());
+        for (int i = 0; i < record.getRecordCount(); i++) {
+            RecordView view = record.getRecord(i);
+            ParsedPacket packet = view.toPacket();
+            assertEquals(IMEI, view.getImei());
+            assertEquals(packet.getImeiValue(), view.getImei());
+            assertEquals(START_SECONDS + i, view.getTimestampSeconds());
+            assertEquals(packet.getTimestamp().toEpochSecond(ZoneOffset.UTC), view.getTimestampSeconds());
+            assertTrue(view.hasCoordinates());
+            assertEquals(packet.getLatitude(), view.getLatitude(), 0);
+            assertEquals(packet.getLongitude(), view.getLongitude(), 0);
+            assertEquals((IMEI & 0xFFFF), view.getDeviceNumber());
+        }
+    }
+
+    @Test
+    public void singleRecordFrameIsItsOwnRecord() {
+        GalileoskyRecord record = parser.index(GalileoskyFrames.frame(IMEI, START_SECONDS, 1));
+        assertEquals(1, record.getRecordCount());
+        assertTrue(record.getRecord(0) == record);
+        assertTrue(!record.isCommandReply());
+    }
+
+    // Consumers such as presence tracking and acks read only the IMEI, time and
+    // position; compare indexing plus those reads with decoding every tag
+    @Test
+    public void benchmarkFewFieldConsumers() {
+        byte[][] frames = new byte[1000][];
+        int records = 0;
+        for (int i = 0; i < frames.length; i++) {
+            int count = i % 10 == 0 ? 20 : 1;
+            frames[i] = GalileoskyFrames.frame(IMEI + i, START_SECONDS + i, count);
+            records += count;
+        }
+        long bestEager = Long.MAX_VALUE;
+        long bestLazy = Long.MAX_VALUE;
+        long keys = 0;
+        double positions = 0;
+        for (int round = 0; round < 20; round++) {
+            long start = System.nanoTime();
+            for (byte[] frame : frames) {
+                RecordView view = parser.index(frame);
+                for (int r = 0; r < view.getRecordCount(); r++) {
+                    ParsedPacket packet = view.getRecord(r).toPacket();
+                    keys += packet.getImeiValue() + packet.getTimestamp().getSecond();
+                    positions += packet.getLatitude() + packet.getLongitude();
+                }
+            }
+            bestEager = Math.min(bestEager, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (byte[] frame : frames) {
+                RecordView view = parser.index(frame);
+                for (int r = 0; r < view.getRecordCount(); r++) {
+                    RecordView record = view.getRecord(r);
+                    keys -= record.getImei() + record.getTimestampSeconds() % 60;
+                    positions -= record.getLatitude() + record.getLongitude();
+                }
+            }
+            bestLazy = Math.min(bestLazy, System.nanoTime() - start);
+        }
+        assertEquals("both paths must read the same values", 0, keys);
+        assertEquals("both paths must read the same values", 0, positions, 1e-3);
+        System.out.printf("Few-field consumers: full decode %.0f ns/record, lazy view %.0f ns/record (%.1fx)%n",
+                (double) bestEager / records, (double) bestLazy / records, (double) bestEager / bestLazy);
+        assertTrue("lazy view slower than a full decode", bestLazy < bestEager);
+    }
+}
@@ -0,0 +1,139 @@
+package com.ohw.parser.parsers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProtocolDecoderTest {
+
+    private static final long FIRST_IMEI = 350000000000000L;
+    private static final int CHUNK_BYTES = 1460;    // One TCP segment per read
+
+    @Test
+    public void decodesAndAcksThroughTheSpi() {
+        ProtocolDecoder decoder = new ProtocolRegistry().find(GalileoskyDecoder.NAME);
+        byte[] frame = GalileoskyFrames.frame(FIRST_IMEI, 1700000000L, 3);
+        FrameReader reader = decoder.newFrameReader();
+        reader.append(frame, 0, frame.length);
+        assertTrue(reader.next());
+        assertTrue(reader.isFrameValid());
+
+        RecordView view = decoder.decode(reader);
+        assertEquals(FIRST_IMEI, view.getImei());
+        assertEquals(3, view.getRecordCount());
+        assertEquals(1700000002L, view.getRecord(2).getTimestampSeconds());
+
+        byte[] ack = new byte[decoder.getMaxAckBytes()];
+        assertEquals(3, decoder.writeAck(reader, ack, 0));
+        assertEquals(0x02, ack[0]);
+        assertEquals(frame[frame.length - 2], ack[1]);
+        assertEquals(frame[frame.length - 1], ack[2]);
+    }
+
+    @Test
+    public void rejectsBadPortBindings() {
+        ProtocolRegistry registry = new ProtocolRegistry();
+        assertEquals(GalileoskyDecoder.DEFAULT_PORT, registry.findPort(GalileoskyDecoder.NAME));
+        assertRejected(registry, new ProtocolRegistry.Binding(3000, "teltonika"));
+        assertRejected(registry, new ProtocolRegistry.Binding(70000, GalileoskyDecoder.NAME));
+        assertRejected(registry, new ProtocolRegistry.Binding(3000, GalileoskyDecoder.NAME),
+                new ProtocolRegistry.Binding(3000, GalileoskyDecoder.NAME));
+        assertRejected(registry, (ProtocolRegistry.Binding) null);
+
+        ProtocolRegistry.Config config = new ProtocolRegistry.Config();
+        config.ports.add(new ProtocolRegistry.Binding(3001, GalileoskyDecoder.NAME));
+        registry.setConfig(config);
+        assertEquals(2, registry.getConfig().ports.size());
+    }
+
+    private static void assertRejected(ProtocolRegistry registry, ProtocolRegistry.Binding... bindings) {
+        ProtocolRegistry.Config config = new ProtocolRegistry.Config();
+        config.ports.clear();
+        for (ProtocolRegistry.Binding binding : bindings) {
+            config.ports.add(binding);
+        }
+        try {
+            registry.setConfig(config);
+            fail("binding accepted");
+        } catch (IllegalArgumentException expected) {
+            // The previous bindings stay in place
+        }
+        assertEquals(GalileoskyDecoder.DEFAULT_PORT, registry.findPort(GalileoskyDecoder.NAME));
+    }
+
+    // Frames/sec through the decoder SPI against the same work done by calling
+    // FrameAssembler and GalileoskyParser directly, as the listener did before
+    @Test
+    public void benchmarkSpiOverhead() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int frames = 2000;
+        for (int i = 0; i < frames; i++) {
+            byte[] frame = GalileoskyFrames.frame(FIRST_IMEI + i % 100, 1700000000L + i, i % 10 == 0 ? 20 : 1);
+            stream.write(frame, 0, frame.length);
+        }
+        byte[] bytes = stream.toByteArray();
+        ProtocolDecoder decoder = new GalileoskyDecoder();
+        GalileoskyParser parser = new GalileoskyParser();
+
+        long bestDirect = Long.MAX_VALUE;
+        long bestSpi = Long.MAX_VALUE;
+        long checksum = 0;
+        for (int round = 0; round < 20; round++) {
+            long start = System.nanoTime();
+            checksum += direct(parser, bytes);
+            bestDirect = Math.min(bestDirect, System.nanoTime() - start);
+            start = System.nanoTime();
+            checksum -= viaSpi(decoder, bytes);
+            bestSpi = Math.min(bestSpi, System.nanoTime() - start);
+        }
+        assertEquals("both paths must do the same work", 0, checksum);
+        System.out.printf("Decoder SPI: direct %.0f ns/frame, through the SPI %.0f ns/frame (%+.1f%%)%n",
+                (double) bestDirect / frames, (double) bestSpi / frames,
+                (bestSpi - bestDirect) * 100.0 / bestDirect);
+        // Loose bound for noisy hosts; the printed figures are the result
+        assertTrue("SPI path much slower than the direct one", bestSpi < bestDirect * 3 / 2);
+    }
+
+    private static long direct(GalileoskyParser parser, byte[] bytes) {
+        FrameAssembler assembler = new FrameAssembler();
+        byte[] ack = new byte[3];
+        long sum = 0;
+        for (int offset = 0; offset < bytes.length; offset += CHUNK_BYTES) {
+            assembler.append(bytes, offset, Math.min(CHUNK_BYTES, bytes.length - offset));
+            while (assembler.next()) {
+                if (!assembler.isFrameValid()) {
+                    continue;
+                }
+                GalileoskyRecord record = parser.index(assembler.copyFrame());
+                int crc = assembler.getFrameCheck();
+                ack[0] = 0x02;
+                ack[1] = (byte) crc;
+                ack[2] = (byte) (crc >>> 8);
+                sum += record.getImei() + record.getRecordCount() + ack[1];
+            }
+        }
+        return sum;
+    }
+
+    private static long viaSpi(ProtocolDecoder decoder, byte[] bytes) {
+        FrameReader reader = decoder.newFrameReader();
+        byte[] ack = new byte[decoder.getMaxAckBytes()];
+        long sum = 0;
+        for (int offset = 0; offset < bytes.length; offset += CHUNK_BYTES) {
+            reader.append(bytes, offset, Math.min(CHUNK_BYTES, bytes.length - offset));
+            while (reader.next()) {
+                if (!reader.isFrameValid()) {
+                    continue;
+                }
+                RecordView view = decoder.decode(reader);
+                decoder.writeAck(reader, ack, 0);
+                sum += view.getImei() + view.getRecordCount() + ack[1];
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,73 @@
+package com.ohw.parser.pipeline;
+
+import com.ohw.parser.models.ParsedPacket;
+import com.ohw.parser.parsers.GalileoskyFrames;
+import com.ohw.parser.parsers.GalileoskyParser;
+import com.ohw.parser.parsers.RecordView;
+
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveDecoderTest {
+
+    private static final long IMEI = 350000000000007L;
+    private static final long START_SECONDS = 1700000000L;
+    // A full 32 KB archive flush
+    private static final int RECORDS = (0x7FFF - 19) / GalileoskyFrames.RECORD_BYTES;
+
+    private final GalileoskyParser parser = new GalileoskyParser();
+
+    private RecordView[] records() {
+        RecordView frame = parser.index(GalileoskyFrames.frame(IMEI, START_SECONDS, RECORDS));
+        RecordView[] records = new RecordView[frame.getRecordCount()];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = frame.getRecord(i);
+        }
+        return records;
+    }
+
+    @Test
+    public void shardSeesRecordsInOrderWhileDecodedAhead() {
+        RecordView[] records = records();
+        assertEquals(RECORDS, records.length);
+        ArchiveDecoder.decodeAhead(records);
+        for (int i = 0; i < records.length; i++) {
+            ParsedPacket packet = records[i].toPacket();
+            assertEquals(START_SECONDS + i, packet.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+            assertEquals(IMEI, packet.getImeiValue());
+            assertTrue("decoded twice", packet == records[i].toPacket());
+        }
+    }
+
+    // Time from a large archive frame reaching its shard until every record is
+    // decoded, with the records decoded ahead on the fork-join pool and serially.
+    // Ahead decoding is skipped when the pool has a single thread.
+    @Test
+    public void benchmarkArchiveLatency() {
+        long bestSerial = Long.MAX_VALUE;
+        long bestAhead = Long.MAX_VALUE;
+        for (int round = 0; round < 30; round++) {
+            RecordView[] serial = records();
+            long start = System.nanoTime();
+            for (RecordView record : serial) {
+                record.toPacket();
+            }
+            bestSerial = Math.min(bestSerial, System.nanoTime() - start);
+
+            RecordView[] ahead = records();
+            start = System.nanoTime();
+            ArchiveDecoder.decodeAhead(ahead);
+            for (RecordView record : ahead) {
+                record.toPacket();
+            }
+            bestAhead = Math.min(bestAhead, System.nanoTime() - start);
+        }
+        System.out.printf("Archive frame of %d records, pool parallelism %d: serial %.2f ms, decoded ahead %.2f ms%n",
+                RECORDS, ForkJoinPool.getCommonPoolParallelism(), bestSerial / 1e6, bestAhead / 1e6);
+    }
+}
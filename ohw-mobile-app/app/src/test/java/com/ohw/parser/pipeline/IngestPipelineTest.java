@@ -0,0 +1,114 @@
+package com.ohw.parser.pipeline;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IngestPipelineTest {
+
+    private static final int DEVICES = 256;
+    private static final int PRODUCERS = 4;
+
+    @Test
+    public void keepsEachDeviceOnOneShardInArrivalOrder() throws Exception {
+        final ConcurrentHashMap<Long, long[]> lastSeen = new ConcurrentHashMap<>();
+        final AtomicInteger violations = new AtomicInteger();
+        IngestPipeline pipeline = new IngestPipeline(4, 1024, new RecordConsumer() {
+            @Override
+            public void onRecord(IngestRecord record, int shard) {
+                // { shard, last sequence number }
+                long[] seen = lastSeen.get(record.getImei());
+                if (seen == null) {
+                    lastSeen.put(record.getImei(), new long[] { shard, record.getReceivedAtMillis() });
+                    return;
+                }
+                if (seen[0] != shard || seen[1] >= record.getReceivedAtMillis()) {
+                    violations.incrementAndGet();
+                }
+                seen[1] = record.getReceivedAtMillis();
+            }
+        });
+        pipeline.start();
+        try {
+            long total = produce(pipeline, 2000);
+            awaitProcessed(pipeline, total);
+        } finally {
+            pipeline.stop();
+        }
+        assertEquals(DEVICES, lastSeen.size());
+        assertEquals(0, violations.get());
+    }
+
+    // Records/sec as the shard count grows. Each record costs a fixed amount of
+    // per-device work, so throughput should rise with shards up to the core count.
+    @Test
+    public void benchmarkShardScaling() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int perDevice = 4000;
+        for (int shards = 1; shards <= Math.max(4, cores); shards *= 2) {
+            final long[][] state = new long[shards][DEVICES];
+            IngestPipeline pipeline = new IngestPipeline(shards, IngestPipeline.DEFAULT_QUEUE_CAPACITY,
+                    new RecordConsumer() {
+                        @Override
+                        public void onRecord(IngestRecord record, int shard) {
+                            long[] devices = state[shard];
+                            int device = (int) (record.getImei() % DEVICES);
+                            long h = devices[device] ^ record.getReceivedAtMillis();
+                            for (int i = 0; i < 64; i++) {
+                                h = h * 0x9E3779B97F4A7C15L + i;
+                            }
+                            devices[device] = h;
+                        }
+                    });
+            pipeline.start();
+            long start = System.nanoTime();
+            long total;
+            try {
+                total = produce(pipeline, perDevice);
+                awaitProcessed(pipeline, total);
+            } finally {
+                pipeline.stop();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("IngestPipeline: %d shards, %d cores: %.0f records/s%n",
+                    shards, cores, total / seconds);
+        }
+    }
+
+    // One producer per group of devices, as one connection thread per device
+    private static long produce(final IngestPipeline pipeline, final int perDevice) throws InterruptedException {
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int first = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int seq = 1; seq <= perDevice; seq++) {
+                        for (int device = first; device < DEVICES; device += PRODUCERS) {
+                            // The receive time doubles as the per-device sequence number
+                            pipeline.submit(new IngestRecord(null, 350000000000000L + device, device,
+                                    "test", seq));
+                        }
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        return (long) perDevice * DEVICES;
+    }
+
+    private static void awaitProcessed(IngestPipeline pipeline, long total) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60000;
+        while (pipeline.getTotalProcessed() < total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("records left unprocessed", pipeline.getTotalProcessed() == total);
+    }
+}
@@ -0,0 +1,185 @@
+package com.ohw.parser.relay;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.ohw.parser.models.ParsedPacket;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Relay against a local stand-in for the central server
+public class UplinkRelayTest {
+
+    private static final long IMEI = 350000000000001L;
+
+    // Accepts gzipped NDJSON batches, or answers 503 while "down"; notes which
+    // records (by their receivedAt, unique per record) and sequences arrived
+    private static final class Receiver implements HttpHandler {
+        final BitSet records = new BitSet();
+        final BitSet sequences = new BitSet();
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger refused = new AtomicInteger();
+        volatile boolean down;
+        long duplicates;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (down) {
+                refused.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            long first = Long.parseLong(exchange.getRequestHeaders().getFirst("X-First-Sequence"));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(exchange.getRequestBody()), StandardCharsets.UTF_8));
+            String line;
+            long sequence = first;
+            synchronized (this) {
+                while ((line = reader.readLine()) != null) {
+                    JsonObject record = JsonParser.parseString(line).getAsJsonObject();
+                    int id = (int) record.get("receivedAt").getAsLong();
+                    if (records.get(id)) {
+                        duplicates++;     // At-least-once: a resend after a restart or timeout
+                    }
+                    records.set(id);
+                    sequences.set((int) sequence++);
+                }
+            }
+            batches.incrementAndGet();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        }
+
+        synchronized int distinct() {
+            return records.cardinality();
+        }
+    }
+
+    private HttpServer server;
+    private Receiver receiver;
+    private File directory;
+
+    @Before
+    public void startReceiver() throws IOException {
+        receiver = new Receiver();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+        server.createContext("/records", receiver);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        directory = File.createTempFile("relay", "test");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void stopReceiver() {
+        server.stop(0);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private UplinkRelay startRelay() throws IOException {
+        UplinkRelay.Config config = new UplinkRelay.Config();
+        config.url = "http://127.0.0.1:" + server.getAddress().getPort() + "/records";
+        config.minBackoffMillis = 20;
+        config.maxBackoffMillis = 200;
+        UplinkRelay relay = new UplinkRelay(config);
+        relay.open(directory);
+        relay.start();
+        return relay;
+    }
+
+    private static void offer(UplinkRelay relay, int from, int to) {
+        ParsedPacket packet = new ParsedPacket();
+        packet.setLatitude(55.75);
+        packet.setLongitude(37.61);
+        packet.setSpeed(42.5);
+        for (int i = from; i < to; i++) {
+            relay.offer(IMEI, packet, i);
+        }
+    }
+
+    private void awaitDelivered(UplinkRelay relay, int records) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60000;
+        while ((receiver.distinct() < records || relay.getBacklog() > 0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(records, receiver.distinct());
+        assertEquals(0, relay.getBacklog());
+    }
+
+    @Test
+    public void deliversEverythingAcrossOutagesAndRestarts() throws Exception {
+        int records = 20000;
+        UplinkRelay relay = startRelay();
+        offer(relay, 0, 5000);
+
+        receiver.down = true;                     // Outage with records staged and on disk
+        offer(relay, 5000, 10000);
+        Thread.sleep(500);
+        receiver.down = false;
+        offer(relay, 10000, 15000);
+
+        relay.stop();                             // Restart: resumes from the persisted cursor
+        relay = startRelay();
+        receiver.down = true;
+        offer(relay, 15000, records);
+        Thread.sleep(300);
+        receiver.down = false;
+
+        try {
+            awaitDelivered(relay, records);
+        } finally {
+            relay.stop();
+        }
+        assertTrue("the outage was never hit", receiver.refused.get() > 0);
+        int firstSequence = receiver.sequences.nextSetBit(0);
+        assertEquals(records, receiver.sequences.nextClearBit(firstSequence) - firstSequence);
+        System.out.printf("Relay: %d records in %d batches, %d refused during outages, %d resent%n",
+                records, receiver.batches.get(), receiver.refused.get(), receiver.duplicates);
+    }
+
+    @Test
+    public void benchmarkThroughput() throws Exception {
+        int records = 100000;
+        UplinkRelay relay = startRelay();
+        long start = System.nanoTime();
+        try {
+            offer(relay, 0, records);
+            long offered = System.nanoTime() - start;
+            awaitDelivered(relay, records);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Relay: %d records offered in %.1f ms (%.0f ns each), delivered in %.2f s"
+                            + " (%.0f records/s, %d batches)%n",
+                    records, offered / 1e6, (double) offered / records, seconds, records / seconds,
+                    receiver.batches.get());
+        } finally {
+            relay.stop();
+        }
+    }
+}
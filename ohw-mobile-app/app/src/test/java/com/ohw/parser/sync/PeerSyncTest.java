@@ -0,0 +1,153 @@
+package com.ohw.parser.sync;
+
+import com.ohw.parser.state.DeviceStateTable;
+import com.ohw.parser.state.TrackStore;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Two gateways in one process, syncing over loopback
+public class PeerSyncTest {
+
+    private static final long FIRST_IMEI = 350000000000000L;
+    private static final long START_MILLIS = 1700000000000L;
+    private static final int DEVICES = 200;
+    private static final int POINTS = 500;
+
+    private static final class Gateway {
+        final DeviceStateTable devices = new DeviceStateTable();
+        final TrackStore tracks = new TrackStore(1024);
+        final SyncIndex index = new SyncIndex(devices, tracks);
+
+        Gateway() {
+            tracks.setListener(index);
+        }
+
+        void add(long imei, long timeMillis) {
+            int slot = devices.getOrCreateSlot(imei);
+            tracks.append(slot, timeMillis, 55750000 + (int) (timeMillis % 1000), 37610000, 400, 900);
+        }
+
+        // The same POINTS one-minute points per device on every gateway
+        Gateway withCommonPoints() {
+            for (int d = 0; d < DEVICES; d++) {
+                for (int p = 0; p < POINTS; p++) {
+                    add(FIRST_IMEI + d, START_MILLIS + p * 60000L);
+                }
+            }
+            return this;
+        }
+    }
+
+    private ServerSocket listener;
+
+    private int serve(final Gateway gateway) throws IOException {
+        final PeerSyncServer server = new PeerSyncServer(gateway.index);
+        listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = listener.accept();
+                        server.handleConnection(socket);
+                    }
+                } catch (IOException e) {
+                    // Closed by the test
+                }
+            }
+        }, "peer-sync-test");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return listener.getLocalPort();
+    }
+
+    @After
+    public void closeListener() throws IOException {
+        if (listener != null) {
+            listener.close();
+        }
+    }
+
+    @Test
+    public void identicalGatewaysStopAtTheRoot() throws Exception {
+        Gateway local = new Gateway().withCommonPoints();
+        Gateway peer = new Gateway().withCommonPoints();
+        PeerSyncClient.Result result = new PeerSyncClient(local.index).sync("127.0.0.1", serve(peer));
+        assertEquals(1, result.rounds);
+        assertEquals(0, result.pointsReceived + result.pointsSent);
+    }
+
+    @Test
+    public void exchangesOnlyTheMissingPoints() throws Exception {
+        Gateway local = new Gateway().withCommonPoints();
+        Gateway peer = new Gateway().withCommonPoints();
+        // Each side has later points for a different set of devices, and one device only the peer knows
+        for (int d = 0; d < 10; d++) {
+            local.add(FIRST_IMEI + d, START_MILLIS + (POINTS + d) * 60000L);
+            peer.add(FIRST_IMEI + 100 + d, START_MILLIS + (POINTS + d) * 60000L);
+        }
+        peer.add(FIRST_IMEI + DEVICES, START_MILLIS);
+
+        PeerSyncClient.Result result = new PeerSyncClient(local.index).sync("127.0.0.1", serve(peer));
+        assertEquals(11, result.pointsReceived);
+        assertEquals(10, result.pointsSent);
+        assertEquals(local.index.rootHash(), peer.index.rootHash());
+
+        PeerSyncClient.Result again = new PeerSyncClient(local.index).sync("127.0.0.1", listener.getLocalPort());
+        assertEquals(1, again.rounds);
+    }
+
+    @Test
+    public void rejectsCountsLargerThanTheFrame() throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        SyncProtocol.writeVarLong(out, Integer.MAX_VALUE);
+        out.writeLong(1);
+        try {
+            SyncProtocol.readCount(new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())), 8);
+            fail("count accepted");
+        } catch (IOException expected) {
+            // Claimed more items than the frame can hold
+        }
+    }
+
+    // Bytes on the wire as the difference grows, against a full copy of the dataset
+    @Test
+    public void benchmarkBytesScaleWithTheDifference() throws Exception {
+        Gateway peer = new Gateway().withCommonPoints();
+        int port = serve(peer);
+        long previous = 0;
+        int added = 0;
+        for (int missing : new int[] { 1, 10, 100, 1000 }) {
+            Gateway local = new Gateway().withCommonPoints();
+            for (int i = added; i < missing; i++) {
+                peer.add(FIRST_IMEI + i % DEVICES, START_MILLIS + (POINTS + i / DEVICES) * 60000L);
+            }
+            added = missing;
+            PeerSyncClient.Result result = new PeerSyncClient(local.index).sync("127.0.0.1", port);
+            assertEquals(missing, result.pointsReceived);
+            long bytes = result.bytesSent + result.bytesReceived;
+            System.out.printf("Peer sync, %d of %d points missing: %s%n",
+                    missing, DEVICES * POINTS + missing, result);
+            assertTrue(bytes > previous);
+            previous = bytes;
+        }
+        // A full copy would carry every point: time, position, speed and direction
+        assertTrue("sync of 1000 points cost more than a full copy",
+                previous < (long) DEVICES * POINTS * 20);
+    }
+}